@@ -22,10 +22,12 @@ import java.io.InputStream;
 import java.lang.instrument.Instrumentation;
 import java.nio.file.Files;
 import java.nio.file.StandardCopyOption;
+import java.util.List;
 import java.util.function.BiConsumer;
 import java.util.jar.JarFile;
 import java.util.logging.Level;
 import java.util.logging.Logger;
+import java.util.stream.Collectors;
 import org.jboss.byteman.agent.Main;
 
 /**
@@ -112,19 +114,31 @@ public class Agent {
   }
 
   public static String getStartupMessage(ConfigService configService, boolean initialized) {
-    ConfigService.ReporterType reporterType = configService.getReporterType();
+    List<ConfigService.ReporterType> reporterTypes = configService.getReporterTypes();
     StringBuilder infoMessage = new StringBuilder();
     infoMessage.append(String.format("Initializing JInsight v[%s] with config "
                     + "[BCI: %s] [reporter: %s] ", configService.getAgentVersion(),
-            isBciDisabled() ? "Disabled" : "Enabled", reporterType));
-    if (reporterType == ConfigService.ReporterType.APPTUIT) {
-      infoMessage.append(String.format("[mode: %s ] [frequency: %s seconds]",
-          configService.getReportingMode(), (configService.getReportingFrequency() / 1000)));
-    } else if (reporterType == ConfigService.ReporterType.PROMETHEUS) {
-      infoMessage.append(String.format("[port: %s] [metrics-path: %s ]",
-          configService.getPrometheusPort(), configService.getPrometheusMetricsPath()));
-    } else {
-      throw new IllegalStateException();
+            isBciDisabled() ? "Disabled" : "Enabled",
+            reporterTypes.stream().map(String::valueOf).collect(Collectors.joining(","))));
+    for (ConfigService.ReporterType reporterType : reporterTypes) {
+      if (reporterType == ConfigService.ReporterType.APPTUIT) {
+        infoMessage.append(String.format("[mode: %s ] [frequency: %s seconds]",
+            configService.getReportingMode(), (configService.getReportingFrequency() / 1000)));
+      } else if (reporterType == ConfigService.ReporterType.PROMETHEUS) {
+        infoMessage.append(String.format("[port: %s] [metrics-path: %s ]",
+            configService.getPrometheusPort(), configService.getPrometheusMetricsPath()));
+      } else if (reporterType == ConfigService.ReporterType.PROMETHEUS_REMOTE_WRITE) {
+        infoMessage.append(String.format("[remote-write-url: %s] [frequency: %s seconds]",
+            configService.getRemoteWriteUrl(), (configService.getReportingFrequency() / 1000)));
+      } else if (reporterType == ConfigService.ReporterType.OTLP) {
+        infoMessage.append(String.format("[otlp-endpoint: %s] [frequency: %s seconds]",
+            configService.getOtlpEndpoint(), (configService.getReportingFrequency() / 1000)));
+      } else if (reporterType == ConfigService.ReporterType.STATSD) {
+        infoMessage.append(String.format("[statsd: %s:%d] [frequency: %s seconds]", configService.getStatsdHost(),
+            configService.getStatsdPort(), (configService.getReportingFrequency() / 1000)));
+      } else {
+        throw new IllegalStateException();
+      }
     }
     infoMessage.append(initialized ? ": SUCCESSFUL" : ": FAILED");
     return infoMessage.toString();
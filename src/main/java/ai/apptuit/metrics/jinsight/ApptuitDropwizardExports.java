@@ -27,14 +27,18 @@ import com.codahale.metrics.Sampling;
 import com.codahale.metrics.Snapshot;
 import com.codahale.metrics.Timer;
 
+import io.prometheus.client.Predicate;
 import io.prometheus.client.dropwizard.samplebuilder.SampleBuilder;
 
+import java.io.IOException;
+import java.io.OutputStream;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.SortedMap;
 import java.util.concurrent.TimeUnit;
 import java.util.logging.Level;
@@ -47,17 +51,27 @@ public class ApptuitDropwizardExports extends io.prometheus.client.Collector
   private static final String QUANTILE_TAG_NAME = "quantile";
   private static final String WINDOW_TAG_NAME = "window";
   private static final String RATE_SUFFIX = "_rate";
+  private static final String BUCKET_TAG_NAME = "le";
+  private static final String DURATION_SUFFIX = "_duration";
 
   private MetricRegistry registry;
   private SampleBuilder sampleBuilder;
+  private final ExpositionWriter expositionWriter;
+  private final ExporterMetrics exporterMetrics;
+  private final ThreadLocal<Boolean> writingRegistry = new ThreadLocal<>();
 
   public ApptuitDropwizardExports(MetricRegistry registry, SampleBuilder builder) {
+    this(registry, builder, new ExporterMetrics());
+  }
+
+  ApptuitDropwizardExports(MetricRegistry registry, SampleBuilder builder, ExporterMetrics exporterMetrics) {
     this.registry = registry;
     this.sampleBuilder = builder;
-
+    this.exporterMetrics = exporterMetrics;
+    this.expositionWriter = new ExpositionWriter(registry, builder, exporterMetrics);
   }
 
-  private static String getHelpMessage(String metricName, Metric metric) {
+  static String getHelpMessage(String metricName, Metric metric) {
     return "Generated from Dropwizard metric import (metric=" + metricName +
             ", type=" + metric.getClass().getName() + ")";
   }
@@ -151,42 +165,108 @@ public class ApptuitDropwizardExports extends io.prometheus.client.Collector
   private MetricFamilySamples fromTimer(String dropwizardName, Timer timer) {
     List<MetricFamilySamples.Sample> samples = new ArrayList<>(fromMeter(dropwizardName, timer).samples);
     samples.remove(samples.size() - 1);
-    samples.addAll(fromSnapshotAndCount(dropwizardName, "_duration", timer, timer.getCount(),
+    samples.addAll(fromSnapshotAndCount(dropwizardName, DURATION_SUFFIX, timer, timer.getCount(),
             1.0D / TimeUnit.SECONDS.toNanos(1L), getHelpMessage(dropwizardName, timer)).samples);
 
     return new MetricFamilySamples(samples.get(0).name, Type.SUMMARY, getHelpMessage(dropwizardName, timer), samples);
   }
 
+  /**
+   * Export the buckets of a timer/histogram as a native prometheus histogram, with durations in seconds.
+   */
+  private MetricFamilySamples fromBuckets(String dropwizardName, Metric metric, BucketedSampling buckets) {
+    String suffix = metric instanceof Timer ? DURATION_SUFFIX : "";
+    double[] bounds = buckets.getBucketBounds();
+    List<MetricFamilySamples.Sample> samples = new ArrayList<>(bounds.length + 3);
+    long count = 0;
+    for (int i = 0; i <= bounds.length; i++) {
+      count += buckets.getBucketCount(i);
+      String bound = i < bounds.length ? doubleToGoString(bounds[i]) : "+Inf";
+      samples.add(sampleBuilder.createSample(dropwizardName, suffix + "_bucket",
+          Collections.singletonList(BUCKET_TAG_NAME), Collections.singletonList(bound), count));
+    }
+    samples.add(sampleBuilder.createSample(dropwizardName, suffix + "_count", null, null, count));
+    samples.add(sampleBuilder.createSample(dropwizardName, suffix + "_sum", null, null, buckets.getSum()));
+    String familyName = sampleBuilder.createSample(dropwizardName, suffix, null, null, 0).name;
+    return new MetricFamilySamples(familyName, Type.HISTOGRAM, getHelpMessage(dropwizardName, metric), samples);
+  }
+
+  /**
+   * The time taken, reading the metrics and converting them to samples, is recorded as the collection time of the
+   * exporter.
+   */
   @Override
   public List<MetricFamilySamples> collect() {
+    if (writingRegistry.get() != null) {
+      return Collections.emptyList();
+    }
+    long start = System.nanoTime();
+    Map<String, Metric> metrics = registry.getMetrics();
+    Map<String, MetricFamilySamples> mfSamplesMap = new HashMap<>(metrics.size());
+
+    for (SortedMap.Entry<String, Metric> entry : metrics.entrySet()) {
+      addToMap(mfSamplesMap, fromMetric(entry.getKey(), entry.getValue()));
+    }
+    exporterMetrics.recordCollection(System.nanoTime() - start);
+    return new ArrayList<>(mfSamplesMap.values());
+  }
+
+  /**
+   * Only converts the metrics that have a sample accepted by the filter, found through an index of the sample names.
+   * The families are returned whole, {@link io.prometheus.client.CollectorRegistry} filters their samples.
+   */
+  @Override
+  public List<MetricFamilySamples> collect(Predicate<String> sampleNameFilter) {
+    if (sampleNameFilter == null || writingRegistry.get() != null) {
+      return collect();
+    }
+    long start = System.nanoTime();
+    Map<String, Metric> metrics = registry.getMetrics();
+    Map<String, MetricFamilySamples> mfSamplesMap = new HashMap<>();
 
-    Map<String, MetricFamilySamples> mfSamplesMap = new HashMap<>(registry.getMetrics().size());
-
-    for (SortedMap.Entry<String, Metric> entry : registry.getMetrics().entrySet()) {
-      try {
-        Metric metric = entry.getValue();
-        MetricFamilySamples samples;
-        if (metric instanceof Histogram) {
-            samples = fromHistogram(entry.getKey(), (Histogram) metric);
-        } else if(metric instanceof Timer) {
-          samples = fromTimer(entry.getKey(), (Timer) metric);
-        } else if(metric instanceof Meter) {
-          samples = fromMeter(entry.getKey(), (Meter) metric);
-        } else if(metric instanceof Gauge) {
-          samples = fromGauge(entry.getKey(), (Gauge) metric);
-        } else if(metric instanceof Counter) {
-          samples = fromCounter(entry.getKey(), (Counter) metric);
-        } else {
-          continue;
-        }
-        addToMap(mfSamplesMap, samples);
-      } catch (RuntimeException rte) {
-        LOGGER.log(Level.SEVERE, "Error collecting fromHistogram [" + entry.getKey() + "]", rte);
+    for (String metricName : expositionWriter.getMetricNames(metrics, sampleNameFilter)) {
+      Metric metric = metrics.get(metricName);
+      if (metric != null) {
+        addToMap(mfSamplesMap, fromMetric(metricName, metric));
       }
     }
+    exporterMetrics.recordCollection(System.nanoTime() - start);
     return new ArrayList<>(mfSamplesMap.values());
   }
 
+  /**
+   * While the calling thread writes the {@link io.prometheus.client.CollectorRegistry} these exports are registered
+   * with, they collect nothing, as they are written by {@link #write(OutputStream, Set)} right after.
+   */
+  void beginRegistryPass() {
+    writingRegistry.set(Boolean.TRUE);
+  }
+
+  void endRegistryPass() {
+    writingRegistry.remove();
+  }
+
+  private MetricFamilySamples fromMetric(String dropwizardName, Metric metric) {
+    try {
+      if (metric instanceof BucketedSampling) {
+        return fromBuckets(dropwizardName, metric, (BucketedSampling) metric);
+      } else if (metric instanceof Histogram) {
+        return fromHistogram(dropwizardName, (Histogram) metric);
+      } else if (metric instanceof Timer) {
+        return fromTimer(dropwizardName, (Timer) metric);
+      } else if (metric instanceof Meter) {
+        return fromMeter(dropwizardName, (Meter) metric);
+      } else if (metric instanceof Gauge) {
+        return fromGauge(dropwizardName, (Gauge) metric);
+      } else if (metric instanceof Counter) {
+        return fromCounter(dropwizardName, (Counter) metric);
+      }
+    } catch (RuntimeException rte) {
+      LOGGER.log(Level.SEVERE, "Error collecting fromHistogram [" + dropwizardName + "]", rte);
+    }
+    return null;
+  }
+
   private void addToMap(Map<String, MetricFamilySamples> mfSamplesMap, MetricFamilySamples newMfSamples) {
     if (newMfSamples != null) {
       MetricFamilySamples currentMfSamples = mfSamplesMap.get(newMfSamples.name);
@@ -201,8 +281,26 @@ public class ApptuitDropwizardExports extends io.prometheus.client.Collector
     }
   }
 
+  /**
+   * Writes the metrics in the Prometheus text format, as {@link io.prometheus.client.exporter.common.TextFormat}
+   * would write the samples returned by {@link #collect()}, but streaming them straight to the output.
+   *
+   * @param includedNames names of the samples to write, or an empty set to write all of them
+   * @return the time, in nanoseconds, spent reading the metrics out of the registry, which is also recorded as the
+   *     collection time of the exporter
+   */
+  public long write(OutputStream out, Set<String> includedNames) throws IOException {
+    return expositionWriter.write(out, includedNames);
+  }
+
+  /**
+   * Describes the families of the metrics registered at the time of the call. A
+   * {@link io.prometheus.client.CollectorRegistry} only describes its collectors when they are registered, so
+   * families of metrics registered later are not known to its filtered scrapes. {@link PromHttpServer} filters
+   * through {@link #write(OutputStream, Set)}, which does not depend on it.
+   */
   @Override
   public List<MetricFamilySamples> describe() {
-    return new ArrayList<>();
+    return expositionWriter.describe(registry.getMetrics());
   }
 }
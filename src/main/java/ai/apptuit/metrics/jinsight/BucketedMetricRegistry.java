@@ -0,0 +1,217 @@
+/*
+ * Copyright 2017 Agilx, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ai.apptuit.metrics.jinsight;
+
+import ai.apptuit.metrics.client.TagEncodedMetricName;
+import com.codahale.metrics.Histogram;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.Snapshot;
+import com.codahale.metrics.Timer;
+import com.codahale.metrics.WeightedSnapshot;
+import com.codahale.metrics.WeightedSnapshot.WeightedSample;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Creates timers and histograms that count their values into buckets, so that they are exported as native Prometheus
+ * histograms. Unlike the quantiles of Dropwizard reservoirs, those can be aggregated across instances.
+ *
+ * <p>The buckets of a metric are the ones configured for its name (without the tags) or, failing that, for the
+ * longest of its dot-separated prefixes, like {@code jdbc.ps} for {@code jdbc.ps.execute}. Metrics that match
+ * nothing get the default buckets.
+ */
+class BucketedMetricRegistry extends MetricRegistry {
+
+  private static final long NANOS_PER_SECOND = TimeUnit.SECONDS.toNanos(1);
+
+  private final Map<String, HistogramBuckets> buckets;
+
+  /**
+   * @param buckets the buckets for each metric name prefix, with the default buckets under the empty prefix
+   */
+  BucketedMetricRegistry(Map<String, HistogramBuckets> buckets) {
+    this.buckets = new HashMap<>(buckets);
+    this.buckets.putIfAbsent("", HistogramBuckets.DEFAULT);
+  }
+
+  @Override
+  public Timer timer(String name) {
+    return super.timer(name, () -> new BucketedTimer(getBuckets(name)));
+  }
+
+  @Override
+  public Histogram histogram(String name) {
+    return super.histogram(name, () -> new BucketedHistogram(getBuckets(name), 1));
+  }
+
+  HistogramBuckets getBuckets(String name) {
+    String prefix = TagEncodedMetricName.decode(name).getMetricName();
+    while (true) {
+      HistogramBuckets prefixBuckets = buckets.get(prefix);
+      if (prefixBuckets != null) {
+        return prefixBuckets;
+      }
+      prefix = prefix.substring(0, Math.max(prefix.lastIndexOf('.'), 0));
+    }
+  }
+
+  /**
+   * Times in nanoseconds, and exports the durations in seconds.
+   */
+  static class BucketedTimer extends WeightedTimer implements BucketedSampling {
+
+    private final BucketedHistogram histogram;
+
+    BucketedTimer(HistogramBuckets buckets) {
+      this(new BucketedHistogram(buckets, NANOS_PER_SECOND));
+    }
+
+    private BucketedTimer(BucketedHistogram histogram) {
+      super(histogram);
+      this.histogram = histogram;
+    }
+
+    @Override
+    void updateHistogram(long nanos, long weight) {
+      histogram.update(nanos, weight);
+    }
+
+    @Override
+    public double[] getBucketBounds() {
+      return histogram.getBucketBounds();
+    }
+
+    @Override
+    public long getBucketCount(int index) {
+      return histogram.getBucketCount(index);
+    }
+
+    @Override
+    public double getSum() {
+      return histogram.getSum();
+    }
+  }
+
+  /**
+   * Recording a value is a binary search over the bounds and a few {@link LongAdder} updates: lock-free, and free of
+   * allocations once the adders have expanded to the contention they see.
+   *
+   * <p>The snapshot is derived from the buckets, with each value at the upper bound of its bucket, so its quantiles
+   * are only as precise as the buckets.
+   */
+  static class BucketedHistogram extends Histogram implements BucketedSampling {
+
+    private final double[] upperBounds;
+    private final long[] recordedBounds;
+    private final double scale;
+    private final LongAdder[] counts;
+    private final LongAdder sum = new LongAdder();
+    private final LongAccumulator max = new LongAccumulator(Math::max, Long.MIN_VALUE);
+
+    /**
+     * @param unitsPerBound number of recorded units in one unit of the bucket bounds
+     */
+    BucketedHistogram(HistogramBuckets buckets, long unitsPerBound) {
+      super(null);
+      this.upperBounds = buckets.getUpperBounds();
+      this.recordedBounds = buckets.toRecordedBounds(unitsPerBound);
+      this.scale = 1.0 / unitsPerBound;
+      this.counts = new LongAdder[upperBounds.length + 1];
+      for (int i = 0; i < counts.length; i++) {
+        counts[i] = new LongAdder();
+      }
+    }
+
+    @Override
+    public void update(int value) {
+      update((long) value);
+    }
+
+    @Override
+    public void update(long value) {
+      counts[bucketIndex(value)].increment();
+      sum.add(value);
+      max.accumulate(value);
+    }
+
+    /**
+     * Counts the value {@code weight} times, as for the durations of sampled calls.
+     */
+    void update(long value, long weight) {
+      counts[bucketIndex(value)].add(weight);
+      sum.add(value * weight);
+      max.accumulate(value);
+    }
+
+    private int bucketIndex(long value) {
+      int low = 0;
+      int high = recordedBounds.length;
+      while (low < high) {
+        int mid = (low + high) >>> 1;
+        if (recordedBounds[mid] < value) {
+          low = mid + 1;
+        } else {
+          high = mid;
+        }
+      }
+      return low;
+    }
+
+    @Override
+    public long getCount() {
+      long count = 0;
+      for (LongAdder bucket : counts) {
+        count += bucket.sum();
+      }
+      return count;
+    }
+
+    @Override
+    public Snapshot getSnapshot() {
+      long maxValue = max.get();
+      List<WeightedSample> samples = new ArrayList<>(counts.length);
+      for (int i = 0; i < counts.length; i++) {
+        long count = counts[i].sum();
+        if (count > 0) {
+          long value = i < recordedBounds.length ? Math.min(recordedBounds[i], maxValue) : maxValue;
+          samples.add(new WeightedSample(value, count));
+        }
+      }
+      return new WeightedSnapshot(samples);
+    }
+
+    @Override
+    public double[] getBucketBounds() {
+      return upperBounds;
+    }
+
+    @Override
+    public long getBucketCount(int index) {
+      return counts[index].sum();
+    }
+
+    @Override
+    public double getSum() {
+      return sum.sum() * scale;
+    }
+  }
+}
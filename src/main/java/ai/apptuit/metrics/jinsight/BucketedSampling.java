@@ -0,0 +1,39 @@
+/*
+ * Copyright 2017 Agilx, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ai.apptuit.metrics.jinsight;
+
+/**
+ * A timer or histogram that counts its values into fixed buckets, and is exported as a native Prometheus histogram.
+ */
+interface BucketedSampling {
+
+  /**
+   * @return the upper bounds of the buckets, in the exported unit, without the implied bucket for larger values
+   */
+  double[] getBucketBounds();
+
+  /**
+   * @param index index of the bucket, the length of the bounds being the index of the bucket for larger values
+   * @return the number of values recorded in the bucket (not cumulative)
+   */
+  long getBucketCount(int index);
+
+  /**
+   * @return the sum of the recorded values, in the exported unit
+   */
+  double getSum();
+}
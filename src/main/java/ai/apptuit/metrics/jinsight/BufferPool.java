@@ -0,0 +1,161 @@
+/*
+ * Copyright 2017 Agilx, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ai.apptuit.metrics.jinsight;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A pool of growable buffers for scrape responses, that adapts to the size of the responses.
+ *
+ * <p>The pool tracks the typical response size: it follows growing responses at once, and shrinking ones slowly.
+ * New buffers are allocated a little above that size, so that a scrape rarely has to grow its buffer, and released
+ * buffers that have grown well past it, for a one-off large scrape, are dropped rather than pooled. At most
+ * {@code maxPooled} idle buffers are kept.
+ */
+final class BufferPool {
+
+  private static final int MIN_CAPACITY = 4096;
+
+  private final int maxPooled;
+  private final boolean direct;
+  private final Queue<Buffer> pool = new ConcurrentLinkedQueue<>();
+  private final AtomicInteger pooled = new AtomicInteger();
+  private volatile int expectedSize;
+
+  /**
+   * @param maxPooled maximum number of idle buffers kept
+   * @param initialSize expected size of the responses, until the pool sees some
+   * @param direct true to allocate direct buffers, which channels can write without copying them
+   */
+  BufferPool(int maxPooled, int initialSize, boolean direct) {
+    this.maxPooled = maxPooled;
+    this.direct = direct;
+    this.expectedSize = initialSize;
+  }
+
+  Buffer acquire() {
+    Buffer buffer = pool.poll();
+    if (buffer == null) {
+      return new Buffer(allocate(capacityFor(expectedSize)));
+    }
+    pooled.decrementAndGet();
+    buffer.reset();
+    return buffer;
+  }
+
+  void release(Buffer buffer) {
+    int size = buffer.size();
+    int expected = expectedSize;
+    expected = size >= expected ? size : expected - (expected - size) / 8;
+    expectedSize = expected;
+
+    if (buffer.capacity() > 2 * capacityFor(expected)) {
+      return;
+    }
+    if (pooled.incrementAndGet() > maxPooled) {
+      pooled.decrementAndGet();
+      return;
+    }
+    pool.offer(buffer);
+  }
+
+  int getExpectedSize() {
+    return expectedSize;
+  }
+
+  private static int capacityFor(int size) {
+    return Math.max(MIN_CAPACITY, size + size / 4);
+  }
+
+  private ByteBuffer allocate(int capacity) {
+    return direct ? ByteBuffer.allocateDirect(capacity) : ByteBuffer.allocate(capacity);
+  }
+
+  /**
+   * An output stream into a {@link ByteBuffer}, that doubles the buffer when it is full.
+   */
+  final class Buffer extends OutputStream {
+
+    private ByteBuffer buffer;
+
+    private Buffer(ByteBuffer buffer) {
+      this.buffer = buffer;
+    }
+
+    @Override
+    public void write(int b) {
+      ensureRemaining(1);
+      buffer.put((byte) b);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) {
+      ensureRemaining(len);
+      buffer.put(b, off, len);
+    }
+
+    private void ensureRemaining(int length) {
+      if (buffer.remaining() < length) {
+        int capacity = Math.max(buffer.capacity() * 2, buffer.position() + length);
+        ByteBuffer grown = allocate(capacity);
+        buffer.flip();
+        grown.put(buffer);
+        buffer = grown;
+      }
+    }
+
+    int size() {
+      return buffer.position();
+    }
+
+    int capacity() {
+      return buffer.capacity();
+    }
+
+    void reset() {
+      buffer.clear();
+    }
+
+    /**
+     * @return a read-only view of the bytes written, valid until the buffer is written to, reset or released
+     */
+    ByteBuffer contents() {
+      ByteBuffer contents = buffer.asReadOnlyBuffer();
+      contents.flip();
+      return contents;
+    }
+
+    void writeTo(OutputStream out) throws IOException {
+      if (buffer.hasArray()) {
+        out.write(buffer.array(), buffer.arrayOffset(), buffer.position());
+        return;
+      }
+      ByteBuffer contents = contents();
+      byte[] chunk = new byte[Math.min(contents.remaining(), 8192)];
+      while (contents.hasRemaining()) {
+        int length = Math.min(chunk.length, contents.remaining());
+        contents.get(chunk, 0, length);
+        out.write(chunk, 0, length);
+      }
+    }
+  }
+}
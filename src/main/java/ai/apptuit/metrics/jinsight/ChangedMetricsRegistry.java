@@ -0,0 +1,230 @@
+/*
+ * Copyright 2017 Agilx, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ai.apptuit.metrics.jinsight;
+
+import com.codahale.metrics.Counter;
+import com.codahale.metrics.Counting;
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.Histogram;
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.Metric;
+import com.codahale.metrics.MetricFilter;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.Timer;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.SortedSet;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A view of a registry, for a push reporter, that only has the metrics that changed since the reporter last read
+ * them. Every so often, the view has all the metrics, for the backends that expect to hear of every series now and
+ * then.
+ *
+ * <p>Counters, meters, histograms and timers change when their count does: the rates and quantiles of an idle meter
+ * or timer are not sent, though they decay. Gauges change when their value does; they are read once per report, and
+ * the reporter gets their value as it was compared.
+ *
+ * <p>Each type of metric is tracked on its own, as reporters read them one type at a time. The view is meant for a
+ * single reporter: the metrics it returns are taken as reported.
+ */
+final class ChangedMetricsRegistry extends MetricRegistry {
+
+  private static final Logger LOGGER = Logger.getLogger(ChangedMetricsRegistry.class.getName());
+
+  static final String UNCHANGED_METRICS_METRIC_NAME = "jinsight.reporter.unchanged_metrics";
+
+  private final MetricRegistry delegate;
+  private final Counter unchangedMetrics;
+  private final Tracker gauges;
+  private final Tracker counters;
+  private final Tracker histograms;
+  private final Tracker meters;
+  private final Tracker timers;
+
+  /**
+   * @param fullRefreshMillis how often all the metrics are reported, whether they changed or not
+   * @param jinsightRegistry where the count of metrics that were not reported is published
+   */
+  ChangedMetricsRegistry(MetricRegistry delegate, long fullRefreshMillis, MetricRegistry jinsightRegistry) {
+    this.delegate = delegate;
+    this.unchangedMetrics = jinsightRegistry.counter(UNCHANGED_METRICS_METRIC_NAME);
+    long fullRefreshNanos = TimeUnit.MILLISECONDS.toNanos(fullRefreshMillis);
+    this.gauges = new Tracker(fullRefreshNanos);
+    this.counters = new Tracker(fullRefreshNanos);
+    this.histograms = new Tracker(fullRefreshNanos);
+    this.meters = new Tracker(fullRefreshNanos);
+    this.timers = new Tracker(fullRefreshNanos);
+  }
+
+  @Override
+  @SuppressWarnings("rawtypes")
+  public SortedMap<String, Gauge> getGauges(MetricFilter filter) {
+    SortedMap<String, Gauge> changed = new TreeMap<>();
+    synchronized (gauges) {
+      boolean fullRefresh = gauges.startReport();
+      for (Map.Entry<String, Gauge> entry : delegate.getGauges(filter).entrySet()) {
+        Object value;
+        try {
+          value = entry.getValue().getValue();
+        } catch (RuntimeException e) {
+          LOGGER.log(Level.SEVERE, "Error reading gauge [" + entry.getKey() + "]", e);
+          continue;
+        }
+        if (gauges.update(entry.getKey(), value, fullRefresh)) {
+          changed.put(entry.getKey(), new GaugeValue(value));
+        }
+      }
+      unchangedMetrics.inc(gauges.endReport(changed.size()));
+    }
+    return changed;
+  }
+
+  @Override
+  public SortedMap<String, Counter> getCounters(MetricFilter filter) {
+    return changed(counters, delegate.getCounters(filter));
+  }
+
+  @Override
+  public SortedMap<String, Histogram> getHistograms(MetricFilter filter) {
+    return changed(histograms, delegate.getHistograms(filter));
+  }
+
+  @Override
+  public SortedMap<String, Meter> getMeters(MetricFilter filter) {
+    return changed(meters, delegate.getMeters(filter));
+  }
+
+  @Override
+  public SortedMap<String, Timer> getTimers(MetricFilter filter) {
+    return changed(timers, delegate.getTimers(filter));
+  }
+
+  private <T extends Counting> SortedMap<String, T> changed(Tracker tracker, SortedMap<String, T> metrics) {
+    SortedMap<String, T> changed = new TreeMap<>();
+    synchronized (tracker) {
+      boolean fullRefresh = tracker.startReport();
+      for (Map.Entry<String, T> entry : metrics.entrySet()) {
+        if (tracker.update(entry.getKey(), entry.getValue().getCount(), fullRefresh)) {
+          changed.put(entry.getKey(), entry.getValue());
+        }
+      }
+      unchangedMetrics.inc(tracker.endReport(changed.size()));
+    }
+    return changed;
+  }
+
+  @Override
+  public Map<String, Metric> getMetrics() {
+    return delegate.getMetrics();
+  }
+
+  @Override
+  public SortedSet<String> getNames() {
+    return delegate.getNames();
+  }
+
+  /**
+   * The values last reported for the metrics of one type.
+   */
+  private static final class Tracker {
+
+    private final long fullRefreshNanos;
+    private final Map<String, Reported> reported = new HashMap<>();
+    private long lastFullRefresh;
+    private boolean refreshed = false;
+    private long report;
+    private int seen;
+
+    Tracker(long fullRefreshNanos) {
+      this.fullRefreshNanos = fullRefreshNanos;
+    }
+
+    /**
+     * @return true if all the metrics are to be reported
+     */
+    boolean startReport() {
+      report++;
+      seen = 0;
+      long now = System.nanoTime();
+      if (!refreshed || now - lastFullRefresh >= fullRefreshNanos) {
+        refreshed = true;
+        lastFullRefresh = now;
+        return true;
+      }
+      return false;
+    }
+
+    /**
+     * @return true if the metric is to be reported
+     */
+    boolean update(String name, long count, boolean fullRefresh) {
+      Reported last = seen(name);
+      if (!fullRefresh && last.count == count) {
+        return false;
+      }
+      last.count = count;
+      return true;
+    }
+
+    boolean update(String name, Object value, boolean fullRefresh) {
+      Reported last = seen(name);
+      Object current = value != null ? value : Reported.NULL;
+      if (!fullRefresh && current.equals(last.value)) {
+        return false;
+      }
+      last.value = current;
+      return true;
+    }
+
+    private Reported seen(String name) {
+      seen++;
+      Reported last = reported.get(name);
+      if (last == null) {
+        last = new Reported();
+        reported.put(name, last);
+      }
+      last.report = report;
+      return last;
+    }
+
+    /**
+     * Forgets the metrics that are gone.
+     *
+     * @return the number of metrics that were not reported
+     */
+    int endReport(int reportedCount) {
+      if (reported.size() > seen) {
+        reported.values().removeIf(last -> last.report != report);
+      }
+      return seen - reportedCount;
+    }
+  }
+
+  private static final class Reported {
+
+    private static final Object NULL = new Object();
+
+    private long count = -1;
+    private Object value;
+    private long report;
+  }
+}
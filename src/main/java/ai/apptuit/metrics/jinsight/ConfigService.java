@@ -33,10 +33,12 @@ import java.net.UnknownHostException;
 import java.time.Duration;
 import java.time.format.DateTimeParseException;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.jar.Attributes;
 import java.util.jar.Manifest;
 import java.util.logging.Level;
 import java.util.logging.Logger;
+import java.util.zip.Deflater;
 
 /**
  * Provides access to Configuration options.
@@ -51,13 +53,47 @@ public class ConfigService {
   public static final String REPORTING_FREQ_PROPERTY_NAME = "reporting_frequency";
   private static final String GLOBAL_TAGS_PROPERTY_NAME = "global_tags";
   public static final String REPORTER_PROPERTY_NAME = "reporter";
+  public static final String INCREMENTAL_AGGREGATION_PROPERTY_NAME = "incremental_aggregation";
+  public static final String COLLECTION_TIMEOUT_PROPERTY_NAME = "collection_timeout";
+  public static final String MERGE_DUPLICATE_METRICS_PROPERTY_NAME = "merge_duplicate_metrics";
 
   public static final String PROMETHEUS_EXPORTER_PORT = "prometheus.exporter_port";
   public static final String PROMETHEUS_METRICS_PATH = "prometheus.exporter_endpoint";
+  public static final String NATIVE_HISTOGRAMS_PROPERTY_NAME = "prometheus.native_histograms";
+  public static final String HISTOGRAM_BUCKETS_PROPERTY_NAME = "prometheus.histogram_buckets";
+  public static final String NAME_CACHE_SIZE_PROPERTY_NAME = "prometheus.name_cache_size";
+  public static final String COALESCE_SCRAPES_PROPERTY_NAME = "prometheus.coalesce_scrapes";
+  public static final String SCRAPE_CACHE_TTL_PROPERTY_NAME = "prometheus.scrape_cache_ttl";
+  public static final String NIO_SERVER_PROPERTY_NAME = "prometheus.nio_server";
+  public static final String EXPORTER_THREADS_PROPERTY_NAME = "prometheus.exporter_threads";
+  public static final String DIRECT_BUFFERS_PROPERTY_NAME = "prometheus.direct_buffers";
+  public static final String GZIP_LEVEL_PROPERTY_NAME = "prometheus.gzip_level";
+  public static final String REMOTE_WRITE_URL_PROPERTY_NAME = "prometheus.remote_write_url";
+  public static final String REMOTE_WRITE_BATCH_SIZE_PROPERTY_NAME = "prometheus.remote_write_batch_size";
+  public static final String REMOTE_WRITE_MAX_IN_FLIGHT_PROPERTY_NAME = "prometheus.remote_write_max_in_flight";
+  public static final String REMOTE_WRITE_MAX_RETRIES_PROPERTY_NAME = "prometheus.remote_write_max_retries";
+
+  public static final String OTLP_ENDPOINT_PROPERTY_NAME = "otlp.endpoint";
+  public static final String OTLP_BATCH_SIZE_PROPERTY_NAME = "otlp.batch_size";
+  public static final String STATSD_HOST_PROPERTY_NAME = "statsd.host";
+  public static final String STATSD_PORT_PROPERTY_NAME = "statsd.port";
+  public static final String STATSD_DOGSTATSD_TAGS_PROPERTY_NAME = "statsd.dogstatsd_tags";
+  public static final String STATSD_MAX_PACKET_SIZE_PROPERTY_NAME = "statsd.max_packet_size";
 
   public static final String REPORTING_MODE_PROPERTY_NAME = "apptuit.reporting_mode";
   private static final String ACCESS_TOKEN_PROPERTY_NAME = "apptuit.access_token";
   private static final String API_ENDPOINT_PROPERTY_NAME = "apptuit.api_url";
+  public static final String SPOOL_PROPERTY_NAME = "apptuit.spool";
+  public static final String SPOOL_SIZE_PROPERTY_NAME = "apptuit.spool_size_mb";
+  public static final String SPOOL_DIR_PROPERTY_NAME = "apptuit.spool_dir";
+  public static final String CHANGED_ONLY_PROPERTY_NAME = "apptuit.changed_only";
+  public static final String FULL_REFRESH_INTERVAL_PROPERTY_NAME = "apptuit.full_refresh_interval";
+  public static final String SNAPSHOT_INTERVAL_PROPERTY_NAME = "snapshot_interval";
+  public static final String ASYNC_TIMERS_PROPERTY_NAME = "async_timers";
+  public static final String ASYNC_TIMERS_BUFFER_SIZE_PROPERTY_NAME = "async_timers.buffer_size";
+  public static final String ASYNC_TIMERS_OVERFLOW_POLICY_PROPERTY_NAME = "async_timers.overflow_policy";
+  public static final String SAMPLING_PROPERTY_NAME = "sampling";
+  public static final String GOVERNOR_CPU_BUDGET_PROPERTY_NAME = "governor.cpu_budget";
 
   private static final String HOST_TAG_NAME = "host";
   private static final String UUID_TEMPLATE_VARIABLE = "${UUID}";
@@ -70,13 +106,29 @@ public class ConfigService {
   private static final String DEFAULT_REPORTING_FREQUENCY = "15s";
   private static final String DEFAULT_PROMETHEUS_EXPORTER_PORT = "9404";
   private static final String DEFAULT_PROMETHEUS_METRICS_PATH = "/metrics";
+  private static final int DEFAULT_NAME_CACHE_SIZE = TagDecodingSampleBuilder.DEFAULT_CACHE_CAPACITY;
+  private static final int DEFAULT_EXPORTER_THREADS = 2;
+  private static final int DEFAULT_REMOTE_WRITE_BATCH_SIZE = 2000;
+  private static final int DEFAULT_REMOTE_WRITE_MAX_IN_FLIGHT = 2;
+  private static final int DEFAULT_REMOTE_WRITE_MAX_RETRIES = 3;
+  private static final int DEFAULT_OTLP_BATCH_SIZE = 1000;
+  private static final int DEFAULT_ASYNC_TIMERS_BUFFER_SIZE = 1024;
+  private static final TimingPipeline.OverflowPolicy DEFAULT_ASYNC_TIMERS_OVERFLOW_POLICY =
+      TimingPipeline.OverflowPolicy.DROP;
+  private static final String DEFAULT_STATSD_HOST = "localhost";
+  private static final int DEFAULT_STATSD_PORT = 8125;
+  private static final int DEFAULT_STATSD_MAX_PACKET_SIZE = 1432;
+  private static final int DEFAULT_SPOOL_SIZE_MB = 64;
+  private static final int MAX_SPOOL_SIZE_MB = 1024;
+  private static final String DEFAULT_FULL_REFRESH_INTERVAL = "10m";
+  private static final String DEFAULT_SNAPSHOT_INTERVAL = "5s";
 
   private static final Logger LOGGER = Logger.getLogger(ConfigService.class.getName());
 
   private static volatile ConfigService singleton = null;
   private final String apiToken;
   private final URL apiUrl;
-  private final ReporterType reporterType;
+  private final List<ReporterType> reporterTypes;
   private final ReportingMode reportingMode;
   private final long reportingFrequencyMillis;
   private final int prometheusPort;
@@ -85,20 +137,98 @@ public class ConfigService {
   private final String agentVersion;
   private Map<String, String> globalTags = null;
   private final Sanitizer sanitizer;
+  private final boolean incrementalAggregation;
+  private final long collectionTimeoutMillis;
+  private final boolean mergeDuplicateMetrics;
+  private final boolean nativeHistograms;
+  private final Map<String, HistogramBuckets> histogramBuckets;
+  private final int nameCacheSize;
+  private final long scrapeCacheTtlMillis;
+  private final boolean coalesceScrapes;
+  private final boolean nioServer;
+  private final int exporterThreads;
+  private final boolean directBuffers;
+  private final int gzipLevel;
+  private final boolean spool;
+  private final int spoolSizeMb;
+  private final File spoolDir;
+  private final boolean changedOnly;
+  private final long fullRefreshIntervalMillis;
+  private final long snapshotIntervalMillis;
+  private final boolean asyncTimers;
+  private final int asyncTimersBufferSize;
+  private final TimingPipeline.OverflowPolicy asyncTimersOverflowPolicy;
+  private final Map<String, Sampler> samplers;
+  private final double governorCpuBudget;
+  private final Map<String, Double> governorModuleCpuBudgets;
+  private final URL remoteWriteUrl;
+  private final int remoteWriteBatchSize;
+  private final int remoteWriteMaxInFlight;
+  private final int remoteWriteMaxRetries;
+  private final URL otlpEndpoint;
+  private final int otlpBatchSize;
+  private final String statsdHost;
+  private final int statsdPort;
+  private final boolean statsdDogstatsdTags;
+  private final int statsdMaxPacketSize;
 
   public enum ReporterType {
-    PROMETHEUS, APPTUIT
+    PROMETHEUS, APPTUIT, PROMETHEUS_REMOTE_WRITE, OTLP, STATSD
   }
 
   ConfigService(Properties config) throws ConfigurationException {
     this.apiToken = config.getProperty(ACCESS_TOKEN_PROPERTY_NAME);
-    this.reporterType = readReporter(config);
+    this.reporterTypes = readReporters(config);
     this.reportingMode = readReportingMode(config);
     this.reportingFrequencyMillis = readReportingFrequency(config);
     this.prometheusMetricsPath = readPrometheusMetricsPath(config);
     this.sanitizer = readSanitizer(config);
     this.prometheusPort = readPrometheusPort(config);
-    if (this.reporterType == ReporterType.APPTUIT && apiToken == null && reportingMode == ReportingMode.API_PUT) {
+    this.incrementalAggregation = Boolean.parseBoolean(
+            config.getProperty(INCREMENTAL_AGGREGATION_PROPERTY_NAME, "false").trim());
+    this.collectionTimeoutMillis = readCollectionTimeout(config);
+    this.mergeDuplicateMetrics = Boolean.parseBoolean(
+            config.getProperty(MERGE_DUPLICATE_METRICS_PROPERTY_NAME, "false").trim());
+    this.nativeHistograms = Boolean.parseBoolean(
+            config.getProperty(NATIVE_HISTOGRAMS_PROPERTY_NAME, "false").trim());
+    this.histogramBuckets = readHistogramBuckets(config);
+    this.nameCacheSize = readNameCacheSize(config);
+    this.scrapeCacheTtlMillis = readScrapeCacheTtl(config);
+    this.coalesceScrapes = scrapeCacheTtlMillis > 0 || Boolean.parseBoolean(
+            config.getProperty(COALESCE_SCRAPES_PROPERTY_NAME, "false").trim());
+    this.nioServer = Boolean.parseBoolean(config.getProperty(NIO_SERVER_PROPERTY_NAME, "false").trim());
+    this.exporterThreads = readExporterThreads(config);
+    this.directBuffers = Boolean.parseBoolean(config.getProperty(DIRECT_BUFFERS_PROPERTY_NAME, "false").trim());
+    this.gzipLevel = readGzipLevel(config);
+    this.spool = Boolean.parseBoolean(config.getProperty(SPOOL_PROPERTY_NAME, "false").trim());
+    this.spoolSizeMb = readSpoolSize(config);
+    this.spoolDir = readSpoolDir(config);
+    this.changedOnly = Boolean.parseBoolean(config.getProperty(CHANGED_ONLY_PROPERTY_NAME, "false").trim());
+    this.fullRefreshIntervalMillis = readFullRefreshInterval(config);
+    this.snapshotIntervalMillis = readSnapshotInterval(config);
+    this.asyncTimers = Boolean.parseBoolean(config.getProperty(ASYNC_TIMERS_PROPERTY_NAME, "false").trim());
+    this.asyncTimersBufferSize = readPositiveInt(config, ASYNC_TIMERS_BUFFER_SIZE_PROPERTY_NAME,
+        DEFAULT_ASYNC_TIMERS_BUFFER_SIZE);
+    this.asyncTimersOverflowPolicy = readAsyncTimersOverflowPolicy(config);
+    this.samplers = readSamplers(config);
+    this.governorModuleCpuBudgets = readGovernorCpuBudgets(config);
+    this.governorCpuBudget = governorModuleCpuBudgets.getOrDefault("", 0.0);
+    this.remoteWriteUrl = readReporterUrl(config, REMOTE_WRITE_URL_PROPERTY_NAME,
+        ReporterType.PROMETHEUS_REMOTE_WRITE);
+    this.remoteWriteBatchSize = readPositiveInt(config, REMOTE_WRITE_BATCH_SIZE_PROPERTY_NAME,
+        DEFAULT_REMOTE_WRITE_BATCH_SIZE);
+    this.remoteWriteMaxInFlight = readPositiveInt(config, REMOTE_WRITE_MAX_IN_FLIGHT_PROPERTY_NAME,
+        DEFAULT_REMOTE_WRITE_MAX_IN_FLIGHT);
+    this.remoteWriteMaxRetries = readRemoteWriteMaxRetries(config);
+    this.otlpEndpoint = readReporterUrl(config, OTLP_ENDPOINT_PROPERTY_NAME, ReporterType.OTLP);
+    this.otlpBatchSize = readPositiveInt(config, OTLP_BATCH_SIZE_PROPERTY_NAME, DEFAULT_OTLP_BATCH_SIZE);
+    this.statsdHost = config.getProperty(STATSD_HOST_PROPERTY_NAME, DEFAULT_STATSD_HOST).trim();
+    this.statsdPort = readStatsdPort(config);
+    this.statsdDogstatsdTags = Boolean.parseBoolean(
+            config.getProperty(STATSD_DOGSTATSD_TAGS_PROPERTY_NAME, "true").trim());
+    this.statsdMaxPacketSize = readPositiveInt(config, STATSD_MAX_PACKET_SIZE_PROPERTY_NAME,
+        DEFAULT_STATSD_MAX_PACKET_SIZE);
+    if (this.reporterTypes.contains(ReporterType.APPTUIT) && apiToken == null && reportingMode == ReportingMode.API_PUT) {
       throw new ConfigurationException(
               "Could not find the property [" + ACCESS_TOKEN_PROPERTY_NAME + "]");
     }
@@ -248,18 +378,95 @@ public class ConfigService {
     return Sanitizer.DEFAULT_SANITIZER;
   }
 
-  private ReporterType readReporter(Properties config) {
-    String configReporter = config.getProperty(REPORTER_PROPERTY_NAME);
-    if (configReporter != null && !configReporter.equals("")) {
+  private List<ReporterType> readReporters(Properties config) {
+    String configReporters = config.getProperty(REPORTER_PROPERTY_NAME);
+    if (configReporters == null || configReporters.trim().equals("")) {
+      return Collections.singletonList(DEFAULT_REPORTER_TYPE);
+    }
+    Set<ReporterType> reporters = new LinkedHashSet<>();
+    for (String configReporter : configReporters.split(",")) {
       try {
-        return ReporterType.valueOf(configReporter.trim().toUpperCase());
+        reporters.add(ReporterType.valueOf(configReporter.trim().toUpperCase()));
       } catch (IllegalArgumentException e) {
-        LOGGER.severe("Un-supported reporting type [" + configReporter + "]. "
-                + "Using default reporting type: [" + DEFAULT_REPORTER_TYPE + "]");
+        LOGGER.severe("Un-supported reporting type [" + configReporter + "]. Ignoring it.");
+        LOGGER.log(Level.FINE, e.toString(), e);
+      }
+    }
+    if (reporters.isEmpty()) {
+      LOGGER.severe("No supported reporting type in [" + configReporters + "]. "
+              + "Using default reporting type: [" + DEFAULT_REPORTER_TYPE + "]");
+      return Collections.singletonList(DEFAULT_REPORTER_TYPE);
+    }
+    return Collections.unmodifiableList(new ArrayList<>(reporters));
+  }
+
+  /**
+   * @return the URL the reporter pushes to, which is required if the reporter is configured
+   */
+  private URL readReporterUrl(Properties config, String propertyName, ReporterType reporterType)
+      throws ConfigurationException {
+    String configUrl = config.getProperty(propertyName);
+    if (configUrl == null || configUrl.trim().equals("")) {
+      if (reporterTypes.contains(reporterType)) {
+        throw new ConfigurationException("Could not find the property [" + propertyName + "]");
+      }
+      return null;
+    }
+    try {
+      return new URL(configUrl.trim());
+    } catch (MalformedURLException e) {
+      throw new ConfigurationException("Malformed URL [" + configUrl + "] in [" + propertyName + "]", e);
+    }
+  }
+
+  private int readPositiveInt(Properties config, String propertyName, int defaultValue) {
+    String configValue = config.getProperty(propertyName);
+    if (configValue != null && !configValue.trim().equals("")) {
+      try {
+        int value = Integer.parseInt(configValue.trim());
+        if (value <= 0) {
+          throw new NumberFormatException("Value must be positive");
+        }
+        return value;
+      } catch (NumberFormatException e) {
+        LOGGER.severe("Invalid " + propertyName + " [" + configValue + "]. "
+                + "Using default value: [" + defaultValue + "]");
+        LOGGER.log(Level.FINE, e.toString(), e);
+      }
+    }
+    return defaultValue;
+  }
+
+  private int readRemoteWriteMaxRetries(Properties config) {
+    String configRetries = config.getProperty(REMOTE_WRITE_MAX_RETRIES_PROPERTY_NAME);
+    if (configRetries != null && !configRetries.trim().equals("")) {
+      try {
+        int retries = Integer.parseInt(configRetries.trim());
+        if (retries < 0) {
+          throw new NumberFormatException("Retries cannot be negative");
+        }
+        return retries;
+      } catch (NumberFormatException e) {
+        LOGGER.severe("Invalid remote write retries [" + configRetries + "]. "
+                + "Using default retries: [" + DEFAULT_REMOTE_WRITE_MAX_RETRIES + "]");
         LOGGER.log(Level.FINE, e.toString(), e);
       }
     }
-    return DEFAULT_REPORTER_TYPE;
+    return DEFAULT_REMOTE_WRITE_MAX_RETRIES;
+  }
+
+  private long readSnapshotInterval(Properties config) {
+    String configInterval = config.getProperty(SNAPSHOT_INTERVAL_PROPERTY_NAME);
+    if (configInterval != null && !configInterval.trim().equals("")) {
+      try {
+        return parseDuration(configInterval);
+      } catch (DateTimeParseException | IllegalArgumentException e) {
+        LOGGER.severe("Invalid snapshot interval [" + configInterval + "]. "
+                + "Using default interval: [" + DEFAULT_SNAPSHOT_INTERVAL + "]");
+        LOGGER.log(Level.FINE, e.toString(), e);
+      }
+    }
+    return parseDuration(DEFAULT_SNAPSHOT_INTERVAL);
   }
 
   private ReportingMode readReportingMode(Properties config) {
@@ -276,6 +483,66 @@ public class ConfigService {
     return DEFAULT_REPORTING_MODE;
   }
 
+  private TimingPipeline.OverflowPolicy readAsyncTimersOverflowPolicy(Properties config) {
+    String configPolicy = config.getProperty(ASYNC_TIMERS_OVERFLOW_POLICY_PROPERTY_NAME);
+    if (configPolicy != null && !configPolicy.trim().equals("")) {
+      try {
+        return TimingPipeline.OverflowPolicy.valueOf(configPolicy.trim().toUpperCase());
+      } catch (IllegalArgumentException e) {
+        LOGGER.severe("Un-supported " + ASYNC_TIMERS_OVERFLOW_POLICY_PROPERTY_NAME + " [" + configPolicy + "]. "
+                + "Using default value: [" + DEFAULT_ASYNC_TIMERS_OVERFLOW_POLICY + "]");
+        LOGGER.log(Level.FINE, e.toString(), e);
+      }
+    }
+    return DEFAULT_ASYNC_TIMERS_OVERFLOW_POLICY;
+  }
+
+  private Map<String, Sampler> readSamplers(Properties config) {
+    Map<String, Sampler> moduleSamplers = new ConcurrentHashMap<>();
+    for (String propertyName : config.stringPropertyNames()) {
+      if (!propertyName.startsWith(SAMPLING_PROPERTY_NAME + ".")) {
+        continue;
+      }
+      String module = propertyName.substring(SAMPLING_PROPERTY_NAME.length() + 1);
+      String configSampling = config.getProperty(propertyName);
+      try {
+        moduleSamplers.put(module, Sampler.parse(configSampling));
+      } catch (IllegalArgumentException e) {
+        LOGGER.severe("Invalid sampling [" + configSampling + "] for [" + propertyName + "]. "
+                + "Timing every call of the module.");
+        LOGGER.log(Level.FINE, e.toString(), e);
+      }
+    }
+    return moduleSamplers;
+  }
+
+  private Map<String, Double> readGovernorCpuBudgets(Properties config) {
+    Map<String, Double> budgets = new HashMap<>();
+    for (String propertyName : config.stringPropertyNames()) {
+      String module;
+      if (propertyName.equals(GOVERNOR_CPU_BUDGET_PROPERTY_NAME)) {
+        module = "";
+      } else if (propertyName.startsWith(GOVERNOR_CPU_BUDGET_PROPERTY_NAME + ".")) {
+        module = propertyName.substring(GOVERNOR_CPU_BUDGET_PROPERTY_NAME.length() + 1);
+      } else {
+        continue;
+      }
+      String configBudget = config.getProperty(propertyName);
+      try {
+        double budget = Double.parseDouble(configBudget.trim());
+        if (!(budget > 0 && budget <= 100)) {
+          throw new NumberFormatException("CPU budget must be a percentage above 0");
+        }
+        budgets.put(module, budget);
+      } catch (NumberFormatException e) {
+        LOGGER.severe("Invalid CPU budget [" + configBudget + "] for [" + propertyName + "]. "
+                + (module.isEmpty() ? "The overhead will not be governed." : "Using the global budget."));
+        LOGGER.log(Level.FINE, e.toString(), e);
+      }
+    }
+    return Collections.unmodifiableMap(budgets);
+  }
+
   private String readPrometheusMetricsPath(Properties config) {
     String configPath = config.getProperty(PROMETHEUS_METRICS_PATH);
     if (configPath != null && !configPath.equals("")) {
@@ -298,6 +565,164 @@ public class ConfigService {
     return parseDuration(DEFAULT_REPORTING_FREQUENCY);
   }
 
+  private long readFullRefreshInterval(Properties config) {
+    String configInterval = config.getProperty(FULL_REFRESH_INTERVAL_PROPERTY_NAME);
+    if (configInterval != null && !configInterval.trim().equals("")) {
+      try {
+        long interval = parseDuration(configInterval);
+        if (interval <= 0) {
+          throw new IllegalArgumentException("Full refresh interval must be positive");
+        }
+        return interval;
+      } catch (DateTimeParseException | IllegalArgumentException e) {
+        LOGGER.severe("Invalid full refresh interval [" + configInterval + "]. "
+                + "Using default interval: [" + DEFAULT_FULL_REFRESH_INTERVAL + "]");
+        LOGGER.log(Level.FINE, e.toString(), e);
+      }
+    }
+    return parseDuration(DEFAULT_FULL_REFRESH_INTERVAL);
+  }
+
+  private long readCollectionTimeout(Properties config) {
+    String configTimeout = config.getProperty(COLLECTION_TIMEOUT_PROPERTY_NAME);
+    if (configTimeout != null && !configTimeout.trim().equals("")) {
+      try {
+        return parseDuration(configTimeout);
+      } catch (DateTimeParseException | IllegalArgumentException e) {
+        LOGGER.severe("Invalid collection timeout [" + configTimeout + "]. "
+                + "Collecting metrics without a timeout.");
+        LOGGER.log(Level.FINE, e.toString(), e);
+      }
+    }
+    return 0;
+  }
+
+  private Map<String, HistogramBuckets> readHistogramBuckets(Properties config) {
+    Map<String, HistogramBuckets> buckets = new HashMap<>();
+    for (String propertyName : config.stringPropertyNames()) {
+      String prefix;
+      if (propertyName.equals(HISTOGRAM_BUCKETS_PROPERTY_NAME)) {
+        prefix = "";
+      } else if (propertyName.startsWith(HISTOGRAM_BUCKETS_PROPERTY_NAME + ".")) {
+        prefix = propertyName.substring(HISTOGRAM_BUCKETS_PROPERTY_NAME.length() + 1);
+      } else {
+        continue;
+      }
+      String configBuckets = config.getProperty(propertyName);
+      try {
+        buckets.put(prefix, HistogramBuckets.parse(configBuckets));
+      } catch (IllegalArgumentException e) {
+        LOGGER.severe("Invalid histogram buckets [" + configBuckets + "] for [" + propertyName + "]. "
+                + "Using the " + (prefix.isEmpty() ? "default buckets." : "buckets of the enclosing prefix."));
+        LOGGER.log(Level.FINE, e.toString(), e);
+      }
+    }
+    return Collections.unmodifiableMap(buckets);
+  }
+
+  private long readScrapeCacheTtl(Properties config) {
+    String configTtl = config.getProperty(SCRAPE_CACHE_TTL_PROPERTY_NAME);
+    if (configTtl != null && !configTtl.trim().equals("")) {
+      try {
+        return parseDuration(configTtl);
+      } catch (DateTimeParseException | IllegalArgumentException e) {
+        LOGGER.severe("Invalid scrape cache TTL [" + configTtl + "]. "
+                + "Scrapes will not be cached.");
+        LOGGER.log(Level.FINE, e.toString(), e);
+      }
+    }
+    return 0;
+  }
+
+  private int readGzipLevel(Properties config) {
+    String configLevel = config.getProperty(GZIP_LEVEL_PROPERTY_NAME);
+    if (configLevel != null && !configLevel.trim().equals("")) {
+      try {
+        int level = Integer.parseInt(configLevel.trim());
+        if (level < Deflater.DEFAULT_COMPRESSION || level > Deflater.BEST_COMPRESSION) {
+          throw new NumberFormatException("Level must be -1 (default) or 0-9");
+        }
+        return level;
+      } catch (NumberFormatException e) {
+        LOGGER.severe("Invalid gzip level [" + configLevel + "]. Using the default compression level.");
+        LOGGER.log(Level.FINE, e.toString(), e);
+      }
+    }
+    return Deflater.DEFAULT_COMPRESSION;
+  }
+
+  private int readExporterThreads(Properties config) {
+    String configThreads = config.getProperty(EXPORTER_THREADS_PROPERTY_NAME);
+    if (configThreads != null && !configThreads.trim().equals("")) {
+      try {
+        int threads = Integer.parseInt(configThreads.trim());
+        if (threads <= 0) {
+          throw new NumberFormatException("Threads must be positive");
+        }
+        return threads;
+      } catch (NumberFormatException e) {
+        LOGGER.severe("Invalid exporter threads [" + configThreads + "]. "
+                + "Using default threads: [" + DEFAULT_EXPORTER_THREADS + "]");
+        LOGGER.log(Level.FINE, e.toString(), e);
+      }
+    }
+    return DEFAULT_EXPORTER_THREADS;
+  }
+
+  private int readSpoolSize(Properties config) {
+    String configSize = config.getProperty(SPOOL_SIZE_PROPERTY_NAME);
+    if (configSize != null && !configSize.trim().equals("")) {
+      try {
+        int size = Integer.parseInt(configSize.trim());
+        if (size <= 0 || size > MAX_SPOOL_SIZE_MB) {
+          throw new NumberFormatException("Spool size must be between 1 and " + MAX_SPOOL_SIZE_MB);
+        }
+        return size;
+      } catch (NumberFormatException e) {
+        LOGGER.severe("Invalid spool size [" + configSize + "]. "
+                + "Using default size: [" + DEFAULT_SPOOL_SIZE_MB + "]");
+        LOGGER.log(Level.FINE, e.toString(), e);
+      }
+    }
+    return DEFAULT_SPOOL_SIZE_MB;
+  }
+
+  private File readSpoolDir(Properties config) {
+    String configDir = config.getProperty(SPOOL_DIR_PROPERTY_NAME);
+    if (configDir != null && !configDir.trim().equals("")) {
+      return new File(configDir.trim());
+    }
+    return new File(JINSIGHT_HOME, "spool");
+  }
+
+  private int readNameCacheSize(Properties config) {
+    String configSize = config.getProperty(NAME_CACHE_SIZE_PROPERTY_NAME);
+    if (configSize != null && !configSize.trim().equals("")) {
+      try {
+        int size = Integer.parseInt(configSize.trim());
+        if (size < 0) {
+          throw new NumberFormatException("Size cannot be negative");
+        }
+        return size;
+      } catch (NumberFormatException e) {
+        LOGGER.severe("Invalid name cache size [" + configSize + "]. "
+                + "Using default size: [" + DEFAULT_NAME_CACHE_SIZE + "]");
+        LOGGER.log(Level.FINE, e.toString(), e);
+      }
+    }
+    return DEFAULT_NAME_CACHE_SIZE;
+  }
+
+  private int readStatsdPort(Properties config) {
+    int port = readPositiveInt(config, STATSD_PORT_PROPERTY_NAME, DEFAULT_STATSD_PORT);
+    if (port > 65535) {
+      LOGGER.severe("Invalid " + STATSD_PORT_PROPERTY_NAME + " [" + port + "]. "
+              + "Using default value: [" + DEFAULT_STATSD_PORT + "]");
+      return DEFAULT_STATSD_PORT;
+    }
+    return port;
+  }
+
   private int readPrometheusPort(Properties config) {
     String configPort = config.getProperty(PROMETHEUS_EXPORTER_PORT,
             DEFAULT_PROMETHEUS_EXPORTER_PORT);
@@ -354,8 +779,7 @@ public class ConfigService {
               java.lang.management.ManagementFactory.getRuntimeMXBean();
       java.lang.reflect.Field jvm = runtime.getClass().getDeclaredField("jvm");
       jvm.setAccessible(true);
-      sun.management.VMManagement mgmt =
-              (sun.management.VMManagement) jvm.get(runtime);
+      Object mgmt = jvm.get(runtime);
       java.lang.reflect.Method pidMethod =
               mgmt.getClass().getDeclaredMethod("getProcessId");
       pidMethod.setAccessible(true);
@@ -381,7 +805,7 @@ public class ConfigService {
   private Map<String, String> createGlobalTagsMap() {
     Map<String, String> retVal = new HashMap<>(loadedGlobalTags);
 
-    if (getReporterType() == ReporterType.APPTUIT && getReportingMode() == ReportingMode.API_PUT) {
+    if (getReporterTypes().contains(ReporterType.APPTUIT) && getReportingMode() == ReportingMode.API_PUT) {
       String hostname = retVal.get(HOST_TAG_NAME);
       if (hostname == null || "".equals(hostname.trim())) {
         try {
@@ -399,8 +823,18 @@ public class ConfigService {
     return apiUrl;
   }
 
+  /**
+   * @return the first of the configured reporters
+   */
   public ReporterType getReporterType() {
-    return reporterType;
+    return reporterTypes.get(0);
+  }
+
+  /**
+   * @return the configured reporters, in the order they were configured
+   */
+  public List<ReporterType> getReporterTypes() {
+    return reporterTypes;
   }
 
   public ReportingMode getReportingMode() {
@@ -423,6 +857,254 @@ public class ConfigService {
     return prometheusMetricsPath;
   }
 
+  public boolean isIncrementalAggregation() {
+    return incrementalAggregation;
+  }
+
+  public boolean isMergeDuplicateMetrics() {
+    return mergeDuplicateMetrics;
+  }
+
+  /**
+   * @return the time, in milliseconds, a report/scrape waits for the registered registries to be read, or 0 if the
+   *     registries are read one after the other on the reporting thread without any timeout.
+   */
+  public long getCollectionTimeout() {
+    return collectionTimeoutMillis;
+  }
+
+  /**
+   * @return true if the timers and histograms created by jinsight are to be exported as native Prometheus
+   *     histograms, instead of summaries
+   */
+  public boolean isNativeHistograms() {
+    return nativeHistograms;
+  }
+
+  /**
+   * @return the buckets of native histograms, for each metric name prefix, with the default buckets, if configured,
+   *     under the empty prefix
+   */
+  Map<String, HistogramBuckets> getHistogramBuckets() {
+    return histogramBuckets;
+  }
+
+  /**
+   * @return the maximum number of Prometheus time series names cached by the exporter, or 0 if they are not cached
+   */
+  public int getNameCacheSize() {
+    return nameCacheSize;
+  }
+
+  /**
+   * @return true if concurrent Prometheus scrapes share one collection of the metrics
+   */
+  public boolean isCoalesceScrapes() {
+    return coalesceScrapes;
+  }
+
+  /**
+   * @return the time, in milliseconds, a Prometheus scrape is served to other scrapes after it completes, or 0 if
+   *     scrapes are not cached
+   */
+  public long getScrapeCacheTtl() {
+    return scrapeCacheTtlMillis;
+  }
+
+  /**
+   * @return true if the Prometheus exporter runs on the non-blocking {@link NioPromHttpServer}
+   */
+  public boolean isNioServer() {
+    return nioServer;
+  }
+
+  /**
+   * @return the number of threads collecting the metrics in the non-blocking Prometheus exporter
+   */
+  public int getExporterThreads() {
+    return exporterThreads;
+  }
+
+  /**
+   * @return true if the non-blocking Prometheus exporter collects the metrics into direct buffers
+   */
+  public boolean isDirectBuffers() {
+    return directBuffers;
+  }
+
+  /**
+   * @return the level, from 0 to 9, at which Prometheus scrapes are gzipped, or -1 for the default level
+   */
+  public int getGzipLevel() {
+    return gzipLevel;
+  }
+
+  /**
+   * @return true if the batches the Apptuit API does not accept are spooled to disk, and replayed once it recovers
+   */
+  public boolean isSpool() {
+    return spool;
+  }
+
+  /**
+   * @return the size of the spool file, in megabytes
+   */
+  public int getSpoolSizeMb() {
+    return spoolSizeMb;
+  }
+
+  /**
+   * @return the directory of the spool file
+   */
+  public File getSpoolDir() {
+    return spoolDir;
+  }
+
+  /**
+   * @return true if the Apptuit reporter only sends the metrics that changed since they were last sent
+   */
+  public boolean isChangedOnly() {
+    return changedOnly;
+  }
+
+  /**
+   * @return how often, in milliseconds, the Apptuit reporter sends all the metrics when it sends changed ones only
+   */
+  public long getFullRefreshInterval() {
+    return fullRefreshIntervalMillis;
+  }
+
+  /**
+   * @return how long, in milliseconds, a snapshot of the metrics is shared by the reporters, when there are several
+   */
+  public long getSnapshotInterval() {
+    return snapshotIntervalMillis;
+  }
+
+  /**
+   * @return true if the instrumentation records the durations into per-thread buffers, that a background thread
+   *     drains into the timers, rather than updating the timers on the application threads
+   */
+  public boolean isAsyncTimers() {
+    return asyncTimers;
+  }
+
+  /**
+   * @return the number of durations each thread can record before they are drained
+   */
+  public int getAsyncTimersBufferSize() {
+    return asyncTimersBufferSize;
+  }
+
+  /**
+   * @return what happens to the durations recorded when the buffer of the thread is full
+   */
+  public TimingPipeline.OverflowPolicy getAsyncTimersOverflowPolicy() {
+    return asyncTimersOverflowPolicy;
+  }
+
+  /**
+   * @param module the name of the module, like {@code jedis}
+   * @return the sampler that decides which calls of the module are timed, which times every call unless configured
+   *     or throttled
+   */
+  public Sampler getSampler(String module) {
+    return samplers.computeIfAbsent(module, m -> Sampler.everyCall());
+  }
+
+  /**
+   * @return the samplers of the modules that asked for one, or were configured, by module name
+   */
+  Map<String, Sampler> getSamplers() {
+    return Collections.unmodifiableMap(samplers);
+  }
+
+  /**
+   * @return the percentage of the CPU time of the JVM each module may spend timing its calls, or 0 if the overhead of
+   *     the modules is not governed
+   */
+  public double getGovernorCpuBudget() {
+    return governorCpuBudget;
+  }
+
+  /**
+   * @return the percentage of the CPU time of the JVM the module may spend timing its calls, which defaults to the
+   *     global budget
+   */
+  public double getGovernorCpuBudget(String module) {
+    return governorModuleCpuBudgets.getOrDefault(module, governorCpuBudget);
+  }
+
+  /**
+   * @return the Prometheus remote write endpoint the metrics are pushed to
+   */
+  public URL getRemoteWriteUrl() {
+    return remoteWriteUrl;
+  }
+
+  /**
+   * @return the maximum number of samples in a remote write request
+   */
+  public int getRemoteWriteBatchSize() {
+    return remoteWriteBatchSize;
+  }
+
+  /**
+   * @return the maximum number of remote write requests sent at the same time
+   */
+  public int getRemoteWriteMaxInFlight() {
+    return remoteWriteMaxInFlight;
+  }
+
+  /**
+   * @return the number of times a failed remote write request is retried
+   */
+  public int getRemoteWriteMaxRetries() {
+    return remoteWriteMaxRetries;
+  }
+
+  /**
+   * @return the OTLP/HTTP endpoint of the OpenTelemetry collector the metrics are pushed to
+   */
+  public URL getOtlpEndpoint() {
+    return otlpEndpoint;
+  }
+
+  /**
+   * @return the maximum number of data points in an OTLP request
+   */
+  public int getOtlpBatchSize() {
+    return otlpBatchSize;
+  }
+
+  /**
+   * @return the host of the StatsD agent the metrics are sent to
+   */
+  public String getStatsdHost() {
+    return statsdHost;
+  }
+
+  /**
+   * @return the UDP port of the StatsD agent
+   */
+  public int getStatsdPort() {
+    return statsdPort;
+  }
+
+  /**
+   * @return true if the tags are sent in the DogStatsD format, false if they are appended to the metric names
+   */
+  public boolean isStatsdDogstatsdTags() {
+    return statsdDogstatsdTags;
+  }
+
+  /**
+   * @return the maximum size of a datagram sent to the StatsD agent
+   */
+  public int getStatsdMaxPacketSize() {
+    return statsdMaxPacketSize;
+  }
+
   public String getAgentVersion() {
     return agentVersion;
   }
@@ -0,0 +1,118 @@
+/*
+ * Copyright 2017 Agilx, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ai.apptuit.metrics.jinsight;
+
+import com.codahale.metrics.Counter;
+import com.codahale.metrics.Histogram;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.Timer;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Metrics of the Prometheus exporter itself, under {@value #PREFIX}.
+ */
+final class ExporterMetrics {
+
+  static final String PREFIX = "jinsight.exporter";
+
+  private final MetricRegistry registry;
+  private final Counter serializedBytes;
+  private final Counter compressedBytes;
+  private final Histogram responseBytes;
+  private final Timer collectionTime;
+  private final Timer serializationTime;
+  private final AtomicInteger concurrentScrapes = new AtomicInteger();
+  private final Map<String, AtomicInteger> seriesCounts = new ConcurrentHashMap<>();
+
+  /**
+   * Metrics that are not reported anywhere.
+   */
+  ExporterMetrics() {
+    this(new MetricRegistry());
+  }
+
+  ExporterMetrics(MetricRegistry registry) {
+    this.registry = registry;
+    this.serializedBytes = registry.counter(PREFIX + ".serialized_bytes");
+    this.compressedBytes = registry.counter(PREFIX + ".compressed_bytes");
+    this.responseBytes = registry.histogram(PREFIX + ".response_bytes");
+    this.collectionTime = registry.timer(PREFIX + ".collection_time");
+    this.serializationTime = registry.timer(PREFIX + ".serialization_time");
+    registry.gauge(PREFIX + ".concurrent_scrapes", () -> concurrentScrapes::get);
+  }
+
+  /**
+   * Times reading the metrics out of the registry, before they are serialized.
+   */
+  void recordCollection(long nanos) {
+    collectionTime.update(nanos, TimeUnit.NANOSECONDS);
+  }
+
+  /**
+   * Times writing the metrics in the text format, including their compression when it is streamed, but not their
+   * collection.
+   */
+  void recordSerialization(long nanos) {
+    serializationTime.update(nanos, TimeUnit.NANOSECONDS);
+  }
+
+  /**
+   * Counts a response.
+   *
+   * @param serialized size of the body before compression
+   * @param compressed size of the body after compression, or -1 if it is not compressed
+   */
+  void recordResponse(long serialized, long compressed) {
+    serializedBytes.inc(serialized);
+    if (compressed >= 0) {
+      compressedBytes.inc(compressed);
+    }
+    responseBytes.update(compressed >= 0 ? compressed : serialized);
+  }
+
+  /**
+   * Marks the start of a scrape request, which must be matched by a call to {@link #scrapeFinished()}.
+   */
+  void scrapeStarted() {
+    concurrentScrapes.incrementAndGet();
+  }
+
+  void scrapeFinished() {
+    concurrentScrapes.decrementAndGet();
+  }
+
+  int getConcurrentScrapes() {
+    return concurrentScrapes.get();
+  }
+
+  /**
+   * Publishes the number of series written by the last full scrape for a prefix of the metric names. A prefix that
+   * is no longer scraped is reported with no series, rather than removed.
+   */
+  void setSeriesCount(String prefix, int count) {
+    seriesCounts.computeIfAbsent(prefix, this::registerSeriesCount).set(count);
+  }
+
+  private AtomicInteger registerSeriesCount(String prefix) {
+    AtomicInteger count = new AtomicInteger();
+    registry.gauge(PREFIX + ".series[prefix:" + prefix + "]", () -> count::get);
+    return count;
+  }
+}
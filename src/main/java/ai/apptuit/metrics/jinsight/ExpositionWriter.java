@@ -0,0 +1,688 @@
+/*
+ * Copyright 2017 Agilx, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ai.apptuit.metrics.jinsight;
+
+import com.codahale.metrics.Counter;
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.Histogram;
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.Metered;
+import com.codahale.metrics.Metric;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.Snapshot;
+import com.codahale.metrics.Timer;
+import io.prometheus.client.Collector;
+import io.prometheus.client.Collector.MetricFamilySamples;
+import io.prometheus.client.Collector.MetricFamilySamples.Sample;
+import io.prometheus.client.Predicate;
+import io.prometheus.client.dropwizard.samplebuilder.SampleBuilder;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.regex.Pattern;
+
+/**
+ * Writes the metrics of a Dropwizard registry in the Prometheus text format (version 0.0.4), with the same families
+ * and samples as {@link ApptuitDropwizardExports#collect()}, but without building the MetricFamilySamples.
+ *
+ * <p>The name and labels of each sample are encoded once, when its metric is first seen, and the bytes are staged
+ * in a buffer that is reused across scrapes. Apart from the snapshots of histograms and timers, a scrape allocates
+ * next to nothing, however many series there are.
+ */
+final class ExpositionWriter {
+
+  private static final Logger LOGGER = Logger.getLogger(ExpositionWriter.class.getName());
+
+  private static final int BUFFER_SIZE = 1 << 16;
+  private static final long MAX_FAST_INTEGRAL_VALUE = 10_000_000L;
+  private static final double NANOS_TO_SECONDS = 1.0D / TimeUnit.SECONDS.toNanos(1L);
+  private static final Pattern INVALID_PREFIX_CHARS = Pattern.compile("[^a-zA-Z0-9_\\-]");
+
+  private final MetricRegistry registry;
+  private final SampleBuilder sampleBuilder;
+  private final ExporterMetrics exporterMetrics;
+
+  private final Map<String, Layout> layouts = new HashMap<>();
+  private final Map<String, Family> families = new HashMap<>();
+  private final List<Family> scrapeFamilies = new ArrayList<>();
+  private final Map<String, List<String>> metricsBySampleName = new HashMap<>();
+  private final Set<String> indexedMetricNames = new HashSet<>();
+  private boolean indexStale;
+  private final Map<String, int[]> seriesCounts = new HashMap<>();
+  private double[] values = new double[Kind.MAX_SAMPLES];
+  private final byte[] buffer = new byte[BUFFER_SIZE];
+  private int position;
+  private long scrape;
+
+  ExpositionWriter(MetricRegistry registry, SampleBuilder sampleBuilder) {
+    this(registry, sampleBuilder, new ExporterMetrics());
+  }
+
+  ExpositionWriter(MetricRegistry registry, SampleBuilder sampleBuilder, ExporterMetrics exporterMetrics) {
+    this.registry = registry;
+    this.sampleBuilder = sampleBuilder;
+    this.exporterMetrics = exporterMetrics;
+  }
+
+  /**
+   * Concurrent scrapes are serialized, as they share the layouts and the buffer. A scrape of all the metrics also
+   * publishes the number of series written, by the prefix of the metric names.
+   *
+   * @param includedNames names of the samples to write, or an empty set to write all of them
+   * @return the time, in nanoseconds, spent reading the metrics out of the registry
+   */
+  synchronized long write(OutputStream out, Set<String> includedNames) throws IOException {
+    scrape++;
+    position = 0;
+    if (includedNames.isEmpty()) {
+      for (int[] count : seriesCounts.values()) {
+        count[0] = 0;
+      }
+    }
+    try {
+      long start = System.nanoTime();
+      Map<String, Metric> metrics = registry.getMetrics();
+      long collectionNanos = System.nanoTime() - start;
+      exporterMetrics.recordCollection(collectionNanos);
+      if (includedNames.isEmpty()) {
+        int metricCount = 0;
+        for (Map.Entry<String, Metric> entry : metrics.entrySet()) {
+          if (select(entry.getKey(), entry.getValue())) {
+            metricCount++;
+          }
+        }
+        if (layouts.size() > metricCount || families.size() > scrapeFamilies.size()) {
+          expunge();
+        }
+      } else {
+        updateIndex(metrics);
+        for (String sampleName : includedNames) {
+          for (String metricName : metricsBySampleName.getOrDefault(sampleName, Collections.emptyList())) {
+            Metric metric = metrics.get(metricName);
+            if (metric != null) {
+              select(metricName, metric);
+            }
+          }
+        }
+      }
+      for (Family family : scrapeFamilies) {
+        writeFamily(out, family, includedNames);
+      }
+      out.write(buffer, 0, position);
+      if (includedNames.isEmpty()) {
+        for (Map.Entry<String, int[]> entry : seriesCounts.entrySet()) {
+          exporterMetrics.setSeriesCount(entry.getKey(), entry.getValue()[0]);
+        }
+      }
+      return collectionNanos;
+    } finally {
+      for (Family family : scrapeFamilies) {
+        for (Layout layout : family.members) {
+          layout.metric = null;
+        }
+      }
+      scrapeFamilies.clear();
+    }
+  }
+
+  /**
+   * @return the names of the metrics that have a sample accepted by the filter
+   */
+  synchronized Set<String> getMetricNames(Map<String, Metric> metrics, Predicate<String> sampleNameFilter) {
+    updateIndex(metrics);
+    Set<String> metricNames = new TreeSet<>();
+    for (Map.Entry<String, List<String>> entry : metricsBySampleName.entrySet()) {
+      if (sampleNameFilter.test(entry.getKey())) {
+        metricNames.addAll(entry.getValue());
+      }
+    }
+    return metricNames;
+  }
+
+  /**
+   * @return the families of the metrics, without any samples
+   */
+  synchronized List<MetricFamilySamples> describe(Map<String, Metric> metrics) {
+    Map<String, MetricFamilySamples> described = new LinkedHashMap<>();
+    for (Map.Entry<String, Metric> entry : metrics.entrySet()) {
+      Layout layout = getLayout(entry.getKey(), entry.getValue());
+      if (layout != null && !described.containsKey(layout.family.name)) {
+        described.put(layout.family.name, new MetricFamilySamples(layout.family.name, layout.kind.type,
+            ApptuitDropwizardExports.getHelpMessage(entry.getKey(), entry.getValue()),
+            Collections.emptyList()));
+      }
+    }
+    return new ArrayList<>(described.values());
+  }
+
+  /**
+   * Adds the metric to the families written by the current scrape.
+   *
+   * @return false if the metric is not exported
+   */
+  private boolean select(String dropwizardName, Metric metric) {
+    Layout layout = getLayout(dropwizardName, metric);
+    if (layout == null) {
+      return false;
+    }
+    layout.scrape = scrape;
+    if (layout.metric != null) {
+      return true;
+    }
+    layout.metric = metric;
+    Family family = layout.family;
+    if (family.scrape != scrape) {
+      family.scrape = scrape;
+      family.members.clear();
+      scrapeFamilies.add(family);
+    }
+    family.members.add(layout);
+    return true;
+  }
+
+  private Layout getLayout(String dropwizardName, Metric metric) {
+    Layout layout = layouts.get(dropwizardName);
+    if (layout == null || !layout.matches(metric)) {
+      try {
+        layout = createLayout(dropwizardName, metric);
+      } catch (RuntimeException rte) {
+        LOGGER.log(Level.SEVERE, "Error collecting [" + dropwizardName + "]", rte);
+        return null;
+      }
+      if (layout != null) {
+        layouts.put(dropwizardName, layout);
+        indexStale = true;
+      }
+    }
+    return layout;
+  }
+
+  /**
+   * Maps the name of each sample to the metrics that export it, so that filtered scrapes only read the metrics they
+   * need. The index is rebuilt when the names of the metrics change, or when a metric is registered again under the
+   * same name with another class or other buckets, checking for which does not read any metric.
+   */
+  private void updateIndex(Map<String, Metric> metrics) {
+    if (indexStale || metrics.size() != indexedMetricNames.size()
+        || !indexedMetricNames.containsAll(metrics.keySet()) || layoutsChanged(metrics)) {
+      scrape++;
+      indexedMetricNames.clear();
+      indexedMetricNames.addAll(metrics.keySet());
+      metricsBySampleName.clear();
+      for (Map.Entry<String, Metric> entry : metrics.entrySet()) {
+        Layout layout = getLayout(entry.getKey(), entry.getValue());
+        if (layout == null) {
+          continue;
+        }
+        layout.scrape = scrape;
+        for (String sampleName : layout.sampleNames) {
+          List<String> metricNames = metricsBySampleName.computeIfAbsent(sampleName, name -> new ArrayList<>(1));
+          if (metricNames.isEmpty() || !metricNames.get(metricNames.size() - 1).equals(entry.getKey())) {
+            metricNames.add(entry.getKey());
+          }
+        }
+      }
+      layouts.values().removeIf(layout -> layout.scrape != scrape);
+      indexStale = false;
+    }
+  }
+
+  private boolean layoutsChanged(Map<String, Metric> metrics) {
+    for (Map.Entry<String, Metric> entry : metrics.entrySet()) {
+      Layout layout = layouts.get(entry.getKey());
+      if (layout == null ? Kind.of(entry.getValue()) != null : !layout.matches(entry.getValue())) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  private void expunge() {
+    layouts.values().removeIf(layout -> layout.scrape != scrape);
+    families.values().removeIf(family -> family.scrape != scrape);
+  }
+
+  private Layout createLayout(String dropwizardName, Metric metric) {
+    Kind kind = Kind.of(metric);
+    if (kind == null) {
+      return null;
+    }
+    String[][] samples = kind.samples(metric);
+    String[] sampleNames = new String[samples.length];
+    byte[][] prefixes = new byte[samples.length][];
+    for (int i = 0; i < samples.length; i++) {
+      List<String> labelNames = null;
+      List<String> labelValues = null;
+      if (samples[i][1] != null) {
+        labelNames = Collections.singletonList(samples[i][1]);
+        labelValues = Collections.singletonList(samples[i][2]);
+      }
+      Sample sample = sampleBuilder.createSample(dropwizardName, samples[i][0], labelNames, labelValues, 0);
+      sampleNames[i] = sample.name;
+      prefixes[i] = encodeSamplePrefix(sample);
+    }
+    String familySuffix = kind.familySuffix(metric);
+    String familyName = familySuffix == null ? sampleNames[0]
+        : sampleBuilder.createSample(dropwizardName, familySuffix, null, null, 0).name;
+    Family family = families.computeIfAbsent(familyName, Family::new);
+    String seriesPrefix = seriesPrefix(dropwizardName);
+    byte[] header = encodeHeader(familyName, kind.type,
+        ApptuitDropwizardExports.getHelpMessage(dropwizardName, metric));
+    if (values.length < samples.length) {
+      values = new double[samples.length];
+    }
+    return new Layout(metric.getClass(), Kind.bucketBounds(metric), kind, family, header, sampleNames, prefixes,
+        seriesPrefix);
+  }
+
+  /**
+   * @return the first segment of the name, up to a dot or its tags, with the characters that are not allowed in a
+   *     tag value replaced
+   */
+  static String seriesPrefix(String dropwizardName) {
+    int end = 0;
+    while (end < dropwizardName.length() && dropwizardName.charAt(end) != '.' && dropwizardName.charAt(end) != '[') {
+      end++;
+    }
+    String prefix = INVALID_PREFIX_CHARS.matcher(dropwizardName.substring(0, end)).replaceAll("_");
+    return prefix.isEmpty() ? "_" : prefix;
+  }
+
+  private void writeFamily(OutputStream out, Family family, Set<String> includedNames) throws IOException {
+    boolean headerWritten = false;
+    Layout headerLayout = null;
+    for (Layout layout : family.members) {
+      int sampleCount;
+      try {
+        sampleCount = layout.kind.readValues(layout.metric, values);
+      } catch (RuntimeException rte) {
+        LOGGER.log(Level.SEVERE, "Error collecting [" + family.name + "]", rte);
+        continue;
+      }
+      if (sampleCount < 0) {
+        LOGGER.log(Level.FINE, "Invalid type for Gauge {0}", layout.sampleNames[0]);
+        continue;
+      }
+      if (headerLayout == null) {
+        headerLayout = layout;
+      }
+      if (includedNames.isEmpty()) {
+        seriesCounts.computeIfAbsent(layout.seriesPrefix, prefix -> new int[1])[0] += sampleCount;
+      }
+      for (int i = 0; i < sampleCount; i++) {
+        if (!includedNames.isEmpty() && !includedNames.contains(layout.sampleNames[i])) {
+          continue;
+        }
+        if (!headerWritten) {
+          write(out, headerLayout.header);
+          headerWritten = true;
+        }
+        write(out, layout.prefixes[i]);
+        writeValue(out, values[i]);
+        write(out, (byte) '\n');
+      }
+    }
+  }
+
+  private void write(OutputStream out, byte[] bytes) throws IOException {
+    if (bytes.length > buffer.length - position) {
+      out.write(buffer, 0, position);
+      position = 0;
+      if (bytes.length > buffer.length) {
+        out.write(bytes);
+        return;
+      }
+    }
+    System.arraycopy(bytes, 0, buffer, position, bytes.length);
+    position += bytes.length;
+  }
+
+  private void write(OutputStream out, byte b) throws IOException {
+    if (position == buffer.length) {
+      out.write(buffer, 0, position);
+      position = 0;
+    }
+    buffer[position++] = b;
+  }
+
+  /**
+   * Writes the value as {@link Collector#doubleToGoString(double)} would format it. Integral values, which is what
+   * most counters and gauges hold, are written digit by digit, without going through a String.
+   */
+  private void writeValue(OutputStream out, double value) throws IOException {
+    long integral = (long) value;
+    if (integral == value && integral > -MAX_FAST_INTEGRAL_VALUE && integral < MAX_FAST_INTEGRAL_VALUE
+        && (integral != 0 || Double.doubleToRawLongBits(value) == 0L)) {
+      if (integral < 0) {
+        write(out, (byte) '-');
+        integral = -integral;
+      }
+      long divisor = 1;
+      while (divisor * 10 <= integral) {
+        divisor *= 10;
+      }
+      for (; divisor > 0; divisor /= 10) {
+        write(out, (byte) ('0' + (integral / divisor) % 10));
+      }
+      write(out, (byte) '.');
+      write(out, (byte) '0');
+      return;
+    }
+    String formatted = Collector.doubleToGoString(value);
+    for (int i = 0; i < formatted.length(); i++) {
+      write(out, (byte) formatted.charAt(i));
+    }
+  }
+
+  private static byte[] encodeHeader(String familyName, Collector.Type type, String help) {
+    String typeName = type.name().toLowerCase(Locale.ROOT);
+    return ("# HELP " + familyName + " " + escapeHelp(help) + "\n"
+        + "# TYPE " + familyName + " " + typeName + "\n").getBytes(StandardCharsets.UTF_8);
+  }
+
+  private static byte[] encodeSamplePrefix(Sample sample) {
+    StringBuilder prefix = new StringBuilder(sample.name);
+    if (!sample.labelNames.isEmpty()) {
+      prefix.append('{');
+      for (int i = 0; i < sample.labelNames.size(); i++) {
+        prefix.append(sample.labelNames.get(i)).append("=\"");
+        escapeLabelValue(prefix, sample.labelValues.get(i));
+        prefix.append("\",");
+      }
+      prefix.append('}');
+    }
+    prefix.append(' ');
+    return prefix.toString().getBytes(StandardCharsets.UTF_8);
+  }
+
+  private static String escapeHelp(String help) {
+    return help.replace("\\", "\\\\").replace("\n", "\\n");
+  }
+
+  private static void escapeLabelValue(StringBuilder builder, String value) {
+    for (int i = 0; i < value.length(); i++) {
+      char c = value.charAt(i);
+      switch (c) {
+        case '\\':
+          builder.append("\\\\");
+          break;
+        case '\"':
+          builder.append("\\\"");
+          break;
+        case '\n':
+          builder.append("\\n");
+          break;
+        default:
+          builder.append(c);
+      }
+    }
+  }
+
+  /**
+   * The samples that {@link ApptuitDropwizardExports} exports for each type of metric, in the same order.
+   */
+  private enum Kind {
+    BUCKETED(Collector.Type.HISTOGRAM, null) {
+      @Override
+      String[][] samples(Metric metric) {
+        String suffix = familySuffix(metric);
+        double[] bounds = ((BucketedSampling) metric).getBucketBounds();
+        String[][] samples = new String[bounds.length + 3][];
+        for (int i = 0; i <= bounds.length; i++) {
+          String bound = i < bounds.length ? Collector.doubleToGoString(bounds[i]) : "+Inf";
+          samples[i] = new String[]{suffix + "_bucket", BUCKET_TAG_NAME, bound};
+        }
+        samples[bounds.length + 1] = new String[]{suffix + "_count", null, null};
+        samples[bounds.length + 2] = new String[]{suffix + "_sum", null, null};
+        return samples;
+      }
+
+      @Override
+      String familySuffix(Metric metric) {
+        return metric instanceof Timer ? "_duration" : "";
+      }
+
+      @Override
+      int readValues(Metric metric, double[] values) {
+        BucketedSampling buckets = (BucketedSampling) metric;
+        int bucketCount = buckets.getBucketBounds().length + 1;
+        long count = 0;
+        for (int i = 0; i < bucketCount; i++) {
+          count += buckets.getBucketCount(i);
+          values[i] = count;
+        }
+        values[bucketCount] = count;
+        values[bucketCount + 1] = buckets.getSum();
+        return bucketCount + 2;
+      }
+    },
+    HISTOGRAM(Collector.Type.SUMMARY, snapshotSamples("")) {
+      @Override
+      int readValues(Metric metric, double[] values) {
+        Histogram histogram = (Histogram) metric;
+        return readSnapshot(histogram.getSnapshot(), histogram.getCount(), 1.0, values, 0);
+      }
+    },
+    TIMER(Collector.Type.SUMMARY, concat(rateSamples(), snapshotSamples("_duration"))) {
+      @Override
+      int readValues(Metric metric, double[] values) {
+        Timer timer = (Timer) metric;
+        int offset = readRates(timer, values);
+        return readSnapshot(timer.getSnapshot(), timer.getCount(), NANOS_TO_SECONDS, values, offset);
+      }
+    },
+    METER(Collector.Type.SUMMARY, concat(rateSamples(), new String[][]{{"_total", null, null}})) {
+      @Override
+      int readValues(Metric metric, double[] values) {
+        Meter meter = (Meter) metric;
+        int offset = readRates(meter, values);
+        values[offset] = meter.getCount();
+        return offset + 1;
+      }
+    },
+    GAUGE(Collector.Type.GAUGE, new String[][]{{"", null, null}}) {
+      @Override
+      int readValues(Metric metric, double[] values) {
+        Object obj = ((Gauge<?>) metric).getValue();
+        if (obj instanceof Number) {
+          values[0] = ((Number) obj).doubleValue();
+        } else if (obj instanceof Boolean) {
+          values[0] = ((Boolean) obj) ? 1 : 0;
+        } else {
+          return -1;
+        }
+        return 1;
+      }
+    },
+    COUNTER(Collector.Type.GAUGE, new String[][]{{"", null, null}}) {
+      @Override
+      int readValues(Metric metric, double[] values) {
+        values[0] = ((Counter) metric).getCount();
+        return 1;
+      }
+    };
+
+    static final int MAX_SAMPLES = 14;
+
+    private static final String QUANTILE_TAG_NAME = "quantile";
+    private static final String WINDOW_TAG_NAME = "window";
+    private static final String BUCKET_TAG_NAME = "le";
+
+    final Collector.Type type;
+    private final String[][] samples;
+
+    /**
+     * @param samples the name suffix, and the name and value of the additional label if any, of each sample
+     */
+    Kind(Collector.Type type, String[][] samples) {
+      this.type = type;
+      this.samples = samples;
+    }
+
+    static Kind of(Metric metric) {
+      if (metric instanceof BucketedSampling) {
+        return BUCKETED;
+      } else if (metric instanceof Histogram) {
+        return HISTOGRAM;
+      } else if (metric instanceof Timer) {
+        return TIMER;
+      } else if (metric instanceof Meter) {
+        return METER;
+      } else if (metric instanceof Gauge) {
+        return GAUGE;
+      } else if (metric instanceof Counter) {
+        return COUNTER;
+      }
+      return null;
+    }
+
+    static double[] bucketBounds(Metric metric) {
+      return metric instanceof BucketedSampling ? ((BucketedSampling) metric).getBucketBounds() : null;
+    }
+
+    String[][] samples(Metric metric) {
+      return samples;
+    }
+
+    /**
+     * @return the suffix of the family name, or null if the family is named after its first sample
+     */
+    String familySuffix(Metric metric) {
+      return null;
+    }
+
+    /**
+     * @return the number of values read, or -1 if the metric has no value to export
+     */
+    abstract int readValues(Metric metric, double[] values);
+
+    private static String[][] snapshotSamples(String suffix) {
+      return new String[][]{
+          {suffix + "_min", null, null},
+          {suffix + "_max", null, null},
+          {suffix + "_mean", null, null},
+          {suffix + "_stddev", null, null},
+          {suffix, QUANTILE_TAG_NAME, "0.5"},
+          {suffix, QUANTILE_TAG_NAME, "0.75"},
+          {suffix, QUANTILE_TAG_NAME, "0.95"},
+          {suffix, QUANTILE_TAG_NAME, "0.98"},
+          {suffix, QUANTILE_TAG_NAME, "0.99"},
+          {suffix, QUANTILE_TAG_NAME, "0.999"},
+          {"_count", null, null}
+      };
+    }
+
+    private static String[][] rateSamples() {
+      return new String[][]{
+          {"_rate", WINDOW_TAG_NAME, "1m"},
+          {"_rate", WINDOW_TAG_NAME, "5m"},
+          {"_rate", WINDOW_TAG_NAME, "15m"}
+      };
+    }
+
+    private static String[][] concat(String[][] first, String[][] second) {
+      String[][] samples = new String[first.length + second.length][];
+      System.arraycopy(first, 0, samples, 0, first.length);
+      System.arraycopy(second, 0, samples, first.length, second.length);
+      return samples;
+    }
+
+    private static int readRates(Metered meter, double[] values) {
+      values[0] = meter.getOneMinuteRate();
+      values[1] = meter.getFiveMinuteRate();
+      values[2] = meter.getFifteenMinuteRate();
+      return 3;
+    }
+
+    private static int readSnapshot(Snapshot snapshot, long count, double factor, double[] values, int offset) {
+      values[offset] = snapshot.getMin() * factor;
+      values[offset + 1] = snapshot.getMax() * factor;
+      values[offset + 2] = snapshot.getMean() * factor;
+      values[offset + 3] = snapshot.getStdDev() * factor;
+      values[offset + 4] = snapshot.getMedian() * factor;
+      values[offset + 5] = snapshot.get75thPercentile() * factor;
+      values[offset + 6] = snapshot.get95thPercentile() * factor;
+      values[offset + 7] = snapshot.get98thPercentile() * factor;
+      values[offset + 8] = snapshot.get99thPercentile() * factor;
+      values[offset + 9] = snapshot.get999thPercentile() * factor;
+      values[offset + 10] = count;
+      return offset + 11;
+    }
+  }
+
+  /**
+   * The pre-encoded header and sample prefixes of a metric, and the family it belongs to.
+   */
+  private static final class Layout {
+
+    private final Class<?> metricClass;
+    private final double[] bounds;
+    private final Kind kind;
+    private final Family family;
+    private final byte[] header;
+    private final String[] sampleNames;
+    private final byte[][] prefixes;
+    private final String seriesPrefix;
+    private long scrape;
+    private Metric metric;
+
+    Layout(Class<?> metricClass, double[] bounds, Kind kind, Family family, byte[] header, String[] sampleNames,
+        byte[][] prefixes, String seriesPrefix) {
+      this.metricClass = metricClass;
+      this.bounds = bounds;
+      this.kind = kind;
+      this.family = family;
+      this.header = header;
+      this.sampleNames = sampleNames;
+      this.prefixes = prefixes;
+      this.seriesPrefix = seriesPrefix;
+    }
+
+    boolean matches(Metric metric) {
+      return metricClass == metric.getClass() && bounds == Kind.bucketBounds(metric);
+    }
+  }
+
+  /**
+   * The metrics whose samples are written under one family in the current scrape. Like
+   * {@link ApptuitDropwizardExports#collect()}, metrics that map to the same family name are written together, under
+   * the header of the first of them.
+   */
+  private static final class Family {
+
+    private final String name;
+    private final List<Layout> members = new ArrayList<>();
+    private long scrape;
+
+    Family(String name) {
+      this.name = name;
+    }
+  }
+}
@@ -0,0 +1,37 @@
+/*
+ * Copyright 2017 Agilx, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ai.apptuit.metrics.jinsight;
+
+import com.codahale.metrics.Gauge;
+
+/**
+ * The value of a gauge as of the time it was read, for a collection, a snapshot or a comparison to hand out in place
+ * of the gauge.
+ */
+final class GaugeValue implements Gauge<Object> {
+
+  private final Object value;
+
+  GaugeValue(Object value) {
+    this.value = value;
+  }
+
+  @Override
+  public Object getValue() {
+    return value;
+  }
+}
@@ -0,0 +1,122 @@
+/*
+ * Copyright 2017 Agilx, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ai.apptuit.metrics.jinsight;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+
+/**
+ * Gzip compression of scrape responses, at a configurable level.
+ *
+ * <p>{@link java.util.zip.GZIPOutputStream} allocates a new {@link Deflater}, and its native buffers, for every
+ * stream. Here each thread reuses its own deflater instead: the exporter compresses on a few long-lived handler
+ * threads.
+ */
+final class GzipCompression {
+
+  static final GzipCompression DEFAULT = new GzipCompression(Deflater.DEFAULT_COMPRESSION);
+
+  private final int level;
+  private final ThreadLocal<Deflater> deflaters;
+
+  /**
+   * @param level the compression level, from 0 to 9, or {@link Deflater#DEFAULT_COMPRESSION}
+   */
+  GzipCompression(int level) {
+    if (level < Deflater.DEFAULT_COMPRESSION || level > Deflater.BEST_COMPRESSION) {
+      throw new IllegalArgumentException("Invalid compression level: " + level);
+    }
+    this.level = level;
+    this.deflaters = ThreadLocal.withInitial(() -> new Deflater(level, true));
+  }
+
+  int getLevel() {
+    return level;
+  }
+
+  /**
+   * Opens a gzip stream into out. The stream uses the deflater of the current thread, so it must be finished on
+   * that thread, before another stream is opened on it.
+   */
+  GzipOutputStream open(OutputStream out) throws IOException {
+    Deflater deflater = deflaters.get();
+    deflater.reset();
+    return new GzipOutputStream(out, deflater);
+  }
+
+  byte[] compress(byte[] body) {
+    ByteArrayOutputStream out = new ByteArrayOutputStream(Math.max(body.length / 4, 512));
+    try (GzipOutputStream gzip = open(out)) {
+      gzip.write(body);
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+    return out.toByteArray();
+  }
+
+  /**
+   * A gzip stream on a deflater it does not own: finishing or closing the stream does not end the deflater.
+   */
+  static final class GzipOutputStream extends DeflaterOutputStream {
+
+    private static final byte[] HEADER = {0x1f, (byte) 0x8b, Deflater.DEFLATED, 0, 0, 0, 0, 0, 0, 0};
+
+    private final CRC32 crc = new CRC32();
+    private boolean finished;
+
+    private GzipOutputStream(OutputStream out, Deflater deflater) throws IOException {
+      super(out, deflater, 8192);
+      out.write(HEADER);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+      super.write(b, off, len);
+      crc.update(b, off, len);
+    }
+
+    @Override
+    public void finish() throws IOException {
+      if (finished) {
+        return;
+      }
+      finished = true;
+      super.finish();
+      writeInt((int) crc.getValue());
+      writeInt((int) def.getBytesRead());
+    }
+
+    private void writeInt(int value) throws IOException {
+      out.write(value & 0xff);
+      out.write((value >>> 8) & 0xff);
+      out.write((value >>> 16) & 0xff);
+      out.write((value >>> 24) & 0xff);
+    }
+
+    /**
+     * @return the number of bytes written to the stream, before compression
+     */
+    long getUncompressedBytes() {
+      return def.getBytesRead();
+    }
+  }
+}
@@ -0,0 +1,109 @@
+/*
+ * Copyright 2017 Agilx, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ai.apptuit.metrics.jinsight;
+
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+import java.util.Arrays;
+
+/**
+ * The upper bounds of the buckets of a native Prometheus histogram, in the unit the values are exported in: seconds
+ * for timers, the unit of the recorded values for histograms. A last bucket, for the values above the highest bound,
+ * is implied.
+ */
+final class HistogramBuckets {
+
+  /**
+   * Same as the default buckets of Prometheus client histograms.
+   */
+  static final HistogramBuckets DEFAULT = new HistogramBuckets(
+      new double[]{.005, .01, .025, .05, .1, .25, .5, 1, 2.5, 5, 10});
+
+  private final double[] upperBounds;
+
+  HistogramBuckets(double[] upperBounds) {
+    if (upperBounds.length == 0) {
+      throw new IllegalArgumentException("At least one bucket is required");
+    }
+    for (int i = 0; i < upperBounds.length; i++) {
+      if (Double.isNaN(upperBounds[i]) || Double.isInfinite(upperBounds[i])) {
+        throw new IllegalArgumentException("Invalid bucket bound [" + upperBounds[i] + "]");
+      }
+      if (i > 0 && upperBounds[i] <= upperBounds[i - 1]) {
+        throw new IllegalArgumentException("Bucket bounds must be in increasing order");
+      }
+    }
+    this.upperBounds = upperBounds.clone();
+  }
+
+  /**
+   * @param bounds comma separated upper bounds, in increasing order, like {@code 0.01, 0.1, 1, 10}
+   */
+  static HistogramBuckets parse(String bounds) {
+    String[] values = bounds.split(",");
+    double[] upperBounds = new double[values.length];
+    for (int i = 0; i < values.length; i++) {
+      upperBounds[i] = Double.parseDouble(values[i].trim());
+    }
+    return new HistogramBuckets(upperBounds);
+  }
+
+  /**
+   * @return the upper bounds, shared by all the metrics using these buckets, which must not modify them
+   */
+  double[] getUpperBounds() {
+    return upperBounds;
+  }
+
+  /**
+   * @param unitsPerBound number of recorded units in one unit of the bounds, like 1e9 when nanoseconds are recorded
+   *     against bounds in seconds
+   * @return for each bucket, the highest recorded value that falls in it
+   */
+  long[] toRecordedBounds(long unitsPerBound) {
+    long[] recordedBounds = new long[upperBounds.length];
+    BigDecimal multiplier = BigDecimal.valueOf(unitsPerBound);
+    for (int i = 0; i < upperBounds.length; i++) {
+      BigDecimal bound = new BigDecimal(Double.toString(upperBounds[i])).multiply(multiplier)
+          .setScale(0, RoundingMode.FLOOR);
+      recordedBounds[i] = bound.max(BigDecimal.valueOf(Long.MIN_VALUE)).min(BigDecimal.valueOf(Long.MAX_VALUE))
+          .longValue();
+    }
+    return recordedBounds;
+  }
+
+  @Override
+  public boolean equals(Object o) {
+    if (this == o) {
+      return true;
+    }
+    if (o == null || getClass() != o.getClass()) {
+      return false;
+    }
+    return Arrays.equals(upperBounds, ((HistogramBuckets) o).upperBounds);
+  }
+
+  @Override
+  public int hashCode() {
+    return Arrays.hashCode(upperBounds);
+  }
+
+  @Override
+  public String toString() {
+    return Arrays.toString(upperBounds);
+  }
+}
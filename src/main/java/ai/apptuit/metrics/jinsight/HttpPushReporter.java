@@ -0,0 +1,248 @@
+/*
+ * Copyright 2017 Agilx, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ai.apptuit.metrics.jinsight;
+
+import com.codahale.metrics.Counter;
+import com.codahale.metrics.MetricRegistry;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Pushes the metrics to an HTTP endpoint, on a schedule, in requests that the subclasses encode on each report and
+ * hand over through {@link #submit(byte[], int)}.
+ *
+ * <p>Requests are sent by a pool of as many threads as requests may be in flight. Once that many are in flight, the
+ * report waits for one of them to finish, rather than queueing more. Requests that fail to connect, or fail with a
+ * 5xx or 429, are retried with an exponential backoff. Requests rejected with any other 4xx are dropped.
+ *
+ * <p>The reporter sends a last report when it is closed, which it is when the JVM shuts down.
+ */
+abstract class HttpPushReporter implements Closeable {
+
+  private static final Logger LOGGER = Logger.getLogger(HttpPushReporter.class.getName());
+
+  static final long MIN_BACKOFF_MILLIS = 500;
+
+  private static final int CONNECT_TIMEOUT_MILLIS = 10_000;
+  private static final int READ_TIMEOUT_MILLIS = 30_000;
+  private static final long MAX_BACKOFF_MILLIS = 30_000;
+  private static final long CLOSE_TIMEOUT_MILLIS = 10_000;
+  private static final String USER_AGENT = "jinsight";
+
+  private final URL url;
+  private final String name;
+  private final Map<String, String> headers;
+  private final int maxRetries;
+  private final long minBackoffMillis;
+  private final Semaphore inFlight;
+  private final ExecutorService senders;
+  private final ScheduledExecutorService scheduler;
+  private final AtomicBoolean closed = new AtomicBoolean();
+  private final AtomicInteger inFlightRequests = new AtomicInteger();
+  private final Counter sentSamples;
+  private final Counter sentRequests;
+  private final Counter retriedRequests;
+  private final Counter failedRequests;
+
+  /**
+   * @param name names the threads of the reporter, and its metrics, published under jinsight.&lt;name&gt;
+   * @param headers the headers of the requests, other than the user agent and content length
+   * @param maxInFlight maximum number of requests sent at the same time
+   * @param maxRetries number of times a request is retried, before it is dropped
+   */
+  HttpPushReporter(URL url, String name, Map<String, String> headers, int maxInFlight, int maxRetries,
+      MetricRegistry registry, long minBackoffMillis) {
+    this.url = url;
+    this.name = name;
+    this.headers = headers;
+    this.maxRetries = maxRetries;
+    this.minBackoffMillis = minBackoffMillis;
+    this.inFlight = new Semaphore(maxInFlight);
+    String prefix = "jinsight." + name;
+    this.sentSamples = registry.counter(prefix + ".sent_samples");
+    this.sentRequests = registry.counter(prefix + ".sent_requests");
+    this.retriedRequests = registry.counter(prefix + ".retried_requests");
+    this.failedRequests = registry.counter(prefix + ".failed_requests");
+    registry.gauge(prefix + ".in_flight_requests", () -> inFlightRequests::get);
+
+    String threadName = "jinsight-" + name.replace('_', '-');
+    AtomicInteger senderCount = new AtomicInteger();
+    this.senders = Executors.newFixedThreadPool(maxInFlight, runnable -> {
+      Thread thread = new Thread(runnable, threadName + "-" + senderCount.incrementAndGet());
+      thread.setDaemon(true);
+      return thread;
+    });
+    this.scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+      Thread thread = new Thread(runnable, threadName + "-reporter");
+      thread.setDaemon(true);
+      return thread;
+    });
+  }
+
+  /**
+   * Reports every period, and once more when the JVM shuts down.
+   */
+  void start(long periodMillis) {
+    scheduler.scheduleAtFixedRate(this::reportSafely, periodMillis, periodMillis, TimeUnit.MILLISECONDS);
+    Runtime.getRuntime().addShutdownHook(new Thread(this::close, "jinsight-" + name.replace('_', '-') + "-flush"));
+  }
+
+  private void reportSafely() {
+    try {
+      report();
+    } catch (RuntimeException e) {
+      LOGGER.log(Level.SEVERE, "Error reporting metrics to [" + url + "]", e);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  /**
+   * Collects the metrics, and submits the requests that carry them.
+   */
+  abstract void report() throws InterruptedException;
+
+  /**
+   * Hands the request over to the senders, waiting while too many requests are in flight.
+   *
+   * @param samples the number of samples in the request
+   */
+  void submit(byte[] body, int samples) throws InterruptedException {
+    inFlight.acquire();
+    inFlightRequests.incrementAndGet();
+    try {
+      senders.execute(() -> {
+        try {
+          send(body, samples);
+        } finally {
+          inFlightRequests.decrementAndGet();
+          inFlight.release();
+        }
+      });
+    } catch (RuntimeException e) {
+      inFlightRequests.decrementAndGet();
+      inFlight.release();
+      throw e;
+    }
+  }
+
+  private void send(byte[] body, int samples) {
+    long backoffMillis = minBackoffMillis;
+    for (int attempt = 0; ; attempt++) {
+      int status = post(body);
+      if (status >= 200 && status < 300) {
+        sentRequests.inc();
+        sentSamples.inc(samples);
+        return;
+      }
+      boolean retryable = status < 0 || status >= 500 || status == 429;
+      if (!retryable || attempt >= maxRetries) {
+        failedRequests.inc();
+        LOGGER.warning("Dropping " + samples + " samples not accepted by [" + url + "]: "
+            + (status < 0 ? "unreachable" : "HTTP " + status));
+        return;
+      }
+      retriedRequests.inc();
+      try {
+        Thread.sleep(backoffMillis);
+      } catch (InterruptedException e) {
+        failedRequests.inc();
+        Thread.currentThread().interrupt();
+        return;
+      }
+      backoffMillis = Math.min(backoffMillis * 2, MAX_BACKOFF_MILLIS);
+    }
+  }
+
+  /**
+   * @return the status of the response, or -1 if the endpoint could not be reached
+   */
+  private int post(byte[] body) {
+    HttpURLConnection connection = null;
+    try {
+      connection = (HttpURLConnection) url.openConnection();
+      connection.setConnectTimeout(CONNECT_TIMEOUT_MILLIS);
+      connection.setReadTimeout(READ_TIMEOUT_MILLIS);
+      connection.setRequestMethod("POST");
+      connection.setRequestProperty("User-Agent", USER_AGENT);
+      headers.forEach(connection::setRequestProperty);
+      connection.setDoOutput(true);
+      connection.setFixedLengthStreamingMode(body.length);
+      try (OutputStream out = connection.getOutputStream()) {
+        out.write(body);
+      }
+      int status = connection.getResponseCode();
+      drain(status >= 400 ? connection.getErrorStream() : connection.getInputStream());
+      return status;
+    } catch (IOException e) {
+      LOGGER.log(Level.FINE, "Could not send metrics to [" + url + "]", e);
+      return -1;
+    } finally {
+      if (connection != null) {
+        connection.disconnect();
+      }
+    }
+  }
+
+  private static void drain(InputStream in) throws IOException {
+    if (in == null) {
+      return;
+    }
+    try (InputStream input = in) {
+      byte[] buffer = new byte[1024];
+      while (input.read(buffer) != -1) {
+        //discard
+      }
+    }
+  }
+
+  /**
+   * Stops reporting, after a last report, and waits a while for the requests in flight.
+   */
+  @Override
+  public void close() {
+    if (!closed.compareAndSet(false, true)) {
+      return;
+    }
+    scheduler.shutdown();
+    try {
+      scheduler.awaitTermination(CLOSE_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+      report();
+      senders.shutdown();
+      senders.awaitTermination(CLOSE_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    } catch (RuntimeException e) {
+      LOGGER.log(Level.SEVERE, "Error reporting metrics to [" + url + "]", e);
+    }
+    senders.shutdownNow();
+  }
+}
@@ -0,0 +1,407 @@
+/*
+ * Copyright 2017 Agilx, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ai.apptuit.metrics.jinsight;
+
+import com.codahale.metrics.Counter;
+import com.codahale.metrics.Counting;
+import com.codahale.metrics.Histogram;
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.Metered;
+import com.codahale.metrics.Metric;
+import com.codahale.metrics.Sampling;
+import com.codahale.metrics.Snapshot;
+import com.codahale.metrics.Timer;
+import com.codahale.metrics.WeightedSnapshot;
+import com.codahale.metrics.WeightedSnapshot.WeightedSample;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.TimeUnit;
+import java.util.function.ToDoubleFunction;
+
+/**
+ * Combines the metrics that different registries register with the same name, so that sharded or per-tenant
+ * registries can be aggregated without one of them hiding the others. Counts and rates are summed, gauges take the
+ * value of the last registry, and the snapshots of histograms and timers are merged. Histograms and timers that all
+ * count into the same buckets are merged into a bucketed metric, with the bucket counts and sums summed, so that they
+ * are still exported as native histograms.
+ */
+final class MergedMetrics {
+
+  private MergedMetrics() {
+  }
+
+  /**
+   * Adds the metric to the map, merging it with the metric already present with the same name if {@code merge} is
+   * true, or replacing it otherwise.
+   */
+  @SuppressWarnings("unchecked")
+  static <T extends Metric> void put(Map<String, T> metrics, String name, T metric, boolean merge) {
+    if (merge) {
+      metrics.merge(name, metric, (existing, added) -> (T) merge(existing, added));
+    } else {
+      metrics.put(name, metric);
+    }
+  }
+
+  static <T extends Metric> void putAll(Map<String, T> metrics, Map<String, ? extends T> added, boolean merge) {
+    if (merge) {
+      added.forEach((name, metric) -> put(metrics, name, metric, true));
+    } else {
+      metrics.putAll(added);
+    }
+  }
+
+  static Metric merge(Metric existing, Metric added) {
+    if (existing instanceof Timer && added instanceof Timer) {
+      List<Timer> timers = components(existing, added, Timer.class);
+      return haveSameBuckets(timers) ? new BucketedMergedTimer(timers) : new MergedTimer(timers);
+    } else if (existing instanceof Histogram && added instanceof Histogram) {
+      List<Histogram> histograms = components(existing, added, Histogram.class);
+      return haveSameBuckets(histograms) ? new BucketedMergedHistogram(histograms) : new MergedHistogram(histograms);
+    } else if (existing instanceof Meter && added instanceof Meter) {
+      return new MergedMeter(components(existing, added, Meter.class));
+    } else if (existing instanceof Counter && added instanceof Counter) {
+      return new MergedCounter(components(existing, added, Counter.class));
+    }
+    return added;
+  }
+
+  private static <T extends Metric> List<T> components(Metric existing, Metric added, Class<T> type) {
+    List<T> components = new ArrayList<>();
+    if (existing instanceof Merged) {
+      for (Metric metric : ((Merged<?>) existing).getComponents()) {
+        components.add(type.cast(metric));
+      }
+    } else {
+      components.add(type.cast(existing));
+    }
+    components.add(type.cast(added));
+    return Collections.unmodifiableList(components);
+  }
+
+  private static boolean haveSameBuckets(List<? extends Metric> metrics) {
+    double[] bounds = null;
+    for (Metric metric : metrics) {
+      if (!(metric instanceof BucketedSampling)) {
+        return false;
+      }
+      double[] metricBounds = ((BucketedSampling) metric).getBucketBounds();
+      if (bounds == null) {
+        bounds = metricBounds;
+      } else if (!Arrays.equals(bounds, metricBounds)) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private static long sumBucketCounts(List<? extends Metric> metrics, int index) {
+    long count = 0;
+    for (Metric metric : metrics) {
+      count += ((BucketedSampling) metric).getBucketCount(index);
+    }
+    return count;
+  }
+
+  private static double sumBucketSums(List<? extends Metric> metrics) {
+    double sum = 0;
+    for (Metric metric : metrics) {
+      sum += ((BucketedSampling) metric).getSum();
+    }
+    return sum;
+  }
+
+  private static long sumCounts(List<? extends Counting> metrics) {
+    long count = 0;
+    for (Counting metric : metrics) {
+      count += metric.getCount();
+    }
+    return count;
+  }
+
+  private static <T extends Metered> double sumRates(List<T> metrics, ToDoubleFunction<T> rate) {
+    double sum = 0;
+    for (T metric : metrics) {
+      sum += rate.applyAsDouble(metric);
+    }
+    return sum;
+  }
+
+  /**
+   * The reservoir of each histogram/timer is a sample of its own distribution. Each value is weighted by the number
+   * of events it stands for in its histogram/timer, so that a busy shard is not under-represented in the quantiles
+   * of the merged snapshot.
+   */
+  private static <T extends Counting & Sampling> Snapshot mergeSnapshots(List<T> metrics) {
+    List<WeightedSample> samples = new ArrayList<>();
+    for (T metric : metrics) {
+      long count = metric.getCount();
+      long[] values = metric.getSnapshot().getValues();
+      double weight = count > 0 ? (double) count / values.length : 1;
+      for (long value : values) {
+        samples.add(new WeightedSample(value, weight));
+      }
+    }
+    return new WeightedSnapshot(samples);
+  }
+
+  private interface Merged<T extends Metric> {
+
+    List<T> getComponents();
+  }
+
+  private static class MergedCounter extends Counter implements Merged<Counter> {
+
+    private final List<Counter> counters;
+
+    MergedCounter(List<Counter> counters) {
+      this.counters = counters;
+    }
+
+    @Override
+    public List<Counter> getComponents() {
+      return counters;
+    }
+
+    @Override
+    public void inc() {
+      throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public void inc(long n) {
+      throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public void dec() {
+      throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public void dec(long n) {
+      throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public long getCount() {
+      return sumCounts(counters);
+    }
+  }
+
+  private static class MergedMeter extends Meter implements Merged<Meter> {
+
+    private final List<Meter> meters;
+
+    MergedMeter(List<Meter> meters) {
+      this.meters = meters;
+    }
+
+    @Override
+    public List<Meter> getComponents() {
+      return meters;
+    }
+
+    @Override
+    public void mark() {
+      throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public void mark(long n) {
+      throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public long getCount() {
+      return sumCounts(meters);
+    }
+
+    @Override
+    public double getFifteenMinuteRate() {
+      return sumRates(meters, Meter::getFifteenMinuteRate);
+    }
+
+    @Override
+    public double getFiveMinuteRate() {
+      return sumRates(meters, Meter::getFiveMinuteRate);
+    }
+
+    @Override
+    public double getMeanRate() {
+      return sumRates(meters, Meter::getMeanRate);
+    }
+
+    @Override
+    public double getOneMinuteRate() {
+      return sumRates(meters, Meter::getOneMinuteRate);
+    }
+  }
+
+  private static class MergedTimer extends Timer implements Merged<Timer> {
+
+    private final List<Timer> timers;
+
+    MergedTimer(List<Timer> timers) {
+      this.timers = timers;
+    }
+
+    @Override
+    public List<Timer> getComponents() {
+      return timers;
+    }
+
+    @Override
+    public void update(long duration, TimeUnit unit) {
+      throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public <T> T time(Callable<T> event) {
+      throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public void time(Runnable event) {
+      throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public Context time() {
+      throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public long getCount() {
+      return sumCounts(timers);
+    }
+
+    @Override
+    public double getFifteenMinuteRate() {
+      return sumRates(timers, Timer::getFifteenMinuteRate);
+    }
+
+    @Override
+    public double getFiveMinuteRate() {
+      return sumRates(timers, Timer::getFiveMinuteRate);
+    }
+
+    @Override
+    public double getMeanRate() {
+      return sumRates(timers, Timer::getMeanRate);
+    }
+
+    @Override
+    public double getOneMinuteRate() {
+      return sumRates(timers, Timer::getOneMinuteRate);
+    }
+
+    @Override
+    public Snapshot getSnapshot() {
+      return mergeSnapshots(timers);
+    }
+  }
+
+  private static class MergedHistogram extends Histogram implements Merged<Histogram> {
+
+    private final List<Histogram> histograms;
+
+    MergedHistogram(List<Histogram> histograms) {
+      super(null);
+      this.histograms = histograms;
+    }
+
+    @Override
+    public List<Histogram> getComponents() {
+      return histograms;
+    }
+
+    @Override
+    public void update(int value) {
+      throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public void update(long value) {
+      throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public long getCount() {
+      return sumCounts(histograms);
+    }
+
+    @Override
+    public Snapshot getSnapshot() {
+      return mergeSnapshots(histograms);
+    }
+  }
+
+  private static class BucketedMergedTimer extends MergedTimer implements BucketedSampling {
+
+    private final List<Timer> timers;
+
+    BucketedMergedTimer(List<Timer> timers) {
+      super(timers);
+      this.timers = timers;
+    }
+
+    @Override
+    public double[] getBucketBounds() {
+      return ((BucketedSampling) timers.get(0)).getBucketBounds();
+    }
+
+    @Override
+    public long getBucketCount(int index) {
+      return sumBucketCounts(timers, index);
+    }
+
+    @Override
+    public double getSum() {
+      return sumBucketSums(timers);
+    }
+  }
+
+  private static class BucketedMergedHistogram extends MergedHistogram implements BucketedSampling {
+
+    private final List<Histogram> histograms;
+
+    BucketedMergedHistogram(List<Histogram> histograms) {
+      super(histograms);
+      this.histograms = histograms;
+    }
+
+    @Override
+    public double[] getBucketBounds() {
+      return ((BucketedSampling) histograms.get(0)).getBucketBounds();
+    }
+
+    @Override
+    public long getBucketCount(int index) {
+      return sumBucketCounts(histograms, index);
+    }
+
+    @Override
+    public double getSum() {
+      return sumBucketSums(histograms);
+    }
+  }
+}
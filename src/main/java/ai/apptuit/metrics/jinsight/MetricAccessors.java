@@ -0,0 +1,317 @@
+/*
+ * Copyright 2017 Agilx, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ai.apptuit.metrics.jinsight;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+
+/**
+ * Typed accessors used to read values from Dropwizard-shaped metrics that may have been loaded by a foreign
+ * classloader. Each accessor resolves its {@link MethodHandle}s once per (delegate class, metric type) and is cached
+ * against the delegate class, so reading a value does not involve any reflective lookup.
+ */
+final class MetricAccessors {
+
+  private static final MethodType OBJECT_GETTER = MethodType.methodType(Object.class, Object.class);
+  private static final MethodType LONG_GETTER = MethodType.methodType(long.class, Object.class);
+  private static final MethodType INT_GETTER = MethodType.methodType(int.class, Object.class);
+  private static final MethodType DOUBLE_GETTER = MethodType.methodType(double.class, Object.class);
+  private static final MethodType LONG_ARRAY_GETTER = MethodType.methodType(long[].class, Object.class);
+  private static final MethodType QUANTILE_GETTER = MethodType
+      .methodType(double.class, Object.class, double.class);
+
+  private static final ClassValue<GaugeAccessor> GAUGES = new ClassValue<GaugeAccessor>() {
+    @Override
+    protected GaugeAccessor computeValue(Class<?> type) {
+      return new GaugeAccessor(type);
+    }
+  };
+
+  private static final ClassValue<CounterAccessor> COUNTERS = new ClassValue<CounterAccessor>() {
+    @Override
+    protected CounterAccessor computeValue(Class<?> type) {
+      return new CounterAccessor(type);
+    }
+  };
+
+  private static final ClassValue<MeterAccessor> METERS = new ClassValue<MeterAccessor>() {
+    @Override
+    protected MeterAccessor computeValue(Class<?> type) {
+      return new MeterAccessor(type);
+    }
+  };
+
+  private static final ClassValue<TimerAccessor> TIMERS = new ClassValue<TimerAccessor>() {
+    @Override
+    protected TimerAccessor computeValue(Class<?> type) {
+      return new TimerAccessor(type);
+    }
+  };
+
+  private static final ClassValue<HistogramAccessor> HISTOGRAMS = new ClassValue<HistogramAccessor>() {
+    @Override
+    protected HistogramAccessor computeValue(Class<?> type) {
+      return new HistogramAccessor(type);
+    }
+  };
+
+  private static final ClassValue<SnapshotAccessor> SNAPSHOTS = new ClassValue<SnapshotAccessor>() {
+    @Override
+    protected SnapshotAccessor computeValue(Class<?> type) {
+      return new SnapshotAccessor(type);
+    }
+  };
+
+  private MetricAccessors() {
+  }
+
+  static GaugeAccessor forGauge(Object delegate) {
+    return GAUGES.get(delegate.getClass());
+  }
+
+  static CounterAccessor forCounter(Object delegate) {
+    return COUNTERS.get(delegate.getClass());
+  }
+
+  static MeterAccessor forMeter(Object delegate) {
+    return METERS.get(delegate.getClass());
+  }
+
+  static TimerAccessor forTimer(Object delegate) {
+    return TIMERS.get(delegate.getClass());
+  }
+
+  static HistogramAccessor forHistogram(Object delegate) {
+    return HISTOGRAMS.get(delegate.getClass());
+  }
+
+  static SnapshotAccessor forSnapshot(Object delegate) {
+    return SNAPSHOTS.get(delegate.getClass());
+  }
+
+  /**
+   * Resolves the public method {@code methodName} on {@code type} and adapts it to {@code methodType}, whose first
+   * parameter is the (erased) receiver.
+   */
+  static MethodHandle findMethod(Class<?> type, String methodName, MethodType methodType,
+      Class<?>... parameterTypes) {
+    try {
+      Method method = type.getMethod(methodName, parameterTypes);
+      method.setAccessible(true);
+      return MethodHandles.lookup().unreflect(method).asType(methodType);
+    } catch (NoSuchMethodException | IllegalAccessException e) {
+      throw new IllegalArgumentException("Cannot access [" + methodName + "] on [" + type.getName() + "]", e);
+    }
+  }
+
+  /**
+   * Resolves a getter for the public field {@code fieldName} on {@code type} and adapts it to {@code methodType}.
+   */
+  static MethodHandle findField(Class<?> type, String fieldName, MethodType methodType) {
+    try {
+      Field field = type.getField(fieldName);
+      field.setAccessible(true);
+      return MethodHandles.lookup().unreflectGetter(field).asType(methodType);
+    } catch (NoSuchFieldException | IllegalAccessException e) {
+      throw new IllegalArgumentException("Cannot access [" + fieldName + "] on [" + type.getName() + "]", e);
+    }
+  }
+
+  static RuntimeException propagate(Throwable t) {
+    if (t instanceof Error) {
+      throw (Error) t;
+    }
+    if (t instanceof RuntimeException) {
+      return (RuntimeException) t;
+    }
+    return new RuntimeException(t);
+  }
+
+  static final class GaugeAccessor {
+
+    private final MethodHandle getValue;
+
+    private GaugeAccessor(Class<?> type) {
+      getValue = findMethod(type, "getValue", OBJECT_GETTER);
+    }
+
+    Object getValue(Object gauge) {
+      return invokeObject(getValue, gauge);
+    }
+  }
+
+  static class CounterAccessor {
+
+    private final MethodHandle getCount;
+
+    private CounterAccessor(Class<?> type) {
+      getCount = findMethod(type, "getCount", LONG_GETTER);
+    }
+
+    long getCount(Object counting) {
+      return invokeLong(getCount, counting);
+    }
+  }
+
+  static class MeterAccessor extends CounterAccessor {
+
+    private final MethodHandle getMeanRate;
+    private final MethodHandle getOneMinuteRate;
+    private final MethodHandle getFiveMinuteRate;
+    private final MethodHandle getFifteenMinuteRate;
+
+    private MeterAccessor(Class<?> type) {
+      super(type);
+      getMeanRate = findMethod(type, "getMeanRate", DOUBLE_GETTER);
+      getOneMinuteRate = findMethod(type, "getOneMinuteRate", DOUBLE_GETTER);
+      getFiveMinuteRate = findMethod(type, "getFiveMinuteRate", DOUBLE_GETTER);
+      getFifteenMinuteRate = findMethod(type, "getFifteenMinuteRate", DOUBLE_GETTER);
+    }
+
+    double getMeanRate(Object metered) {
+      return invokeDouble(getMeanRate, metered);
+    }
+
+    double getOneMinuteRate(Object metered) {
+      return invokeDouble(getOneMinuteRate, metered);
+    }
+
+    double getFiveMinuteRate(Object metered) {
+      return invokeDouble(getFiveMinuteRate, metered);
+    }
+
+    double getFifteenMinuteRate(Object metered) {
+      return invokeDouble(getFifteenMinuteRate, metered);
+    }
+  }
+
+  static final class TimerAccessor extends MeterAccessor {
+
+    private final MethodHandle getSnapshot;
+
+    private TimerAccessor(Class<?> type) {
+      super(type);
+      getSnapshot = findMethod(type, "getSnapshot", OBJECT_GETTER);
+    }
+
+    Object getSnapshot(Object timer) {
+      return invokeObject(getSnapshot, timer);
+    }
+  }
+
+  static final class HistogramAccessor extends CounterAccessor {
+
+    private final MethodHandle getSnapshot;
+
+    private HistogramAccessor(Class<?> type) {
+      super(type);
+      getSnapshot = findMethod(type, "getSnapshot", OBJECT_GETTER);
+    }
+
+    Object getSnapshot(Object histogram) {
+      return invokeObject(getSnapshot, histogram);
+    }
+  }
+
+  static final class SnapshotAccessor {
+
+    private final MethodHandle getValue;
+    private final MethodHandle getValues;
+    private final MethodHandle size;
+    private final MethodHandle getMax;
+    private final MethodHandle getMean;
+    private final MethodHandle getMin;
+    private final MethodHandle getStdDev;
+
+    private SnapshotAccessor(Class<?> type) {
+      getValue = findMethod(type, "getValue", QUANTILE_GETTER, double.class);
+      getValues = findMethod(type, "getValues", LONG_ARRAY_GETTER);
+      size = findMethod(type, "size", INT_GETTER);
+      getMax = findMethod(type, "getMax", LONG_GETTER);
+      getMean = findMethod(type, "getMean", DOUBLE_GETTER);
+      getMin = findMethod(type, "getMin", LONG_GETTER);
+      getStdDev = findMethod(type, "getStdDev", DOUBLE_GETTER);
+    }
+
+    double getValue(Object snapshot, double quantile) {
+      try {
+        return (double) getValue.invokeExact(snapshot, quantile);
+      } catch (Throwable t) {
+        throw propagate(t);
+      }
+    }
+
+    long[] getValues(Object snapshot) {
+      try {
+        return (long[]) getValues.invokeExact(snapshot);
+      } catch (Throwable t) {
+        throw propagate(t);
+      }
+    }
+
+    int size(Object snapshot) {
+      try {
+        return (int) size.invokeExact(snapshot);
+      } catch (Throwable t) {
+        throw propagate(t);
+      }
+    }
+
+    long getMax(Object snapshot) {
+      return invokeLong(getMax, snapshot);
+    }
+
+    double getMean(Object snapshot) {
+      return invokeDouble(getMean, snapshot);
+    }
+
+    long getMin(Object snapshot) {
+      return invokeLong(getMin, snapshot);
+    }
+
+    double getStdDev(Object snapshot) {
+      return invokeDouble(getStdDev, snapshot);
+    }
+  }
+
+  private static Object invokeObject(MethodHandle handle, Object target) {
+    try {
+      return (Object) handle.invokeExact(target);
+    } catch (Throwable t) {
+      throw propagate(t);
+    }
+  }
+
+  private static long invokeLong(MethodHandle handle, Object target) {
+    try {
+      return (long) handle.invokeExact(target);
+    } catch (Throwable t) {
+      throw propagate(t);
+    }
+  }
+
+  private static double invokeDouble(MethodHandle handle, Object target) {
+    try {
+      return (double) handle.invokeExact(target);
+    } catch (Throwable t) {
+      throw propagate(t);
+    }
+  }
+}
@@ -18,6 +18,12 @@ package ai.apptuit.metrics.jinsight;
 
 import static java.nio.charset.StandardCharsets.UTF_8;
 
+import ai.apptuit.metrics.jinsight.MetricAccessors.CounterAccessor;
+import ai.apptuit.metrics.jinsight.MetricAccessors.GaugeAccessor;
+import ai.apptuit.metrics.jinsight.MetricAccessors.HistogramAccessor;
+import ai.apptuit.metrics.jinsight.MetricAccessors.MeterAccessor;
+import ai.apptuit.metrics.jinsight.MetricAccessors.SnapshotAccessor;
+import ai.apptuit.metrics.jinsight.MetricAccessors.TimerAccessor;
 import com.codahale.metrics.Counter;
 import com.codahale.metrics.Gauge;
 import com.codahale.metrics.Histogram;
@@ -30,20 +36,42 @@ import com.codahale.metrics.Timer;
 import java.io.OutputStream;
 import java.io.OutputStreamWriter;
 import java.io.PrintWriter;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodType;
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
 import java.lang.ref.WeakReference;
+import java.lang.reflect.InvocationHandler;
 import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
+import java.util.EnumMap;
+import java.util.EnumSet;
+import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.SortedMap;
 import java.util.TreeMap;
-import java.util.WeakHashMap;
 import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
-import java.util.concurrent.locks.Lock;
-import java.util.concurrent.locks.ReadWriteLock;
-import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
 import java.util.function.Function;
+import java.util.function.Predicate;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -53,6 +81,8 @@ import java.util.logging.Logger;
 public class MetricRegistryCollection {
 
   private static final Logger LOGGER = Logger.getLogger(MetricRegistryCollection.class.getName());
+  static final String COLLECTION_TIMEOUTS_METRIC_NAME = "jinsight.collection.timeouts";
+  static final String REGISTRY_READ_TIME_METRIC_NAME = "jinsight.collection.registry_read_time";
   private static final MetricRegistryCollection SINGLETON = new MetricRegistryCollection();
 
   private final AggregatedMetricRegistry aggregatedMetricRegistry = new AggregatedMetricRegistry();
@@ -61,7 +91,33 @@ public class MetricRegistryCollection {
   private MetricRegistryCollection() {
   }
 
-  void initialize(MetricRegistry jinsightRegistry) {
+  MetricRegistryCollection(boolean trackChanges) {
+    aggregatedMetricRegistry.setTrackChanges(trackChanges);
+  }
+
+  /**
+   * @param trackChanges if true, the aggregated registry subscribes to each registered registry's
+   *     MetricRegistryListener and maintains a merged view that is rebuilt only when metrics are added or removed,
+   *     instead of re-reading and re-wrapping every metric of every registry on each call.
+   * @param mergeDuplicates if true, metrics registered with the same name in different registries are merged (see
+   *     {@link MergedMetrics}), instead of the metric of the last registry hiding the others.
+   * @param collectionTimeoutMillis if greater than 0, the registries are read in parallel on a small pool of
+   *     background threads, and a report/scrape waits at most this long for them. Registries that do not respond in
+   *     time are reported with the values they returned when last read, and are counted by the
+   *     {@value #COLLECTION_TIMEOUTS_METRIC_NAME} counter of the jinsight registry.
+   *     <p>The time spent reading each registry is published in the jinsight registry, by a
+   *     {@value #REGISTRY_READ_TIME_METRIC_NAME} timer tagged with the class of the registry and the order in which
+   *     it was registered.
+   */
+  void initialize(MetricRegistry jinsightRegistry, boolean trackChanges, boolean mergeDuplicates,
+      long collectionTimeoutMillis) {
+    aggregatedMetricRegistry.setJinsightRegistry(jinsightRegistry);
+    aggregatedMetricRegistry.setTrackChanges(trackChanges);
+    aggregatedMetricRegistry.setMergeDuplicates(mergeDuplicates);
+    if (collectionTimeoutMillis > 0) {
+      jinsightRegistry.register(COLLECTION_TIMEOUTS_METRIC_NAME, aggregatedMetricRegistry.collectionTimeouts);
+    }
+    aggregatedMetricRegistry.setCollectionTimeout(collectionTimeoutMillis);
     registerUnchecked(jinsightRegistry);
   }
 
@@ -69,6 +125,12 @@ public class MetricRegistryCollection {
     return SINGLETON;
   }
 
+  /**
+   * Merges the metrics of the given registry into the metrics reported by jinsight. The registry can be a Dropwizard
+   * {@code MetricRegistry}, a Micrometer {@code MeterRegistry} or a Prometheus {@code CollectorRegistry}.
+   *
+   * @return false if the registry was already registered
+   */
   public boolean register(Object metricRegistry) {
     if (!RegistryService.getRegistryService().isInitialized()) {
       throw new IllegalStateException("JInsight not initialized - cannot report ");
@@ -91,25 +153,47 @@ public class MetricRegistryCollection {
   private static class MetricRegistryWrapper {
 
     public enum MetricType {
-      Gauge("Gauge", GaugeWrapper::new),
-      Counter("Counter", CounterWrapper::new),
-      Histogram("Histogram", HistogramWrapper::new),
-      Meter("Meter", MeterWrapper::new),
-      Timer("Timer", TimerWrapper::new);
+      Gauge("Gauge", com.codahale.metrics.Gauge.class, GaugeWrapper::new),
+      Counter("Counter", com.codahale.metrics.Counter.class, CounterWrapper::new),
+      Histogram("Histogram", com.codahale.metrics.Histogram.class, MetricRegistryWrapper::wrapHistogram),
+      Meter("Meter", com.codahale.metrics.Meter.class, MeterWrapper::new),
+      Timer("Timer", com.codahale.metrics.Timer.class, MetricRegistryWrapper::wrapTimer);
+
+      private static final MethodType ACCESSOR_TYPE = MethodType.methodType(Map.class, Object.class);
 
       private String type;
+      private Class<? extends Metric> metricClass;
       private Function constructor;
+      private final ClassValue<MethodHandle> accessors = new ClassValue<MethodHandle>() {
+        @Override
+        protected MethodHandle computeValue(Class<?> registryClass) {
+          return MetricAccessors.findMethod(registryClass, "get" + type + "s", ACCESSOR_TYPE);
+        }
+      };
 
-      MetricType(String type, Function o) {
+      MetricType(String type, Class<? extends Metric> metricClass, Function o) {
         this.type = type;
+        this.metricClass = metricClass;
         constructor = o;
       }
 
-      public Method getAccessor(Object delegate) throws NoSuchMethodException {
-        Class<?> klass = delegate.getClass();
-        Method method = klass.getMethod("get" + type + "s");
-        method.setAccessible(true);
-        return method;
+      @SuppressWarnings("unchecked")
+      public Map<String, Object> getMetrics(Object delegate) {
+        MethodHandle accessor = accessors.get(delegate.getClass());
+        try {
+          return (Map<String, Object>) accessor.invokeExact(delegate);
+        } catch (Throwable t) {
+          throw MetricAccessors.propagate(t);
+        }
+      }
+
+      static MetricType forName(String type) {
+        for (MetricType metricType : values()) {
+          if (metricType.type.equals(type)) {
+            return metricType;
+          }
+        }
+        return null;
       }
 
       @SuppressWarnings("unchecked")
@@ -118,87 +202,387 @@ public class MetricRegistryCollection {
       }
     }
 
-    private final Map<MetricType, Method> methods = new WeakHashMap<>();
-    private final WeakReference reference;
-
-    public MetricRegistryWrapper(Object delegate) {
+    /**
+     * Set while a registry is read through an adapter. Reading a Prometheus CollectorRegistry runs all of its
+     * collectors, which includes the exporter of the aggregated registry, if the registry being read is the one the
+     * exporter was registered with.
+     */
+    private static final ThreadLocal<Boolean> READING_ADAPTED_REGISTRY = new ThreadLocal<>();
+
+    private final WeakReference<Object> reference;
+    private final RegistryAdapter adapter;
+    private final Runnable changeListener;
+    private final Map<MetricType, CollectedMetrics> collectedMetrics = new EnumMap<>(MetricType.class);
+    private final Timer readTime = new Timer();
+    private final String readTimeMetricName;
+    //the read of the registry in progress: the types read so far, and the time spent reading them
+    private final Set<MetricType> readTypes = EnumSet.noneOf(MetricType.class);
+    private long readNanos = 0;
+    private boolean readTimed = false;
+    private WeakReference<ChangeTracker> tracker = null;
+    private boolean trackingUnsupported = false;
+
+    public MetricRegistryWrapper(Object delegate, ReferenceQueue<Object> queue, Runnable changeListener, int id) {
       if (delegate == null) {
         throw new IllegalArgumentException("Registry cannot be null");
       }
-      this.reference = new WeakReference<>(delegate);
+      this.reference = new WeakReference<>(delegate, queue);
+      this.readTimeMetricName = REGISTRY_READ_TIME_METRIC_NAME + "[registry:" + registryTag(delegate, id) + "]";
+      this.adapter = RegistryAdapter.forRegistry(delegate);
+      this.trackingUnsupported = adapter != null;
+      this.changeListener = changeListener;
+      for (MetricType type : MetricType.values()) {
+        collectedMetrics.put(type, new CollectedMetrics());
+      }
+    }
+
+    private static String registryTag(Object delegate, int id) {
+      String className = delegate.getClass().getSimpleName();
+      if (className.isEmpty()) {
+        className = delegate.getClass().getName();
+      }
+      return className.replaceAll("[^a-zA-Z0-9_]", "_") + "-" + id;
     }
 
     private Object getDelegate() {
       return reference.get();
     }
 
+    /**
+     * Times the reads of the registry: listing its metrics, and, when it is read with a timeout, the values of its
+     * gauges. Metrics that are served from a change tracker are read as they are serialized, which is not included.
+     * The types of metrics are read separately, and a read of the registry is recorded once all of them were read,
+     * or when one of them is read again, so that each sample is the time to read the whole registry.
+     */
+    public Timer getReadTime() {
+      return readTime;
+    }
+
+    public String getReadTimeMetricName() {
+      return readTimeMetricName;
+    }
+
+    public boolean isWrapperOf(Object registry) {
+      return getDelegate() == registry;
+    }
+
+    public boolean isReferencedBy(Reference<?> ref) {
+      return reference == ref;
+    }
+
+    /**
+     * Adds all the metrics of the given type, as maintained by the change tracker of this registry. Falls back to
+     * reading the metrics from the registry if it does not support listeners.
+     *
+     * @param merge whether to merge the metrics with metrics of the same name already in the map, or replace them
+     * @return true if the metrics were served from the change tracker
+     */
+    public boolean addTrackedMetrics(TreeMap<String, Metric> metrics, MetricType type, boolean merge) {
+      ChangeTracker changeTracker = getTracker();
+      if (changeTracker == null) {
+        addMetrics(metrics, type, MetricFilter.ALL, merge);
+        return false;
+      }
+      MergedMetrics.putAll(metrics, changeTracker.getMetrics(type), merge);
+      return true;
+    }
+
+    public void subscribe() {
+      getTracker();
+    }
+
+    /**
+     * The tracker is only weakly reachable from the wrapper. It is held strongly by the listener list of the
+     * registry, so that the wrapped metrics it caches do not outlive the registry.
+     */
+    private synchronized ChangeTracker getTracker() {
+      if (trackingUnsupported) {
+        return null;
+      }
+      ChangeTracker changeTracker = tracker != null ? tracker.get() : null;
+      if (changeTracker == null) {
+        Object delegate = getDelegate();
+        if (delegate == null) {
+          return null;
+        }
+        changeTracker = ChangeTracker.subscribe(delegate, changeListener);
+        if (changeTracker == null) {
+          trackingUnsupported = true;
+          return null;
+        }
+        tracker = new WeakReference<>(changeTracker);
+      }
+      return changeTracker;
+    }
+
+    public synchronized void close() {
+      ChangeTracker changeTracker = tracker != null ? tracker.get() : null;
+      Object delegate = getDelegate();
+      if (changeTracker != null && delegate != null) {
+        changeTracker.unsubscribe(delegate);
+      }
+      tracker = null;
+    }
+
+    /**
+     * Reads the metrics of the given type on the executor, along with the values of gauges, so that a slow gauge
+     * only holds up the executor. If a previous read of the same type has not completed yet, it is returned instead
+     * of queueing another one behind it.
+     */
+    public Future<SortedMap<String, Metric>> collect(MetricType type, boolean tracked, Executor executor) {
+      CollectedMetrics collected = collectedMetrics.get(type);
+      synchronized (collected) {
+        if (collected.pending == null || collected.pending.isDone()) {
+          FutureTask<SortedMap<String, Metric>> task = new FutureTask<>(() -> {
+            SortedMap<String, Metric> metrics = readMetrics(type, tracked);
+            collected.lastKnown = metrics;
+            return metrics;
+          });
+          collected.pending = task;
+          executor.execute(task);
+        }
+        return collected.pending;
+      }
+    }
+
+    /**
+     * @return the metrics of the given type as of the last read by {@link #collect} that completed
+     */
+    public SortedMap<String, Metric> getLastCollected(MetricType type) {
+      return collectedMetrics.get(type).lastKnown;
+    }
+
+    private SortedMap<String, Metric> readMetrics(MetricType type, boolean tracked) {
+      TreeMap<String, Metric> metrics = new TreeMap<>();
+      long start = System.nanoTime();
+      ChangeTracker changeTracker = tracked ? getTracker() : null;
+      if (changeTracker != null) {
+        metrics.putAll(changeTracker.getMetrics(type));
+      } else {
+        listMetrics(metrics, type, MetricFilter.ALL, false);
+      }
+      if (type == MetricType.Gauge) {
+        Iterator<Map.Entry<String, Metric>> iterator = metrics.entrySet().iterator();
+        while (iterator.hasNext()) {
+          Map.Entry<String, Metric> entry = iterator.next();
+          try {
+            entry.setValue(new GaugeValue(((Gauge<?>) entry.getValue()).getValue()));
+          } catch (RuntimeException e) {
+            LOGGER.log(Level.SEVERE, "Error reading gauge [" + entry.getKey() + "]", e);
+            iterator.remove();
+          }
+        }
+      }
+      recordRead(type, System.nanoTime() - start, changeTracker == null || type == MetricType.Gauge);
+      return Collections.unmodifiableSortedMap(metrics);
+    }
+
+    /**
+     * Adds the time spent reading one type of metrics to the read of the registry in progress.
+     *
+     * @param timed false if the metrics were served from the change tracker without being read
+     */
+    private synchronized void recordRead(MetricType type, long nanos, boolean timed) {
+      if (readTypes.contains(type)) {
+        completeRead();
+      }
+      readTypes.add(type);
+      readNanos += nanos;
+      readTimed |= timed;
+      if (readTypes.size() == MetricType.values().length) {
+        completeRead();
+      }
+    }
+
+    private void completeRead() {
+      if (readTimed) {
+        readTime.update(readNanos, TimeUnit.NANOSECONDS);
+      }
+      readTypes.clear();
+      readNanos = 0;
+      readTimed = false;
+    }
+
+    static boolean isReadingAdaptedRegistry() {
+      return READING_ADAPTED_REGISTRY.get() != null;
+    }
+
+    public <T extends Metric> void addMetrics(TreeMap<String, T> metrics, MetricType type, MetricFilter filter,
+        boolean merge) {
+      if (getDelegate() == null) {
+        return;
+      }
+      long start = System.nanoTime();
+      listMetrics(metrics, type, filter, merge);
+      recordRead(type, System.nanoTime() - start, true);
+    }
+
     @SuppressWarnings("unchecked")
-    public <T extends Metric> void addMetrics(TreeMap<String, T> metrics, MetricType type, MetricFilter filter) {
+    private <T extends Metric> void listMetrics(TreeMap<String, T> metrics, MetricType type, MetricFilter filter,
+        boolean merge) {
+      Object delegate = getDelegate();
+      if (delegate == null) {
+        return;
+      }
+      if (adapter != null) {
+        addAdaptedMetrics(delegate, metrics, type, filter, merge);
+        return;
+      }
       try {
-        Method method = getAccessorMethod(type);
-        Map<String, Object> result = (Map<String, Object>) method.invoke(getDelegate());
+        Map<String, Object> result = type.getMetrics(delegate);
         for (Map.Entry<String, Object> entry : result.entrySet()) {
           Metric metric = type.getWrappedValue(entry.getValue());
           String metricName = entry.getKey();
           if (filter.matches(metricName, metric)) {
-            metrics.put(metricName, (T) metric);
+            MergedMetrics.put(metrics, metricName, (T) metric, merge);
           }
         }
-      } catch (IllegalAccessException | InvocationTargetException | NoSuchMethodException e) {
-        LOGGER.log(Level.SEVERE, "Error collecting metrics from [" + getDelegate() + "]", e);
+      } catch (RuntimeException e) {
+        LOGGER.log(Level.SEVERE, "Error collecting metrics from [" + delegate + "]", e);
       }
     }
 
-    private <T extends Metric> Method getAccessorMethod(MetricType type) throws NoSuchMethodException {
-      Method method = methods.get(type);
-      if (method == null) {
-        method = type.getAccessor(getDelegate());
-        methods.put(type, method);
+    @SuppressWarnings("unchecked")
+    private <T extends Metric> void addAdaptedMetrics(Object delegate, TreeMap<String, T> metrics, MetricType type,
+        MetricFilter filter, boolean merge) {
+      READING_ADAPTED_REGISTRY.set(Boolean.TRUE);
+      try {
+        Map<String, ? extends Metric> result = adapter.getMetrics(delegate, type.metricClass);
+        result.forEach((metricName, metric) -> {
+          if (filter.matches(metricName, metric)) {
+            MergedMetrics.put(metrics, metricName, (T) metric, merge);
+          }
+        });
+      } catch (RuntimeException e) {
+        LOGGER.log(Level.SEVERE, "Error collecting metrics from [" + delegate + "]", e);
+      } finally {
+        READING_ADAPTED_REGISTRY.remove();
       }
-      return method;
     }
 
+    /**
+     * A MetricRegistryListener, implemented as a dynamic proxy so that it can be attached to registries loaded by a
+     * foreign classloader, that keeps the wrapped metrics of a registry up to date.
+     */
+    private static class ChangeTracker implements InvocationHandler {
 
-    private static Object invokeOnDelegate(Object delegate, String methodName) {
-      try {
-        Method method = delegate.getClass().getMethod(methodName);
-        method.setAccessible(true);
-        return method.invoke(delegate);
-      } catch (NoSuchMethodException | IllegalAccessException | InvocationTargetException e) {
-        throw new RuntimeException(e);
+      private final Map<MetricType, Map<String, Metric>> metrics = new EnumMap<>(MetricType.class);
+      private final Runnable changeListener;
+      private final Method removeListener;
+      private Object listener;
+
+      private ChangeTracker(Runnable changeListener, Method removeListener) {
+        for (MetricType type : MetricType.values()) {
+          metrics.put(type, new ConcurrentHashMap<>());
+        }
+        this.changeListener = changeListener;
+        this.removeListener = removeListener;
       }
-    }
 
-    private static Object invokeOnDelegate(Object delegate, String methodName, double arg) {
-      try {
-        Method method = delegate.getClass().getMethod(methodName, double.class);
-        method.setAccessible(true);
-        return method.invoke(delegate, arg);
-      } catch (NoSuchMethodException | IllegalAccessException | InvocationTargetException e) {
-        throw new RuntimeException(e);
+      static ChangeTracker subscribe(Object registry, Runnable changeListener) {
+        try {
+          Method addListener = getListenerMethod(registry.getClass(), "addListener");
+          Method removeListener = getListenerMethod(registry.getClass(), "removeListener");
+          Class<?> listenerType = addListener.getParameterTypes()[0];
+          ChangeTracker tracker = new ChangeTracker(changeListener, removeListener);
+          tracker.listener = Proxy.newProxyInstance(listenerType.getClassLoader(),
+              new Class<?>[]{listenerType}, tracker);
+          addListener.invoke(registry, tracker.listener);
+          return tracker;
+        } catch (NoSuchMethodException | IllegalAccessException | InvocationTargetException
+            | RuntimeException e) {
+          LOGGER.log(Level.FINE, "Cannot track changes to [" + registry + "]", e);
+          return null;
+        }
+      }
+
+      private static Method getListenerMethod(Class<?> registryClass, String name) throws NoSuchMethodException {
+        for (Method method : registryClass.getMethods()) {
+          if (method.getName().equals(name) && method.getParameterCount() == 1
+              && method.getParameterTypes()[0].isInterface()) {
+            method.setAccessible(true);
+            return method;
+          }
+        }
+        throw new NoSuchMethodException(registryClass.getName() + "." + name);
+      }
+
+      void unsubscribe(Object registry) {
+        try {
+          removeListener.invoke(registry, listener);
+        } catch (IllegalAccessException | InvocationTargetException e) {
+          LOGGER.log(Level.FINE, "Error removing listener from [" + registry + "]", e);
+        }
+      }
+
+      Map<String, Metric> getMetrics(MetricType type) {
+        return metrics.get(type);
+      }
+
+      @Override
+      public Object invoke(Object proxy, Method method, Object[] args) {
+        String name = method.getName();
+        switch (name) {
+          case "equals":
+            return proxy == args[0];
+          case "hashCode":
+            return System.identityHashCode(proxy);
+          case "toString":
+            return ChangeTracker.class.getName() + "@" + Integer.toHexString(System.identityHashCode(proxy));
+          default:
+            break;
+        }
+        try {
+          if (name.startsWith("on") && name.endsWith("Added") && args != null && args.length == 2) {
+            MetricType type = MetricType.forName(name.substring(2, name.length() - "Added".length()));
+            if (type != null) {
+              metrics.get(type).put((String) args[0], type.getWrappedValue(args[1]));
+              changeListener.run();
+            }
+          } else if (name.startsWith("on") && name.endsWith("Removed") && args != null && args.length == 1) {
+            MetricType type = MetricType.forName(name.substring(2, name.length() - "Removed".length()));
+            if (type != null && metrics.get(type).remove(args[0]) != null) {
+              changeListener.run();
+            }
+          }
+        } catch (RuntimeException e) {
+          //Never fail the application thread that is registering the metric
+          LOGGER.log(Level.SEVERE, "Error tracking [" + name + "] on [" + args[0] + "]", e);
+        }
+        return null;
       }
     }
 
+    private static class CollectedMetrics {
+
+      private volatile SortedMap<String, Metric> lastKnown = Collections.emptySortedMap();
+      private Future<SortedMap<String, Metric>> pending = null;
+    }
+
     private static class GaugeWrapper implements Gauge {
 
-      private Object delegate;
+      private final Object delegate;
+      private final GaugeAccessor accessor;
 
       public GaugeWrapper(Object delegate) {
         this.delegate = delegate;
+        this.accessor = MetricAccessors.forGauge(delegate);
       }
 
       @Override
       public Object getValue() {
-        return invokeOnDelegate(delegate, "getValue");
+        return accessor.getValue(delegate);
       }
     }
 
     private static class CounterWrapper extends Counter {
 
-      private Object delegate;
+      private final Object delegate;
+      private final CounterAccessor accessor;
 
       public CounterWrapper(Object delegate) {
         this.delegate = delegate;
+        this.accessor = MetricAccessors.forCounter(delegate);
       }
 
       @Override
@@ -223,16 +607,18 @@ public class MetricRegistryCollection {
 
       @Override
       public long getCount() {
-        return (long) invokeOnDelegate(delegate, "getCount");
+        return accessor.getCount(delegate);
       }
     }
 
     private static class MeterWrapper extends Meter {
 
-      private Object delegate;
+      private final Object delegate;
+      private final MeterAccessor accessor;
 
       public MeterWrapper(Object delegate) {
         this.delegate = delegate;
+        this.accessor = MetricAccessors.forMeter(delegate);
       }
 
       @Override
@@ -248,36 +634,47 @@ public class MetricRegistryCollection {
 
       @Override
       public long getCount() {
-        return (long) invokeOnDelegate(delegate, "getCount");
+        return accessor.getCount(delegate);
       }
 
       @Override
       public double getFifteenMinuteRate() {
-        return (double) invokeOnDelegate(delegate, "getFifteenMinuteRate");
+        return accessor.getFifteenMinuteRate(delegate);
       }
 
       @Override
       public double getFiveMinuteRate() {
-        return (double) invokeOnDelegate(delegate, "getFiveMinuteRate");
+        return accessor.getFiveMinuteRate(delegate);
       }
 
       @Override
       public double getMeanRate() {
-        return (double) invokeOnDelegate(delegate, "getMeanRate");
+        return accessor.getMeanRate(delegate);
       }
 
       @Override
       public double getOneMinuteRate() {
-        return (double) invokeOnDelegate(delegate, "getOneMinuteRate");
+        return accessor.getOneMinuteRate(delegate);
       }
     }
 
+    private static Timer wrapTimer(Object delegate) {
+      return delegate instanceof BucketedSampling ? new BucketedTimerWrapper(delegate) : new TimerWrapper(delegate);
+    }
+
+    private static Histogram wrapHistogram(Object delegate) {
+      return delegate instanceof BucketedSampling ? new BucketedHistogramWrapper(delegate)
+          : new HistogramWrapper(delegate);
+    }
+
     private static class TimerWrapper extends Timer {
 
-      private Object delegate;
+      private final Object delegate;
+      private final TimerAccessor accessor;
 
       public TimerWrapper(Object delegate) {
         this.delegate = delegate;
+        this.accessor = MetricAccessors.forTimer(delegate);
       }
 
       @Override
@@ -303,42 +700,44 @@ public class MetricRegistryCollection {
 
       @Override
       public long getCount() {
-        return (long) invokeOnDelegate(delegate, "getCount");
+        return accessor.getCount(delegate);
       }
 
       @Override
       public double getFifteenMinuteRate() {
-        return (double) invokeOnDelegate(delegate, "getFifteenMinuteRate");
+        return accessor.getFifteenMinuteRate(delegate);
       }
 
       @Override
       public double getFiveMinuteRate() {
-        return (double) invokeOnDelegate(delegate, "getFiveMinuteRate");
+        return accessor.getFiveMinuteRate(delegate);
       }
 
       @Override
       public double getMeanRate() {
-        return (double) invokeOnDelegate(delegate, "getMeanRate");
+        return accessor.getMeanRate(delegate);
       }
 
       @Override
       public double getOneMinuteRate() {
-        return (double) invokeOnDelegate(delegate, "getOneMinuteRate");
+        return accessor.getOneMinuteRate(delegate);
       }
 
       @Override
       public Snapshot getSnapshot() {
-        return new SnapshotWrapper(invokeOnDelegate(delegate, "getSnapshot"));
+        return new SnapshotWrapper(accessor.getSnapshot(delegate));
       }
     }
 
     private static class HistogramWrapper extends Histogram {
 
-      private Object delegate;
+      private final Object delegate;
+      private final HistogramAccessor accessor;
 
       public HistogramWrapper(Object delegate) {
         super(null);
         this.delegate = delegate;
+        this.accessor = MetricAccessors.forHistogram(delegate);
       }
 
       @Override
@@ -353,68 +752,108 @@ public class MetricRegistryCollection {
 
       @Override
       public long getCount() {
-        try {
-          Method method = delegate.getClass().getMethod("getCount");
-          method.setAccessible(true);
-          return (long) method.invoke(delegate);
-        } catch (NoSuchMethodException | IllegalAccessException | InvocationTargetException e) {
-          throw new RuntimeException(e);
-        }
+        return accessor.getCount(delegate);
       }
 
       @Override
       public Snapshot getSnapshot() {
-        try {
-          Method method = delegate.getClass().getMethod("getSnapshot");
-          method.setAccessible(true);
-          return new SnapshotWrapper(method.invoke(delegate));
-        } catch (NoSuchMethodException | IllegalAccessException | InvocationTargetException e) {
-          throw new RuntimeException(e);
-        }
+        return new SnapshotWrapper(accessor.getSnapshot(delegate));
+      }
+    }
+
+    private static class BucketedTimerWrapper extends TimerWrapper implements BucketedSampling {
+
+      private final BucketedSampling buckets;
+
+      public BucketedTimerWrapper(Object delegate) {
+        super(delegate);
+        this.buckets = (BucketedSampling) delegate;
+      }
+
+      @Override
+      public double[] getBucketBounds() {
+        return buckets.getBucketBounds();
+      }
+
+      @Override
+      public long getBucketCount(int index) {
+        return buckets.getBucketCount(index);
+      }
+
+      @Override
+      public double getSum() {
+        return buckets.getSum();
+      }
+    }
+
+    private static class BucketedHistogramWrapper extends HistogramWrapper implements BucketedSampling {
+
+      private final BucketedSampling buckets;
+
+      public BucketedHistogramWrapper(Object delegate) {
+        super(delegate);
+        this.buckets = (BucketedSampling) delegate;
+      }
+
+      @Override
+      public double[] getBucketBounds() {
+        return buckets.getBucketBounds();
+      }
+
+      @Override
+      public long getBucketCount(int index) {
+        return buckets.getBucketCount(index);
+      }
+
+      @Override
+      public double getSum() {
+        return buckets.getSum();
       }
     }
 
     private static class SnapshotWrapper extends Snapshot {
 
-      private Object delegate;
+      private final Object delegate;
+      private final SnapshotAccessor accessor;
 
       public SnapshotWrapper(Object delegate) {
         this.delegate = delegate;
+        this.accessor = MetricAccessors.forSnapshot(delegate);
       }
 
       @Override
       public double getValue(double quantile) {
-        return (double) invokeOnDelegate(delegate, "getValue", quantile);
+        return accessor.getValue(delegate, quantile);
       }
 
       @Override
       public long[] getValues() {
-        return (long[]) invokeOnDelegate(delegate, "getValues");
+        return accessor.getValues(delegate);
       }
 
       @Override
       public int size() {
-        return (int) invokeOnDelegate(delegate, "size");
+        return accessor.size(delegate);
       }
 
       @Override
       public long getMax() {
-        return (long) invokeOnDelegate(delegate, "getMax");
+        return accessor.getMax(delegate);
       }
 
       @Override
       public double getMean() {
-        return (double) invokeOnDelegate(delegate, "getMean");
+        return accessor.getMean(delegate);
       }
 
       @Override
       public long getMin() {
-        return (long) invokeOnDelegate(delegate, "getMin");
+        return accessor.getMin(delegate);
       }
 
       @Override
       public double getStdDev() {
-        return (double) invokeOnDelegate(delegate, "getStdDev");
+        return accessor.getStdDev(delegate);
       }
 
       @Override
@@ -431,33 +870,177 @@ public class MetricRegistryCollection {
 
   private static class AggregatedMetricRegistry extends MetricRegistry {
 
-    private final Map<Object, MetricRegistryWrapper> registries = new WeakHashMap<>();
-    private final ReadWriteLock lock = new ReentrantReadWriteLock();
-    private final Lock writeLock = lock.writeLock();
-    private final Lock readLock = lock.readLock();
+    private static final MetricRegistryWrapper[] EMPTY = new MetricRegistryWrapper[0];
+    private static final int COLLECTION_THREADS = 4;
+
+    /**
+     * Copy-on-write set of registries. Readers (scrapes) iterate a snapshot of the array and never block, writers
+     * (register/deRegister) swap in a new array using CAS.
+     */
+    private final AtomicReference<MetricRegistryWrapper[]> registries = new AtomicReference<>(EMPTY);
+    private final ReferenceQueue<Object> collectedRegistries = new ReferenceQueue<>();
+    private final AtomicLong modCount = new AtomicLong();
+    private volatile boolean trackChanges = false;
+    private volatile boolean mergeDuplicates = false;
+    private volatile AggregatedView view = null;
+    private volatile ExecutorService collectionExecutor = null;
+    private volatile long collectionTimeoutNanos = 0;
+    private final Counter collectionTimeouts = new Counter();
+    private final Object reportCollectionLock = new Object();
+    private Map<MetricRegistryWrapper.MetricType, SortedMap<String, Metric>> reportCollection = null;
+    private final Set<MetricRegistryWrapper.MetricType> unreadReportTypes =
+        EnumSet.noneOf(MetricRegistryWrapper.MetricType.class);
+    private long reportCollectionTime;
+    private final AtomicInteger registryIds = new AtomicInteger();
+    private volatile MetricRegistry jinsightRegistry = null;
+
+    public void setTrackChanges(boolean trackChanges) {
+      this.trackChanges = trackChanges;
+      this.view = null;
+    }
+
+    public void setMergeDuplicates(boolean mergeDuplicates) {
+      this.mergeDuplicates = mergeDuplicates;
+      this.view = null;
+    }
+
+    /**
+     * @param jinsightRegistry the registry the read time of each registry is published in, from then on
+     */
+    public void setJinsightRegistry(MetricRegistry jinsightRegistry) {
+      this.jinsightRegistry = jinsightRegistry;
+    }
+
+    public synchronized void setCollectionTimeout(long timeoutMillis) {
+      if (timeoutMillis > 0 && collectionExecutor == null) {
+        collectionExecutor = createCollectionExecutor();
+      }
+      this.collectionTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(timeoutMillis, 0));
+    }
+
+    /**
+     * The threads mostly wait on application code (gauges, custom registries), so the pool is not sized by the number
+     * of processors. Each registry has at most one pending read per metric type, so the queue is bounded by the
+     * number of registries, even if some of them never respond.
+     */
+    private static ExecutorService createCollectionExecutor() {
+      AtomicInteger threadCount = new AtomicInteger();
+      ThreadPoolExecutor executor = new ThreadPoolExecutor(COLLECTION_THREADS, COLLECTION_THREADS, 60, TimeUnit.SECONDS,
+          new LinkedBlockingQueue<>(), runnable -> {
+            Thread thread = new Thread(runnable, "jinsight-collector-" + threadCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+          });
+      executor.allowCoreThreadTimeOut(true);
+      return executor;
+    }
 
     public boolean registerMetricRegistry(Object metricRegistry) {
-      writeLock.lock();
-      try {
-        if (registries.containsKey(metricRegistry)) {
+      if (metricRegistry == null) {
+        throw new IllegalArgumentException("Registry cannot be null");
+      }
+      expungeCollectedRegistries();
+      MetricRegistryWrapper wrapper = null;
+      while (true) {
+        MetricRegistryWrapper[] current = registries.get();
+        if (indexOf(current, metricRegistry) >= 0) {
+          if (wrapper != null) {
+            wrapper.close();
+          }
           return false;
         }
-        registries.put(metricRegistry, new MetricRegistryWrapper(metricRegistry));
-        return true;
-      } finally {
-        writeLock.unlock();
+        if (wrapper == null) {
+          wrapper = new MetricRegistryWrapper(metricRegistry, collectedRegistries, modCount::incrementAndGet,
+              registryIds.getAndIncrement());
+          if (trackChanges) {
+            wrapper.subscribe();
+          }
+        }
+        MetricRegistryWrapper[] updated = Arrays.copyOf(current, current.length + 1);
+        updated[current.length] = wrapper;
+        if (registries.compareAndSet(current, updated)) {
+          modCount.incrementAndGet();
+          publishReadTime(wrapper);
+          return true;
+        }
       }
     }
 
     public boolean deRegisterMetricRegistry(Object metricRegistry) {
-      writeLock.lock();
-      try {
-        return registries.remove(metricRegistry) != null;
-      } finally {
-        writeLock.unlock();
+      if (metricRegistry == null) {
+        return false;
+      }
+      expungeCollectedRegistries();
+      MetricRegistryWrapper wrapper = remove(w -> w.isWrapperOf(metricRegistry));
+      if (wrapper == null) {
+        return false;
+      }
+      wrapper.close();
+      return true;
+    }
+
+    private void publishReadTime(MetricRegistryWrapper wrapper) {
+      MetricRegistry registry = jinsightRegistry;
+      if (registry != null) {
+        try {
+          registry.register(wrapper.getReadTimeMetricName(), wrapper.getReadTime());
+        } catch (IllegalArgumentException e) {
+          LOGGER.log(Level.FINE, "Cannot publish [" + wrapper.getReadTimeMetricName() + "]", e);
+        }
+      }
+    }
+
+    private void unpublishReadTime(MetricRegistryWrapper wrapper) {
+      MetricRegistry registry = jinsightRegistry;
+      if (registry != null) {
+        registry.remove(wrapper.getReadTimeMetricName());
       }
     }
 
+    /**
+     * Drops the registries that have been garbage collected since the last call.
+     */
+    private void expungeCollectedRegistries() {
+      Reference<?> reference;
+      while ((reference = collectedRegistries.poll()) != null) {
+        Reference<?> collected = reference;
+        remove(w -> w.isReferencedBy(collected));
+      }
+    }
+
+    private MetricRegistryWrapper remove(Predicate<MetricRegistryWrapper> predicate) {
+      while (true) {
+        MetricRegistryWrapper[] current = registries.get();
+        int index = -1;
+        for (int i = 0; i < current.length; i++) {
+          if (predicate.test(current[i])) {
+            index = i;
+            break;
+          }
+        }
+        if (index < 0) {
+          return null;
+        }
+        MetricRegistryWrapper[] updated = new MetricRegistryWrapper[current.length - 1];
+        System.arraycopy(current, 0, updated, 0, index);
+        System.arraycopy(current, index + 1, updated, index, current.length - index - 1);
+        if (registries.compareAndSet(current, updated)) {
+          modCount.incrementAndGet();
+          unpublishReadTime(current[index]);
+          return current[index];
+        }
+      }
+    }
+
+    private static int indexOf(MetricRegistryWrapper[] wrappers, Object metricRegistry) {
+      for (int i = 0; i < wrappers.length; i++) {
+        if (wrappers[i].isWrapperOf(metricRegistry)) {
+          return i;
+        }
+      }
+      return -1;
+    }
+
     @Override
     public SortedMap<String, Gauge> getGauges(MetricFilter filter) {
       return getMetrics(MetricRegistryWrapper.MetricType.Gauge, filter);
@@ -486,6 +1069,17 @@ public class MetricRegistryCollection {
 
     @Override
     public Map<String, Metric> getMetrics() {
+      if (MetricRegistryWrapper.isReadingAdaptedRegistry()) {
+        return Collections.emptyMap();
+      }
+      if (collectionTimeoutNanos > 0) {
+        Map<String, Metric> metrics = new TreeMap<>();
+        collectWithTimeout(MetricRegistryWrapper.MetricType.values()).values().forEach(metrics::putAll);
+        return metrics;
+      }
+      if (trackChanges) {
+        return getView().allMetrics;
+      }
       Map<String, Metric> metrics = new TreeMap<>();
       metrics.putAll(getGauges(MetricFilter.ALL));
       metrics.putAll(getCounters(MetricFilter.ALL));
@@ -495,19 +1089,158 @@ public class MetricRegistryCollection {
       return metrics;
     }
 
+    @SuppressWarnings("unchecked")
     private <T extends Metric> SortedMap<String, T> getMetrics(MetricRegistryWrapper.MetricType type,
         MetricFilter filter) {
 
-      final TreeMap<String, T> retVal = new TreeMap<>();
-      readLock.lock();
-      try {
-        for (MetricRegistryWrapper wrapper : registries.values()) {
-          wrapper.addMetrics(retVal, type, filter);
+      if (MetricRegistryWrapper.isReadingAdaptedRegistry()) {
+        return Collections.emptySortedMap();
+      }
+      if (collectionTimeoutNanos > 0) {
+        final TreeMap<String, T> retVal = new TreeMap<>();
+        collectForReport(type).forEach((name, metric) -> {
+          if (filter.matches(name, metric)) {
+            retVal.put(name, (T) metric);
+          }
+        });
+        return Collections.unmodifiableSortedMap(retVal);
+      }
+
+      if (trackChanges) {
+        SortedMap<String, T> metrics = (SortedMap<String, T>) getView().metricsByType.get(type);
+        if (filter == MetricFilter.ALL) {
+          return metrics;
         }
-      } finally {
-        readLock.unlock();
+        final TreeMap<String, T> retVal = new TreeMap<>();
+        metrics.forEach((name, metric) -> {
+          if (filter.matches(name, metric)) {
+            retVal.put(name, metric);
+          }
+        });
+        return Collections.unmodifiableSortedMap(retVal);
+      }
+
+      expungeCollectedRegistries();
+      final TreeMap<String, T> retVal = new TreeMap<>();
+      for (MetricRegistryWrapper wrapper : registries.get()) {
+        wrapper.addMetrics(retVal, type, filter, mergeDuplicates);
       }
       return Collections.unmodifiableSortedMap(retVal);
     }
+
+    /**
+     * A reporter reads the metric types one after the other. They are all collected at once, under one deadline, by
+     * the first of these reads, and the others are served from that collection, each type once, if they follow within
+     * the collection timeout. A report thus waits for the registries only once, and its types are consistent with
+     * each other.
+     */
+    private SortedMap<String, Metric> collectForReport(MetricRegistryWrapper.MetricType type) {
+      synchronized (reportCollectionLock) {
+        boolean current = reportCollection != null
+            && System.nanoTime() - reportCollectionTime < collectionTimeoutNanos;
+        if (!current || !unreadReportTypes.remove(type)) {
+          reportCollection = collectWithTimeout(MetricRegistryWrapper.MetricType.values());
+          reportCollectionTime = System.nanoTime();
+          unreadReportTypes.addAll(EnumSet.allOf(MetricRegistryWrapper.MetricType.class));
+          unreadReportTypes.remove(type);
+        }
+        return reportCollection.get(type);
+      }
+    }
+
+    /**
+     * Reads all the registries in parallel, waiting until the collection timeout for them. Registries that do not
+     * respond in time contribute the metrics they returned when last read.
+     */
+    private Map<MetricRegistryWrapper.MetricType, SortedMap<String, Metric>> collectWithTimeout(
+        MetricRegistryWrapper.MetricType... types) {
+
+      expungeCollectedRegistries();
+      long deadline = System.nanoTime() + collectionTimeoutNanos;
+      MetricRegistryWrapper[] wrappers = registries.get();
+      boolean tracked = trackChanges;
+      List<Future<SortedMap<String, Metric>>> pending = new ArrayList<>(wrappers.length * types.length);
+      for (MetricRegistryWrapper wrapper : wrappers) {
+        for (MetricRegistryWrapper.MetricType type : types) {
+          pending.add(wrapper.collect(type, tracked, collectionExecutor));
+        }
+      }
+
+      Map<MetricRegistryWrapper.MetricType, SortedMap<String, Metric>> retVal =
+          new EnumMap<>(MetricRegistryWrapper.MetricType.class);
+      for (MetricRegistryWrapper.MetricType type : types) {
+        retVal.put(type, new TreeMap<>());
+      }
+      boolean interrupted = false;
+      Iterator<Future<SortedMap<String, Metric>>> futures = pending.iterator();
+      for (MetricRegistryWrapper wrapper : wrappers) {
+        boolean timedOut = false;
+        for (MetricRegistryWrapper.MetricType type : types) {
+          Future<SortedMap<String, Metric>> future = futures.next();
+          SortedMap<String, Metric> metrics = null;
+          if (!interrupted) {
+            try {
+              metrics = future.get(Math.max(deadline - System.nanoTime(), 0), TimeUnit.NANOSECONDS);
+            } catch (TimeoutException e) {
+              timedOut = true;
+            } catch (InterruptedException e) {
+              interrupted = true;
+            } catch (ExecutionException e) {
+              LOGGER.log(Level.SEVERE, "Error collecting metrics", e.getCause());
+            }
+          }
+          MergedMetrics.putAll(retVal.get(type), metrics != null ? metrics : wrapper.getLastCollected(type),
+              mergeDuplicates);
+        }
+        if (timedOut) {
+          collectionTimeouts.inc();
+          LOGGER.fine("Timed out collecting metrics, reporting last known values.");
+        }
+      }
+      if (interrupted) {
+        Thread.currentThread().interrupt();
+      }
+      return retVal;
+    }
+
+    /**
+     * Returns the merged view of all the registries, rebuilding it only if a registry was added, removed or garbage
+     * collected, or a metric was added to or removed from any of the registries, since the view was last built.
+     */
+    private AggregatedView getView() {
+      expungeCollectedRegistries();
+      AggregatedView current = view;
+      long version = modCount.get();
+      if (current != null && current.version == version) {
+        return current;
+      }
+      current = new AggregatedView(version, registries.get(), mergeDuplicates);
+      view = current;
+      return current;
+    }
+  }
+
+  private static class AggregatedView {
+
+    private final long version;
+    private final Map<MetricRegistryWrapper.MetricType, SortedMap<String, Metric>> metricsByType =
+        new EnumMap<>(MetricRegistryWrapper.MetricType.class);
+    private final Map<String, Metric> allMetrics;
+
+    AggregatedView(long version, MetricRegistryWrapper[] wrappers, boolean mergeDuplicates) {
+      boolean tracked = true;
+      TreeMap<String, Metric> all = new TreeMap<>();
+      for (MetricRegistryWrapper.MetricType type : MetricRegistryWrapper.MetricType.values()) {
+        TreeMap<String, Metric> metrics = new TreeMap<>();
+        for (MetricRegistryWrapper wrapper : wrappers) {
+          tracked &= wrapper.addTrackedMetrics(metrics, type, mergeDuplicates);
+        }
+        metricsByType.put(type, Collections.unmodifiableSortedMap(metrics));
+        all.putAll(metrics);
+      }
+      this.allMetrics = Collections.unmodifiableMap(all);
+      //A view that includes registries that cannot be tracked, is never reused
+      this.version = tracked ? version : -1;
+    }
   }
 }
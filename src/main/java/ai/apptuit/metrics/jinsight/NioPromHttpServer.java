@@ -0,0 +1,536 @@
+/*
+ * Copyright 2017 Agilx, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ai.apptuit.metrics.jinsight;
+
+import io.prometheus.client.CollectorRegistry;
+import io.prometheus.client.exporter.common.TextFormat;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A Prometheus exporter HTTP server on non-blocking channels, as an alternative to {@link PromHttpServer}.
+ *
+ * <p>A single selector thread accepts connections, reads requests and writes responses. Scrapes are collected by a
+ * fixed number of worker threads, into buffers from a {@link BufferPool}, and the selector thread then writes the
+ * response straight from that buffer. So a slow client holds a buffer, but not a worker, and scrapes that find all
+ * the workers busy and the queue full get a 503 instead of piling up. Connections are kept alive between scrapes,
+ * and closed after {@value #IDLE_TIMEOUT_MILLIS} ms without progress.
+ *
+ * <p>Only what scrapers need of HTTP/1.1 is supported: GET and HEAD requests without a body, gzip compression of
+ * the response, keep-alive and pipelining.
+ */
+public class NioPromHttpServer implements Closeable {
+
+  private static final Logger LOGGER = Logger.getLogger(NioPromHttpServer.class.getName());
+
+  private static final int MAX_REQUEST_SIZE = 8192;
+  private static final int QUEUED_SCRAPES_PER_WORKER = 4;
+  private static final long IDLE_TIMEOUT_MILLIS = 30_000;
+  private static final long SELECT_TIMEOUT_MILLIS = 1_000;
+  private static final byte[] HEADER_END = {'\r', '\n', '\r', '\n'};
+
+  private final CollectorRegistry registry;
+  private final ApptuitDropwizardExports exports;
+  private final ScrapeCoalescer coalescer;
+  private final GzipCompression compression;
+  private final ExporterMetrics exporterMetrics;
+  private final BufferPool buffers;
+  private final ThreadPoolExecutor workers;
+  private final ServerSocketChannel serverChannel;
+  private final Selector selector;
+  private final Thread selectorThread;
+  private final Queue<Connection> processed = new ConcurrentLinkedQueue<>();
+  private volatile String context = "/metrics";
+  private volatile boolean closed;
+
+  /**
+   * @param workerThreads number of threads collecting the metrics
+   * @param directBuffers true to collect the metrics into direct buffers
+   * @param scrapeCacheTtlMillis how long a scrape is served after it completes, or
+   *     {@link PromHttpServer#NO_COALESCING}
+   */
+  public NioPromHttpServer(InetSocketAddress address,
+                           CollectorRegistry registry,
+                           ApptuitDropwizardExports exports,
+                           boolean daemon,
+                           int workerThreads,
+                           boolean directBuffers,
+                           long scrapeCacheTtlMillis) throws IOException {
+    this(address, registry, exports, daemon, workerThreads, directBuffers, scrapeCacheTtlMillis,
+        GzipCompression.DEFAULT, new ExporterMetrics());
+  }
+
+  NioPromHttpServer(InetSocketAddress address,
+                    CollectorRegistry registry,
+                    ApptuitDropwizardExports exports,
+                    boolean daemon,
+                    int workerThreads,
+                    boolean directBuffers,
+                    long scrapeCacheTtlMillis,
+                    GzipCompression compression,
+                    ExporterMetrics exporterMetrics) throws IOException {
+    this.registry = registry;
+    this.exports = exports;
+    this.compression = compression;
+    this.exporterMetrics = exporterMetrics;
+    this.coalescer = scrapeCacheTtlMillis < 0 ? null : new ScrapeCoalescer(scrapeCacheTtlMillis, compression);
+    this.buffers = new BufferPool(workerThreads * 2, 1 << 16, directBuffers);
+    this.workers = new ThreadPoolExecutor(workerThreads, workerThreads, 0, TimeUnit.MILLISECONDS,
+        new ArrayBlockingQueue<>(workerThreads * QUEUED_SCRAPES_PER_WORKER), new WorkerThreadFactory(daemon));
+
+    this.selector = Selector.open();
+    this.serverChannel = ServerSocketChannel.open();
+    try {
+      serverChannel.configureBlocking(false);
+      serverChannel.bind(address);
+      serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+    } catch (IOException e) {
+      serverChannel.close();
+      selector.close();
+      workers.shutdownNow();
+      throw e;
+    }
+
+    this.selectorThread = new Thread(this::run, "jinsight-exporter-selector");
+    selectorThread.setDaemon(daemon);
+    selectorThread.start();
+  }
+
+  /**
+   * to set the context(endpoint).
+   *
+   * @param endPoint it should be a string
+   *                 returns the endPoint which is set
+   */
+  public String setContext(String endPoint) {
+    String tempEndPoint = endPoint;
+    if (endPoint == null || endPoint.equals("")) {
+      tempEndPoint = "/metrics"; //default end point
+    }
+    this.context = tempEndPoint;
+    return tempEndPoint;
+  }
+
+  public int getPort() {
+    return serverChannel.socket().getLocalPort();
+  }
+
+  @Override
+  public void close() {
+    closed = true;
+    selector.wakeup();
+    try {
+      selectorThread.join(TimeUnit.SECONDS.toMillis(5));
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    workers.shutdownNow();
+  }
+
+  private void run() {
+    try {
+      while (!closed) {
+        selector.select(SELECT_TIMEOUT_MILLIS);
+        Set<SelectionKey> selectedKeys = selector.selectedKeys();
+        for (SelectionKey key : selectedKeys) {
+          handleKey(key);
+        }
+        selectedKeys.clear();
+
+        Connection connection;
+        while ((connection = processed.poll()) != null) {
+          connection.startWriting();
+        }
+        closeIdleConnections(System.currentTimeMillis());
+      }
+    } catch (IOException | ClosedSelectorException e) {
+      LOGGER.log(Level.SEVERE, "Prometheus exporter stopped.", e);
+    } finally {
+      for (SelectionKey key : selector.keys()) {
+        if (key.attachment() instanceof Connection) {
+          ((Connection) key.attachment()).close();
+        }
+      }
+      closeQuietly(serverChannel);
+      closeQuietly(selector);
+    }
+  }
+
+  private void handleKey(SelectionKey key) {
+    if (!key.isValid()) {
+      return;
+    }
+    if (key.isAcceptable()) {
+      accept();
+      return;
+    }
+    Connection connection = (Connection) key.attachment();
+    try {
+      if (key.isReadable()) {
+        connection.read();
+      } else if (key.isWritable()) {
+        connection.write();
+      }
+    } catch (IOException e) {
+      LOGGER.log(Level.FINE, "Error on Prometheus exporter connection.", e);
+      connection.close();
+    }
+  }
+
+  private void accept() {
+    SocketChannel channel;
+    try {
+      while ((channel = serverChannel.accept()) != null) {
+        try {
+          channel.configureBlocking(false);
+          channel.socket().setTcpNoDelay(true);
+          Connection connection = new Connection(channel);
+          connection.key = channel.register(selector, SelectionKey.OP_READ, connection);
+        } catch (IOException e) {
+          LOGGER.log(Level.FINE, "Error accepting Prometheus exporter connection.", e);
+          closeQuietly(channel);
+        }
+      }
+    } catch (IOException e) {
+      LOGGER.log(Level.WARNING, "Error accepting Prometheus exporter connections.", e);
+    }
+  }
+
+  private void closeIdleConnections(long now) {
+    for (SelectionKey key : selector.keys()) {
+      if (key.attachment() instanceof Connection) {
+        Connection connection = (Connection) key.attachment();
+        if (!connection.processing && now - connection.lastActivity > IDLE_TIMEOUT_MILLIS) {
+          connection.close();
+        }
+      }
+    }
+  }
+
+  private void scrape(Connection connection, Request request) {
+    BufferPool.Buffer buffer = null;
+    exporterMetrics.scrapeStarted();
+    try {
+      Set<String> includedNames = PromHttpServer.parseIncludedNames(request.query);
+      ByteBuffer body;
+      if (coalescer != null) {
+        ScrapeCoalescer.Response response = coalescer.scrape(includedNames, this::writeMetrics);
+        body = ByteBuffer.wrap(request.gzip ? response.getGzippedBody() : response.getBody());
+        exporterMetrics.recordResponse(response.getBody().length, request.gzip ? body.remaining() : -1);
+      } else {
+        buffer = buffers.acquire();
+        if (request.gzip) {
+          GzipCompression.GzipOutputStream gzip = compression.open(buffer);
+          writeMetrics(gzip, includedNames);
+          gzip.finish();
+          exporterMetrics.recordResponse(gzip.getUncompressedBytes(), buffer.size());
+        } else {
+          writeMetrics(buffer, includedNames);
+          exporterMetrics.recordResponse(buffer.size(), -1);
+        }
+        body = buffer.contents();
+      }
+      connection.respond(request, 200, "OK", request.gzip, body, buffer);
+    } catch (IOException | RuntimeException e) {
+      LOGGER.log(Level.SEVERE, "Error collecting metrics for Prometheus.", e);
+      if (buffer != null) {
+        buffers.release(buffer);
+      }
+      request.keepAlive = false;
+      connection.respond(request, 500, "Internal Server Error", false, ByteBuffer.allocate(0), null);
+    } finally {
+      exporterMetrics.scrapeFinished();
+    }
+    processed.add(connection);
+    selector.wakeup();
+  }
+
+  private void writeMetrics(OutputStream out, Set<String> includedNames) throws IOException {
+    PromHttpServer.writeMetrics(out, registry, exports, includedNames, exporterMetrics);
+  }
+
+  private static void closeQuietly(Closeable closeable) {
+    try {
+      closeable.close();
+    } catch (IOException e) {
+      LOGGER.log(Level.FINE, e.toString(), e);
+    }
+  }
+
+  private static int indexOf(ByteBuffer buffer, byte[] bytes) {
+    int limit = buffer.position() - bytes.length;
+    outer:
+    for (int i = 0; i <= limit; i++) {
+      for (int j = 0; j < bytes.length; j++) {
+        if (buffer.get(i + j) != bytes[j]) {
+          continue outer;
+        }
+      }
+      return i;
+    }
+    return -1;
+  }
+
+  private static final class Request {
+
+    private String method;
+    private String path;
+    private String query;
+    private boolean http11;
+    private boolean gzip;
+    private boolean keepAlive;
+    private boolean hasBody;
+
+    /**
+     * @return the request, or null if it is malformed
+     */
+    static Request parse(String header) {
+      String[] lines = header.split("\r\n");
+      String[] requestLine = lines[0].split(" ");
+      if (requestLine.length != 3 || !requestLine[2].startsWith("HTTP/1.")) {
+        return null;
+      }
+      Request request = new Request();
+      request.method = requestLine[0];
+      String uri = requestLine[1];
+      int queryStart = uri.indexOf('?');
+      request.path = queryStart < 0 ? uri : uri.substring(0, queryStart);
+      request.query = queryStart < 0 ? null : uri.substring(queryStart + 1);
+      request.http11 = !requestLine[2].equals("HTTP/1.0");
+      request.keepAlive = request.http11;
+
+      for (int i = 1; i < lines.length; i++) {
+        int colon = lines[i].indexOf(':');
+        if (colon <= 0) {
+          return null;
+        }
+        String name = lines[i].substring(0, colon).trim();
+        String value = lines[i].substring(colon + 1).trim();
+        if (name.equalsIgnoreCase("Connection")) {
+          if (value.equalsIgnoreCase("close")) {
+            request.keepAlive = false;
+          } else if (value.equalsIgnoreCase("keep-alive")) {
+            request.keepAlive = true;
+          }
+        } else if (name.equalsIgnoreCase("Accept-Encoding")) {
+          request.gzip |= acceptsGzip(value);
+        } else if (name.equalsIgnoreCase("Transfer-Encoding")
+            || (name.equalsIgnoreCase("Content-Length") && !value.equals("0"))) {
+          request.hasBody = true;
+        }
+      }
+      return request;
+    }
+
+    private static boolean acceptsGzip(String acceptEncoding) {
+      for (String encoding : acceptEncoding.split(",")) {
+        int parameters = encoding.indexOf(';');
+        String name = (parameters < 0 ? encoding : encoding.substring(0, parameters)).trim();
+        if (name.equalsIgnoreCase("gzip")) {
+          return parameters < 0 || !encoding.substring(parameters + 1).replace(" ", "").equals("q=0");
+        }
+      }
+      return false;
+    }
+  }
+
+  private final class Connection {
+
+    private final SocketChannel channel;
+    private final ByteBuffer requestBuffer = ByteBuffer.allocate(MAX_REQUEST_SIZE);
+    private SelectionKey key;
+    private ByteBuffer[] response;
+    private BufferPool.Buffer responseBuffer;
+    private boolean keepAlive;
+    private volatile boolean processing;
+    private long lastActivity = System.currentTimeMillis();
+
+    Connection(SocketChannel channel) {
+      this.channel = channel;
+    }
+
+    void read() throws IOException {
+      if (channel.read(requestBuffer) < 0) {
+        close();
+        return;
+      }
+      lastActivity = System.currentTimeMillis();
+      processRequest();
+    }
+
+    private void processRequest() {
+      int headerEnd = indexOf(requestBuffer, HEADER_END);
+      if (headerEnd < 0) {
+        if (!requestBuffer.hasRemaining()) {
+          respondNow(null, 431, "Request Header Fields Too Large");
+        }
+        return;
+      }
+      byte[] header = new byte[headerEnd];
+      requestBuffer.flip();
+      requestBuffer.get(header);
+      requestBuffer.position(requestBuffer.position() + HEADER_END.length);
+      requestBuffer.compact();
+
+      Request request = Request.parse(new String(header, StandardCharsets.ISO_8859_1));
+      if (request == null || request.hasBody) {
+        respondNow(null, 400, "Bad Request");
+      } else if (!request.method.equals("GET") && !request.method.equals("HEAD")) {
+        respondNow(request, 405, "Method Not Allowed");
+      } else if (!request.path.startsWith(context)) {
+        respondNow(request, 404, "Not Found");
+      } else {
+        key.interestOps(0);
+        processing = true;
+        try {
+          workers.execute(() -> scrape(this, request));
+        } catch (RejectedExecutionException e) {
+          processing = false;
+          respondNow(request, 503, "Service Unavailable");
+        }
+      }
+    }
+
+    private void respondNow(Request request, int status, String reason) {
+      if (request != null && status != 400) {
+        request.keepAlive &= status != 503;
+      }
+      respond(request, status, reason, false, ByteBuffer.allocate(0), null);
+      startWriting();
+    }
+
+    /**
+     * Prepares the response. Called on a worker thread, and then handed to the selector thread, which writes it.
+     */
+    void respond(Request request, int status, String reason, boolean gzip, ByteBuffer body,
+                 BufferPool.Buffer buffer) {
+      boolean http11 = request == null || request.http11;
+      keepAlive = request != null && request.keepAlive;
+      StringBuilder header = new StringBuilder(160)
+          .append(http11 ? "HTTP/1.1 " : "HTTP/1.0 ").append(status).append(' ').append(reason).append("\r\n");
+      if (status == 200) {
+        header.append("Content-Type: ").append(TextFormat.CONTENT_TYPE_004).append("\r\n");
+        if (gzip) {
+          header.append("Content-Encoding: gzip\r\n");
+        }
+      }
+      header.append("Content-Length: ").append(body.remaining()).append("\r\n");
+      if (!keepAlive) {
+        header.append("Connection: close\r\n");
+      } else if (!http11) {
+        header.append("Connection: keep-alive\r\n");
+      }
+      header.append("\r\n");
+
+      ByteBuffer headerBuffer = ByteBuffer.wrap(header.toString().getBytes(StandardCharsets.ISO_8859_1));
+      boolean head = request != null && request.method.equals("HEAD");
+      response = head ? new ByteBuffer[]{headerBuffer} : new ByteBuffer[]{headerBuffer, body};
+      if (head && buffer != null) {
+        buffers.release(buffer);
+        buffer = null;
+      }
+      responseBuffer = buffer;
+    }
+
+    void startWriting() {
+      processing = false;
+      lastActivity = System.currentTimeMillis();
+      if (!key.isValid()) {
+        close();
+        return;
+      }
+      try {
+        key.interestOps(SelectionKey.OP_WRITE);
+        write();
+      } catch (IOException e) {
+        LOGGER.log(Level.FINE, "Error writing Prometheus exporter response.", e);
+        close();
+      }
+    }
+
+    void write() throws IOException {
+      if (channel.write(response) > 0) {
+        lastActivity = System.currentTimeMillis();
+      }
+      if (response[response.length - 1].hasRemaining()) {
+        return;
+      }
+      releaseResponse();
+      if (!keepAlive) {
+        close();
+        return;
+      }
+      key.interestOps(SelectionKey.OP_READ);
+      if (requestBuffer.position() > 0) {
+        processRequest();
+      }
+    }
+
+    private void releaseResponse() {
+      response = null;
+      if (responseBuffer != null) {
+        buffers.release(responseBuffer);
+        responseBuffer = null;
+      }
+    }
+
+    void close() {
+      key.cancel();
+      closeQuietly(channel);
+      if (!processing) {
+        releaseResponse();
+      }
+    }
+  }
+
+  private static final class WorkerThreadFactory implements ThreadFactory {
+
+    private final AtomicInteger count = new AtomicInteger();
+    private final boolean daemon;
+
+    WorkerThreadFactory(boolean daemon) {
+      this.daemon = daemon;
+    }
+
+    @Override
+    public Thread newThread(Runnable runnable) {
+      Thread thread = new Thread(runnable, "jinsight-exporter-worker-" + count.incrementAndGet());
+      thread.setDaemon(daemon);
+      return thread;
+    }
+  }
+}
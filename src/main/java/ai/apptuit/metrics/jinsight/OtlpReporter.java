@@ -0,0 +1,311 @@
+/*
+ * Copyright 2017 Agilx, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ai.apptuit.metrics.jinsight;
+
+import ai.apptuit.metrics.client.TagEncodedMetricName;
+import com.codahale.metrics.Counter;
+import com.codahale.metrics.Counting;
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.Histogram;
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.Metric;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.Sampling;
+import com.codahale.metrics.Snapshot;
+import com.codahale.metrics.Timer;
+import java.lang.management.ManagementFactory;
+import java.net.URL;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Pushes the metrics to an OpenTelemetry collector, over OTLP/HTTP, in gzip-compressed protobuf
+ * {@code ExportMetricsServiceRequest}s of a bounded number of metrics. The global tags are the attributes of the
+ * resource, and the tags of each metric the attributes of its data point.
+ *
+ * <p>All the data points are cumulative, from the start of the JVM:
+ * <ul>
+ * <li>counters are non-monotonic sums, and meters monotonic sums of their count</li>
+ * <li>gauges with a number or boolean value are gauges, other gauges are skipped</li>
+ * <li>timers and histograms that count into buckets, as the ones jinsight creates do, are histograms, with the
+ * durations of timers in seconds</li>
+ * <li>other timers and histograms are summaries, with the quantiles of their reservoir, and a sum estimated from its
+ * mean</li>
+ * </ul>
+ */
+final class OtlpReporter extends HttpPushReporter {
+
+  private static final Logger LOGGER = Logger.getLogger(OtlpReporter.class.getName());
+
+  static final String PREFIX = "jinsight.otlp";
+  static final int DEFAULT_MAX_IN_FLIGHT = 2;
+  static final int DEFAULT_MAX_RETRIES = 3;
+
+  private static final String SCOPE_NAME = "jinsight";
+  private static final double NANOS_PER_SECOND = TimeUnit.SECONDS.toNanos(1);
+  private static final double[] QUANTILES = {0.5, 0.75, 0.95, 0.98, 0.99, 0.999};
+
+  // AggregationTemporality.AGGREGATION_TEMPORALITY_CUMULATIVE
+  private static final int CUMULATIVE = 2;
+
+  private static final int REQUEST_RESOURCE_METRICS = 1;
+  private static final int RESOURCE_METRICS_RESOURCE = 1;
+  private static final int RESOURCE_METRICS_SCOPE_METRICS = 2;
+  private static final int RESOURCE_ATTRIBUTES = 1;
+  private static final int SCOPE_METRICS_SCOPE = 1;
+  private static final int SCOPE_METRICS_METRICS = 2;
+  private static final int SCOPE_NAME_FIELD = 1;
+  private static final int SCOPE_VERSION_FIELD = 2;
+  private static final int KEY_VALUE_KEY = 1;
+  private static final int KEY_VALUE_VALUE = 2;
+  private static final int ANY_VALUE_STRING = 1;
+  private static final int METRIC_NAME = 1;
+  private static final int METRIC_UNIT = 3;
+  private static final int METRIC_GAUGE = 5;
+  private static final int METRIC_SUM = 7;
+  private static final int METRIC_HISTOGRAM = 9;
+  private static final int METRIC_SUMMARY = 11;
+  private static final int DATA_POINTS = 1;
+  private static final int AGGREGATION_TEMPORALITY = 2;
+  private static final int SUM_IS_MONOTONIC = 3;
+  private static final int POINT_START_TIME = 2;
+  private static final int POINT_TIME = 3;
+  private static final int NUMBER_POINT_AS_DOUBLE = 4;
+  private static final int NUMBER_POINT_AS_INT = 6;
+  private static final int NUMBER_POINT_ATTRIBUTES = 7;
+  private static final int POINT_COUNT = 4;
+  private static final int POINT_SUM = 5;
+  private static final int HISTOGRAM_POINT_BUCKET_COUNTS = 6;
+  private static final int HISTOGRAM_POINT_EXPLICIT_BOUNDS = 7;
+  private static final int HISTOGRAM_POINT_ATTRIBUTES = 9;
+  private static final int SUMMARY_POINT_QUANTILE_VALUES = 6;
+  private static final int SUMMARY_POINT_ATTRIBUTES = 7;
+  private static final int QUANTILE_FIELD = 1;
+  private static final int QUANTILE_VALUE = 2;
+
+  private final MetricRegistry metrics;
+  private final int batchSize;
+  private final GzipCompression compression = GzipCompression.DEFAULT;
+  private final ProtobufWriter resource = new ProtobufWriter();
+  private final ProtobufWriter scope = new ProtobufWriter();
+  private final long startTimeNanos;
+  private final Map<String, MetricData> batch = new LinkedHashMap<>();
+  private int batchPoints;
+
+  /**
+   * @param resourceAttributes the attributes of the resource, the JVM, the metrics are reported for
+   * @param version the version of jinsight, reported as the version of the instrumentation scope
+   * @param batchSize maximum number of data points in a request
+   * @param registry where the metrics of the reporter are published, under {@value #PREFIX}
+   */
+  OtlpReporter(URL url, MetricRegistry metrics, Map<String, String> resourceAttributes, String version,
+      int batchSize, MetricRegistry registry) {
+    this(url, metrics, resourceAttributes, version, batchSize, DEFAULT_MAX_IN_FLIGHT, DEFAULT_MAX_RETRIES, registry,
+        MIN_BACKOFF_MILLIS);
+  }
+
+  OtlpReporter(URL url, MetricRegistry metrics, Map<String, String> resourceAttributes, String version,
+      int batchSize, int maxInFlight, int maxRetries, MetricRegistry registry, long minBackoffMillis) {
+    super(url, "otlp", headers(), maxInFlight, maxRetries, registry, minBackoffMillis);
+    this.metrics = metrics;
+    this.batchSize = batchSize;
+    this.startTimeNanos = TimeUnit.MILLISECONDS.toNanos(ManagementFactory.getRuntimeMXBean().getStartTime());
+    writeAttributes(resource, RESOURCE_ATTRIBUTES, resourceAttributes);
+    scope.writeString(SCOPE_NAME_FIELD, SCOPE_NAME);
+    if (version != null) {
+      scope.writeString(SCOPE_VERSION_FIELD, version);
+    }
+  }
+
+  private static Map<String, String> headers() {
+    Map<String, String> headers = new LinkedHashMap<>();
+    headers.put("Content-Type", "application/x-protobuf");
+    headers.put("Content-Encoding", "gzip");
+    return headers;
+  }
+
+  @Override
+  synchronized void report() throws InterruptedException {
+    long timeNanos = TimeUnit.MILLISECONDS.toNanos(System.currentTimeMillis());
+    batch.clear();
+    batchPoints = 0;
+    for (Map.Entry<String, Metric> entry : metrics.getMetrics().entrySet()) {
+      try {
+        addMetric(entry.getKey(), entry.getValue(), timeNanos);
+      } catch (RuntimeException e) {
+        LOGGER.log(Level.SEVERE, "Error reading metric [" + entry.getKey() + "]", e);
+      }
+      if (batchPoints >= batchSize) {
+        submitBatch();
+      }
+    }
+    if (batchPoints > 0) {
+      submitBatch();
+    }
+  }
+
+  private void addMetric(String dropwizardName, Metric metric, long timeNanos) {
+    TagEncodedMetricName name = TagEncodedMetricName.decode(dropwizardName);
+    ProtobufWriter point = new ProtobufWriter();
+    int attributesField;
+    MetricData data;
+    if (metric instanceof BucketedSampling) {
+      BucketedSampling buckets = (BucketedSampling) metric;
+      double[] bounds = buckets.getBucketBounds();
+      long[] counts = new long[bounds.length + 1];
+      for (int i = 0; i < counts.length; i++) {
+        counts[i] = buckets.getBucketCount(i);
+      }
+      writeTimes(point, timeNanos);
+      point.writeFixed64(POINT_COUNT, ((Counting) metric).getCount());
+      point.writeDouble(POINT_SUM, buckets.getSum());
+      point.writePackedFixed64(HISTOGRAM_POINT_BUCKET_COUNTS, counts);
+      point.writePackedDoubles(HISTOGRAM_POINT_EXPLICIT_BOUNDS, bounds);
+      attributesField = HISTOGRAM_POINT_ATTRIBUTES;
+      data = getMetricData(name.getMetricName(), METRIC_HISTOGRAM, metric instanceof Timer ? "s" : null, false);
+    } else if (metric instanceof Timer) {
+      writeSummary(point, (Timer) metric, ((Timer) metric).getCount(), 1 / NANOS_PER_SECOND, timeNanos);
+      attributesField = SUMMARY_POINT_ATTRIBUTES;
+      data = getMetricData(name.getMetricName(), METRIC_SUMMARY, "s", false);
+    } else if (metric instanceof Histogram) {
+      writeSummary(point, (Histogram) metric, ((Histogram) metric).getCount(), 1, timeNanos);
+      attributesField = SUMMARY_POINT_ATTRIBUTES;
+      data = getMetricData(name.getMetricName(), METRIC_SUMMARY, null, false);
+    } else if (metric instanceof Meter) {
+      writeTimes(point, timeNanos);
+      point.writeFixed64(NUMBER_POINT_AS_INT, ((Meter) metric).getCount());
+      attributesField = NUMBER_POINT_ATTRIBUTES;
+      data = getMetricData(name.getMetricName(), METRIC_SUM, null, true);
+    } else if (metric instanceof Counter) {
+      writeTimes(point, timeNanos);
+      point.writeFixed64(NUMBER_POINT_AS_INT, ((Counter) metric).getCount());
+      attributesField = NUMBER_POINT_ATTRIBUTES;
+      data = getMetricData(name.getMetricName(), METRIC_SUM, null, false);
+    } else if (metric instanceof Gauge) {
+      Object value = ((Gauge<?>) metric).getValue();
+      double doubleValue;
+      if (value instanceof Number) {
+        doubleValue = ((Number) value).doubleValue();
+      } else if (value instanceof Boolean) {
+        doubleValue = ((Boolean) value) ? 1 : 0;
+      } else {
+        return;
+      }
+      point.writeFixed64(POINT_TIME, timeNanos);
+      point.writeDouble(NUMBER_POINT_AS_DOUBLE, doubleValue);
+      attributesField = NUMBER_POINT_ATTRIBUTES;
+      data = getMetricData(name.getMetricName(), METRIC_GAUGE, null, false);
+    } else {
+      return;
+    }
+    writeAttributes(point, attributesField, name.getTags());
+    data.dataPoints.writeMessage(DATA_POINTS, point);
+    batchPoints++;
+  }
+
+  private void writeTimes(ProtobufWriter point, long timeNanos) {
+    point.writeFixed64(POINT_START_TIME, startTimeNanos);
+    point.writeFixed64(POINT_TIME, timeNanos);
+  }
+
+  private void writeSummary(ProtobufWriter point, Sampling sampling, long count, double factor, long timeNanos) {
+    Snapshot snapshot = sampling.getSnapshot();
+    writeTimes(point, timeNanos);
+    point.writeFixed64(POINT_COUNT, count);
+    point.writeDouble(POINT_SUM, snapshot.getMean() * count * factor);
+    for (double quantile : QUANTILES) {
+      ProtobufWriter quantileValue = new ProtobufWriter();
+      quantileValue.writeDouble(QUANTILE_FIELD, quantile);
+      quantileValue.writeDouble(QUANTILE_VALUE, snapshot.getValue(quantile) * factor);
+      point.writeMessage(SUMMARY_POINT_QUANTILE_VALUES, quantileValue);
+    }
+  }
+
+  /**
+   * @return the metric the data point is added to: metrics with the same name, and of the same type, share their
+   *     data points
+   */
+  private MetricData getMetricData(String name, int type, String unit, boolean monotonic) {
+    return batch.computeIfAbsent(name + '\u0000' + type, key -> new MetricData(name, type, unit, monotonic));
+  }
+
+  private static void writeAttributes(ProtobufWriter message, int field, Map<String, String> attributes) {
+    for (Map.Entry<String, String> attribute : attributes.entrySet()) {
+      ProtobufWriter value = new ProtobufWriter();
+      value.writeString(ANY_VALUE_STRING, attribute.getValue());
+      ProtobufWriter keyValue = new ProtobufWriter();
+      keyValue.writeString(KEY_VALUE_KEY, attribute.getKey());
+      keyValue.writeMessage(KEY_VALUE_VALUE, value);
+      message.writeMessage(field, keyValue);
+    }
+  }
+
+  private void submitBatch() throws InterruptedException {
+    ProtobufWriter scopeMetrics = new ProtobufWriter();
+    scopeMetrics.writeMessage(SCOPE_METRICS_SCOPE, scope);
+    for (MetricData data : batch.values()) {
+      scopeMetrics.writeMessage(SCOPE_METRICS_METRICS, data.encode());
+    }
+    ProtobufWriter resourceMetrics = new ProtobufWriter();
+    resourceMetrics.writeMessage(RESOURCE_METRICS_RESOURCE, resource);
+    resourceMetrics.writeMessage(RESOURCE_METRICS_SCOPE_METRICS, scopeMetrics);
+    ProtobufWriter request = new ProtobufWriter();
+    request.writeMessage(REQUEST_RESOURCE_METRICS, resourceMetrics);
+
+    int points = batchPoints;
+    batch.clear();
+    batchPoints = 0;
+    submit(compression.compress(request.toByteArray()), points);
+  }
+
+  private static final class MetricData {
+
+    private final String name;
+    private final int type;
+    private final String unit;
+    private final boolean monotonic;
+    private final ProtobufWriter dataPoints = new ProtobufWriter();
+
+    MetricData(String name, int type, String unit, boolean monotonic) {
+      this.name = name;
+      this.type = type;
+      this.unit = unit;
+      this.monotonic = monotonic;
+    }
+
+    ProtobufWriter encode() {
+      ProtobufWriter data = new ProtobufWriter();
+      data.append(dataPoints);
+      if (type == METRIC_SUM || type == METRIC_HISTOGRAM) {
+        data.writeVarint(AGGREGATION_TEMPORALITY, CUMULATIVE);
+      }
+      if (type == METRIC_SUM) {
+        data.writeVarint(SUM_IS_MONOTONIC, monotonic ? 1 : 0);
+      }
+      ProtobufWriter metric = new ProtobufWriter();
+      metric.writeString(METRIC_NAME, name);
+      if (unit != null) {
+        metric.writeString(METRIC_UNIT, unit);
+      }
+      metric.writeMessage(type, data);
+      return metric;
+    }
+  }
+}
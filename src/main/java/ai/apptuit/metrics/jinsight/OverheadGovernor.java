@@ -0,0 +1,241 @@
+/*
+ * Copyright 2017 Agilx, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package ai.apptuit.metrics.jinsight;
+
+import ai.apptuit.metrics.client.TagEncodedMetricName;
+import com.codahale.metrics.Counter;
+import com.codahale.metrics.MetricRegistry;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.ToDoubleFunction;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Keeps the time the modules spend timing their calls within a budget, a percentage of the CPU time of the JVM.
+ *
+ * <p>Every second, the governor reads the time the helpers recorded into the {@link Sampler} of each module. A module
+ * over its budget is stepped down to time half as many of the calls it samples, down to one in {@value #MAX_THROTTLE},
+ * and then to none: its timers are suspended. When the modules are together over the global budget, the costliest of
+ * them is stepped down. A module is stepped back up once it is expected to stay under half its budget, and the modules
+ * under half the global budget, from its calls of the last second and the cost of timing one of them.
+ *
+ * <p>Only the modules timed through a {@link Sampler} are governed: jedis, jdbc, ehcache, httpclient, okhttp3 and
+ * whalinmemcached. The servlet, spymemcached, httpasyncclient and httpurlconnection modules time their calls directly,
+ * and are neither measured nor throttled.
+ *
+ * <p>The overhead of each module, its throttle, and the steps taken are published under {@value #PREFIX}, tagged with
+ * the module.
+ */
+final class OverheadGovernor {
+
+  private static final Logger LOGGER = Logger.getLogger(OverheadGovernor.class.getName());
+
+  static final String PREFIX = "jinsight.governor";
+  static final long INTERVAL_MILLIS = 1000;
+  static final int MAX_THROTTLE = 1024;
+
+  private final Map<String, Sampler> samplers;
+  private final double cpuBudget;
+  private final ToDoubleFunction<String> moduleCpuBudgets;
+  private final int processors;
+  private final MetricRegistry jinsightRegistry;
+  private final Map<String, ModuleGovernor> modules = new HashMap<>();
+  private volatile double totalOverhead;
+  private long lastRun = System.nanoTime();
+  private ScheduledExecutorService executor;
+
+  /**
+   * @param samplers the samplers of the modules, by module name, to which modules may be added later on
+   * @param cpuBudget the percentage of the CPU time the modules may spend together
+   * @param moduleCpuBudgets the percentage of the CPU time each module may spend
+   * @param processors the number of processors available to the JVM
+   */
+  OverheadGovernor(Map<String, Sampler> samplers, double cpuBudget, ToDoubleFunction<String> moduleCpuBudgets,
+      int processors, MetricRegistry jinsightRegistry) {
+    this.samplers = samplers;
+    this.cpuBudget = cpuBudget;
+    this.moduleCpuBudgets = moduleCpuBudgets;
+    this.processors = processors;
+    this.jinsightRegistry = jinsightRegistry;
+    jinsightRegistry.gauge(PREFIX + ".total_overhead", () -> () -> totalOverhead);
+  }
+
+  synchronized void start() {
+    if (executor != null) {
+      return;
+    }
+    executor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+      Thread thread = new Thread(runnable, "jinsight-overhead-governor");
+      thread.setDaemon(true);
+      return thread;
+    });
+    executor.scheduleWithFixedDelay(this::governSafely, INTERVAL_MILLIS, INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+  }
+
+  /**
+   * Stops governing, and restores the modules to their configured sampling.
+   */
+  synchronized void stop() {
+    if (executor == null) {
+      return;
+    }
+    executor.shutdown();
+    try {
+      executor.awaitTermination(1, TimeUnit.SECONDS);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    executor = null;
+    for (ModuleGovernor module : modules.values()) {
+      module.sampler.setGoverned(false);
+      module.sampler.setThrottle(1);
+    }
+  }
+
+  private void governSafely() {
+    try {
+      govern(System.nanoTime());
+    } catch (RuntimeException e) {
+      LOGGER.log(Level.SEVERE, "Error governing the overhead of the modules.", e);
+    }
+  }
+
+  /**
+   * Measures the overhead of the modules since the last run, and steps them down or up.
+   */
+  synchronized void govern(long now) {
+    samplers.forEach((name, sampler) -> modules.computeIfAbsent(name, n -> new ModuleGovernor(n, sampler)));
+    double nanosPerPercent = (now - lastRun) * (double) processors / 100;
+    if (nanosPerPercent <= 0) {
+      return;
+    }
+    lastRun = now;
+
+    double total = 0;
+    for (ModuleGovernor module : modules.values()) {
+      module.measure(nanosPerPercent);
+      total += module.overhead;
+    }
+    totalOverhead = total;
+
+    ModuleGovernor costliest = null;
+    for (ModuleGovernor module : modules.values()) {
+      double budget = moduleCpuBudgets.applyAsDouble(module.name);
+      int throttle = module.sampler.getThrottle();
+      if (module.overhead > budget) {
+        module.stepDown(budget);
+        continue;
+      }
+      if (throttle != 1) {
+        int stepUpThrottle = throttle == Sampler.SUSPENDED ? MAX_THROTTLE : throttle / 2;
+        double projected = module.projectedOverhead(stepUpThrottle, nanosPerPercent);
+        if (projected < budget / 2 && total - module.overhead + projected < cpuBudget / 2) {
+          module.stepUp(stepUpThrottle);
+          continue;
+        }
+      }
+      if (costliest == null || module.overhead > costliest.overhead) {
+        costliest = module;
+      }
+    }
+    if (total > cpuBudget && costliest != null && costliest.overhead > 0) {
+      costliest.stepDown(cpuBudget);
+    }
+  }
+
+  double getTotalOverhead() {
+    return totalOverhead;
+  }
+
+  private final class ModuleGovernor {
+
+    private final String name;
+    private final Sampler sampler;
+    private final Counter stepDowns;
+    private final Counter stepUps;
+    private long lastCalls;
+    private long lastTimedCalls;
+    private long lastOverheadNanos;
+    private long calls;
+    private double nanosPerTimedCall;
+    private volatile double overhead;
+
+    ModuleGovernor(String name, Sampler sampler) {
+      this.name = name;
+      this.sampler = sampler;
+      this.lastCalls = sampler.getCalls();
+      this.lastTimedCalls = sampler.getTimedCalls();
+      this.lastOverheadNanos = sampler.getOverheadNanos();
+      sampler.setGoverned(true);
+      TagEncodedMetricName prefix = TagEncodedMetricName.decode(PREFIX);
+      jinsightRegistry.gauge(prefix.submetric("overhead").withTags("module", name).toString(),
+          () -> () -> overhead);
+      jinsightRegistry.gauge(prefix.submetric("throttle").withTags("module", name).toString(),
+          () -> sampler::getThrottle);
+      stepDowns = jinsightRegistry.counter(prefix.submetric("step_downs").withTags("module", name).toString());
+      stepUps = jinsightRegistry.counter(prefix.submetric("step_ups").withTags("module", name).toString());
+    }
+
+    void measure(double nanosPerPercent) {
+      long totalCalls = sampler.getCalls();
+      long totalTimedCalls = sampler.getTimedCalls();
+      long totalOverheadNanos = sampler.getOverheadNanos();
+      long timedCalls = totalTimedCalls - lastTimedCalls;
+      long overheadNanos = totalOverheadNanos - lastOverheadNanos;
+      calls = totalCalls - lastCalls;
+      if (timedCalls > 0) {
+        nanosPerTimedCall = (double) overheadNanos / timedCalls;
+      }
+      overhead = overheadNanos / nanosPerPercent;
+      lastCalls = totalCalls;
+      lastTimedCalls = totalTimedCalls;
+      lastOverheadNanos = totalOverheadNanos;
+    }
+
+    /**
+     * @return the overhead the calls of the last interval would have had, with the module at the throttle
+     */
+    double projectedOverhead(int throttle, double nanosPerPercent) {
+      double timedCalls = calls / ((double) sampler.getRatio() * throttle);
+      return timedCalls * nanosPerTimedCall / nanosPerPercent;
+    }
+
+    void stepDown(double budget) {
+      int throttle = sampler.getThrottle();
+      if (throttle == Sampler.SUSPENDED) {
+        return;
+      }
+      int next = throttle >= MAX_THROTTLE ? Sampler.SUSPENDED : throttle * 2;
+      sampler.setThrottle(next);
+      stepDowns.inc();
+      LOGGER.warning(String.format("Timing the calls of [%s] took %.2f%% of the CPU, over a budget of %.2f%%. %s",
+          name, overhead, budget, next == Sampler.SUSPENDED ? "Suspending its timers."
+              : "Timing one in " + (long) sampler.getRatio() * next + " of its calls."));
+    }
+
+    void stepUp(int throttle) {
+      sampler.setThrottle(throttle);
+      stepUps.inc();
+      LOGGER.info("Timing one in " + (long) sampler.getRatio() * throttle + " of the calls of [" + name + "].");
+    }
+  }
+}
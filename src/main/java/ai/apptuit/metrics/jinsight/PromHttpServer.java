@@ -23,24 +23,31 @@ import io.prometheus.client.CollectorRegistry;
 import io.prometheus.client.exporter.HTTPServer;
 import io.prometheus.client.exporter.common.TextFormat;
 
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
 import java.io.OutputStreamWriter;
 import java.net.HttpURLConnection;
 import java.net.InetSocketAddress;
 import java.nio.charset.StandardCharsets;
 import java.util.Enumeration;
 import java.util.Set;
-import java.util.zip.GZIPOutputStream;
 
 
 public class PromHttpServer extends HTTPServer {
 
-  @SuppressWarnings("squid:S5164")
-  private static final ThreadLocal<ByteArrayOutputStream> THREAD_LOCAL_BUFFER = ThreadLocal
-      .withInitial(() -> new ByteArrayOutputStream(1 << 20));
+  private static final int HANDLER_THREADS = 5;
+
+  /**
+   * Scrape cache TTL that disables scrape coalescing: each request collects the metrics itself.
+   */
+  public static final long NO_COALESCING = -1;
 
   private CollectorRegistry registry;
+  private ApptuitDropwizardExports exports;
+  private ScrapeCoalescer coalescer;
+  private GzipCompression compression;
+  private ExporterMetrics exporterMetrics;
+  private BufferPool buffers = new BufferPool(HANDLER_THREADS, 1 << 16, false);
 
   /**
    * constructor for the PromHttpServer.
@@ -49,8 +56,47 @@ public class PromHttpServer extends HTTPServer {
   public PromHttpServer(InetSocketAddress address,
                         CollectorRegistry registry,
                         boolean daemon) throws IOException {
+    this(address, registry, null, daemon);
+  }
+
+  /**
+   * constructor for the PromHttpServer, that streams the metrics of the exports after those of the registry.
+   * The exports may also be registered with the registry, they are skipped while the registry is written.
+   */
+  public PromHttpServer(InetSocketAddress address,
+                        CollectorRegistry registry,
+                        ApptuitDropwizardExports exports,
+                        boolean daemon) throws IOException {
+    this(address, registry, exports, daemon, NO_COALESCING);
+  }
+
+  /**
+   * constructor for the PromHttpServer, that shares a scrape among the requests that arrive while it is in progress,
+   * and, if scrapeCacheTtlMillis is positive, among those that arrive within that many milliseconds after it.
+   *
+   * @param scrapeCacheTtlMillis how long a scrape is served after it completes, or {@link #NO_COALESCING}
+   */
+  public PromHttpServer(InetSocketAddress address,
+                        CollectorRegistry registry,
+                        ApptuitDropwizardExports exports,
+                        boolean daemon,
+                        long scrapeCacheTtlMillis) throws IOException {
+    this(address, registry, exports, daemon, scrapeCacheTtlMillis, GzipCompression.DEFAULT, new ExporterMetrics());
+  }
+
+  PromHttpServer(InetSocketAddress address,
+                 CollectorRegistry registry,
+                 ApptuitDropwizardExports exports,
+                 boolean daemon,
+                 long scrapeCacheTtlMillis,
+                 GzipCompression compression,
+                 ExporterMetrics exporterMetrics) throws IOException {
     super(address, registry, daemon);
     this.registry = registry;
+    this.exports = exports;
+    this.compression = compression;
+    this.exporterMetrics = exporterMetrics;
+    this.coalescer = scrapeCacheTtlMillis < 0 ? null : new ScrapeCoalescer(scrapeCacheTtlMillis, compression);
     this.server.removeContext("/");
     this.server.removeContext("/metrics");
   }
@@ -62,7 +108,7 @@ public class PromHttpServer extends HTTPServer {
    *                 returns the endPoint which is set
    */
   public String setContext(String endPoint) {
-    HttpHandler mHandler = new HttpMetricHandler(this.registry);
+    HttpHandler mHandler = new HttpMetricHandler(this);
     String tempEndPoint = endPoint;
 
     if (endPoint == null || endPoint.equals("")) {
@@ -72,23 +118,28 @@ public class PromHttpServer extends HTTPServer {
     return tempEndPoint;
   }
 
-  private static class HttpMetricHandler implements HttpHandler {
+  static Set<String> parseIncludedNames(String query) throws IOException {
+    return parseQuery(query);
+  }
 
-    private CollectorRegistry registry;
+  /**
+   * Writes the metrics of the registry, and then those of the exports, in the text format. The time spent reading
+   * the metrics of the exports is recorded as their collection time, the rest as the serialization time.
+   */
+  static void writeMetrics(OutputStream out, CollectorRegistry registry, ApptuitDropwizardExports exports,
+                           Set<String> includedNames, ExporterMetrics exporterMetrics) throws IOException {
+    long start = System.nanoTime();
+    long collectionNanos = writeMetrics(out, registry, exports, includedNames);
+    exporterMetrics.recordSerialization(System.nanoTime() - start - collectionNanos);
+  }
 
-    HttpMetricHandler(CollectorRegistry registry) {
-      this.registry = registry;
+  private static long writeMetrics(OutputStream out, CollectorRegistry registry, ApptuitDropwizardExports exports,
+                                   Set<String> includedNames) throws IOException {
+    OutputStreamWriter osw = new OutputStreamWriter(out, StandardCharsets.UTF_8);
+    if (exports != null) {
+      exports.beginRegistryPass();
     }
-
-
-    public void handle(HttpExchange t) throws IOException {
-      String query = t.getRequestURI().getRawQuery();
-
-      ByteArrayOutputStream baos = THREAD_LOCAL_BUFFER.get();
-      baos.reset();
-      OutputStreamWriter osw = new OutputStreamWriter(baos, StandardCharsets.UTF_8);
-
-      Set<String> includedNames = parseQuery(query);
+    try {
       Enumeration<MetricFamilySamples> mfs;
       if(includedNames.isEmpty()) {
         mfs = registry.metricFamilySamples();
@@ -96,26 +147,93 @@ public class PromHttpServer extends HTTPServer {
         mfs = registry.filteredMetricFamilySamples(includedNames);
       }
       TextFormat.write004(osw, mfs);
-      osw.flush();
-      osw.close();
-      baos.flush();
-      baos.close();
+    } finally {
+      if (exports != null) {
+        exports.endRegistryPass();
+      }
+    }
+    osw.flush();
+    if (exports != null) {
+      return exports.write(out, includedNames);
+    }
+    return 0;
+  }
+
+  private static class HttpMetricHandler implements HttpHandler {
+
+    private CollectorRegistry registry;
+    private ApptuitDropwizardExports exports;
+    private ScrapeCoalescer coalescer;
+    private GzipCompression compression;
+    private ExporterMetrics exporterMetrics;
+    private BufferPool buffers;
+
+    HttpMetricHandler(PromHttpServer server) {
+      this.registry = server.registry;
+      this.exports = server.exports;
+      this.coalescer = server.coalescer;
+      this.compression = server.compression;
+      this.exporterMetrics = server.exporterMetrics;
+      this.buffers = server.buffers;
+    }
+
+
+    public void handle(HttpExchange t) throws IOException {
+      exporterMetrics.scrapeStarted();
+      try {
+        scrape(t);
+      } finally {
+        exporterMetrics.scrapeFinished();
+      }
+    }
+
+    private void scrape(HttpExchange t) throws IOException {
+      String query = t.getRequestURI().getRawQuery();
+      Set<String> includedNames = parseQuery(query);
+      boolean gzip = shouldUseCompression(t);
 
       t.getResponseHeaders().set("Content-Type", TextFormat.CONTENT_TYPE_004);
-      if (shouldUseCompression(t)) {
+      if (gzip) {
         t.getResponseHeaders().set("Content-Encoding", "gzip");
-        t.sendResponseHeaders(HttpURLConnection.HTTP_OK, 0);
-        final GZIPOutputStream os = new GZIPOutputStream(t.getResponseBody());
-        baos.writeTo(os);
-        os.close();
-      } else {
-        t.getResponseHeaders().set("Content-Length", String.valueOf(baos.size()));
-        t.sendResponseHeaders(HttpURLConnection.HTTP_OK, baos.size());
-        baos.writeTo(t.getResponseBody());
+      }
+      if (coalescer != null) {
+        ScrapeCoalescer.Response response = coalescer.scrape(includedNames, this::writeMetrics);
+        byte[] body = gzip ? response.getGzippedBody() : response.getBody();
+        exporterMetrics.recordResponse(response.getBody().length, gzip ? body.length : -1);
+        sendResponse(t, body);
+        t.close();
+        return;
+      }
+
+      BufferPool.Buffer buffer = buffers.acquire();
+      try {
+        if (gzip) {
+          GzipCompression.GzipOutputStream gzipStream = compression.open(buffer);
+          writeMetrics(gzipStream, includedNames);
+          gzipStream.finish();
+          exporterMetrics.recordResponse(gzipStream.getUncompressedBytes(), buffer.size());
+        } else {
+          writeMetrics(buffer, includedNames);
+          exporterMetrics.recordResponse(buffer.size(), -1);
+        }
+        t.getResponseHeaders().set("Content-Length", String.valueOf(buffer.size()));
+        t.sendResponseHeaders(HttpURLConnection.HTTP_OK, buffer.size());
+        buffer.writeTo(t.getResponseBody());
+      } finally {
+        buffers.release(buffer);
       }
       t.close();
     }
+
+    private void writeMetrics(OutputStream out, Set<String> includedNames) throws IOException {
+      PromHttpServer.writeMetrics(out, registry, exports, includedNames, exporterMetrics);
+    }
+
+    private static void sendResponse(HttpExchange t, byte[] body) throws IOException {
+      t.getResponseHeaders().set("Content-Length", String.valueOf(body.length));
+      t.sendResponseHeaders(HttpURLConnection.HTTP_OK, body.length);
+      t.getResponseBody().write(body);
+    }
   }
 
 }
-
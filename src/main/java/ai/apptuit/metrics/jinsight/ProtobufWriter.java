@@ -0,0 +1,135 @@
+/*
+ * Copyright 2017 Agilx, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ai.apptuit.metrics.jinsight;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import java.util.Arrays;
+
+/**
+ * Writes a protobuf message in the wire format, field by field, without the dependency on protobuf. A nested message
+ * is written into a writer of its own, then into its parent with {@link #writeMessage(int, ProtobufWriter)}.
+ */
+final class ProtobufWriter {
+
+  private static final int WIRE_VARINT = 0;
+  private static final int WIRE_FIXED64 = 1;
+  private static final int WIRE_LENGTH_DELIMITED = 2;
+
+  private byte[] buffer = new byte[256];
+  private int position;
+
+  void writeString(int field, String value) {
+    byte[] bytes = value.getBytes(UTF_8);
+    writeTag(field, WIRE_LENGTH_DELIMITED);
+    writeVarint(bytes.length);
+    writeRaw(bytes, 0, bytes.length);
+  }
+
+  void writeMessage(int field, ProtobufWriter message) {
+    writeTag(field, WIRE_LENGTH_DELIMITED);
+    writeVarint(message.position);
+    writeRaw(message.buffer, 0, message.position);
+  }
+
+  /**
+   * Writes an int64, uint64, enum or bool field.
+   */
+  void writeVarint(int field, long value) {
+    writeTag(field, WIRE_VARINT);
+    writeVarint(value);
+  }
+
+  /**
+   * Writes a fixed64 or sfixed64 field.
+   */
+  void writeFixed64(int field, long value) {
+    writeTag(field, WIRE_FIXED64);
+    writeFixed64(value);
+  }
+
+  void writeDouble(int field, double value) {
+    writeFixed64(field, Double.doubleToRawLongBits(value));
+  }
+
+  void writePackedFixed64(int field, long[] values) {
+    writeTag(field, WIRE_LENGTH_DELIMITED);
+    writeVarint(values.length * 8L);
+    for (long value : values) {
+      writeFixed64(value);
+    }
+  }
+
+  void writePackedDoubles(int field, double[] values) {
+    writeTag(field, WIRE_LENGTH_DELIMITED);
+    writeVarint(values.length * 8L);
+    for (double value : values) {
+      writeFixed64(Double.doubleToRawLongBits(value));
+    }
+  }
+
+  /**
+   * Appends the fields written to the other writer, as fields of this message.
+   */
+  void append(ProtobufWriter fields) {
+    writeRaw(fields.buffer, 0, fields.position);
+  }
+
+  int size() {
+    return position;
+  }
+
+  byte[] toByteArray() {
+    return Arrays.copyOf(buffer, position);
+  }
+
+  void reset() {
+    position = 0;
+  }
+
+  private void writeTag(int field, int wireType) {
+    writeVarint(field << 3 | wireType);
+  }
+
+  private void writeVarint(long value) {
+    ensureCapacity(10);
+    while ((value & ~0x7FL) != 0) {
+      buffer[position++] = (byte) ((value & 0x7F) | 0x80);
+      value >>>= 7;
+    }
+    buffer[position++] = (byte) value;
+  }
+
+  private void writeFixed64(long value) {
+    ensureCapacity(8);
+    for (int i = 0; i < 8; i++) {
+      buffer[position++] = (byte) (value >>> (8 * i));
+    }
+  }
+
+  private void writeRaw(byte[] bytes, int offset, int length) {
+    ensureCapacity(length);
+    System.arraycopy(bytes, offset, buffer, position, length);
+    position += length;
+  }
+
+  private void ensureCapacity(int required) {
+    if (position + required > buffer.length) {
+      buffer = Arrays.copyOf(buffer, Math.max(buffer.length * 2, position + required));
+    }
+  }
+}
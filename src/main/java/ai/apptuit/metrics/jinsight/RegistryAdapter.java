@@ -0,0 +1,272 @@
+/*
+ * Copyright 2017 Agilx, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ai.apptuit.metrics.jinsight;
+
+import ai.apptuit.metrics.client.TagEncodedMetricName;
+import com.codahale.metrics.Counter;
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.Metric;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodType;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Exposes the meters of registries that are not Dropwizard-shaped as Dropwizard metrics, so that they can be merged
+ * into the aggregated registry. Supports Micrometer {@code MeterRegistry} and Prometheus {@code CollectorRegistry}.
+ *
+ * <p>These registries are loaded by the application's classloader, and are often shaded. So they are identified by
+ * the simple names of their classes, and read through {@link MethodHandle}s cached against their classes.
+ */
+abstract class RegistryAdapter {
+
+  private static final MethodType OBJECT_GETTER = MethodType.methodType(Object.class, Object.class);
+  private static final MethodType DOUBLE_GETTER = MethodType.methodType(double.class, Object.class);
+
+  private static final RegistryAdapter MICROMETER = new MicrometerAdapter();
+  private static final RegistryAdapter PROMETHEUS = new PrometheusAdapter();
+
+  /**
+   * @return the adapter to read the given registry, or null if the registry is not a Micrometer or Prometheus
+   *     registry, in which case it is expected to be Dropwizard-shaped
+   */
+  static RegistryAdapter forRegistry(Object registry) {
+    for (Class<?> type = registry.getClass(); type != null; type = type.getSuperclass()) {
+      String name = type.getSimpleName();
+      if (name.equals("MeterRegistry") && hasMethod(type, "getMeters")) {
+        return MICROMETER;
+      }
+      if (name.equals("CollectorRegistry") && hasMethod(type, "metricFamilySamples")) {
+        return PROMETHEUS;
+      }
+    }
+    return null;
+  }
+
+  private static boolean hasMethod(Class<?> type, String methodName) {
+    try {
+      type.getMethod(methodName);
+      return true;
+    } catch (NoSuchMethodException e) {
+      return false;
+    }
+  }
+
+  /**
+   * @param type one of the Dropwizard metric interfaces/classes: Gauge, Counter, Histogram, Meter or Timer
+   * @return the metrics of the given type, keyed by their tag encoded names
+   */
+  abstract <T extends Metric> Map<String, T> getMetrics(Object registry, Class<T> type);
+
+  /**
+   * Maps each meter to one metric per measurement it reports. A meter with a single measurement (counters, gauges)
+   * keeps its name, the measurements of other meters are named after their statistic, like
+   * {@code http.server.requests.total_time}. COUNT measurements are exposed as counters, the rest as gauges.
+   */
+  private static class MicrometerAdapter extends RegistryAdapter {
+
+    private static final String COUNT_STATISTIC = "COUNT";
+
+    private static final Accessor GET_METERS = new Accessor("getMeters", OBJECT_GETTER);
+    private static final Accessor GET_ID = new Accessor("getId", OBJECT_GETTER);
+    private static final Accessor MEASURE = new Accessor("measure", OBJECT_GETTER);
+    private static final Accessor GET_NAME = new Accessor("getName", OBJECT_GETTER);
+    private static final Accessor GET_TAGS = new Accessor("getTags", OBJECT_GETTER);
+    private static final Accessor GET_KEY = new Accessor("getKey", OBJECT_GETTER);
+    private static final Accessor GET_VALUE = new Accessor("getValue", OBJECT_GETTER);
+    private static final Accessor GET_STATISTIC = new Accessor("getStatistic", OBJECT_GETTER);
+    private static final Accessor GET_MEASUREMENT = new Accessor("getValue", DOUBLE_GETTER);
+
+    @Override
+    <T extends Metric> Map<String, T> getMetrics(Object registry, Class<T> type) {
+      boolean counters = type == Counter.class;
+      if (!counters && type != Gauge.class) {
+        return Collections.emptyMap();
+      }
+      Map<String, T> metrics = new HashMap<>();
+      for (Object meter : (Iterable<?>) GET_METERS.get(registry)) {
+        List<Object> measurements = new ArrayList<>();
+        for (Object measurement : (Iterable<?>) MEASURE.get(meter)) {
+          measurements.add(measurement);
+        }
+        TagEncodedMetricName name = null;
+        for (Object measurement : measurements) {
+          String statistic = ((Enum<?>) GET_STATISTIC.get(measurement)).name();
+          if (counters != statistic.equals(COUNT_STATISTIC)) {
+            continue;
+          }
+          if (name == null) {
+            name = getName(GET_ID.get(meter));
+          }
+          TagEncodedMetricName metricName = measurements.size() == 1 ? name
+              : name.submetric(statistic.toLowerCase(Locale.ROOT));
+          Metric metric = counters ? new MeasurementCounter(measurement) : new MeasurementGauge(measurement);
+          metrics.put(metricName.toString(), type.cast(metric));
+        }
+      }
+      return metrics;
+    }
+
+    private static TagEncodedMetricName getName(Object id) {
+      Map<String, String> tags = new HashMap<>();
+      for (Object tag : (Iterable<?>) GET_TAGS.get(id)) {
+        tags.put((String) GET_KEY.get(tag), (String) GET_VALUE.get(tag));
+      }
+      return TagEncodedMetricName.decode((String) GET_NAME.get(id)).withTags(tags);
+    }
+
+    private static class MeasurementGauge implements Gauge<Double> {
+
+      private final Object measurement;
+      private final MethodHandle getValue;
+
+      MeasurementGauge(Object measurement) {
+        this.measurement = measurement;
+        this.getValue = GET_MEASUREMENT.get(measurement.getClass());
+      }
+
+      @Override
+      public Double getValue() {
+        return invokeDouble(getValue, measurement);
+      }
+    }
+
+    private static class MeasurementCounter extends Counter {
+
+      private final Object measurement;
+      private final MethodHandle getValue;
+
+      MeasurementCounter(Object measurement) {
+        this.measurement = measurement;
+        this.getValue = GET_MEASUREMENT.get(measurement.getClass());
+      }
+
+      @Override
+      public void inc() {
+        throw new UnsupportedOperationException();
+      }
+
+      @Override
+      public void inc(long n) {
+        throw new UnsupportedOperationException();
+      }
+
+      @Override
+      public void dec() {
+        throw new UnsupportedOperationException();
+      }
+
+      @Override
+      public void dec(long n) {
+        throw new UnsupportedOperationException();
+      }
+
+      @Override
+      public long getCount() {
+        return (long) invokeDouble(getValue, measurement);
+      }
+    }
+  }
+
+  /**
+   * Maps each sample to a gauge, named after the sample and tagged with its labels. The samples are collected when
+   * the metrics are read, so the gauges hold the values as of that time.
+   */
+  private static class PrometheusAdapter extends RegistryAdapter {
+
+    private static final Accessor METRIC_FAMILY_SAMPLES = new Accessor("metricFamilySamples", OBJECT_GETTER);
+    private static final FieldAccessor SAMPLES = new FieldAccessor("samples", OBJECT_GETTER);
+    private static final FieldAccessor NAME = new FieldAccessor("name", OBJECT_GETTER);
+    private static final FieldAccessor LABEL_NAMES = new FieldAccessor("labelNames", OBJECT_GETTER);
+    private static final FieldAccessor LABEL_VALUES = new FieldAccessor("labelValues", OBJECT_GETTER);
+    private static final FieldAccessor VALUE = new FieldAccessor("value", DOUBLE_GETTER);
+
+    @Override
+    @SuppressWarnings("unchecked")
+    <T extends Metric> Map<String, T> getMetrics(Object registry, Class<T> type) {
+      if (type != Gauge.class) {
+        return Collections.emptyMap();
+      }
+      Map<String, T> metrics = new HashMap<>();
+      Enumeration<?> families = (Enumeration<?>) METRIC_FAMILY_SAMPLES.get(registry);
+      while (families.hasMoreElements()) {
+        for (Object sample : (List<?>) SAMPLES.get(families.nextElement())) {
+          List<String> labelNames = (List<String>) LABEL_NAMES.get(sample);
+          List<String> labelValues = (List<String>) LABEL_VALUES.get(sample);
+          Map<String, String> tags = new HashMap<>();
+          for (int i = 0; i < labelNames.size(); i++) {
+            tags.put(labelNames.get(i), labelValues.get(i));
+          }
+          String name = TagEncodedMetricName.decode((String) NAME.get(sample)).withTags(tags).toString();
+          double value = invokeDouble(VALUE.get(sample.getClass()), sample);
+          Gauge<Double> gauge = () -> value;
+          metrics.put(name, type.cast(gauge));
+        }
+      }
+      return metrics;
+    }
+  }
+
+  private static class Accessor extends ClassValue<MethodHandle> {
+
+    protected final String name;
+    protected final MethodType methodType;
+
+    Accessor(String methodName, MethodType methodType) {
+      this.name = methodName;
+      this.methodType = methodType;
+    }
+
+    @Override
+    protected MethodHandle computeValue(Class<?> type) {
+      return MetricAccessors.findMethod(type, name, methodType);
+    }
+
+    Object get(Object target) {
+      try {
+        return (Object) get(target.getClass()).invokeExact(target);
+      } catch (Throwable t) {
+        throw MetricAccessors.propagate(t);
+      }
+    }
+  }
+
+  private static class FieldAccessor extends Accessor {
+
+    FieldAccessor(String fieldName, MethodType methodType) {
+      super(fieldName, methodType);
+    }
+
+    @Override
+    protected MethodHandle computeValue(Class<?> type) {
+      return MetricAccessors.findField(type, name, methodType);
+    }
+  }
+
+  private static double invokeDouble(MethodHandle handle, Object target) {
+    try {
+      return (double) handle.invokeExact(target);
+    } catch (Throwable t) {
+      throw MetricAccessors.propagate(t);
+    }
+  }
+}
@@ -27,6 +27,7 @@ import io.prometheus.client.CollectorRegistry;
 import java.io.IOException;
 import java.net.InetSocketAddress;
 import java.net.URL;
+import java.util.List;
 import java.util.Map;
 import java.util.concurrent.TimeUnit;
 import java.util.logging.Level;
@@ -43,8 +44,9 @@ public class RegistryService {
 
   private static final Logger LOGGER = Logger.getLogger(RegistryService.class.getName());
   private static final RegistryService singleton = new RegistryService();
+  private static final String DEFAULT_API_URL = "https://api.apptuit.ai/api/put?sync=false";
 
-  private MetricRegistry registry = new MetricRegistry();
+  private MetricRegistry registry = new WeightedMetricRegistry();
   private Sanitizer sanitizer = null;
   private boolean initialized = false;
 
@@ -61,44 +63,173 @@ public class RegistryService {
   }
 
   private void initialize(ConfigService configService, ApptuitReporterFactory factory) {
+    List<ConfigService.ReporterType> reporterTypes = configService.getReporterTypes();
+    boolean nativeHistograms = configService.isNativeHistograms()
+        && (reporterTypes.contains(ConfigService.ReporterType.PROMETHEUS)
+        || reporterTypes.contains(ConfigService.ReporterType.PROMETHEUS_REMOTE_WRITE));
+    //OTLP exports timers as histograms, which need buckets
+    if (nativeHistograms || reporterTypes.contains(ConfigService.ReporterType.OTLP)) {
+      registry = new BucketedMetricRegistry(configService.getHistogramBuckets());
+    }
     registry.registerAll(new JvmMetricSet());
+    if (configService.isAsyncTimers()) {
+      TimingPipeline.getInstance().start(configService.getAsyncTimersBufferSize(),
+          configService.getAsyncTimersOverflowPolicy(), registry);
+    }
+    if (configService.getGovernorCpuBudget() > 0) {
+      new OverheadGovernor(configService.getSamplers(), configService.getGovernorCpuBudget(),
+          configService::getGovernorCpuBudget, Runtime.getRuntime().availableProcessors(), registry).start();
+    }
     String buildInfoMetricName = TagEncodedMetricName.decode("jinsight").submetric("build_info")
         .withTags("version", configService.getAgentVersion()).toString();
     registry.gauge(buildInfoMetricName, () -> () -> 1L);
     MetricRegistryCollection metricRegistryCollection = MetricRegistryCollection.getInstance();
-    metricRegistryCollection.initialize(registry);
+    metricRegistryCollection.initialize(registry, configService.isIncrementalAggregation(),
+        configService.isMergeDuplicateMetrics(), configService.getCollectionTimeout());
     startReportingOnRegistryCollection(configService, factory, metricRegistryCollection);
   }
 
+  /**
+   * Starts each of the configured reporters, on its own schedule. When there are several of them, they share the
+   * snapshots of the metrics, so that the registries are collected, and the gauges read, once for all of them.
+   */
   private void startReportingOnRegistryCollection(ConfigService configService,
       ApptuitReporterFactory factory, MetricRegistryCollection metricRegistryCollection) {
 
-    MetricRegistry aggregatedMetricRegistry = metricRegistryCollection.getAggregatedMetricRegistry();
-    ConfigService.ReporterType reporterType = configService.getReporterType();
-    if (reporterType == ConfigService.ReporterType.APPTUIT) {
-      ReportingMode mode = configService.getReportingMode();
-      sanitizer = configService.getSanitizer();
-      ScheduledReporter reporter = createReporter(factory, configService.getGlobalTags(),
-          configService.getApiToken(), configService.getApiUrl(), mode, aggregatedMetricRegistry);
-      reporter.start(configService.getReportingFrequency(), TimeUnit.MILLISECONDS);
-      initialized = true;
-    } else if (reporterType == ConfigService.ReporterType.PROMETHEUS) {
-      CollectorRegistry collectorRegistry = CollectorRegistry.defaultRegistry;
-      ApptuitDropwizardExports collector = new ApptuitDropwizardExports(aggregatedMetricRegistry,
-          new TagDecodingSampleBuilder(configService.getGlobalTags()));
-      collectorRegistry.register(collector);
-
-      try {
-        int port = configService.getPrometheusPort();
-        InetSocketAddress address = new InetSocketAddress(port);
-        PromHttpServer server = new PromHttpServer(address, collectorRegistry, true);
-        server.setContext(configService.getPrometheusMetricsPath());
+    MetricRegistry aggregatedRegistry = metricRegistryCollection.getAggregatedMetricRegistry();
+    MetricRegistry reportedRegistry = aggregatedRegistry;
+    List<ConfigService.ReporterType> reporterTypes = configService.getReporterTypes();
+    if (reporterTypes.size() > 1) {
+      reportedRegistry = new SnapshotRegistry(reportedRegistry, configService.getSnapshotInterval(), registry);
+    }
+    for (ConfigService.ReporterType reporterType : reporterTypes) {
+      //the StatsD reporter reads the counts of the live metrics, to send what changed since its last report
+      MetricRegistry registryToReport = reporterType == ConfigService.ReporterType.STATSD ? aggregatedRegistry
+          : reportedRegistry;
+      if (startReporter(reporterType, configService, factory, registryToReport)) {
         initialized = true;
-      } catch (IOException e) {
-        LOGGER.log(Level.SEVERE, "Error while creating http port.", e);
       }
-    } else {
-      throw new IllegalStateException();
+    }
+  }
+
+  /**
+   * @return true if the reporter was started
+   */
+  private boolean startReporter(ConfigService.ReporterType reporterType, ConfigService configService,
+      ApptuitReporterFactory factory, MetricRegistry reportedRegistry) {
+    switch (reporterType) {
+      case APPTUIT:
+        return startApptuitReporter(configService, factory, reportedRegistry);
+      case PROMETHEUS:
+        return startPrometheusExporter(configService, reportedRegistry);
+      case PROMETHEUS_REMOTE_WRITE:
+        return startRemoteWriteReporter(configService, reportedRegistry);
+      case OTLP:
+        return startOtlpReporter(configService, reportedRegistry);
+      case STATSD:
+        return startStatsdReporter(configService, reportedRegistry);
+      default:
+        throw new IllegalStateException();
+    }
+  }
+
+  private boolean startApptuitReporter(ConfigService configService, ApptuitReporterFactory factory,
+      MetricRegistry reportedRegistry) {
+    ReportingMode mode = configService.getReportingMode();
+    sanitizer = configService.getSanitizer();
+    URL apiUrl = configService.getApiUrl();
+    if (configService.isSpool() && mode == ReportingMode.API_PUT) {
+      apiUrl = startSpooling(configService, apiUrl);
+    }
+    if (configService.isChangedOnly()) {
+      reportedRegistry = new ChangedMetricsRegistry(reportedRegistry, configService.getFullRefreshInterval(),
+          registry);
+    }
+    ScheduledReporter reporter = createReporter(factory, configService.getGlobalTags(),
+        configService.getApiToken(), apiUrl, mode, reportedRegistry);
+    reporter.start(configService.getReportingFrequency(), TimeUnit.MILLISECONDS);
+    return true;
+  }
+
+  private boolean startPrometheusExporter(ConfigService configService, MetricRegistry reportedRegistry) {
+    CollectorRegistry collectorRegistry = CollectorRegistry.defaultRegistry;
+    TagDecodingSampleBuilder sampleBuilder = new TagDecodingSampleBuilder(configService.getGlobalTags(),
+        configService.getNameCacheSize());
+    registry.registerAll("jinsight.exporter.name_cache", sampleBuilder.getCacheMetrics());
+    ExporterMetrics exporterMetrics = new ExporterMetrics(registry);
+    ApptuitDropwizardExports exports = new ApptuitDropwizardExports(reportedRegistry, sampleBuilder,
+        exporterMetrics);
+    collectorRegistry.register(exports);
+
+    try {
+      int port = configService.getPrometheusPort();
+      InetSocketAddress address = new InetSocketAddress(port);
+      long scrapeCacheTtl = configService.isCoalesceScrapes() ? configService.getScrapeCacheTtl()
+          : PromHttpServer.NO_COALESCING;
+      GzipCompression compression = new GzipCompression(configService.getGzipLevel());
+      if (configService.isNioServer()) {
+        NioPromHttpServer server = new NioPromHttpServer(address, collectorRegistry, exports, true,
+            configService.getExporterThreads(), configService.isDirectBuffers(), scrapeCacheTtl, compression,
+            exporterMetrics);
+        server.setContext(configService.getPrometheusMetricsPath());
+      } else {
+        PromHttpServer server = new PromHttpServer(address, collectorRegistry, exports, true, scrapeCacheTtl,
+            compression, exporterMetrics);
+        server.setContext(configService.getPrometheusMetricsPath());
+      }
+      return true;
+    } catch (IOException e) {
+      LOGGER.log(Level.SEVERE, "Error while creating http port.", e);
+      return false;
+    }
+  }
+
+  private boolean startRemoteWriteReporter(ConfigService configService, MetricRegistry reportedRegistry) {
+    TagDecodingSampleBuilder sampleBuilder = new TagDecodingSampleBuilder(configService.getGlobalTags(),
+        configService.getNameCacheSize());
+    registry.registerAll("jinsight.remote_write.name_cache", sampleBuilder.getCacheMetrics());
+    ApptuitDropwizardExports exports = new ApptuitDropwizardExports(reportedRegistry, sampleBuilder);
+    RemoteWriteReporter reporter = new RemoteWriteReporter(configService.getRemoteWriteUrl(), exports,
+        configService.getRemoteWriteBatchSize(), configService.getRemoteWriteMaxInFlight(),
+        configService.getRemoteWriteMaxRetries(), registry);
+    reporter.start(configService.getReportingFrequency());
+    return true;
+  }
+
+  private boolean startOtlpReporter(ConfigService configService, MetricRegistry reportedRegistry) {
+    OtlpReporter reporter = new OtlpReporter(configService.getOtlpEndpoint(), reportedRegistry,
+        configService.getGlobalTags(), configService.getAgentVersion(), configService.getOtlpBatchSize(), registry);
+    reporter.start(configService.getReportingFrequency());
+    return true;
+  }
+
+  private boolean startStatsdReporter(ConfigService configService, MetricRegistry reportedRegistry) {
+    try {
+      InetSocketAddress address = new InetSocketAddress(configService.getStatsdHost(), configService.getStatsdPort());
+      StatsdReporter reporter = new StatsdReporter(address, reportedRegistry, configService.getGlobalTags(),
+          configService.isStatsdDogstatsdTags(), configService.getStatsdMaxPacketSize(), registry);
+      reporter.start(configService.getReportingFrequency());
+      return true;
+    } catch (IOException e) {
+      LOGGER.log(Level.SEVERE, "Error while creating the StatsD reporter.", e);
+      return false;
+    }
+  }
+
+  /**
+   * @return the URL of the forwarder that spools the batches the API does not accept, or the URL of the API if the
+   *     spool cannot be opened
+   */
+  private URL startSpooling(ConfigService configService, URL apiUrl) {
+    try {
+      URL upstream = apiUrl != null ? apiUrl : new URL(DEFAULT_API_URL);
+      SpoolFile spool = SpoolFile.open(configService.getSpoolDir(), "apptuit",
+          configService.getSpoolSizeMb() * 1024 * 1024);
+      return new SpoolingForwarder(upstream, spool, registry).getLocalUrl();
+    } catch (IOException e) {
+      LOGGER.log(Level.SEVERE, "Error opening the spool in [" + configService.getSpoolDir() + "]. "
+          + "Reporting without a spool.", e);
+      return apiUrl;
     }
   }
 
@@ -0,0 +1,89 @@
+/*
+ * Copyright 2017 Agilx, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ai.apptuit.metrics.jinsight;
+
+import com.codahale.metrics.MetricRegistry;
+import io.prometheus.client.Collector.MetricFamilySamples;
+import java.net.URL;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Pushes the metrics to a Prometheus remote write endpoint, for the JVMs that are not scraped, such as short-lived
+ * batch jobs. On each report, the samples are converted by {@link ApptuitDropwizardExports}, with the same names and
+ * labels as the Prometheus exporter, and sent in snappy-compressed protobuf {@code WriteRequest}s of a bounded number
+ * of samples.
+ */
+final class RemoteWriteReporter extends HttpPushReporter {
+
+  static final String PREFIX = "jinsight.remote_write";
+
+  private final ApptuitDropwizardExports exports;
+  private final int batchSize;
+  private final RemoteWriteRequest request = new RemoteWriteRequest();
+  private final SnappyCompression compression = new SnappyCompression();
+
+  /**
+   * @param batchSize maximum number of samples in a request
+   * @param maxInFlight maximum number of requests sent at the same time
+   * @param maxRetries number of times a request is retried, before it is dropped
+   * @param registry where the metrics of the reporter are published, under {@value #PREFIX}
+   */
+  RemoteWriteReporter(URL url, ApptuitDropwizardExports exports, int batchSize, int maxInFlight, int maxRetries,
+      MetricRegistry registry) {
+    this(url, exports, batchSize, maxInFlight, maxRetries, registry, MIN_BACKOFF_MILLIS);
+  }
+
+  RemoteWriteReporter(URL url, ApptuitDropwizardExports exports, int batchSize, int maxInFlight, int maxRetries,
+      MetricRegistry registry, long minBackoffMillis) {
+    super(url, "remote_write", headers(), maxInFlight, maxRetries, registry, minBackoffMillis);
+    this.exports = exports;
+    this.batchSize = batchSize;
+  }
+
+  private static Map<String, String> headers() {
+    Map<String, String> headers = new LinkedHashMap<>();
+    headers.put("Content-Type", "application/x-protobuf");
+    headers.put("Content-Encoding", "snappy");
+    headers.put("X-Prometheus-Remote-Write-Version", "0.1.0");
+    return headers;
+  }
+
+  @Override
+  synchronized void report() throws InterruptedException {
+    long timestamp = System.currentTimeMillis();
+    request.reset();
+    for (MetricFamilySamples family : exports.collect()) {
+      for (MetricFamilySamples.Sample sample : family.samples) {
+        request.addSeries(sample.name, sample.labelNames, sample.labelValues, sample.value, timestamp);
+        if (request.getSeriesCount() >= batchSize) {
+          submitRequest();
+        }
+      }
+    }
+    if (request.getSeriesCount() > 0) {
+      submitRequest();
+    }
+  }
+
+  private void submitRequest() throws InterruptedException {
+    byte[] body = request.compress(compression);
+    int samples = request.getSeriesCount();
+    request.reset();
+    submit(body, samples);
+  }
+}
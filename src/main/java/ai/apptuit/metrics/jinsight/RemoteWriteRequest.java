@@ -0,0 +1,174 @@
+/*
+ * Copyright 2017 Agilx, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ai.apptuit.metrics.jinsight;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Encodes a Prometheus remote write {@code WriteRequest}, in the protobuf wire format, one time series of one sample
+ * at a time, without the dependency on protobuf. The messages, and their field numbers, are:
+ *
+ * <pre>
+ * WriteRequest { repeated TimeSeries timeseries = 1; }
+ * TimeSeries   { repeated Label labels = 1; repeated Sample samples = 2; }
+ * Label        { string name = 1; string value = 2; }
+ * Sample       { double value = 1; int64 timestamp = 2; }
+ * </pre>
+ *
+ * <p>The labels of a series are written sorted by name, as remote write requires, with the metric name as the
+ * {@value #NAME_LABEL} label.
+ */
+final class RemoteWriteRequest {
+
+  static final String NAME_LABEL = "__name__";
+
+  private static final int WIRE_VARINT = 0;
+  private static final int WIRE_FIXED64 = 1;
+  private static final int WIRE_LENGTH_DELIMITED = 2;
+  private static final int TIMESERIES_TAG = 1 << 3 | WIRE_LENGTH_DELIMITED;
+  private static final int LABEL_TAG = 1 << 3 | WIRE_LENGTH_DELIMITED;
+  private static final int SAMPLE_TAG = 2 << 3 | WIRE_LENGTH_DELIMITED;
+  private static final int LABEL_NAME_TAG = 1 << 3 | WIRE_LENGTH_DELIMITED;
+  private static final int LABEL_VALUE_TAG = 2 << 3 | WIRE_LENGTH_DELIMITED;
+  private static final int SAMPLE_VALUE_TAG = 1 << 3 | WIRE_FIXED64;
+  private static final int SAMPLE_TIMESTAMP_TAG = 2 << 3 | WIRE_VARINT;
+  private static final Comparator<byte[][]> BY_NAME = (a, b) -> compare(a[0], b[0]);
+
+  private byte[] buffer = new byte[4096];
+  private int position;
+  private int seriesCount;
+
+  /**
+   * Adds a time series with a single sample.
+   */
+  void addSeries(String name, List<String> labelNames, List<String> labelValues, double value,
+      long timestampMillis) {
+    byte[][][] labels = new byte[labelNames.size() + 1][][];
+    labels[0] = new byte[][]{NAME_LABEL.getBytes(UTF_8), name.getBytes(UTF_8)};
+    for (int i = 0; i < labelNames.size(); i++) {
+      labels[i + 1] = new byte[][]{labelNames.get(i).getBytes(UTF_8), labelValues.get(i).getBytes(UTF_8)};
+    }
+    Arrays.sort(labels, BY_NAME);
+
+    int seriesLength = 0;
+    for (byte[][] label : labels) {
+      seriesLength += lengthDelimitedSize(labelSize(label));
+    }
+    int sampleSize = 1 + 8 + 1 + varintSize(timestampMillis);
+    seriesLength += lengthDelimitedSize(sampleSize);
+
+    ensureCapacity(lengthDelimitedSize(seriesLength));
+    writeVarint(TIMESERIES_TAG);
+    writeVarint(seriesLength);
+    for (byte[][] label : labels) {
+      writeVarint(LABEL_TAG);
+      writeVarint(labelSize(label));
+      writeBytes(LABEL_NAME_TAG, label[0]);
+      writeBytes(LABEL_VALUE_TAG, label[1]);
+    }
+    writeVarint(SAMPLE_TAG);
+    writeVarint(sampleSize);
+    writeVarint(SAMPLE_VALUE_TAG);
+    long bits = Double.doubleToRawLongBits(value);
+    for (int i = 0; i < 8; i++) {
+      buffer[position++] = (byte) (bits >>> (8 * i));
+    }
+    writeVarint(SAMPLE_TIMESTAMP_TAG);
+    writeVarint(timestampMillis);
+    seriesCount++;
+  }
+
+  int getSeriesCount() {
+    return seriesCount;
+  }
+
+  /**
+   * @return the encoded request, compressed
+   */
+  byte[] compress(SnappyCompression compression) {
+    byte[] compressed = new byte[SnappyCompression.maxCompressedLength(position)];
+    return Arrays.copyOf(compressed, compression.compress(buffer, position, compressed));
+  }
+
+  /**
+   * @return the encoded request
+   */
+  byte[] toByteArray() {
+    return Arrays.copyOf(buffer, position);
+  }
+
+  void reset() {
+    position = 0;
+    seriesCount = 0;
+  }
+
+  private static int labelSize(byte[][] label) {
+    return lengthDelimitedSize(label[0].length) + lengthDelimitedSize(label[1].length);
+  }
+
+  /**
+   * @return the size of a field of the given length, with its tag and length, for tags of a byte
+   */
+  private static int lengthDelimitedSize(int length) {
+    return 1 + varintSize(length) + length;
+  }
+
+  private static int varintSize(long value) {
+    int size = 1;
+    while ((value & ~0x7FL) != 0) {
+      value >>>= 7;
+      size++;
+    }
+    return size;
+  }
+
+  private static int compare(byte[] a, byte[] b) {
+    int length = Math.min(a.length, b.length);
+    for (int i = 0; i < length; i++) {
+      int diff = (a[i] & 0xFF) - (b[i] & 0xFF);
+      if (diff != 0) {
+        return diff;
+      }
+    }
+    return a.length - b.length;
+  }
+
+  private void ensureCapacity(int required) {
+    if (position + required > buffer.length) {
+      buffer = Arrays.copyOf(buffer, Math.max(buffer.length * 2, position + required));
+    }
+  }
+
+  private void writeBytes(int tag, byte[] bytes) {
+    writeVarint(tag);
+    writeVarint(bytes.length);
+    System.arraycopy(bytes, 0, buffer, position, bytes.length);
+    position += bytes.length;
+  }
+
+  private void writeVarint(long value) {
+    while ((value & ~0x7FL) != 0) {
+      buffer[position++] = (byte) ((value & 0x7F) | 0x80);
+      value >>>= 7;
+    }
+    buffer[position++] = (byte) value;
+  }
+}
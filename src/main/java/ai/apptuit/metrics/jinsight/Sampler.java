@@ -0,0 +1,258 @@
+/*
+ * Copyright 2017 Agilx, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ai.apptuit.metrics.jinsight;
+
+import java.util.Collections;
+import java.util.Set;
+import java.util.WeakHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Decides which calls of a module are timed, so that modules instrumenting very frequent calls only pay for the
+ * timers on some of them. A sampler times one call in N, picked at random, or adjusts N every second, from the calls
+ * of the previous second, to time about a given number of calls per second. The ratios are adjusted by a background
+ * thread, so that they follow the call rate down as well as up, even when no call is timed for a while.
+ *
+ * <p>A call timed out of N stands for N calls: that is the weight its duration is recorded with, in a
+ * {@link WeightedTimer}, so that the counts and rates of the timers are estimates of those of all the calls, and only
+ * the durations are sampled. Picking the calls at random, rather than every Nth, keeps the estimates unbiased for each
+ * of the timers of the module, whatever the order the calls come in.
+ *
+ * <p>The {@link OverheadGovernor} can throttle a sampler further, timing one call in N times the throttle, or suspend
+ * it, from the time the module spends timing its calls, which the helpers record into the sampler.
+ */
+public final class Sampler {
+
+  /**
+   * Times every call, of the operations begun without the sampler of a module. It is not governed.
+   */
+  public static final Sampler ALL = new Sampler(1, 0);
+
+  private static final Logger LOGGER = Logger.getLogger(Sampler.class.getName());
+  private static final long NANOS_PER_SECOND = TimeUnit.SECONDS.toNanos(1);
+  private static final Set<Sampler> RATE_SAMPLERS = Collections.synchronizedSet(
+      Collections.newSetFromMap(new WeakHashMap<>()));
+
+  /**
+   * The throttle of a suspended sampler, which times no call.
+   */
+  static final int SUSPENDED = 0;
+
+  private final int perSecond;
+  private final LongAdder calls = new LongAdder();
+  private final LongAdder timedCalls = new LongAdder();
+  private final LongAdder overheadNanos = new LongAdder();
+  //only read and written by the adjuster thread
+  private long windowStart = System.nanoTime();
+  private long windowStartCalls;
+  private volatile int oneIn;
+  private volatile int throttle = 1;
+  private volatile boolean governed;
+
+  private Sampler(int oneIn, int perSecond) {
+    this.oneIn = oneIn;
+    this.perSecond = perSecond;
+  }
+
+  public static Sampler oneIn(int n) {
+    if (n <= 0) {
+      throw new IllegalArgumentException("Sampling ratio must be positive");
+    }
+    return new Sampler(n, 0);
+  }
+
+  public static Sampler perSecond(int limit) {
+    if (limit <= 0) {
+      throw new IllegalArgumentException("Sampling rate must be positive");
+    }
+    Sampler sampler = new Sampler(1, limit);
+    RATE_SAMPLERS.add(sampler);
+    Adjuster.start();
+    return sampler;
+  }
+
+  /**
+   * @param sampling {@code 1/N} to time one call in N, or {@code N/s} to time about N calls per second
+   */
+  static Sampler parse(String sampling) {
+    String value = sampling.trim();
+    int slash = value.indexOf('/');
+    if (slash < 0) {
+      throw new IllegalArgumentException("Expected 1/N or N/s, got [" + sampling + "]");
+    }
+    String numerator = value.substring(0, slash).trim();
+    String denominator = value.substring(slash + 1).trim();
+    if (denominator.equals("s")) {
+      return perSecond(Integer.parseInt(numerator));
+    }
+    if (!numerator.equals("1")) {
+      throw new IllegalArgumentException("Expected 1/N or N/s, got [" + sampling + "]");
+    }
+    return oneIn(Integer.parseInt(denominator));
+  }
+
+  /**
+   * @return a sampler timing every call, until throttled, unlike {@link #ALL}, which is shared by the modules
+   */
+  static Sampler everyCall() {
+    return new Sampler(1, 0);
+  }
+
+  /**
+   * Called when a call begins, to decide whether it is timed.
+   *
+   * @return the number of calls the duration of this one is to be recorded for, or 0 if it is not timed
+   */
+  public long sample() {
+    if (this == ALL) {
+      return 1;
+    }
+    if (perSecond > 0 || governed) {
+      //the calls are only counted for those who read the count, the rate sampler and the governor
+      calls.increment();
+    }
+    int t = throttle;
+    if (t == SUSPENDED) {
+      return 0;
+    }
+    long n = (long) oneIn * t;
+    if (n > 1 && ThreadLocalRandom.current().nextLong(n) != 0) {
+      return 0;
+    }
+    return n;
+  }
+
+  /**
+   * Sets N from the calls since the last adjustment, to time about {@code perSecond} of them per second.
+   */
+  void adjustRatio(long now) {
+    long elapsed = now - windowStart;
+    if (elapsed <= 0) {
+      return;
+    }
+    long totalCalls = calls.sum();
+    double callsPerSecond = (totalCalls - windowStartCalls) * (double) NANOS_PER_SECOND / elapsed;
+    windowStart = now;
+    windowStartCalls = totalCalls;
+    oneIn = (int) Math.min(Integer.MAX_VALUE, Math.max(1, Math.ceil(callsPerSecond / perSecond)));
+  }
+
+  /**
+   * @return true if the {@link OverheadGovernor} watches the overhead of the module, which is then to be recorded
+   */
+  public boolean isGoverned() {
+    return governed;
+  }
+
+  void setGoverned(boolean governed) {
+    this.governed = governed;
+  }
+
+  /**
+   * Called once a timed call ended, with the time spent timing it: reading the clock, and resolving and updating the
+   * timer.
+   */
+  public void recordOverhead(long nanos) {
+    timedCalls.increment();
+    overheadNanos.add(nanos);
+  }
+
+  /**
+   * Called once a timed call began, with the time spent beginning it: looking up the operations of the thread,
+   * sampling the call, and reading the clock.
+   */
+  public void recordBeginOverhead(long nanos) {
+    overheadNanos.add(nanos);
+  }
+
+  /**
+   * @return the N of one call in N, currently, before the throttle
+   */
+  int getRatio() {
+    return oneIn;
+  }
+
+  /**
+   * @return the multiplier of N set by the governor, or {@link #SUSPENDED}
+   */
+  int getThrottle() {
+    return throttle;
+  }
+
+  void setThrottle(int throttle) {
+    this.throttle = throttle;
+  }
+
+  long getCalls() {
+    return calls.sum();
+  }
+
+  long getTimedCalls() {
+    return timedCalls.sum();
+  }
+
+  long getOverheadNanos() {
+    return overheadNanos.sum();
+  }
+
+  @Override
+  public String toString() {
+    return perSecond > 0 ? perSecond + "/s" : "1/" + oneIn;
+  }
+
+  /**
+   * Adjusts the ratios of the rate samplers every second, for as long as they are in use.
+   */
+  private static final class Adjuster {
+
+    private static ScheduledExecutorService executor;
+
+    /**
+     * Starts the adjuster, once, when the first rate sampler is created.
+     */
+    static synchronized void start() {
+      if (executor != null) {
+        return;
+      }
+      executor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "jinsight-sampler-adjuster");
+        thread.setDaemon(true);
+        return thread;
+      });
+      executor.scheduleAtFixedRate(Adjuster::adjustSafely, 1, 1, TimeUnit.SECONDS);
+    }
+
+    private static void adjustSafely() {
+      try {
+        long now = System.nanoTime();
+        synchronized (RATE_SAMPLERS) {
+          for (Sampler sampler : RATE_SAMPLERS) {
+            sampler.adjustRatio(now);
+          }
+        }
+      } catch (RuntimeException e) {
+        LOGGER.log(Level.SEVERE, "Error adjusting sampling ratios", e);
+      }
+    }
+  }
+}
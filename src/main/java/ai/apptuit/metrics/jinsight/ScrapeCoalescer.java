@@ -0,0 +1,172 @@
+/*
+ * Copyright 2017 Agilx, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ai.apptuit.metrics.jinsight;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Shares scrapes between concurrent requests for the same metrics. A request that arrives while a scrape is in flight
+ * waits for it, and gets the same response, instead of collecting the metrics again. With a TTL, the response is
+ * also served to the requests that arrive within the TTL after the scrape.
+ *
+ * <p>Responses are keyed by the metric names requested, so filtered scrapes are shared only with the requests for
+ * the same names.
+ */
+final class ScrapeCoalescer {
+
+  private static final int MAX_CACHED_RESPONSES = 16;
+
+  private final long ttlNanos;
+  private final GzipCompression compression;
+  private final Map<Set<String>, CompletableFuture<Response>> inFlight = new ConcurrentHashMap<>();
+  private final Map<Set<String>, Response> responses = new ConcurrentHashMap<>();
+
+  /**
+   * @param ttlMillis how long a response is served after its scrape, 0 to share only the scrapes in flight
+   */
+  ScrapeCoalescer(long ttlMillis) {
+    this(ttlMillis, GzipCompression.DEFAULT);
+  }
+
+  /**
+   * @param ttlMillis how long a response is served after its scrape, 0 to share only the scrapes in flight
+   * @param compression compresses the body of a response, once, for all the requests that accept gzip
+   */
+  ScrapeCoalescer(long ttlMillis, GzipCompression compression) {
+    if (ttlMillis < 0) {
+      throw new IllegalArgumentException("TTL cannot be negative: " + ttlMillis);
+    }
+    this.ttlNanos = TimeUnit.MILLISECONDS.toNanos(ttlMillis);
+    this.compression = compression;
+  }
+
+  /**
+   * @param includedNames the names of the metrics requested, empty for all
+   * @param scraper writes the metrics, if no scrape in flight or in the TTL can be shared
+   */
+  Response scrape(Set<String> includedNames, Scraper scraper) throws IOException {
+    Response response = responses.get(includedNames);
+    if (response != null && !response.isExpired(System.nanoTime())) {
+      return response;
+    }
+
+    CompletableFuture<Response> scrape = new CompletableFuture<>();
+    CompletableFuture<Response> sharedScrape = inFlight.putIfAbsent(includedNames, scrape);
+    if (sharedScrape != null) {
+      return await(sharedScrape);
+    }
+    try {
+      ByteArrayOutputStream body = new ByteArrayOutputStream(1 << 16);
+      scraper.scrape(body, includedNames);
+      response = new Response(body.toByteArray(), System.nanoTime() + ttlNanos, compression);
+      if (ttlNanos > 0) {
+        cache(includedNames, response);
+      }
+      scrape.complete(response);
+      return response;
+    } catch (IOException | RuntimeException | Error e) {
+      scrape.completeExceptionally(e);
+      throw e;
+    } finally {
+      inFlight.remove(includedNames, scrape);
+    }
+  }
+
+  private void cache(Set<String> includedNames, Response response) {
+    if (responses.size() >= MAX_CACHED_RESPONSES) {
+      long now = System.nanoTime();
+      responses.values().removeIf(cached -> cached.isExpired(now));
+      if (responses.size() >= MAX_CACHED_RESPONSES && !responses.containsKey(includedNames)) {
+        return;
+      }
+    }
+    responses.put(includedNames, response);
+  }
+
+  private static Response await(CompletableFuture<Response> scrape) throws IOException {
+    try {
+      return scrape.get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IOException("Interrupted waiting for a scrape in progress", e);
+    } catch (ExecutionException e) {
+      Throwable cause = e.getCause();
+      if (cause instanceof IOException) {
+        throw new IOException(cause.getMessage(), cause);
+      }
+      if (cause instanceof RuntimeException) {
+        throw (RuntimeException) cause;
+      }
+      if (cause instanceof Error) {
+        throw (Error) cause;
+      }
+      throw new IOException(cause);
+    }
+  }
+
+  interface Scraper {
+
+    void scrape(OutputStream out, Set<String> includedNames) throws IOException;
+  }
+
+  /**
+   * A scraped body, shared by all the requests it is served to. The gzipped body is computed on first use only.
+   */
+  static final class Response {
+
+    private final byte[] body;
+    private final long expiresAtNanos;
+    private final GzipCompression compression;
+    private volatile byte[] gzippedBody;
+
+    Response(byte[] body, long expiresAtNanos, GzipCompression compression) {
+      this.body = body;
+      this.expiresAtNanos = expiresAtNanos;
+      this.compression = compression;
+    }
+
+    byte[] getBody() {
+      return body;
+    }
+
+    byte[] getGzippedBody() {
+      byte[] gzipped = gzippedBody;
+      if (gzipped == null) {
+        synchronized (this) {
+          gzipped = gzippedBody;
+          if (gzipped == null) {
+            gzipped = compression.compress(body);
+            gzippedBody = gzipped;
+          }
+        }
+      }
+      return gzipped;
+    }
+
+    private boolean isExpired(long nowNanos) {
+      return nowNanos - expiresAtNanos >= 0;
+    }
+  }
+}
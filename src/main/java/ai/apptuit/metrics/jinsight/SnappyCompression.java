@@ -0,0 +1,137 @@
+/*
+ * Copyright 2017 Agilx, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ai.apptuit.metrics.jinsight;
+
+import java.util.Arrays;
+
+/**
+ * Compresses in the Snappy block format, the one Prometheus remote write expects, without the dependency on a Snappy
+ * library. The input is compressed in blocks of 64KB, finding matches of four bytes or more through a hash table of
+ * the positions last seen in the block. It compresses less than the reference implementation, which also skips
+ * ahead in data that does not compress, but its output can be read by any Snappy decoder.
+ */
+final class SnappyCompression {
+
+  private static final int BLOCK_SIZE = 1 << 16;
+  private static final int HASH_BITS = 14;
+  private static final int MIN_MATCH = 4;
+  private static final int MAX_COPY_LENGTH = 64;
+  private static final int TAG_LITERAL = 0x00;
+  private static final int TAG_COPY_2 = 0x02;
+
+  private final int[] table = new int[1 << HASH_BITS];
+
+  /**
+   * @return the size of a buffer large enough for the compressed form of the given number of bytes
+   */
+  static int maxCompressedLength(int length) {
+    return 32 + length + length / 6;
+  }
+
+  /**
+   * Compresses the input into the output, which must be at least {@link #maxCompressedLength(int)} long.
+   *
+   * @return the number of bytes written to the output
+   */
+  int compress(byte[] input, int length, byte[] output) {
+    int op = writeVarint(output, 0, length);
+    for (int blockStart = 0; blockStart < length; blockStart += BLOCK_SIZE) {
+      op = compressBlock(input, blockStart, Math.min(blockStart + BLOCK_SIZE, length), output, op);
+    }
+    return op;
+  }
+
+  private int compressBlock(byte[] input, int blockStart, int blockEnd, byte[] output, int op) {
+    Arrays.fill(table, -1);
+    int literalStart = blockStart;
+    int ip = blockStart;
+    while (ip <= blockEnd - MIN_MATCH) {
+      int current = readInt(input, ip);
+      int hash = (current * 0x1E35A7BD) >>> (32 - HASH_BITS);
+      int candidate = table[hash];
+      table[hash] = ip;
+      if (candidate < 0 || readInt(input, candidate) != current) {
+        ip++;
+        continue;
+      }
+      int matchLength = MIN_MATCH;
+      while (ip + matchLength < blockEnd && input[candidate + matchLength] == input[ip + matchLength]) {
+        matchLength++;
+      }
+      op = writeLiteral(input, literalStart, ip - literalStart, output, op);
+      op = writeCopy(ip - candidate, matchLength, output, op);
+      ip += matchLength;
+      literalStart = ip;
+    }
+    return writeLiteral(input, literalStart, blockEnd - literalStart, output, op);
+  }
+
+  private static int readInt(byte[] input, int index) {
+    return (input[index] & 0xFF) | (input[index + 1] & 0xFF) << 8 | (input[index + 2] & 0xFF) << 16
+        | (input[index + 3] & 0xFF) << 24;
+  }
+
+  private static int writeLiteral(byte[] input, int start, int length, byte[] output, int op) {
+    if (length == 0) {
+      return op;
+    }
+    int n = length - 1;
+    if (n < 60) {
+      output[op++] = (byte) (n << 2 | TAG_LITERAL);
+    } else if (n < 1 << 8) {
+      output[op++] = (byte) (60 << 2 | TAG_LITERAL);
+      output[op++] = (byte) n;
+    } else {
+      output[op++] = (byte) (61 << 2 | TAG_LITERAL);
+      output[op++] = (byte) n;
+      output[op++] = (byte) (n >>> 8);
+    }
+    System.arraycopy(input, start, output, op, length);
+    return op + length;
+  }
+
+  /**
+   * Writes copies of at most 64 bytes, leaving at least four bytes for the last one.
+   */
+  private static int writeCopy(int offset, int length, byte[] output, int op) {
+    while (length >= MAX_COPY_LENGTH + MIN_MATCH) {
+      op = writeCopy2(offset, MAX_COPY_LENGTH, output, op);
+      length -= MAX_COPY_LENGTH;
+    }
+    if (length > MAX_COPY_LENGTH) {
+      op = writeCopy2(offset, MAX_COPY_LENGTH - MIN_MATCH, output, op);
+      length -= MAX_COPY_LENGTH - MIN_MATCH;
+    }
+    return writeCopy2(offset, length, output, op);
+  }
+
+  private static int writeCopy2(int offset, int length, byte[] output, int op) {
+    output[op++] = (byte) ((length - 1) << 2 | TAG_COPY_2);
+    output[op++] = (byte) offset;
+    output[op++] = (byte) (offset >>> 8);
+    return op;
+  }
+
+  private static int writeVarint(byte[] output, int op, int value) {
+    while ((value & ~0x7F) != 0) {
+      output[op++] = (byte) ((value & 0x7F) | 0x80);
+      value >>>= 7;
+    }
+    output[op++] = (byte) value;
+    return op;
+  }
+}
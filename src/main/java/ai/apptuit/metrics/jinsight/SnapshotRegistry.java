@@ -0,0 +1,204 @@
+/*
+ * Copyright 2017 Agilx, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ai.apptuit.metrics.jinsight;
+
+import com.codahale.metrics.Counter;
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.Histogram;
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.Metric;
+import com.codahale.metrics.MetricFilter;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.Timer;
+import java.util.Collections;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.SortedSet;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A view of a registry that is shared by several reporters, each on its own schedule. The registry is collected at
+ * most once per snapshot interval, and the reporters that read the view in the meantime get the same snapshot: the
+ * same metrics, and the same value for each gauge, which is read once per snapshot.
+ *
+ * <p>Reporters that read the view while a snapshot is being collected wait for it, rather than collecting again.
+ *
+ * <p>A report reads the gauges, counters, histograms, meters and timers one after the other. The snapshot that the
+ * first of them is served from is kept for the thread until it has read all five types, or reads one of them again,
+ * so a report that straddles the expiry of a snapshot does not mix two of them.
+ */
+final class SnapshotRegistry extends MetricRegistry {
+
+  private static final Logger LOGGER = Logger.getLogger(SnapshotRegistry.class.getName());
+
+  static final String SNAPSHOTS_METRIC_NAME = "jinsight.reporter.snapshots";
+  static final String SNAPSHOT_READS_METRIC_NAME = "jinsight.reporter.snapshot_reads";
+
+  private static final int GAUGES = 1;
+  private static final int COUNTERS = 1 << 1;
+  private static final int HISTOGRAMS = 1 << 2;
+  private static final int METERS = 1 << 3;
+  private static final int TIMERS = 1 << 4;
+  private static final int ALL_TYPES = GAUGES | COUNTERS | HISTOGRAMS | METERS | TIMERS;
+
+  private final MetricRegistry delegate;
+  private final long intervalNanos;
+  private final Counter snapshots;
+  private final Counter snapshotReads;
+  private final ThreadLocal<Report> reports = ThreadLocal.withInitial(Report::new);
+  private Snapshot snapshot;
+
+  /**
+   * @param intervalMillis how long a snapshot is shared for
+   * @param jinsightRegistry where the number of snapshots, and of reads of them, is published
+   */
+  SnapshotRegistry(MetricRegistry delegate, long intervalMillis, MetricRegistry jinsightRegistry) {
+    this.delegate = delegate;
+    this.intervalNanos = TimeUnit.MILLISECONDS.toNanos(intervalMillis);
+    this.snapshots = jinsightRegistry.counter(SNAPSHOTS_METRIC_NAME);
+    this.snapshotReads = jinsightRegistry.counter(SNAPSHOT_READS_METRIC_NAME);
+  }
+
+  private synchronized Snapshot getSnapshot() {
+    long now = System.nanoTime();
+    if (snapshot == null || now - snapshot.collectedAt >= intervalNanos) {
+      snapshot = new Snapshot(now, delegate.getMetrics());
+      snapshots.inc();
+    }
+    snapshotReads.inc();
+    return snapshot;
+  }
+
+  /**
+   * @param type the type of metrics the calling thread reads
+   * @return the snapshot of the report the thread is in, or a new one if the thread already read that type
+   */
+  private Snapshot getReportSnapshot(int type) {
+    Report report = reports.get();
+    if (report.snapshot == null || (report.typesRead & type) != 0) {
+      report.snapshot = getSnapshot();
+      report.typesRead = 0;
+    }
+    Snapshot reportSnapshot = report.snapshot;
+    report.typesRead |= type;
+    if (report.typesRead == ALL_TYPES) {
+      report.snapshot = null;
+    }
+    return reportSnapshot;
+  }
+
+  @Override
+  @SuppressWarnings("rawtypes")
+  public SortedMap<String, Gauge> getGauges(MetricFilter filter) {
+    return filter(getReportSnapshot(GAUGES).gauges, filter);
+  }
+
+  @Override
+  public SortedMap<String, Counter> getCounters(MetricFilter filter) {
+    return filter(getReportSnapshot(COUNTERS).counters, filter);
+  }
+
+  @Override
+  public SortedMap<String, Histogram> getHistograms(MetricFilter filter) {
+    return filter(getReportSnapshot(HISTOGRAMS).histograms, filter);
+  }
+
+  @Override
+  public SortedMap<String, Meter> getMeters(MetricFilter filter) {
+    return filter(getReportSnapshot(METERS).meters, filter);
+  }
+
+  @Override
+  public SortedMap<String, Timer> getTimers(MetricFilter filter) {
+    return filter(getReportSnapshot(TIMERS).timers, filter);
+  }
+
+  @Override
+  public Map<String, Metric> getMetrics() {
+    return getSnapshot().metrics;
+  }
+
+  @Override
+  public SortedSet<String> getNames() {
+    return Collections.unmodifiableSortedSet(new TreeSet<>(getSnapshot().metrics.keySet()));
+  }
+
+  private static <T extends Metric> SortedMap<String, T> filter(SortedMap<String, T> metrics, MetricFilter filter) {
+    if (filter == MetricFilter.ALL) {
+      return Collections.unmodifiableSortedMap(metrics);
+    }
+    TreeMap<String, T> retVal = new TreeMap<>();
+    metrics.forEach((name, metric) -> {
+      if (filter.matches(name, metric)) {
+        retVal.put(name, metric);
+      }
+    });
+    return Collections.unmodifiableSortedMap(retVal);
+  }
+
+  private static final class Report {
+
+    private Snapshot snapshot;
+    private int typesRead;
+  }
+
+  @SuppressWarnings("rawtypes")
+  private static final class Snapshot {
+
+    private final long collectedAt;
+    private final Map<String, Metric> metrics;
+    private final SortedMap<String, Gauge> gauges = new TreeMap<>();
+    private final SortedMap<String, Counter> counters = new TreeMap<>();
+    private final SortedMap<String, Histogram> histograms = new TreeMap<>();
+    private final SortedMap<String, Meter> meters = new TreeMap<>();
+    private final SortedMap<String, Timer> timers = new TreeMap<>();
+
+    Snapshot(long collectedAt, Map<String, Metric> collected) {
+      this.collectedAt = collectedAt;
+      TreeMap<String, Metric> all = new TreeMap<>();
+      for (Map.Entry<String, Metric> entry : collected.entrySet()) {
+        String name = entry.getKey();
+        Metric metric = entry.getValue();
+        if (metric instanceof Gauge) {
+          Object value;
+          try {
+            value = ((Gauge) metric).getValue();
+          } catch (RuntimeException e) {
+            LOGGER.log(Level.SEVERE, "Error reading gauge [" + name + "]", e);
+            continue;
+          }
+          metric = new GaugeValue(value);
+          gauges.put(name, (Gauge) metric);
+        } else if (metric instanceof Counter) {
+          counters.put(name, (Counter) metric);
+        } else if (metric instanceof Histogram) {
+          histograms.put(name, (Histogram) metric);
+        } else if (metric instanceof Meter) {
+          meters.put(name, (Meter) metric);
+        } else if (metric instanceof Timer) {
+          timers.put(name, (Timer) metric);
+        }
+        all.put(name, metric);
+      }
+      this.metrics = Collections.unmodifiableMap(all);
+    }
+  }
+}
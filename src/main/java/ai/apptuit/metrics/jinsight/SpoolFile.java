@@ -0,0 +1,311 @@
+/*
+ * Copyright 2017 Agilx, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ai.apptuit.metrics.jinsight;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.util.logging.Logger;
+
+/**
+ * A FIFO of byte records in a memory-mapped file of a fixed size. When a record does not fit, the oldest records are
+ * dropped to make room for it. The positions of the queue are kept in the file, so the records survive a restart.
+ *
+ * <p>The file is a header followed by a ring of records, each a length and the bytes. A record is never split
+ * across the end of the ring: if it does not fit before the end, the rest of the ring is skipped, and marked as such
+ * with a length of -1 when there is room for it.
+ */
+final class SpoolFile implements Closeable {
+
+  private static final Logger LOGGER = Logger.getLogger(SpoolFile.class.getName());
+
+  private static final int MAGIC = 0x4A534631;
+  private static final int HEADER_SIZE = 32;
+  private static final int MAGIC_OFFSET = 0;
+  private static final int CAPACITY_OFFSET = 4;
+  private static final int HEAD_OFFSET = 8;
+  private static final int TAIL_OFFSET = 12;
+  private static final int COUNT_OFFSET = 16;
+  private static final int LENGTH_SIZE = 4;
+  private static final int WRAP_MARKER = -1;
+  private static final int MAX_FILES = 16;
+
+  private final File file;
+  private final int capacity;
+  private final RandomAccessFile randomAccessFile;
+  private final FileLock lock;
+  private final MappedByteBuffer buffer;
+  private int head;
+  private int tail;
+  private int count;
+  private long droppedRecords;
+  //number of records that left the head of the queue since the spool was opened
+  private long headSequence;
+
+  /**
+   * Opens the spool in the file, creating it if it does not exist. A file that is not a spool of the same capacity
+   * is discarded. The file is locked, for as long as it is open.
+   *
+   * @param capacity size of the ring of records, in bytes
+   * @throws IOException if the file cannot be opened, or is locked by another spool
+   */
+  SpoolFile(File file, int capacity) throws IOException {
+    if (capacity <= LENGTH_SIZE) {
+      throw new IllegalArgumentException("Spool capacity too small: " + capacity);
+    }
+    File dir = file.getAbsoluteFile().getParentFile();
+    if (dir != null && !dir.isDirectory() && !dir.mkdirs()) {
+      throw new IOException("Could not create spool directory [" + dir + "]");
+    }
+    this.file = file;
+    this.capacity = capacity;
+    this.randomAccessFile = new RandomAccessFile(file, "rw");
+    try {
+      FileChannel channel = randomAccessFile.getChannel();
+      this.lock = lock(channel);
+      boolean existing = channel.size() == HEADER_SIZE + (long) capacity;
+      this.buffer = channel.map(MapMode.READ_WRITE, 0, HEADER_SIZE + (long) capacity);
+      if (!existing || !load()) {
+        clear();
+      }
+    } catch (IOException | RuntimeException e) {
+      randomAccessFile.close();
+      throw e;
+    }
+  }
+
+  /**
+   * Opens the first spool, in the directory, that is not in use by another process. So that the spools of the
+   * processes that run from the same directory are not mixed, while a process that is restarted usually finds the
+   * spool it left.
+   */
+  static SpoolFile open(File dir, String name, int capacity) throws IOException {
+    IOException lastError = null;
+    for (int i = 0; i < MAX_FILES; i++) {
+      File file = new File(dir, i == 0 ? name + ".spool" : name + "-" + i + ".spool");
+      try {
+        return new SpoolFile(file, capacity);
+      } catch (IOException e) {
+        lastError = e;
+      }
+    }
+    throw lastError;
+  }
+
+  private FileLock lock(FileChannel channel) throws IOException {
+    FileLock fileLock;
+    try {
+      fileLock = channel.tryLock();
+    } catch (OverlappingFileLockException e) {
+      fileLock = null;
+    }
+    if (fileLock == null) {
+      throw new IOException("Spool [" + file + "] is in use");
+    }
+    return fileLock;
+  }
+
+  private boolean load() {
+    if (buffer.getInt(MAGIC_OFFSET) != MAGIC || buffer.getInt(CAPACITY_OFFSET) != capacity) {
+      return false;
+    }
+    head = buffer.getInt(HEAD_OFFSET);
+    tail = buffer.getInt(TAIL_OFFSET);
+    count = buffer.getInt(COUNT_OFFSET);
+    if (head < 0 || head > capacity || tail < 0 || tail > capacity || count < 0) {
+      LOGGER.warning("Discarding corrupt spool [" + file + "]");
+      return false;
+    }
+    return true;
+  }
+
+  private void clear() {
+    buffer.putInt(MAGIC_OFFSET, MAGIC);
+    buffer.putInt(CAPACITY_OFFSET, capacity);
+    headSequence += count;
+    head = 0;
+    tail = 0;
+    count = 0;
+    savePositions();
+  }
+
+  private void savePositions() {
+    buffer.putInt(HEAD_OFFSET, head);
+    buffer.putInt(TAIL_OFFSET, tail);
+    buffer.putInt(COUNT_OFFSET, count);
+  }
+
+  /**
+   * Appends the record, dropping the oldest records if there is no room for it.
+   *
+   * @return false if the record is larger than the spool, and was dropped
+   */
+  synchronized boolean append(byte[] record) {
+    int required = LENGTH_SIZE + record.length;
+    if (required > capacity) {
+      droppedRecords++;
+      return false;
+    }
+    int position;
+    while ((position = reserve(required)) < 0) {
+      skipHead();
+      droppedRecords++;
+    }
+    buffer.putInt(HEADER_SIZE + position, record.length);
+    ByteBuffer data = buffer.duplicate();
+    data.position(HEADER_SIZE + position + LENGTH_SIZE);
+    data.put(record);
+    tail = position + required;
+    count++;
+    savePositions();
+    return true;
+  }
+
+  /**
+   * @return where a record of the given size fits, or -1 if it does not
+   */
+  private int reserve(int required) {
+    if (count == 0) {
+      head = 0;
+      tail = 0;
+      return 0;
+    }
+    if (tail > head) {
+      if (capacity - tail >= required) {
+        return tail;
+      }
+      if (head >= required) {
+        if (capacity - tail >= LENGTH_SIZE) {
+          buffer.putInt(HEADER_SIZE + tail, WRAP_MARKER);
+        }
+        return 0;
+      }
+      return -1;
+    }
+    return head - tail >= required ? tail : -1;
+  }
+
+  /**
+   * @return the oldest record, or null if the spool is empty
+   */
+  synchronized byte[] peek() {
+    if (count == 0) {
+      return null;
+    }
+    int length = buffer.getInt(HEADER_SIZE + wrapHead());
+    if (length < 0 || length > capacity - head - LENGTH_SIZE) {
+      LOGGER.warning("Discarding corrupt spool [" + file + "]");
+      droppedRecords += count;
+      clear();
+      return null;
+    }
+    byte[] record = new byte[length];
+    ByteBuffer data = buffer.duplicate();
+    data.position(HEADER_SIZE + head + LENGTH_SIZE);
+    data.get(record);
+    return record;
+  }
+
+  /**
+   * Removes the oldest record, once it has been handled.
+   */
+  synchronized void remove() {
+    if (count > 0) {
+      skipHead();
+    }
+  }
+
+  /**
+   * Removes the oldest record, if it is still the one that was at the head of the queue when the sequence was read,
+   * and was not dropped in the meantime to make room for newer ones.
+   *
+   * @param sequence the {@link #getHeadSequence()} read with the record
+   * @return true if the record was removed
+   */
+  synchronized boolean remove(long sequence) {
+    if (count == 0 || sequence != headSequence) {
+      return false;
+    }
+    skipHead();
+    return true;
+  }
+
+  /**
+   * @return the number of records that left the head of the queue, which identifies the record at the head
+   */
+  synchronized long getHeadSequence() {
+    return headSequence;
+  }
+
+  private void skipHead() {
+    int length = buffer.getInt(HEADER_SIZE + wrapHead());
+    head += LENGTH_SIZE + Math.max(length, 0);
+    count--;
+    headSequence++;
+    if (count == 0) {
+      head = 0;
+      tail = 0;
+    }
+    savePositions();
+  }
+
+  private int wrapHead() {
+    if (capacity - head < LENGTH_SIZE || buffer.getInt(HEADER_SIZE + head) == WRAP_MARKER) {
+      head = 0;
+    }
+    return head;
+  }
+
+  synchronized int size() {
+    return count;
+  }
+
+  synchronized boolean isEmpty() {
+    return count == 0;
+  }
+
+  /**
+   * @return the bytes used by the records, including their lengths
+   */
+  synchronized int getUsedBytes() {
+    if (count == 0) {
+      return 0;
+    }
+    return tail > head ? tail - head : capacity - head + tail;
+  }
+
+  /**
+   * @return the number of records dropped, for being larger than the spool or to make room for newer ones
+   */
+  synchronized long getDroppedRecords() {
+    return droppedRecords;
+  }
+
+  @Override
+  public synchronized void close() throws IOException {
+    buffer.force();
+    lock.release();
+    randomAccessFile.close();
+  }
+}
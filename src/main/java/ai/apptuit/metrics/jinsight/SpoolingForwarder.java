@@ -0,0 +1,385 @@
+/*
+ * Copyright 2017 Agilx, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ai.apptuit.metrics.jinsight;
+
+import com.codahale.metrics.Counter;
+import com.codahale.metrics.MetricRegistry;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Sits between the Apptuit reporter and the Apptuit API, so that the batches of data points the API does not accept
+ * for a while are not lost. The reporter sends its batches to a loopback endpoint of the forwarder, which forwards
+ * them to the API. When the API cannot be reached, or fails with a 5xx or 429, the batch is appended to a
+ * {@link SpoolFile} and the reporter is told it was accepted. A batch too large for the spool is dropped, and the
+ * reporter is told the service is unavailable.
+ *
+ * <p>While the spool is not empty, new batches are appended to it too, so that the API receives all the batches in
+ * the order they were reported. A background thread replays the spool, one batch at a time, and backs off
+ * exponentially while the API keeps failing. Batches the API rejects with any other 4xx are dropped.
+ *
+ * <p>The Authorization header is not spooled: batches are replayed with the one of the latest request. The batches
+ * left in the spool by a previous run are only replayed once the reporter made its first request, and a batch the API
+ * does not authorize is kept and retried, as it is the token that is wrong, not the batch.
+ */
+final class SpoolingForwarder implements Closeable {
+
+  private static final Logger LOGGER = Logger.getLogger(SpoolingForwarder.class.getName());
+
+  static final String PREFIX = "jinsight.apptuit.spool";
+
+  private static final int CONNECT_TIMEOUT_MILLIS = 10_000;
+  private static final int READ_TIMEOUT_MILLIS = 30_000;
+  private static final long MIN_BACKOFF_MILLIS = 1000;
+  private static final long MAX_BACKOFF_MILLIS = 60_000;
+  private static final String AUTHORIZATION_HEADER = "Authorization";
+  private static final Set<String> SKIPPED_HEADERS = new HashSet<>(Arrays.asList(
+      "authorization", "host", "content-length", "connection", "transfer-encoding", "keep-alive", "expect"));
+
+  private final URL upstream;
+  private final SpoolFile spool;
+  private final HttpServer server;
+  private final ExecutorService handlerExecutor;
+  private final Thread replayThread;
+  private final ReentrantLock sendLock = new ReentrantLock();
+  private final Condition spooled = sendLock.newCondition();
+  private final Counter spooledBatches;
+  private final Counter replayedBatches;
+  private final Counter rejectedBatches;
+  private final long minBackoffMillis;
+  private volatile String authorization;
+  private volatile boolean closed = false;
+
+  /**
+   * @param upstream the URL of the Apptuit API the batches are forwarded to
+   * @param registry where the metrics of the spool are published, under {@value #PREFIX}
+   */
+  SpoolingForwarder(URL upstream, SpoolFile spool, MetricRegistry registry) throws IOException {
+    this(upstream, spool, registry, MIN_BACKOFF_MILLIS);
+  }
+
+  SpoolingForwarder(URL upstream, SpoolFile spool, MetricRegistry registry, long minBackoffMillis)
+      throws IOException {
+    this.upstream = upstream;
+    this.spool = spool;
+    this.minBackoffMillis = minBackoffMillis;
+    this.spooledBatches = registry.counter(PREFIX + ".spooled_batches");
+    this.replayedBatches = registry.counter(PREFIX + ".replayed_batches");
+    this.rejectedBatches = registry.counter(PREFIX + ".rejected_batches");
+    registry.gauge(PREFIX + ".pending_batches", () -> spool::size);
+    registry.gauge(PREFIX + ".used_bytes", () -> spool::getUsedBytes);
+    registry.gauge(PREFIX + ".dropped_batches", () -> spool::getDroppedRecords);
+
+    this.server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+    this.handlerExecutor = Executors.newSingleThreadExecutor(runnable -> {
+      Thread thread = new Thread(runnable, "jinsight-apptuit-forwarder");
+      thread.setDaemon(true);
+      return thread;
+    });
+    server.setExecutor(handlerExecutor);
+    server.createContext("/", this::handle);
+    server.start();
+
+    this.replayThread = new Thread(this::replay, "jinsight-apptuit-spool");
+    replayThread.setDaemon(true);
+    replayThread.start();
+  }
+
+  /**
+   * @return the URL the reporter should send its batches to, in place of the URL of the API
+   */
+  URL getLocalUrl() throws IOException {
+    String file = upstream.getFile().isEmpty() ? "/" : upstream.getFile();
+    return new URL("http", InetAddress.getLoopbackAddress().getHostAddress(), server.getAddress().getPort(), file);
+  }
+
+  private void handle(HttpExchange exchange) throws IOException {
+    try {
+      Batch batch = new Batch(exchange.getRequestMethod(), readHeaders(exchange.getRequestHeaders()),
+          readFully(exchange.getRequestBody()));
+      String requestAuthorization = exchange.getRequestHeaders().getFirst(AUTHORIZATION_HEADER);
+      if (requestAuthorization != null) {
+        authorization = requestAuthorization;
+      }
+
+      //only the decision to spool is made under the lock, not the sending: a replay in progress does not hold up
+      //the reporter while the API is slow to fail
+      Response response = null;
+      sendLock.lock();
+      try {
+        if (!spool.isEmpty()) {
+          response = spool(batch);
+        }
+      } finally {
+        sendLock.unlock();
+      }
+      if (response == null) {
+        response = send(batch);
+        if (Response.isRetryable(response)) {
+          response = spool(batch);
+        } else if (response.status >= 400) {
+          rejectedBatches.inc();
+        }
+      }
+      byte[] body = response.body;
+      exchange.sendResponseHeaders(response.status, body.length == 0 ? -1 : body.length);
+      if (body.length > 0) {
+        exchange.getResponseBody().write(body);
+      }
+    } catch (IOException | RuntimeException e) {
+      LOGGER.log(Level.SEVERE, "Error forwarding metrics to [" + upstream + "]", e);
+      exchange.sendResponseHeaders(HttpURLConnection.HTTP_INTERNAL_ERROR, -1);
+    } finally {
+      exchange.close();
+    }
+  }
+
+  /**
+   * @return the response to the reporter: accepted once spooled, or unavailable if the batch could not be spooled, for
+   *     the reporter to retry it
+   */
+  private Response spool(Batch batch) throws IOException {
+    sendLock.lock();
+    try {
+      if (!spool.append(batch.encode())) {
+        LOGGER.warning("Dropping metrics too large for the spool: " + batch.body.length + " bytes");
+        return new Response(HttpURLConnection.HTTP_UNAVAILABLE, new byte[0]);
+      }
+      spooledBatches.inc();
+      spooled.signal();
+      return new Response(HttpURLConnection.HTTP_NO_CONTENT, new byte[0]);
+    } finally {
+      sendLock.unlock();
+    }
+  }
+
+  private static List<String[]> readHeaders(Map<String, List<String>> requestHeaders) {
+    List<String[]> headers = new ArrayList<>();
+    for (Map.Entry<String, List<String>> header : requestHeaders.entrySet()) {
+      if (SKIPPED_HEADERS.contains(header.getKey().toLowerCase(Locale.ROOT))) {
+        continue;
+      }
+      for (String value : header.getValue()) {
+        headers.add(new String[]{header.getKey(), value});
+      }
+    }
+    return headers;
+  }
+
+  /**
+   * Replays the spool in order. Only one batch is in flight at a time, and the spool waits for as long as the API
+   * keeps failing, doubling the wait each time. The lock is not held while the batch is sent, so that new batches can
+   * be spooled meanwhile: the batch is only removed after, if it was not dropped to make room for newer ones.
+   */
+  private void replay() {
+    long backoffMillis = minBackoffMillis;
+    while (!closed) {
+      byte[] record;
+      long sequence;
+      sendLock.lock();
+      try {
+        record = spool.peek();
+        if (record == null || authorization == null) {
+          spooled.await();
+          continue;
+        }
+        sequence = spool.getHeadSequence();
+      } catch (InterruptedException e) {
+        return;
+      } finally {
+        sendLock.unlock();
+      }
+
+      Response response;
+      try {
+        response = send(Batch.decode(record));
+      } catch (IOException | RuntimeException e) {
+        LOGGER.log(Level.SEVERE, "Dropping unreadable spooled metrics", e);
+        spool.remove(sequence);
+        continue;
+      }
+      if (Response.isRetryable(response)) {
+        try {
+          Thread.sleep(backoffMillis);
+        } catch (InterruptedException e) {
+          return;
+        }
+        backoffMillis = Math.min(backoffMillis * 2, MAX_BACKOFF_MILLIS);
+        continue;
+      }
+      spool.remove(sequence);
+      if (response.status >= 400) {
+        rejectedBatches.inc();
+        LOGGER.warning("Dropping spooled metrics rejected by [" + upstream + "]: HTTP " + response.status);
+      } else {
+        replayedBatches.inc();
+      }
+      backoffMillis = minBackoffMillis;
+    }
+  }
+
+  /**
+   * @return the response of the API, or null if it could not be reached
+   */
+  private Response send(Batch batch) {
+    HttpURLConnection connection = null;
+    try {
+      connection = (HttpURLConnection) upstream.openConnection();
+      connection.setConnectTimeout(CONNECT_TIMEOUT_MILLIS);
+      connection.setReadTimeout(READ_TIMEOUT_MILLIS);
+      connection.setRequestMethod(batch.method);
+      for (String[] header : batch.headers) {
+        connection.addRequestProperty(header[0], header[1]);
+      }
+      String currentAuthorization = authorization;
+      if (currentAuthorization != null) {
+        connection.setRequestProperty(AUTHORIZATION_HEADER, currentAuthorization);
+      }
+      connection.setDoOutput(true);
+      connection.setFixedLengthStreamingMode(batch.body.length);
+      try (OutputStream out = connection.getOutputStream()) {
+        out.write(batch.body);
+      }
+      int status = connection.getResponseCode();
+      InputStream in = status >= 400 ? connection.getErrorStream() : connection.getInputStream();
+      return new Response(status, in != null ? readFully(in) : new byte[0]);
+    } catch (IOException e) {
+      LOGGER.log(Level.FINE, "Could not send metrics to [" + upstream + "]", e);
+      return null;
+    } finally {
+      if (connection != null) {
+        connection.disconnect();
+      }
+    }
+  }
+
+  private static byte[] readFully(InputStream in) throws IOException {
+    try (InputStream input = in) {
+      ByteArrayOutputStream out = new ByteArrayOutputStream();
+      byte[] buffer = new byte[8192];
+      int length;
+      while ((length = input.read(buffer)) != -1) {
+        out.write(buffer, 0, length);
+      }
+      return out.toByteArray();
+    }
+  }
+
+  @Override
+  public void close() throws IOException {
+    closed = true;
+    server.stop(0);
+    handlerExecutor.shutdownNow();
+    replayThread.interrupt();
+    try {
+      replayThread.join(TimeUnit.SECONDS.toMillis(5));
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    spool.close();
+  }
+
+  private static final class Response {
+
+    private final int status;
+    private final byte[] body;
+
+    Response(int status, byte[] body) {
+      this.status = status;
+      this.body = body;
+    }
+
+    /**
+     * @param response the response of the API, or null if it could not be reached
+     */
+    static boolean isRetryable(Response response) {
+      return response == null || response.status >= 500 || response.status == 429
+          || response.status == HttpURLConnection.HTTP_UNAUTHORIZED
+          || response.status == HttpURLConnection.HTTP_FORBIDDEN;
+    }
+  }
+
+  /**
+   * A request of the reporter, as spooled: its method, headers and body.
+   */
+  static final class Batch {
+
+    private final String method;
+    private final List<String[]> headers;
+    private final byte[] body;
+
+    Batch(String method, List<String[]> headers, byte[] body) {
+      this.method = method;
+      this.headers = headers;
+      this.body = body;
+    }
+
+    byte[] encode() throws IOException {
+      ByteArrayOutputStream bytes = new ByteArrayOutputStream(body.length + 256);
+      DataOutputStream out = new DataOutputStream(bytes);
+      out.writeUTF(method);
+      out.writeShort(headers.size());
+      for (String[] header : headers) {
+        out.writeUTF(header[0]);
+        out.writeUTF(header[1]);
+      }
+      out.writeInt(body.length);
+      out.write(body);
+      out.flush();
+      return bytes.toByteArray();
+    }
+
+    static Batch decode(byte[] record) throws IOException {
+      DataInputStream in = new DataInputStream(new ByteArrayInputStream(record));
+      String method = in.readUTF();
+      int headerCount = in.readUnsignedShort();
+      List<String[]> headers = new ArrayList<>(headerCount);
+      for (int i = 0; i < headerCount; i++) {
+        headers.add(new String[]{in.readUTF(), in.readUTF()});
+      }
+      byte[] body = new byte[in.readInt()];
+      in.readFully(body);
+      return new Batch(method, headers, body);
+    }
+  }
+}
@@ -0,0 +1,332 @@
+/*
+ * Copyright 2017 Agilx, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ai.apptuit.metrics.jinsight;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import ai.apptuit.metrics.client.TagEncodedMetricName;
+import com.codahale.metrics.Counter;
+import com.codahale.metrics.Counting;
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.Histogram;
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.Metric;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.Sampling;
+import com.codahale.metrics.Snapshot;
+import com.codahale.metrics.Timer;
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Sends the metrics to a StatsD agent, over UDP, as many lines as fit in a datagram of at most the configured size.
+ *
+ * <p>The metrics are aggregated in process, by the metrics themselves, and each report only sends what happened
+ * since the previous one:
+ * <ul>
+ * <li>counters and meters are StatsD counters of the change in their count, sent when it changed</li>
+ * <li>gauges with a number or boolean value are StatsD gauges, sent on each report</li>
+ * <li>timers and histograms that recorded values are a {@code .count} counter of the values recorded, and
+ * {@code .mean}, {@code .p50}, {@code .p95}, {@code .p99} and {@code .max} gauges of their snapshot, with the
+ * durations of timers in milliseconds</li>
+ * </ul>
+ *
+ * <p>The reporter reads the metrics straight from the registry, rather than from a copy of it, and keeps the encoded
+ * name and tags of each metric between reports. Tags are sent in the DogStatsD format, with the global tags, or for
+ * plain StatsD agents, appended to the name as {@code .key.value} segments, without the global tags.
+ *
+ * <p>Datagrams are sent without blocking: one that does not fit in the send buffer of the socket is dropped, and
+ * counted by the {@code dropped_packets} counter, under {@value #PREFIX}. A line that is larger than a datagram on
+ * its own, because of the length of its name and tags, is never sent, and is counted by the {@code dropped_lines}
+ * counter.
+ */
+final class StatsdReporter implements Closeable {
+
+  private static final Logger LOGGER = Logger.getLogger(StatsdReporter.class.getName());
+
+  static final String PREFIX = "jinsight.statsd";
+
+  private static final double NANOS_PER_MILLI = TimeUnit.MILLISECONDS.toNanos(1);
+  private static final String[] QUANTILE_SUFFIXES = {".p50", ".p95", ".p99"};
+  private static final double[] QUANTILES = {0.5, 0.95, 0.99};
+
+  private final InetSocketAddress address;
+  private final MetricRegistry metrics;
+  private final Map<String, String> globalTags;
+  private final boolean dogstatsdTags;
+  private final DatagramChannel channel;
+  private final ByteBuffer packet;
+  private final Map<String, ReportedMetric> reported = new HashMap<>();
+  private final ScheduledExecutorService scheduler;
+  private final AtomicBoolean closed = new AtomicBoolean();
+  private final Counter sentPackets;
+  private final Counter droppedPackets;
+  private final Counter sentLines;
+  private final Counter droppedLines;
+  private boolean oversizeLineLogged;
+  private byte[] line = new byte[256];
+  private int lineLength;
+
+  /**
+   * @param dogstatsdTags if true, the tags are sent in the DogStatsD format, else they are appended to the name
+   * @param maxPacketSize maximum size of a datagram, the MTU of the path to the agent less the IP and UDP headers
+   * @param registry where the metrics of the reporter are published, under {@value #PREFIX}
+   */
+  StatsdReporter(InetSocketAddress address, MetricRegistry metrics, Map<String, String> globalTags,
+      boolean dogstatsdTags, int maxPacketSize, MetricRegistry registry) throws IOException {
+    if (address.isUnresolved()) {
+      throw new IOException("Could not resolve the StatsD host [" + address.getHostString() + "]");
+    }
+    this.address = address;
+    this.metrics = metrics;
+    this.globalTags = globalTags;
+    this.dogstatsdTags = dogstatsdTags;
+    this.channel = DatagramChannel.open();
+    this.channel.configureBlocking(false);
+    this.packet = ByteBuffer.allocate(maxPacketSize);
+    this.sentPackets = registry.counter(PREFIX + ".sent_packets");
+    this.droppedPackets = registry.counter(PREFIX + ".dropped_packets");
+    this.sentLines = registry.counter(PREFIX + ".sent_lines");
+    this.droppedLines = registry.counter(PREFIX + ".dropped_lines");
+    this.scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+      Thread thread = new Thread(runnable, "jinsight-statsd-reporter");
+      thread.setDaemon(true);
+      return thread;
+    });
+  }
+
+  /**
+   * Reports every period, and once more when the JVM shuts down.
+   */
+  void start(long periodMillis) {
+    scheduler.scheduleAtFixedRate(this::reportSafely, periodMillis, periodMillis, TimeUnit.MILLISECONDS);
+    Runtime.getRuntime().addShutdownHook(new Thread(this::close, "jinsight-statsd-flush"));
+  }
+
+  private void reportSafely() {
+    try {
+      report();
+    } catch (RuntimeException e) {
+      LOGGER.log(Level.SEVERE, "Error reporting metrics to StatsD [" + address + "]", e);
+    }
+  }
+
+  synchronized void report() {
+    for (Map.Entry<String, Metric> entry : metrics.getMetrics().entrySet()) {
+      ReportedMetric metric = reported.get(entry.getKey());
+      if (metric == null) {
+        metric = new ReportedMetric(entry.getKey());
+        reported.put(entry.getKey(), metric);
+      }
+      metric.seen = true;
+      try {
+        addMetric(metric, entry.getValue());
+      } catch (RuntimeException e) {
+        LOGGER.log(Level.SEVERE, "Error reading metric [" + entry.getKey() + "]", e);
+      }
+    }
+    reported.values().removeIf(metric -> !metric.seen);
+    reported.values().forEach(metric -> metric.seen = false);
+    flush();
+  }
+
+  private void addMetric(ReportedMetric reportedMetric, Metric metric) {
+    if (metric instanceof Gauge) {
+      Object value = ((Gauge<?>) metric).getValue();
+      if (value instanceof Number) {
+        addGauge(reportedMetric, null, ((Number) value).doubleValue());
+      } else if (value instanceof Boolean) {
+        addGauge(reportedMetric, null, ((Boolean) value) ? 1 : 0);
+      }
+      return;
+    }
+    if (!(metric instanceof Counting)) {
+      return;
+    }
+    long count = ((Counting) metric).getCount();
+    long change = count - reportedMetric.lastCount;
+    reportedMetric.lastCount = count;
+    if (change == 0) {
+      return;
+    }
+    if (metric instanceof Counter || metric instanceof Meter) {
+      addLine(reportedMetric, null, Long.toString(change), 'c');
+    } else if (metric instanceof Timer || metric instanceof Histogram) {
+      double factor = metric instanceof Timer ? 1 / NANOS_PER_MILLI : 1;
+      Snapshot snapshot = ((Sampling) metric).getSnapshot();
+      addLine(reportedMetric, ".count", Long.toString(change), 'c');
+      addGauge(reportedMetric, ".mean", snapshot.getMean() * factor);
+      for (int i = 0; i < QUANTILES.length; i++) {
+        addGauge(reportedMetric, QUANTILE_SUFFIXES[i], snapshot.getValue(QUANTILES[i]) * factor);
+      }
+      addGauge(reportedMetric, ".max", snapshot.getMax() * factor);
+    }
+  }
+
+  private void addGauge(ReportedMetric metric, String suffix, double value) {
+    if (Double.isNaN(value) || Double.isInfinite(value)) {
+      return;
+    }
+    if (value < 0 && !dogstatsdTags) {
+      //a signed value changes a StatsD gauge, rather than setting it
+      addLine(metric, suffix, "0", 'g');
+    }
+    addLine(metric, suffix, value == (long) value ? Long.toString((long) value) : Double.toString(value), 'g');
+  }
+
+  /**
+   * Adds a {@code name[suffix]:value|type[|#tags]} line to the datagram, sending the datagram first if the line does
+   * not fit. A line that does not fit in an empty datagram either is dropped.
+   */
+  private void addLine(ReportedMetric metric, String suffix, String value, char type) {
+    lineLength = 0;
+    appendToLine(metric.name);
+    if (suffix != null) {
+      appendToLine(suffix);
+    }
+    appendToLine(":");
+    appendToLine(value);
+    appendToLine("|");
+    appendToLine(String.valueOf(type));
+    appendToLine(metric.tags);
+
+    if (lineLength > packet.capacity()) {
+      droppedLines.inc();
+      if (!oversizeLineLogged) {
+        oversizeLineLogged = true;
+        LOGGER.warning("Dropping [" + new String(metric.name, UTF_8) + "], and any other line larger than "
+            + "statsd.max_packet_size (" + packet.capacity() + " bytes), counted by " + PREFIX + ".dropped_lines");
+      }
+      return;
+    }
+    int separator = packet.position() > 0 ? 1 : 0;
+    if (packet.position() + separator + lineLength > packet.capacity()) {
+      flush();
+      separator = 0;
+    }
+    if (separator > 0) {
+      packet.put((byte) '\n');
+    }
+    packet.put(line, 0, lineLength);
+    sentLines.inc();
+  }
+
+  private void appendToLine(String value) {
+    appendToLine(value.getBytes(UTF_8));
+  }
+
+  private void appendToLine(byte[] bytes) {
+    if (lineLength + bytes.length > line.length) {
+      line = Arrays.copyOf(line, Math.max(line.length * 2, lineLength + bytes.length));
+    }
+    System.arraycopy(bytes, 0, line, lineLength, bytes.length);
+    lineLength += bytes.length;
+  }
+
+  private void flush() {
+    if (packet.position() == 0) {
+      return;
+    }
+    packet.flip();
+    send(packet);
+    packet.clear();
+  }
+
+  private void send(ByteBuffer datagram) {
+    try {
+      if (channel.send(datagram, address) > 0) {
+        sentPackets.inc();
+        return;
+      }
+    } catch (IOException e) {
+      LOGGER.log(Level.FINE, "Could not send metrics to StatsD [" + address + "]", e);
+    }
+    droppedPackets.inc();
+  }
+
+  /**
+   * Stops reporting, after a last report.
+   */
+  @Override
+  public void close() {
+    if (!closed.compareAndSet(false, true)) {
+      return;
+    }
+    scheduler.shutdown();
+    try {
+      scheduler.awaitTermination(1, TimeUnit.SECONDS);
+      report();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    } catch (RuntimeException e) {
+      LOGGER.log(Level.SEVERE, "Error reporting metrics to StatsD [" + address + "]", e);
+    }
+    try {
+      channel.close();
+    } catch (IOException e) {
+      LOGGER.log(Level.FINE, e.toString(), e);
+    }
+  }
+
+  /**
+   * Replaces the characters that separate the fields of a StatsD line.
+   */
+  private static String sanitize(String value) {
+    return value.replaceAll("[:|@#,\\s]", "_");
+  }
+
+  private final class ReportedMetric {
+
+    private final byte[] name;
+    private final byte[] tags;
+    private long lastCount;
+    private boolean seen;
+
+    ReportedMetric(String dropwizardName) {
+      TagEncodedMetricName decoded = TagEncodedMetricName.decode(dropwizardName);
+      StringBuilder name = new StringBuilder(sanitize(decoded.getMetricName()));
+      StringBuilder tags = new StringBuilder();
+      if (dogstatsdTags) {
+        Map<String, String> allTags = new TreeMap<>(globalTags);
+        allTags.putAll(decoded.getTags());
+        for (Map.Entry<String, String> tag : allTags.entrySet()) {
+          tags.append(tags.length() == 0 ? "|#" : ",")
+              .append(sanitize(tag.getKey())).append(':').append(sanitize(tag.getValue()));
+        }
+      } else {
+        for (Map.Entry<String, String> tag : new TreeMap<>(decoded.getTags()).entrySet()) {
+          name.append('.').append(sanitize(tag.getKey())).append('.').append(sanitize(tag.getValue()));
+        }
+      }
+      this.name = name.toString().getBytes(UTF_8);
+      this.tags = tags.toString().getBytes(UTF_8);
+    }
+  }
+}
@@ -17,6 +17,9 @@
 package ai.apptuit.metrics.jinsight;
 
 import ai.apptuit.metrics.client.TagEncodedMetricName;
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.Metric;
+import com.codahale.metrics.MetricSet;
 import io.prometheus.client.Collector;
 import io.prometheus.client.dropwizard.samplebuilder.SampleBuilder;
 import java.util.ArrayList;
@@ -35,11 +38,21 @@ import java.util.Set;
  */
 public class TagDecodingSampleBuilder implements SampleBuilder {
 
-    private final PrometheusTimeSeriesNameCache cache = new PrometheusTimeSeriesNameCache(250000);
+    static final int DEFAULT_CACHE_CAPACITY = 250000;
+
+    private final TimeSeriesNameCache<PrometheusTimeSeriesName> cache;
     private final Map<String, String> globalTags;
 
     public TagDecodingSampleBuilder(Map<String, String> globalTags) {
+        this(globalTags, DEFAULT_CACHE_CAPACITY);
+    }
+
+    /**
+     * @param cacheCapacity maximum number of time series names cached, 0 to disable the cache
+     */
+    public TagDecodingSampleBuilder(Map<String, String> globalTags, int cacheCapacity) {
         this.globalTags = globalTags;
+        this.cache = cacheCapacity > 0 ? new TimeSeriesNameCache<>(cacheCapacity, this::loadTimeSeriesName) : null;
     }
 
     @Override
@@ -49,8 +62,15 @@ public class TagDecodingSampleBuilder implements SampleBuilder {
             final List<String> additionalLabelValues,
             final double value) {
         PrometheusTimeSeriesName timeSeries;
-        timeSeries = cache.getPrometheusTimeSeriesName(dropwizardName, nameSuffix, additionalLabelNames,
-                additionalLabelValues);
+        if (cache != null && (additionalLabelNames == null || additionalLabelNames.size() <= 1)) {
+            boolean labelled = additionalLabelNames != null && additionalLabelNames.size() == 1;
+            timeSeries = cache.get(dropwizardName, nameSuffix,
+                    labelled ? additionalLabelNames.get(0) : null,
+                    labelled ? additionalLabelValues.get(0) : null);
+        } else {
+            timeSeries = new PrometheusTimeSeriesName(dropwizardName, nameSuffix, additionalLabelNames,
+                    additionalLabelValues);
+        }
 
         return new Collector.MetricFamilySamples.Sample(
                 timeSeries.metricName,
@@ -59,58 +79,30 @@ public class TagDecodingSampleBuilder implements SampleBuilder {
                 value);
     }
 
-    private class PrometheusTimeSeriesNameCache {
-
-        private Map<String, PrometheusTimeSeriesName> cachedTSNs = null;
-
-        public PrometheusTimeSeriesNameCache(int capacity) {
-            if (capacity > 0) {
-                cachedTSNs = Collections.synchronizedMap(
-                        new LRUCache<>(capacity));
-            }
+    /**
+     * Hits, misses and evictions of the time series name cache, and the number of names it holds. The hit ratio and
+     * evictions tell whether the cache capacity fits the number of time series exported.
+     *
+     * @return the cache metrics, none if the cache is disabled
+     */
+    public MetricSet getCacheMetrics() {
+        Map<String, Metric> metrics = new LinkedHashMap<>();
+        if (cache != null) {
+            metrics.put("hits", (Gauge<Long>) cache::getHits);
+            metrics.put("misses", (Gauge<Long>) cache::getMisses);
+            metrics.put("evictions", (Gauge<Long>) cache::getEvictions);
+            metrics.put("size", (Gauge<Integer>) cache::size);
         }
-
-        private PrometheusTimeSeriesName getPrometheusTimeSeriesName(String dropwizardName, String nameSuffix,
-                List<String> additionalLabelNames, List<String> additionalLabelValues) {
-            PrometheusTimeSeriesName timeSeries;
-            if (cachedTSNs != null && (additionalLabelNames == null || additionalLabelNames.size() <= 1)) {
-                String cacheKey = dropwizardName;
-                if (nameSuffix != null) {
-                    cacheKey += "\n" + nameSuffix;
-                }
-                if (additionalLabelNames != null && additionalLabelNames.size() == 1) {
-                    cacheKey += "\n" + additionalLabelNames.get(0);
-                    cacheKey += "\n" + additionalLabelValues.get(0);
-                }
-                timeSeries = cachedTSNs.get(cacheKey);
-                if (timeSeries == null) {
-                    timeSeries = new PrometheusTimeSeriesName(dropwizardName, nameSuffix, additionalLabelNames,
-                            additionalLabelValues);
-                    cachedTSNs.put(cacheKey, timeSeries);
-                }
-            } else {
-                timeSeries = new PrometheusTimeSeriesName(dropwizardName, nameSuffix, additionalLabelNames,
-                        additionalLabelValues);
-            }
-            return timeSeries;
-        }
-
+        return () -> metrics;
     }
 
-    private static class LRUCache<K, V> extends LinkedHashMap<K, V> {
-
-        private final int capacity;
-
-        public LRUCache(int capacity) {
-            super(capacity + 1, 1.0f, true);
-            this.capacity = capacity;
-        }
-
-        @Override
-        protected boolean removeEldestEntry(Map.Entry<K, V> eldest) {
-            return (size() > this.capacity);
+    private PrometheusTimeSeriesName loadTimeSeriesName(String dropwizardName, String nameSuffix, String labelName,
+            String labelValue) {
+        if (labelName == null) {
+            return new PrometheusTimeSeriesName(dropwizardName, nameSuffix, null, null);
         }
-
+        return new PrometheusTimeSeriesName(dropwizardName, nameSuffix, Collections.singletonList(labelName),
+                Collections.singletonList(labelValue));
     }
 
     private class PrometheusTimeSeriesName {
@@ -0,0 +1,329 @@
+/*
+ * Copyright 2017 Agilx, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ai.apptuit.metrics.jinsight;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A bounded cache of the time series a Dropwizard metric name maps to, for each name suffix and additional label.
+ *
+ * <p>The cache is split into segments by metric name. Lookups do not lock: they find the entry of the metric name,
+ * and then scan its few variants, comparing the suffix and label to the cached ones. So no composite key is built.
+ * Additions and evictions lock their segment only.
+ *
+ * <p>When a segment is full, the victim is picked with the CLOCK algorithm. It is evicted only if the new metric
+ * name has been looked up more often than the victim, as estimated by a count-min sketch of recent lookups (the
+ * TinyLFU admission policy). So a burst of one-off names does not flush the names that are scraped every time.
+ * A name that is not admitted is still resolved, just not cached.
+ *
+ * @param <V> type of the cached time series
+ */
+final class TimeSeriesNameCache<V> {
+
+  private static final int MAX_SEGMENTS = 16;
+  private static final int MIN_SEGMENT_CAPACITY = 1024;
+
+  private final Segment[] segments;
+  private final int segmentMask;
+  private final Loader<V> loader;
+  private final FrequencySketch sketch;
+  private final LongAdder hits = new LongAdder();
+  private final LongAdder misses = new LongAdder();
+  private final LongAdder evictions = new LongAdder();
+
+  /**
+   * @param capacity maximum number of time series cached
+   */
+  @SuppressWarnings("unchecked")
+  TimeSeriesNameCache(int capacity, Loader<V> loader) {
+    if (capacity <= 0) {
+      throw new IllegalArgumentException("Capacity must be positive: " + capacity);
+    }
+    int segmentCount = 1;
+    while (segmentCount < MAX_SEGMENTS && segmentCount * MIN_SEGMENT_CAPACITY < capacity) {
+      segmentCount <<= 1;
+    }
+    this.segments = (Segment[]) new TimeSeriesNameCache<?>.Segment[segmentCount];
+    for (int i = 0; i < segmentCount; i++) {
+      int segmentCapacity = capacity / segmentCount + (i < capacity % segmentCount ? 1 : 0);
+      segments[i] = new Segment(Math.max(segmentCapacity, 1));
+    }
+    this.segmentMask = segmentCount - 1;
+    this.loader = loader;
+    this.sketch = new FrequencySketch(capacity);
+  }
+
+  V get(String name, String suffix, String labelName, String labelValue) {
+    int hash = spread(name.hashCode());
+    sketch.increment(hash);
+    Segment segment = segments[(hash >>> 16) & segmentMask];
+    Node<V> node = segment.nodes.get(name);
+    if (node != null) {
+      V value = node.find(suffix, labelName, labelValue);
+      if (value != null) {
+        if (!node.referenced) {
+          node.referenced = true;
+        }
+        hits.increment();
+        return value;
+      }
+    }
+    misses.increment();
+    V value = loader.load(name, suffix, labelName, labelValue);
+    segment.add(new Variant<>(suffix, labelName, labelValue, value), name, hash);
+    return value;
+  }
+
+  long getHits() {
+    return hits.sum();
+  }
+
+  long getMisses() {
+    return misses.sum();
+  }
+
+  /**
+   * @return the number of time series evicted to make room for others
+   */
+  long getEvictions() {
+    return evictions.sum();
+  }
+
+  /**
+   * @return the number of time series cached
+   */
+  int size() {
+    int size = 0;
+    for (Segment segment : segments) {
+      size += segment.weight;
+    }
+    return size;
+  }
+
+  private static int spread(int hash) {
+    int h = hash * 0x9E3779B9;
+    return h ^ (h >>> 16);
+  }
+
+  interface Loader<V> {
+
+    V load(String name, String suffix, String labelName, String labelValue);
+  }
+
+  private static final class Variant<V> {
+
+    private final String suffix;
+    private final String labelName;
+    private final String labelValue;
+    private final V value;
+
+    Variant(String suffix, String labelName, String labelValue, V value) {
+      this.suffix = suffix;
+      this.labelName = labelName;
+      this.labelValue = labelValue;
+      this.value = value;
+    }
+
+    boolean matches(String suffix, String labelName, String labelValue) {
+      return Objects.equals(this.suffix, suffix) && Objects.equals(this.labelName, labelName)
+          && Objects.equals(this.labelValue, labelValue);
+    }
+  }
+
+  /**
+   * The variants of a metric name. The variants are replaced, never modified, so lookups can read them without
+   * locking.
+   */
+  private static final class Node<V> {
+
+    private final String name;
+    private final int hash;
+    private volatile Variant<V>[] variants;
+    private volatile boolean referenced;
+    private int clockIndex;
+
+    @SuppressWarnings("unchecked")
+    Node(String name, int hash) {
+      this.name = name;
+      this.hash = hash;
+      this.variants = new Variant[0];
+    }
+
+    V find(String suffix, String labelName, String labelValue) {
+      for (Variant<V> variant : variants) {
+        if (variant.matches(suffix, labelName, labelValue)) {
+          return variant.value;
+        }
+      }
+      return null;
+    }
+  }
+
+  private final class Segment extends ReentrantLock {
+
+    private final ConcurrentHashMap<String, Node<V>> nodes = new ConcurrentHashMap<>();
+    private final List<Node<V>> clock = new ArrayList<>();
+    private final int capacity;
+    private int hand;
+    private volatile int weight;
+
+    Segment(int capacity) {
+      this.capacity = capacity;
+    }
+
+    void add(Variant<V> variant, String name, int hash) {
+      lock();
+      try {
+        Node<V> node = nodes.get(name);
+        if (node != null && node.find(variant.suffix, variant.labelName, variant.labelValue) != null) {
+          return;
+        }
+        if (!makeRoom(node, hash)) {
+          return;
+        }
+        if (node == null) {
+          node = new Node<>(name, hash);
+          node.clockIndex = clock.size();
+          clock.add(node);
+          nodes.put(name, node);
+        }
+        Variant<V>[] variants = Arrays.copyOf(node.variants, node.variants.length + 1);
+        variants[variants.length - 1] = variant;
+        node.variants = variants;
+        weight++;
+      } finally {
+        unlock();
+      }
+    }
+
+    /**
+     * Evicts names until there is room for one more variant. The variants of a name that is already cached are
+     * always admitted, new names only if they are more frequent than each victim.
+     *
+     * @param owner the node the variant is added to, or null if it is a new name
+     * @return false if the variant is not admitted
+     */
+    private boolean makeRoom(Node<V> owner, int hash) {
+      while (weight >= capacity) {
+        Node<V> victim = nextVictim(owner);
+        if (victim == null || (owner == null && sketch.frequency(hash) <= sketch.frequency(victim.hash))) {
+          return false;
+        }
+        remove(victim);
+      }
+      return true;
+    }
+
+    private Node<V> nextVictim(Node<V> owner) {
+      for (int i = 0; i < 2 * clock.size(); i++) {
+        if (hand >= clock.size()) {
+          hand = 0;
+        }
+        Node<V> node = clock.get(hand++);
+        if (node == owner) {
+          continue;
+        }
+        if (node.referenced) {
+          node.referenced = false;
+          continue;
+        }
+        return node;
+      }
+      return null;
+    }
+
+    private void remove(Node<V> node) {
+      nodes.remove(node.name);
+      Node<V> last = clock.remove(clock.size() - 1);
+      if (last != node) {
+        last.clockIndex = node.clockIndex;
+        clock.set(node.clockIndex, last);
+      }
+      weight -= node.variants.length;
+      evictions.add(node.variants.length);
+    }
+  }
+
+  /**
+   * Estimates how often each hash was seen recently, in 4-bit counters packed in longs, with four counters per hash.
+   * All counters are halved periodically, so that the estimates follow the recent lookups. Concurrent updates may be
+   * lost, which only makes the estimates a little less accurate.
+   */
+  private static final class FrequencySketch {
+
+    private static final long[] SEEDS = {
+        0xc3a5c85c97cb3127L, 0xb492b66fbe98f273L, 0x9ae16a3b2f90404fL, 0xcbf29ce484222325L};
+    private static final long RESET_MASK = 0x7777777777777777L;
+
+    private final long[] table;
+    private final int tableMask;
+    private final int sampleSize;
+    private int additions;
+
+    FrequencySketch(int capacity) {
+      int length = Integer.highestOneBit(Math.max(capacity, 64) - 1) << 1;
+      this.table = new long[Math.min(length, 1 << 24)];
+      this.tableMask = table.length - 1;
+      this.sampleSize = (int) Math.min(10L * capacity, Integer.MAX_VALUE);
+    }
+
+    int frequency(int hash) {
+      int frequency = Integer.MAX_VALUE;
+      for (int i = 0; i < SEEDS.length; i++) {
+        long h = indexHash(hash, i);
+        int index = (int) h & tableMask;
+        int offset = ((int) (h >>> 40) & 15) << 2;
+        frequency = Math.min(frequency, (int) ((table[index] >>> offset) & 15L));
+      }
+      return frequency;
+    }
+
+    void increment(int hash) {
+      boolean added = false;
+      for (int i = 0; i < SEEDS.length; i++) {
+        long h = indexHash(hash, i);
+        int index = (int) h & tableMask;
+        int offset = ((int) (h >>> 40) & 15) << 2;
+        if (((table[index] >>> offset) & 15L) != 15L) {
+          table[index] += 1L << offset;
+          added = true;
+        }
+      }
+      if (added && ++additions >= sampleSize) {
+        reset();
+      }
+    }
+
+    private static long indexHash(int hash, int i) {
+      long h = (hash + SEEDS[i]) * SEEDS[i];
+      return h + (h >>> 32);
+    }
+
+    private void reset() {
+      additions = 0;
+      for (int i = 0; i < table.length; i++) {
+        table[i] = (table[i] >>> 1) & RESET_MASK;
+      }
+    }
+  }
+}
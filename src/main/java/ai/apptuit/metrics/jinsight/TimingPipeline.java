@@ -0,0 +1,268 @@
+/*
+ * Copyright 2017 Agilx, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ai.apptuit.metrics.jinsight;
+
+import com.codahale.metrics.Counter;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.Timer;
+import java.lang.ref.WeakReference;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Records the durations the instrumentation measures into their timers. Until it is started, the timers are updated
+ * on the calling thread. Once started, each thread writes the timer and the duration into a ring buffer of its own,
+ * which takes a few nanoseconds and no lock, and an aggregator thread drains the buffers into the timers, so that the
+ * application threads do not pay for the meters and reservoirs of the timers.
+ *
+ * <p>The timer itself is the id of the metric in the buffer: it is resolved once, by the instrumentation, and not
+ * looked up again. A duration recorded when the buffer of the thread is full, because the aggregator fell behind, is
+ * dropped and counted, or updates the timer on the calling thread, as set by the {@link OverflowPolicy}.
+ */
+public final class TimingPipeline {
+
+  private static final Logger LOGGER = Logger.getLogger(TimingPipeline.class.getName());
+
+  static final String PREFIX = "jinsight.timing_pipeline";
+  static final long DRAIN_INTERVAL_MILLIS = 10;
+
+  private static final TimingPipeline SINGLETON = new TimingPipeline();
+
+  private final Queue<RingBuffer> buffers = new ConcurrentLinkedQueue<>();
+  private final ThreadLocal<RingBuffer> threadBuffer = ThreadLocal.withInitial(this::createBuffer);
+  private final Counter droppedTimings = new Counter();
+  private final Counter inlineTimings = new Counter();
+  private final Counter drainedTimings = new Counter();
+  private volatile boolean started;
+  private volatile int bufferSize;
+  private volatile OverflowPolicy overflowPolicy;
+  private ScheduledExecutorService aggregator;
+
+  /**
+   * What happens to a duration recorded when the buffer of the thread is full.
+   */
+  public enum OverflowPolicy {
+    /**
+     * The duration is not recorded, and is counted by the {@code dropped} counter.
+     */
+    DROP,
+    /**
+     * The timer is updated on the calling thread, as when the pipeline is not started, and the update is counted by
+     * the {@code inline} counter.
+     */
+    UPDATE_INLINE
+  }
+
+  TimingPipeline() {
+  }
+
+  public static TimingPipeline getInstance() {
+    return SINGLETON;
+  }
+
+  /**
+   * @param bufferSize number of durations each thread can record before the aggregator drains them, rounded up to a
+   *     power of two
+   * @param jinsightRegistry where the metrics of the pipeline are published, under {@value #PREFIX}
+   */
+  void start(int bufferSize, OverflowPolicy overflowPolicy, MetricRegistry jinsightRegistry) {
+    start(bufferSize, overflowPolicy, jinsightRegistry, DRAIN_INTERVAL_MILLIS);
+  }
+
+  synchronized void start(int bufferSize, OverflowPolicy overflowPolicy, MetricRegistry jinsightRegistry,
+      long drainIntervalMillis) {
+    if (started) {
+      return;
+    }
+    this.bufferSize = Integer.highestOneBit(Math.max(bufferSize - 1, 1)) << 1;
+    this.overflowPolicy = overflowPolicy;
+    jinsightRegistry.counter(PREFIX + ".dropped", () -> droppedTimings);
+    jinsightRegistry.counter(PREFIX + ".inline", () -> inlineTimings);
+    jinsightRegistry.counter(PREFIX + ".drained", () -> drainedTimings);
+    jinsightRegistry.gauge(PREFIX + ".buffers", () -> buffers::size);
+    aggregator = Executors.newSingleThreadScheduledExecutor(runnable -> {
+      Thread thread = new Thread(runnable, "jinsight-timing-aggregator");
+      thread.setDaemon(true);
+      return thread;
+    });
+    aggregator.scheduleWithFixedDelay(this::drainSafely, drainIntervalMillis, drainIntervalMillis,
+        TimeUnit.MILLISECONDS);
+    started = true;
+  }
+
+  /**
+   * Stops the aggregator, after draining the buffers, and updates the timers on the calling threads again. A thread
+   * that was writing into its buffer while the pipeline stopped drains the buffer itself, see
+   * {@link #update(Timer, long, long)}.
+   */
+  synchronized void stop() {
+    if (!started) {
+      return;
+    }
+    started = false;
+    aggregator.shutdown();
+    try {
+      aggregator.awaitTermination(1, TimeUnit.SECONDS);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    drain();
+  }
+
+  /**
+   * Records a duration into the timer, now or by the aggregator.
+   */
+  public void update(Timer timer, long nanos) {
+    update(timer, nanos, 1);
+  }
+
+  /**
+   * Records a duration into the timer, counting it as {@code weight} calls, now or by the aggregator.
+   *
+   * @see WeightedTimer#update(Timer, long, long)
+   */
+  public void update(Timer timer, long nanos, long weight) {
+    if (!started) {
+      WeightedTimer.update(timer, nanos, weight);
+      return;
+    }
+    RingBuffer buffer = threadBuffer.get();
+    if (buffer.offer(timer, nanos, weight)) {
+      if (!started) {
+        // stopped since the check above, and maybe drained before the duration was written
+        drainedTimings.inc(buffer.drain());
+      }
+      return;
+    }
+    if (overflowPolicy == OverflowPolicy.UPDATE_INLINE) {
+      inlineTimings.inc();
+      WeightedTimer.update(timer, nanos, weight);
+    } else {
+      droppedTimings.inc();
+    }
+  }
+
+  private RingBuffer createBuffer() {
+    RingBuffer buffer = new RingBuffer(bufferSize, Thread.currentThread());
+    buffers.add(buffer);
+    return buffer;
+  }
+
+  private void drainSafely() {
+    try {
+      drain();
+    } catch (RuntimeException e) {
+      LOGGER.log(Level.SEVERE, "Error draining the timings.", e);
+    }
+  }
+
+  /**
+   * Drains the buffers into the timers, and forgets the buffers of the threads that ended.
+   */
+  void drain() {
+    Iterator<RingBuffer> iterator = buffers.iterator();
+    while (iterator.hasNext()) {
+      RingBuffer buffer = iterator.next();
+      boolean ended = buffer.isOwnerEnded();
+      drainedTimings.inc(buffer.drain());
+      if (ended) {
+        iterator.remove();
+      }
+    }
+  }
+
+  /**
+   * A buffer written by its thread, and read by the aggregator. The thread only reads the read position of the
+   * aggregator when the buffer looks full. The read position is published with ordered writes, and the write
+   * position with volatile writes: a thread that writes a duration while the pipeline stops then either finds it
+   * stopped, or has the duration drained by {@link #stop()}.
+   */
+  private static final class RingBuffer {
+
+    private final Timer[] timers;
+    private final long[] durations;
+    private final long[] weights;
+    private final int mask;
+    private final WeakReference<Thread> owner;
+    private final AtomicLong readPosition = new AtomicLong();
+    private final AtomicLong writePosition = new AtomicLong();
+    private long knownReadPosition;
+
+    RingBuffer(int size, Thread owner) {
+      this.timers = new Timer[size];
+      this.durations = new long[size];
+      this.weights = new long[size];
+      this.mask = size - 1;
+      this.owner = new WeakReference<>(owner);
+    }
+
+    /**
+     * Called by the owner thread only.
+     *
+     * @return false if the buffer is full
+     */
+    boolean offer(Timer timer, long nanos, long weight) {
+      long position = writePosition.get();
+      if (position - knownReadPosition >= timers.length) {
+        knownReadPosition = readPosition.get();
+        if (position - knownReadPosition >= timers.length) {
+          return false;
+        }
+      }
+      int index = (int) position & mask;
+      timers[index] = timer;
+      durations[index] = nanos;
+      weights[index] = weight;
+      writePosition.set(position + 1);
+      return true;
+    }
+
+    /**
+     * Called by the aggregator, or by the owner thread once the pipeline is stopped.
+     *
+     * @return the number of durations drained
+     */
+    synchronized int drain() {
+      long position = readPosition.get();
+      long end = writePosition.get();
+      for (long i = position; i < end; i++) {
+        int index = (int) i & mask;
+        Timer timer = timers[index];
+        timers[index] = null;
+        try {
+          WeightedTimer.update(timer, durations[index], weights[index]);
+        } catch (RuntimeException e) {
+          LOGGER.log(Level.FINE, "Error updating a timer.", e);
+        }
+      }
+      readPosition.lazySet(end);
+      return (int) (end - position);
+    }
+
+    boolean isOwnerEnded() {
+      Thread thread = owner.get();
+      return thread == null || !thread.isAlive();
+    }
+  }
+}
@@ -0,0 +1,33 @@
+/*
+ * Copyright 2017 Agilx, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package ai.apptuit.metrics.jinsight;
+
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.Timer;
+
+/**
+ * Creates {@link WeightedTimer}s, so that the durations of sampled calls can be counted for the calls that were not
+ * sampled.
+ */
+class WeightedMetricRegistry extends MetricRegistry {
+
+  @Override
+  public Timer timer(String name) {
+    return super.timer(name, WeightedTimer::new);
+  }
+}
@@ -0,0 +1,81 @@
+/*
+ * Copyright 2017 Agilx, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ai.apptuit.metrics.jinsight;
+
+import com.codahale.metrics.Clock;
+import com.codahale.metrics.ExponentiallyDecayingReservoir;
+import com.codahale.metrics.Histogram;
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.Timer;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A timer that can record the duration of a sampled call on behalf of the calls that were not sampled: the duration
+ * is recorded once, but the calls are all counted, in the count and the rates of the timer.
+ *
+ * @see Sampler
+ */
+public class WeightedTimer extends Timer {
+
+  private final Meter meter;
+  private final Histogram histogram;
+
+  public WeightedTimer() {
+    this(new Histogram(new ExponentiallyDecayingReservoir()));
+  }
+
+  WeightedTimer(Histogram histogram) {
+    this(new Meter(), histogram);
+  }
+
+  private WeightedTimer(Meter meter, Histogram histogram) {
+    super(meter, histogram, Clock.defaultClock());
+    this.meter = meter;
+    this.histogram = histogram;
+  }
+
+  /**
+   * Records the duration in the timer, counting it as {@code weight} calls. Timers other than weighted ones count it
+   * as one call.
+   */
+  public static void update(Timer timer, long nanos, long weight) {
+    if (weight != 1 && timer instanceof WeightedTimer) {
+      ((WeightedTimer) timer).update(nanos, weight);
+    } else {
+      timer.update(nanos, TimeUnit.NANOSECONDS);
+    }
+  }
+
+  public void update(long nanos, long weight) {
+    if (nanos >= 0 && weight > 0) {
+      updateHistogram(nanos, weight);
+      meter.mark(weight);
+    }
+  }
+
+  void updateHistogram(long nanos, long weight) {
+    histogram.update(nanos);
+  }
+
+  /**
+   * @return the number of calls, which is more than the number of durations recorded when the calls are sampled
+   */
+  @Override
+  public long getCount() {
+    return meter.getCount();
+  }
+}
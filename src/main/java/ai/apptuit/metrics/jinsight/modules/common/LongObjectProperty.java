@@ -0,0 +1,75 @@
+/*
+ * Copyright 2017 Agilx, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ai.apptuit.metrics.jinsight.modules.common;
+
+import java.lang.ref.ReferenceQueue;
+
+/**
+ * An {@link ObjectProperty} whose value is a {@code long}, such as the clock tick an asynchronous request started at,
+ * kept in the entry of the object rather than boxed.
+ */
+public final class LongObjectProperty {
+
+  /**
+   * The value of the objects that have none.
+   */
+  public static final long ABSENT = Long.MIN_VALUE;
+
+  private final WeakIdentityTable<LongEntry> table = new WeakIdentityTable<>();
+
+  /**
+   * @return the value of the object, or {@link #ABSENT}
+   */
+  public long get(Object object) {
+    if (object == null) {
+      return ABSENT;
+    }
+    LongEntry entry = table.get(object);
+    return entry != null ? entry.value : ABSENT;
+  }
+
+  public void set(Object object, long value) {
+    if (object != null) {
+      table.put(new LongEntry(object, value, table.getQueue()));
+    }
+  }
+
+  /**
+   * @return the value the object had, or {@link #ABSENT}
+   */
+  public long remove(Object object) {
+    if (object == null) {
+      return ABSENT;
+    }
+    LongEntry entry = table.remove(object);
+    return entry != null ? entry.value : ABSENT;
+  }
+
+  int size() {
+    return table.size();
+  }
+
+  private static final class LongEntry extends WeakIdentityTable.Entry {
+
+    private final long value;
+
+    LongEntry(Object object, long value, ReferenceQueue<Object> queue) {
+      super(object, queue);
+      this.value = value;
+    }
+  }
+}
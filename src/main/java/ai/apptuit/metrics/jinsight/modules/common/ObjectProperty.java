@@ -0,0 +1,79 @@
+/*
+ * Copyright 2017 Agilx, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ai.apptuit.metrics.jinsight.modules.common;
+
+import java.lang.ref.ReferenceQueue;
+
+/**
+ * A value attached to instrumented objects, such as the SQL of a prepared statement, for as long as the objects are
+ * reachable. Objects are compared by identity, whatever their {@code equals}, and the property of an object can be
+ * read and updated by any thread, without contending with the threads working on other objects.
+ *
+ * @param <V> the type of the value
+ * @see LongObjectProperty for values that are a {@code long}, such as start times
+ */
+public final class ObjectProperty<V> {
+
+  private final WeakIdentityTable<ValueEntry<V>> table = new WeakIdentityTable<>();
+
+  /**
+   * @return the value of the object, or null if it has none
+   */
+  public V get(Object object) {
+    if (object == null) {
+      return null;
+    }
+    ValueEntry<V> entry = table.get(object);
+    return entry != null ? entry.value : null;
+  }
+
+  /**
+   * @return the previous value of the object, or null if it had none
+   */
+  public V set(Object object, V value) {
+    if (object == null) {
+      return null;
+    }
+    ValueEntry<V> previous = table.put(new ValueEntry<>(object, value, table.getQueue()));
+    return previous != null ? previous.value : null;
+  }
+
+  /**
+   * @return the value the object had, or null if it had none
+   */
+  public V remove(Object object) {
+    if (object == null) {
+      return null;
+    }
+    ValueEntry<V> entry = table.remove(object);
+    return entry != null ? entry.value : null;
+  }
+
+  int size() {
+    return table.size();
+  }
+
+  private static final class ValueEntry<V> extends WeakIdentityTable.Entry {
+
+    private final V value;
+
+    ValueEntry(Object object, V value, ReferenceQueue<Object> queue) {
+      super(object, queue);
+      this.value = value;
+    }
+  }
+}
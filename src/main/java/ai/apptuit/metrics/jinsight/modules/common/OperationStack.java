@@ -0,0 +1,120 @@
+/*
+ * Copyright 2017 Agilx, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ai.apptuit.metrics.jinsight.modules.common;
+
+import ai.apptuit.metrics.jinsight.Sampler;
+import ai.apptuit.metrics.jinsight.modules.common.RuleHelper.OperationId;
+import com.codahale.metrics.Clock;
+import java.util.Arrays;
+
+/**
+ * The timed operations in progress on a thread, innermost last, in arrays of the operation ids and their start ticks
+ * that only grow when the operations nest deeper than they ever did on the thread: beginning and ending an operation
+ * does not allocate.
+ *
+ * <p>An operation that begins inside an operation with the same id, as when an instrumented method calls another
+ * instrumented method of the same operation, is re-entrant: it is pushed, so that the ends match the begins, but only
+ * the outer operation is timed, and the clock is not read for the inner one. Nor is it read for the operations the
+ * {@link Sampler} of the module skips.
+ */
+final class OperationStack {
+
+  /**
+   * Returned by {@link #pop(OperationId, Clock)} when no time is to be recorded.
+   */
+  static final long NOT_TIMED = -1;
+
+  private static final int INITIAL_CAPACITY = 8;
+
+  private OperationId[] ids = new OperationId[INITIAL_CAPACITY];
+  private long[] startTicks = new long[INITIAL_CAPACITY];
+  //number of calls each operation is timed for, 0 if it is not timed
+  private long[] weights = new long[INITIAL_CAPACITY];
+  private Sampler[] samplers = new Sampler[INITIAL_CAPACITY];
+  private int depth;
+
+  void push(OperationId id, Clock clock) {
+    push(id, clock, Sampler.ALL);
+  }
+
+  /**
+   * Begins an operation, which the sampler decides to time or not, unless it is re-entrant.
+   */
+  void push(OperationId id, Clock clock, Sampler sampler) {
+    if (depth == ids.length) {
+      int capacity = ids.length * 2;
+      ids = Arrays.copyOf(ids, capacity);
+      startTicks = Arrays.copyOf(startTicks, capacity);
+      weights = Arrays.copyOf(weights, capacity);
+      samplers = Arrays.copyOf(samplers, capacity);
+    }
+    boolean isReentrant = depth > 0 && ids[depth - 1] == id;
+    long weight = isReentrant ? 0 : sampler.sample();
+    weights[depth] = weight;
+    samplers[depth] = sampler;
+    ids[depth] = id;
+    startTicks[depth] = weight == 0 ? 0 : clock.getTick();
+    depth++;
+  }
+
+  /**
+   * Ends the innermost operation, which must be the one with the given id.
+   *
+   * @return the ticks elapsed since the operation began, or {@link #NOT_TIMED} if it was re-entrant or not sampled, or
+   *     if the innermost operation has another id, in which case nothing is popped
+   */
+  long pop(OperationId id, Clock clock) {
+    if (depth == 0 || ids[depth - 1] != id) {
+      return NOT_TIMED;
+    }
+    depth--;
+    ids[depth] = null;
+    return weights[depth] == 0 ? NOT_TIMED : clock.getTick() - startTicks[depth];
+  }
+
+  /**
+   * @return the number of calls the innermost operation is timed for, or 0 if it is not timed
+   */
+  long peekWeight() {
+    return depth > 0 ? weights[depth - 1] : 0;
+  }
+
+  /**
+   * @return the sampler the innermost operation was begun with, or null if there is none
+   */
+  Sampler peekSampler() {
+    return depth > 0 ? samplers[depth - 1] : null;
+  }
+
+  /**
+   * @return the tick the innermost operation began at, if it is timed
+   */
+  long peekStartTick() {
+    return depth > 0 ? startTicks[depth - 1] : 0;
+  }
+
+  /**
+   * @return the id of the innermost operation, or null if there is none
+   */
+  OperationId peek() {
+    return depth > 0 ? ids[depth - 1] : null;
+  }
+
+  int depth() {
+    return depth;
+  }
+}
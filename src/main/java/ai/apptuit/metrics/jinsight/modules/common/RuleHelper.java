@@ -18,19 +18,15 @@ package ai.apptuit.metrics.jinsight.modules.common;
 
 import ai.apptuit.metrics.client.TagEncodedMetricName;
 import ai.apptuit.metrics.jinsight.RegistryService;
+import ai.apptuit.metrics.jinsight.Sampler;
+import ai.apptuit.metrics.jinsight.TimingPipeline;
 import com.codahale.metrics.Clock;
 import com.codahale.metrics.MetricRegistry;
 import com.codahale.metrics.Timer;
 import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
-import java.util.Collections;
-import java.util.Deque;
-import java.util.HashMap;
-import java.util.Iterator;
-import java.util.LinkedList;
 import java.util.Map;
-import java.util.WeakHashMap;
-import java.util.concurrent.TimeUnit;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.function.Supplier;
 import java.util.logging.Level;
 import java.util.logging.Logger;
@@ -44,8 +40,7 @@ public class RuleHelper extends Helper {
 
   private static final Logger LOGGER = Logger.getLogger(RuleHelper.class.getName());
 
-  private static final Map<Object, Map<String, Object>> objectProperties = Collections
-      .synchronizedMap(new WeakHashMap<>());
+  private static final Map<String, ObjectProperty<Object>> objectProperties = new ConcurrentHashMap<>();
   private static Method GET_MODULE_METHOD;
   private static Method MODULE_GET_NAME_METHOD;
   static {
@@ -80,6 +75,11 @@ public class RuleHelper extends Helper {
     return true;
   }
 
+  /**
+   * Properties are attached to objects by identity, and dropped once the objects are collected. Helpers on hot paths
+   * should prefer an {@link ObjectProperty} or {@link LongObjectProperty} of their own, which saves looking up the
+   * property by name, and boxing {@code long} values.
+   */
   public String setObjectProperty(Object o, String propertyName, String propertyValue) {
     return setObjectProperty0(o, propertyName, propertyValue);
   }
@@ -90,40 +90,103 @@ public class RuleHelper extends Helper {
 
   @SuppressWarnings("unchecked")
   private <V> V setObjectProperty0(Object o, String propertyName, V propertyValue) {
-    Map<String, Object> props = objectProperties
-        .computeIfAbsent(o, k -> Collections.synchronizedMap(new HashMap<>()));
-    return (V) props.put(propertyName, propertyValue);
+    ObjectProperty<Object> property = objectProperties.get(propertyName);
+    if (property == null) {
+      property = objectProperties.computeIfAbsent(propertyName, k -> new ObjectProperty<>());
+    }
+    return (V) property.set(o, propertyValue);
   }
 
   @SuppressWarnings("unchecked")
   public <V> V getObjectProperty(Object o, String propertyName) {
-    Map<String, Object> props = objectProperties.get(o);
-    if (props == null) {
+    ObjectProperty<Object> property = objectProperties.get(propertyName);
+    if (property == null) {
       return null;
     }
-    return (V) props.get(propertyName);
+    return (V) property.get(o);
   }
 
   @SuppressWarnings("unchecked")
   public <V> V removeObjectProperty(Object o, String propertyName) {
-    Map<String, Object> props = objectProperties.get(o);
-    if (props == null) {
+    ObjectProperty<Object> property = objectProperties.get(propertyName);
+    if (property == null) {
       return null;
     }
-    return (V) props.remove(propertyName);
+    return (V) property.remove(o);
   }
 
   public void beginTimedOperation(OperationId operationId) {
-    OperationContexts.start(operationId);
+    OperationContexts.start(operationId, Sampler.ALL);
+  }
+
+  /**
+   * Begins an operation that is only timed if the sampler picks it. The operation must still be ended, whether it
+   * is timed or not.
+   */
+  public void beginTimedOperation(OperationId operationId, Sampler sampler) {
+    OperationContexts.start(operationId, sampler);
   }
 
   public void endTimedOperation(OperationId operationId, Timer timer) {
-    endTimedOperation(operationId, () -> timer);
+    OperationStack contexts = OperationContexts.current(operationId);
+    if (contexts == null) {
+      return;
+    }
+    long weight = contexts.peekWeight();
+    Sampler sampler = contexts.peekSampler();
+    long startTick = contexts.peekStartTick();
+    long elapsed = contexts.pop(operationId, OperationContexts.clock);
+    if (elapsed != OperationStack.NOT_TIMED) {
+      if (timer != null) {
+        updateTimer(timer, elapsed, weight);
+      }
+      recordOverhead(sampler, startTick + elapsed);
+    }
   }
 
   public void endTimedOperation(OperationId operationId,
       Supplier<Timer> timerSupplier) {
-    OperationContexts.stop(operationId, timerSupplier);
+    OperationStack contexts = OperationContexts.current(operationId);
+    if (contexts == null) {
+      return;
+    }
+    long weight = contexts.peekWeight();
+    Sampler sampler = contexts.peekSampler();
+    long startTick = contexts.peekStartTick();
+    long elapsed = contexts.pop(operationId, OperationContexts.clock);
+    if (elapsed != OperationStack.NOT_TIMED) {
+      Timer timer = timerSupplier.get();
+      if (timer != null) {
+        updateTimer(timer, elapsed, weight);
+      }
+      recordOverhead(sampler, startTick + elapsed);
+    }
+  }
+
+  /**
+   * Records the time spent ending the operation into the sampler of its module, if its overhead is governed. The time
+   * spent beginning it was recorded when it began.
+   *
+   * @param endTick the tick the operation ended at
+   */
+  private static void recordOverhead(Sampler sampler, long endTick) {
+    if (sampler.isGoverned()) {
+      sampler.recordOverhead(OperationContexts.clock.getTick() - endTick);
+    }
+  }
+
+  /**
+   * Records the duration into the timer, on this thread, or off it if the timers are asynchronous.
+   */
+  protected void updateTimer(Timer timer, long nanos) {
+    TimingPipeline.getInstance().update(timer, nanos);
+  }
+
+  /**
+   * Records the duration of a sampled call into the timer, counting it as {@code weight} calls.
+   */
+  protected void updateTimer(Timer timer, long nanos, long weight) {
+    TimingPipeline.getInstance().update(timer, nanos, weight);
   }
 
   protected Timer getTimer(TagEncodedMetricName metricName) {
@@ -147,72 +210,34 @@ public class RuleHelper extends Helper {
 
   private static class OperationContexts {
 
-    private static final ThreadLocal<Deque<OperationContext>> CONTEXT_STACK = ThreadLocal
-        .withInitial(LinkedList::new);
+    private static final ThreadLocal<OperationStack> CONTEXT_STACK = ThreadLocal.withInitial(OperationStack::new);
     private static final Clock clock = Clock.defaultClock();
 
-    private static final OperationContext RENTRANT = new OperationContext(new OperationId("NOOP"),
-        clock);
-
-    public static void start(OperationId id) {
-      Deque<OperationContext> contexts = CONTEXT_STACK.get();
-      if (!contexts.isEmpty() && lastId() == id) {
-        contexts.push(RENTRANT);
+    public static void start(OperationId id, Sampler sampler) {
+      if (!sampler.isGoverned()) {
+        CONTEXT_STACK.get().push(id, clock, sampler);
         return;
       }
-      contexts.push(new OperationContext(id, clock));
+      long beginTick = clock.getTick();
+      OperationStack contexts = CONTEXT_STACK.get();
+      contexts.push(id, clock, sampler);
+      if (contexts.peekWeight() > 0) {
+        sampler.recordBeginOverhead(contexts.peekStartTick() - beginTick);
+      }
     }
 
-    public static void stop(OperationId id, Supplier<Timer> timerSupplier) {
-      OperationId lastId = lastId();
+    /**
+     * @return the operations of this thread, if the innermost one is the operation to end, or null
+     */
+    public static OperationStack current(OperationId id) {
+      OperationStack contexts = CONTEXT_STACK.get();
+      OperationId lastId = contexts.peek();
       if (lastId != id) {
         //TODO better error handling
         LOGGER.severe("Operation Context Mismatch. Expected: " + id + " got " + lastId);
-        return;
-      }
-
-      OperationContext context = CONTEXT_STACK.get().pop();
-      if (context == RENTRANT) {
-        return;
-      }
-
-      Timer timer = timerSupplier.get();
-      if (timer != null) {
-        long t = clock.getTick() - context.getStartTime();
-        timer.update(t, TimeUnit.NANOSECONDS);
-      }
-    }
-
-    private static OperationId lastId() {
-      Deque<OperationContext> contexts = CONTEXT_STACK.get();
-      OperationContext prevContext = null;
-      Iterator<OperationContext> iterator = contexts.descendingIterator();
-      while (iterator.hasNext()){
-        prevContext = iterator.next();
-        if (prevContext != RENTRANT) {
-          break;
-        }
+        return null;
       }
-      return prevContext != null ? prevContext.getId() : null;
-    }
-  }
-
-  private static class OperationContext {
-
-    private final OperationId id;
-    private final long startTime;
-
-    public OperationContext(OperationId id, Clock clock) {
-      this.id = id;
-      this.startTime = clock.getTick();
-    }
-
-    public OperationId getId() {
-      return id;
-    }
-
-    public long getStartTime() {
-      return startTime;
+      return contexts;
     }
   }
 }
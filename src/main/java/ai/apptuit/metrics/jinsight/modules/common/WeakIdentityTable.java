@@ -0,0 +1,138 @@
+/*
+ * Copyright 2017 Agilx, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ai.apptuit.metrics.jinsight.modules.common;
+
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Entries of objects, compared by identity, that are dropped once the objects are no longer reachable.
+ *
+ * <p>The entries are the keys of a {@link ConcurrentHashMap}: lookups take no lock, and updates only lock the bin of
+ * their entry, so that threads working on different objects do not contend. Lookups do not allocate: they match the
+ * entries against a probe of the calling thread. The entries of collected objects are removed on the next update.
+ *
+ * @param <E> the type of the entries, which carry the values
+ */
+final class WeakIdentityTable<E extends WeakIdentityTable.Entry> {
+
+  private final ConcurrentHashMap<Entry, E> entries = new ConcurrentHashMap<>();
+  private final ReferenceQueue<Object> collected = new ReferenceQueue<>();
+  private final ThreadLocal<Probe> probes = ThreadLocal.withInitial(Probe::new);
+
+  /**
+   * @return the queue the entries must be created with, for them to be removed once their object is collected
+   */
+  ReferenceQueue<Object> getQueue() {
+    return collected;
+  }
+
+  E get(Object object) {
+    Probe probe = probes.get();
+    probe.set(object);
+    try {
+      return entries.get(probe);
+    } finally {
+      probe.set(null);
+    }
+  }
+
+  /**
+   * Replaces the entry of the same object, if any.
+   *
+   * @return the entry replaced, or null
+   */
+  E put(E entry) {
+    expungeCollected();
+    return entries.put(entry, entry);
+  }
+
+  E remove(Object object) {
+    Probe probe = probes.get();
+    probe.set(object);
+    try {
+      return entries.remove(probe);
+    } finally {
+      probe.set(null);
+    }
+  }
+
+  int size() {
+    expungeCollected();
+    return entries.size();
+  }
+
+  private void expungeCollected() {
+    Reference<?> reference;
+    while ((reference = collected.poll()) != null) {
+      entries.remove(reference);
+    }
+  }
+
+  /**
+   * An entry of an object, equal to the entries and probes of the same object.
+   */
+  abstract static class Entry extends WeakReference<Object> {
+
+    private final int hash;
+
+    Entry(Object object, ReferenceQueue<Object> queue) {
+      super(object, queue);
+      this.hash = System.identityHashCode(object);
+    }
+
+    @Override
+    public int hashCode() {
+      return hash;
+    }
+
+    @Override
+    public boolean equals(Object other) {
+      if (other == this) {
+        return true;
+      }
+      Object object = get();
+      return object != null && other instanceof Entry && ((Entry) other).get() == object;
+    }
+  }
+
+  /**
+   * Looks up the entry of an object, without creating one.
+   */
+  private static final class Probe {
+
+    private Object object;
+    private int hash;
+
+    void set(Object object) {
+      this.object = object;
+      this.hash = System.identityHashCode(object);
+    }
+
+    @Override
+    public int hashCode() {
+      return hash;
+    }
+
+    @Override
+    public boolean equals(Object other) {
+      return other instanceof Entry && ((Entry) other).get() == object;
+    }
+  }
+}
@@ -17,7 +17,9 @@
 package ai.apptuit.metrics.jinsight.modules.ehcache;
 
 import ai.apptuit.metrics.client.TagEncodedMetricName;
+import ai.apptuit.metrics.jinsight.ConfigService;
 import ai.apptuit.metrics.jinsight.RegistryService;
+import ai.apptuit.metrics.jinsight.Sampler;
 import ai.apptuit.metrics.jinsight.modules.common.RuleHelper;
 import com.codahale.metrics.MetricRegistry;
 import com.codahale.metrics.Timer;
@@ -32,6 +34,8 @@ import org.jboss.byteman.rule.Rule;
  */
 public class EhcacheRuleHelper extends RuleHelper {
 
+  private static final Sampler SAMPLER = ConfigService.getInstance().getSampler("ehcache");
+
   public static final TagEncodedMetricName ROOT_NAME = TagEncodedMetricName.decode("ehcache");
 
   public static final OperationId GET_OPERATION = new OperationId("ehcache.get");
@@ -58,7 +62,7 @@ public class EhcacheRuleHelper extends RuleHelper {
   }
 
   public void onGetEntry(Cache cache) {
-    beginTimedOperation(GET_OPERATION);
+    beginTimedOperation(GET_OPERATION, SAMPLER);
   }
 
   public void onGetExit(Cache cache) {
@@ -74,7 +78,7 @@ public class EhcacheRuleHelper extends RuleHelper {
 
 
   public void onPutEntry(Cache cache) {
-    beginTimedOperation(PUT_OPERATION);
+    beginTimedOperation(PUT_OPERATION, SAMPLER);
   }
 
   public void onPutExit(Cache cache) {
@@ -18,11 +18,10 @@ package ai.apptuit.metrics.jinsight.modules.httpasyncclient;
 
 import ai.apptuit.metrics.client.TagEncodedMetricName;
 import ai.apptuit.metrics.jinsight.RegistryService;
+import ai.apptuit.metrics.jinsight.modules.common.LongObjectProperty;
 import ai.apptuit.metrics.jinsight.modules.common.RuleHelper;
-import ai.apptuit.metrics.jinsight.modules.httpurlconnection.UrlConnectionRuleHelper;
 import com.codahale.metrics.Clock;
 import com.codahale.metrics.Timer;
-import java.util.concurrent.TimeUnit;
 import org.apache.http.HttpRequest;
 import org.apache.http.HttpResponse;
 import org.jboss.byteman.rule.Rule;
@@ -33,8 +32,7 @@ import org.jboss.byteman.rule.Rule;
 public class HttpAsyncClientRuleHelper extends RuleHelper {
 
   public static final TagEncodedMetricName ROOT_NAME = TagEncodedMetricName.decode("http.requests");
-  private static final String START_TIME_PROPERTY_NAME =
-      UrlConnectionRuleHelper.class + ".START_TIME";
+  private static final LongObjectProperty START_TIME = new LongObjectProperty();
   private static final Clock CLOCK = Clock.defaultClock();
 
   public HttpAsyncClientRuleHelper(Rule rule) {
@@ -43,12 +41,12 @@ public class HttpAsyncClientRuleHelper extends RuleHelper {
 
 
   public void onRequestReady(HttpRequest request) {
-    setObjectProperty(request, START_TIME_PROPERTY_NAME, CLOCK.getTick());
+    START_TIME.set(request, CLOCK.getTick());
   }
 
   public void onResponseReceived(HttpRequest request, HttpResponse response) {
-    Long startTime = removeObjectProperty(request, START_TIME_PROPERTY_NAME);
-    if (startTime == null) {
+    long startTime = START_TIME.remove(request);
+    if (startTime == LongObjectProperty.ABSENT) {
       return;
     }
 
@@ -61,7 +59,7 @@ public class HttpAsyncClientRuleHelper extends RuleHelper {
         "method", method,
         "status", "" + statusCode).toString();
     Timer timer = RegistryService.getMetricRegistry().timer(metricName);
-    timer.update(t, TimeUnit.NANOSECONDS);
+    updateTimer(timer, t);
 
   }
 }
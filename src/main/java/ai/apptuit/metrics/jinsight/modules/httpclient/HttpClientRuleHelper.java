@@ -17,6 +17,8 @@
 package ai.apptuit.metrics.jinsight.modules.httpclient;
 
 import ai.apptuit.metrics.client.TagEncodedMetricName;
+import ai.apptuit.metrics.jinsight.ConfigService;
+import ai.apptuit.metrics.jinsight.Sampler;
 import ai.apptuit.metrics.jinsight.modules.common.RuleHelper;
 import com.codahale.metrics.Timer;
 import java.util.Map;
@@ -30,6 +32,8 @@ import org.jboss.byteman.rule.Rule;
  */
 public class HttpClientRuleHelper extends RuleHelper {
 
+  private static final Sampler SAMPLER = ConfigService.getInstance().getSampler("httpclient");
+
   public static final TagEncodedMetricName ROOT_NAME = TagEncodedMetricName.decode("http.requests");
   private static final OperationId EXECUTE_METHOD_OPERATION_ID = new OperationId("ahc.execute");
 
@@ -40,7 +44,7 @@ public class HttpClientRuleHelper extends RuleHelper {
   }
 
   public void onExecuteStart(HttpRequest request) {
-    beginTimedOperation(EXECUTE_METHOD_OPERATION_ID);
+    beginTimedOperation(EXECUTE_METHOD_OPERATION_ID, SAMPLER);
   }
 
   public void onExecuteEnd(HttpRequest request, HttpResponse response) {
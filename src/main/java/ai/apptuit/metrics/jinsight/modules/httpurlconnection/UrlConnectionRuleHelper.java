@@ -17,13 +17,13 @@
 package ai.apptuit.metrics.jinsight.modules.httpurlconnection;
 
 import ai.apptuit.metrics.client.TagEncodedMetricName;
+import ai.apptuit.metrics.jinsight.modules.common.LongObjectProperty;
 import ai.apptuit.metrics.jinsight.modules.common.RuleHelper;
 import com.codahale.metrics.Clock;
 import com.codahale.metrics.Timer;
 import java.net.HttpURLConnection;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.TimeUnit;
 import org.jboss.byteman.rule.Rule;
 
 /**
@@ -32,8 +32,7 @@ import org.jboss.byteman.rule.Rule;
 public class UrlConnectionRuleHelper extends RuleHelper {
 
   public static final TagEncodedMetricName ROOT_NAME = TagEncodedMetricName.decode("http.requests");
-  private static final String START_TIME_PROPERTY_NAME =
-      UrlConnectionRuleHelper.class + ".START_TIME";
+  private static final LongObjectProperty START_TIME = new LongObjectProperty();
   private static final Clock CLOCK = Clock.defaultClock();
 
   private Map<String, Timer> timers = new ConcurrentHashMap<>();
@@ -44,12 +43,12 @@ public class UrlConnectionRuleHelper extends RuleHelper {
   }
 
   public void onConnect(HttpURLConnection urlConnection) {
-    setObjectProperty(urlConnection, START_TIME_PROPERTY_NAME, CLOCK.getTick());
+    START_TIME.set(urlConnection, CLOCK.getTick());
   }
 
   public void onGetInputStream(HttpURLConnection urlConnection, int statusCode) {
-    Long startTime = removeObjectProperty(urlConnection, START_TIME_PROPERTY_NAME);
-    if (startTime == null) {
+    long startTime = START_TIME.remove(urlConnection);
+    if (startTime == LongObjectProperty.ABSENT) {
       return;
     }
 
@@ -63,6 +62,6 @@ public class UrlConnectionRuleHelper extends RuleHelper {
       return getTimer(metricName);
     });
 
-    timer.update(t, TimeUnit.NANOSECONDS);
+    updateTimer(timer, t);
   }
 }
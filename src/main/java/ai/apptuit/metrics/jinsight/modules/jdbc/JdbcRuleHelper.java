@@ -17,7 +17,10 @@
 package ai.apptuit.metrics.jinsight.modules.jdbc;
 
 import ai.apptuit.metrics.client.TagEncodedMetricName;
+import ai.apptuit.metrics.jinsight.ConfigService;
 import ai.apptuit.metrics.jinsight.RegistryService;
+import ai.apptuit.metrics.jinsight.Sampler;
+import ai.apptuit.metrics.jinsight.modules.common.ObjectProperty;
 import ai.apptuit.metrics.jinsight.modules.common.RuleHelper;
 import com.codahale.metrics.MetricRegistry;
 import com.codahale.metrics.Timer;
@@ -31,6 +34,8 @@ import org.jboss.byteman.rule.Rule;
  */
 public class JdbcRuleHelper extends RuleHelper {
 
+  private static final Sampler SAMPLER = ConfigService.getInstance().getSampler("jdbc");
+
   public static final TagEncodedMetricName ROOT_NAME = TagEncodedMetricName.decode("jdbc");
 
   public static final TagEncodedMetricName GET_CONNECTION_NAME = ROOT_NAME
@@ -51,7 +56,7 @@ public class JdbcRuleHelper extends RuleHelper {
   private static final OperationId EXECUTE_STATEMENT_OPERATION = new OperationId(
       EXECUTE_STATEMENT_NAME.toString());
 
-  private static final String PREP_STMT_SQL_QUERY_STRING = "jdbc.ps.sql";
+  private static final ObjectProperty<String> PREP_STMT_SQL_QUERY_STRING = new ObjectProperty<>();
   private static final StringUniqueIdService uidService = new StringUniqueIdService();
 
   public JdbcRuleHelper(Rule rule) {
@@ -64,7 +69,7 @@ public class JdbcRuleHelper extends RuleHelper {
   }
 
   public void onGetConnectionEntry(DataSource ds) {
-    beginTimedOperation(GET_CONNECTION_OPERATION);
+    beginTimedOperation(GET_CONNECTION_OPERATION, SAMPLER);
   }
 
   public void onGetConnectionExit(DataSource ds, Connection connection) {
@@ -76,13 +81,13 @@ public class JdbcRuleHelper extends RuleHelper {
   }
 
   public void onPrepareStatementEntry(Connection connection) {
-    beginTimedOperation(PREPARE_STATEMENT_OPERATION);
+    beginTimedOperation(PREPARE_STATEMENT_OPERATION, SAMPLER);
   }
 
   public void onPrepareStatementExit(Connection connection, String sql, PreparedStatement ps) {
     //TODO add datasource name as a tag
     endTimedOperation(PREPARE_STATEMENT_OPERATION, PREPARE_STATEMENT_TIMER);
-    setObjectProperty(ps, PREP_STMT_SQL_QUERY_STRING, sql);
+    PREP_STMT_SQL_QUERY_STRING.set(ps, sql);
   }
 
   public void onPrepareStatementError(Connection connection) {
@@ -90,13 +95,13 @@ public class JdbcRuleHelper extends RuleHelper {
   }
 
   public void onExecuteStatementEntry(PreparedStatement ps) {
-    beginTimedOperation(EXECUTE_STATEMENT_OPERATION);
+    beginTimedOperation(EXECUTE_STATEMENT_OPERATION, SAMPLER);
   }
 
   public void onExecuteStatementExit(PreparedStatement ps) {
     //TODO add datasource name & execution type (execute/executeUpdate/executeBath) as tags
     endTimedOperation(EXECUTE_STATEMENT_OPERATION, () -> {
-      String sql = getObjectProperty(ps, PREP_STMT_SQL_QUERY_STRING);
+      String sql = PREP_STMT_SQL_QUERY_STRING.get(ps);
       String sqlId = uidService.getUniqueId(sql);
       String metricName = EXECUTE_STATEMENT_NAME.withTags("sql", sqlId).toString();
       return RegistryService.getMetricRegistry().timer(metricName);
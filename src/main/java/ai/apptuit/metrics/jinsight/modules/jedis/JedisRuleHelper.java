@@ -17,13 +17,15 @@
 package ai.apptuit.metrics.jinsight.modules.jedis;
 
 import ai.apptuit.metrics.client.TagEncodedMetricName;
+import ai.apptuit.metrics.jinsight.ConfigService;
 import ai.apptuit.metrics.jinsight.RegistryService;
+import ai.apptuit.metrics.jinsight.Sampler;
+import ai.apptuit.metrics.jinsight.modules.common.LongObjectProperty;
 import ai.apptuit.metrics.jinsight.modules.common.RuleHelper;
 import com.codahale.metrics.Clock;
 import com.codahale.metrics.Timer;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.TimeUnit;
 import org.jboss.byteman.rule.Rule;
 import redis.clients.jedis.Jedis;
 import redis.clients.jedis.Pipeline;
@@ -36,6 +38,8 @@ import redis.clients.util.Pool;
 public class JedisRuleHelper extends RuleHelper {
 
 
+  private static final Sampler SAMPLER = ConfigService.getInstance().getSampler("jedis");
+
   public static final TagEncodedMetricName COMMANDS_BASE_NAME =
       TagEncodedMetricName.decode("jedis.commands");
   public static final TagEncodedMetricName TRANSACTIONS_EXEC_METRIC =
@@ -51,7 +55,8 @@ public class JedisRuleHelper extends RuleHelper {
 
   private static final Clock clock = Clock.defaultClock();
 
-  private static final String TRANSACTION_START_TIME_PROP_NAME = "jedis.tx.start";
+  private static final LongObjectProperty TRANSACTION_START_TIME = new LongObjectProperty();
+  private static final LongObjectProperty TRANSACTION_WEIGHT = new LongObjectProperty();
 
   private static final Timer txExecTimer = RegistryService.getMetricRegistry()
       .timer(TRANSACTIONS_EXEC_METRIC.toString());
@@ -187,7 +192,7 @@ public class JedisRuleHelper extends RuleHelper {
     if (operationId == null) {
       return;//not tracking metrics for this method
     }
-    beginTimedOperation(operationId);
+    beginTimedOperation(operationId, SAMPLER);
   }
 
   public void onOperationEnd(String methName, Jedis jedis) {
@@ -207,44 +212,58 @@ public class JedisRuleHelper extends RuleHelper {
   }
 
   public void onTransactionBegin(Transaction tx) {
-    setObjectProperty(tx, TRANSACTION_START_TIME_PROP_NAME, clock.getTick());
+    beginSampled(tx);
   }
 
   public void onTransactionExec(Transaction tx) {
-    Long startTime = removeObjectProperty(tx, TRANSACTION_START_TIME_PROP_NAME);
-    if (startTime == null) {
-      return;
-    }
-
-    long t = Clock.defaultClock().getTick() - startTime;
-    txExecTimer.update(t, TimeUnit.NANOSECONDS);
+    endSampled(tx, txExecTimer);
   }
 
   public void onTransactionDiscard(Transaction tx) {
-    Long startTime = removeObjectProperty(tx, TRANSACTION_START_TIME_PROP_NAME);
-    if (startTime == null) {
-      return;
-    }
-    long t = Clock.defaultClock().getTick() - startTime;
-    txDiscardTimer.update(t, TimeUnit.NANOSECONDS);
+    endSampled(tx, txDiscardTimer);
   }
 
   public void onPipelineBegin(Pipeline pipeline) {
-    setObjectProperty(pipeline, TRANSACTION_START_TIME_PROP_NAME, clock.getTick());
+    beginSampled(pipeline);
   }
 
   public void onPipelineSync(Pipeline pipeline) {
-    Long startTime = removeObjectProperty(pipeline, TRANSACTION_START_TIME_PROP_NAME);
-    if (startTime == null) {
+    endSampled(pipeline, pipelineSyncTimer);
+  }
+
+  /**
+   * Transactions and pipelines span several calls, so they are not on the operation stack: they are sampled when
+   * they begin, and the weight is kept along with the start time until they end.
+   */
+  private static void beginSampled(Object txOrPipeline) {
+    boolean governed = SAMPLER.isGoverned();
+    long beginTick = governed ? clock.getTick() : 0;
+    long weight = SAMPLER.sample();
+    if (weight == 0) {
       return;
     }
+    TRANSACTION_START_TIME.set(txOrPipeline, clock.getTick());
+    TRANSACTION_WEIGHT.set(txOrPipeline, weight);
+    if (governed) {
+      SAMPLER.recordBeginOverhead(clock.getTick() - beginTick);
+    }
+  }
 
-    long t = Clock.defaultClock().getTick() - startTime;
-    pipelineSyncTimer.update(t, TimeUnit.NANOSECONDS);
+  private void endSampled(Object txOrPipeline, Timer timer) {
+    long startTime = TRANSACTION_START_TIME.remove(txOrPipeline);
+    if (startTime == LongObjectProperty.ABSENT) {
+      return;
+    }
+    long weight = TRANSACTION_WEIGHT.remove(txOrPipeline);
+    long endTick = clock.getTick();
+    updateTimer(timer, endTick - startTime, weight);
+    if (SAMPLER.isGoverned()) {
+      SAMPLER.recordOverhead(clock.getTick() - endTick);
+    }
   }
 
   public void onPoolGetStart(Pool pool) {
-    beginTimedOperation(POOL_GET_OPERATION);
+    beginTimedOperation(POOL_GET_OPERATION, SAMPLER);
   }
 
   public void onPoolGetEnd(Pool pool) {
@@ -257,7 +276,7 @@ public class JedisRuleHelper extends RuleHelper {
 
 
   public void onPoolReleaseStart(Pool pool) {
-    beginTimedOperation(POOL_RELEASE_OPERATION);
+    beginTimedOperation(POOL_RELEASE_OPERATION, SAMPLER);
   }
 
   public void onPoolReleaseEnd(Pool pool) {
@@ -17,6 +17,8 @@
 package ai.apptuit.metrics.jinsight.modules.okhttp3;
 
 import ai.apptuit.metrics.client.TagEncodedMetricName;
+import ai.apptuit.metrics.jinsight.ConfigService;
+import ai.apptuit.metrics.jinsight.Sampler;
 import ai.apptuit.metrics.jinsight.modules.common.RuleHelper;
 import com.codahale.metrics.Timer;
 import java.util.Map;
@@ -30,6 +32,8 @@ import org.jboss.byteman.rule.Rule;
  */
 public class OkHttp3RuleHelper extends RuleHelper {
 
+  private static final Sampler SAMPLER = ConfigService.getInstance().getSampler("okhttp3");
+
   public static final TagEncodedMetricName ROOT_NAME = TagEncodedMetricName.decode("http.requests");
 
   private static final OperationId EXECUTE_OPERATION = new OperationId("okhttp3.execute");
@@ -41,7 +45,7 @@ public class OkHttp3RuleHelper extends RuleHelper {
   }
 
   public void onExecuteStart() {
-    beginTimedOperation(EXECUTE_OPERATION);
+    beginTimedOperation(EXECUTE_OPERATION, SAMPLER);
   }
 
   public void onExecuteException() {
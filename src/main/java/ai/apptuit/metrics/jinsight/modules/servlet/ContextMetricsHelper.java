@@ -18,13 +18,13 @@ package ai.apptuit.metrics.jinsight.modules.servlet;
 
 import ai.apptuit.metrics.client.TagEncodedMetricName;
 import ai.apptuit.metrics.jinsight.RegistryService;
+import ai.apptuit.metrics.jinsight.TimingPipeline;
 import com.codahale.metrics.Counter;
 import com.codahale.metrics.MetricRegistry;
 import com.codahale.metrics.Timer;
 import java.io.IOException;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.TimeUnit;
 import javax.servlet.AsyncEvent;
 import javax.servlet.AsyncListener;
 import javax.servlet.ServletException;
@@ -74,7 +74,7 @@ public class ContextMetricsHelper {
   }
 
   private void updateStatusMetric(long startTime, String method, int status) {
-    getTimer(method, status).update(System.nanoTime() - startTime, TimeUnit.NANOSECONDS);
+    TimingPipeline.getInstance().update(getTimer(method, status), System.nanoTime() - startTime);
   }
 
   private Timer getTimer(String method, int status) {
@@ -18,12 +18,12 @@ package ai.apptuit.metrics.jinsight.modules.spymemcached;
 
 import ai.apptuit.metrics.client.TagEncodedMetricName;
 import ai.apptuit.metrics.jinsight.RegistryService;
+import ai.apptuit.metrics.jinsight.modules.common.LongObjectProperty;
 import ai.apptuit.metrics.jinsight.modules.common.RuleHelper;
 import com.codahale.metrics.Clock;
 import com.codahale.metrics.Timer;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.TimeUnit;
 import net.spy.memcached.ops.ConcatenationOperation;
 import net.spy.memcached.ops.GetAndTouchOperation;
 import net.spy.memcached.ops.GetOperation;
@@ -41,7 +41,7 @@ public class SpymemcachedRuleHelper extends RuleHelper {
   public static final TagEncodedMetricName ROOT_NAME = TagEncodedMetricName
       .decode("memcached.commands");
 
-  private static final String OPERATION_PROPERTY_NAME = "spymemcached.Operation";
+  private static final LongObjectProperty OPERATION_START_TIME = new LongObjectProperty();
   private static final Clock clock = Clock.defaultClock();
   private static final Map<String, Timer> opVsTimer = new ConcurrentHashMap<>();
 
@@ -50,17 +50,16 @@ public class SpymemcachedRuleHelper extends RuleHelper {
   }
 
   public void onOperationCreate(Operation operation) {
-    Long startTime = getObjectProperty(operation, OPERATION_PROPERTY_NAME);
-    if (startTime != null) {
+    if (OPERATION_START_TIME.get(operation) != LongObjectProperty.ABSENT) {
       return;//re-entrant
     }
 
-    setObjectProperty(operation, OPERATION_PROPERTY_NAME, clock.getTick());
+    OPERATION_START_TIME.set(operation, clock.getTick());
   }
 
   public void onCallbackComplete(Operation operation) {
-    Long startTime = removeObjectProperty(operation, OPERATION_PROPERTY_NAME);
-    if (startTime == null) {
+    long startTime = OPERATION_START_TIME.remove(operation);
+    if (startTime == LongObjectProperty.ABSENT) {
       return;//re-entrant
     }
 
@@ -71,7 +70,7 @@ public class SpymemcachedRuleHelper extends RuleHelper {
       String metricName = ROOT_NAME.withTags("command", op).toString();
       return RegistryService.getMetricRegistry().timer(metricName);
     });
-    timer.update(t, TimeUnit.NANOSECONDS);
+    updateTimer(timer, t);
 
   }
 
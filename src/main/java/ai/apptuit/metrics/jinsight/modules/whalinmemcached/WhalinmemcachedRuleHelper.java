@@ -17,7 +17,9 @@
 package ai.apptuit.metrics.jinsight.modules.whalinmemcached;
 
 import ai.apptuit.metrics.client.TagEncodedMetricName;
+import ai.apptuit.metrics.jinsight.ConfigService;
 import ai.apptuit.metrics.jinsight.RegistryService;
+import ai.apptuit.metrics.jinsight.Sampler;
 import ai.apptuit.metrics.jinsight.modules.common.RuleHelper;
 import com.codahale.metrics.Timer;
 import com.whalin.MemCached.MemCachedClient;
@@ -28,6 +30,8 @@ import org.jboss.byteman.rule.Rule;
  */
 public class WhalinmemcachedRuleHelper extends RuleHelper {
 
+  private static final Sampler SAMPLER = ConfigService.getInstance().getSampler("whalinmemcached");
+
   public static final TagEncodedMetricName ROOT_NAME = TagEncodedMetricName
       .decode("memcached.commands");
 
@@ -55,7 +59,7 @@ public class WhalinmemcachedRuleHelper extends RuleHelper {
   }
 
   public void onOperationStart(String op, MemCachedClient client) {
-    beginTimedOperation(getOperationId(op));
+    beginTimedOperation(getOperationId(op), SAMPLER);
   }
 
   public void onOperationEnd(String op, MemCachedClient client) {
@@ -28,14 +28,21 @@ import org.junit.Before;
 import org.junit.Test;
 import org.mockito.Mockito;
 
+import io.prometheus.client.exporter.common.TextFormat;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.StringWriter;
+import java.nio.charset.StandardCharsets;
 import java.util.Arrays;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 
 import static org.junit.Assert.assertEquals;
@@ -209,4 +216,180 @@ public class ApptuitDropwizardExportsTests {
     );
   }
 
+  @Test
+  public void testStreamedOutputMatchesTextFormat() throws Exception {
+    final MetricRegistry metricRegistry = new MetricRegistry();
+    ApptuitDropwizardExports exporter = new ApptuitDropwizardExports(metricRegistry,
+        new TagDecodingSampleBuilder(globalTags));
+    populateRegistry(metricRegistry);
+
+    for (int scrape = 0; scrape < 2; scrape++) {
+      assertEquals(textFormatFamilies(exporter, Collections.emptySet()),
+          streamedFamilies(exporter, Collections.emptySet()));
+    }
+
+    metricRegistry.remove("requests[method:get]");
+    metricRegistry.counter("requests[method:put]").inc(10_000_000);
+    assertEquals(textFormatFamilies(exporter, Collections.emptySet()),
+        streamedFamilies(exporter, Collections.emptySet()));
+  }
+
+  @Test
+  public void testStreamedOutputIsFiltered() throws Exception {
+    final MetricRegistry metricRegistry = new MetricRegistry();
+    ApptuitDropwizardExports exporter = new ApptuitDropwizardExports(metricRegistry,
+        new TagDecodingSampleBuilder(globalTags));
+    populateRegistry(metricRegistry);
+
+    Set<String> includedNames = new HashSet<>(Arrays.asList("requests", "latency_count", "hist_max"));
+    Map<String, List<String>> families = streamedFamilies(exporter, includedNames);
+    assertEquals(textFormatFamilies(exporter, includedNames), families);
+    assertEquals(new HashSet<>(Arrays.asList("requests", "latency_rate", "hist_min")), families.keySet());
+  }
+
+  @Test
+  public void testDescribe() throws Exception {
+    final MetricRegistry metricRegistry = new MetricRegistry();
+    ApptuitDropwizardExports exporter = new ApptuitDropwizardExports(metricRegistry,
+        new TagDecodingSampleBuilder(globalTags));
+    populateRegistry(metricRegistry);
+
+    Map<String, Collector.Type> described = new HashMap<>();
+    for (Collector.MetricFamilySamples family : exporter.describe()) {
+      assertTrue(family.samples.isEmpty());
+      assertNull(described.put(family.name, family.type));
+    }
+    Map<String, List<String>> collected = textFormatFamilies(exporter, Collections.emptySet());
+    assertTrue(described.keySet().containsAll(collected.keySet()));
+    assertEquals(Collector.Type.GAUGE, described.get("requests"));
+    assertEquals(Collector.Type.SUMMARY, described.get("latency_rate"));
+    assertEquals(Collector.Type.HISTOGRAM, described.get("bucketed_duration"));
+  }
+
+  @Test
+  public void testFilteredScrapesOnlyReadMatchingMetrics() throws Exception {
+    final MetricRegistry metricRegistry = new MetricRegistry();
+    final CollectorRegistry registry = new CollectorRegistry();
+    populateRegistry(metricRegistry);
+    AtomicInteger reads = new AtomicInteger();
+    metricRegistry.register("unrelated", (Gauge<Integer>) reads::incrementAndGet);
+    ApptuitDropwizardExports exporter = new ApptuitDropwizardExports(metricRegistry,
+        new TagDecodingSampleBuilder(globalTags));
+    exporter.register(registry);
+
+    Set<String> includedNames = new HashSet<>(Arrays.asList("requests", "hist_count"));
+    List<Collector.MetricFamilySamples> families = Collections.list(
+        registry.filteredMetricFamilySamples(includedNames));
+    assertEquals(2, families.size());
+    for (Collector.MetricFamilySamples family : families) {
+      for (Collector.MetricFamilySamples.Sample sample : family.samples) {
+        assertTrue(includedNames.contains(sample.name));
+      }
+    }
+    assertEquals(3, families.stream().mapToInt(family -> family.samples.size()).sum());
+
+    exporter.write(new ByteArrayOutputStream(), includedNames);
+    assertEquals(0, reads.get());
+
+    metricRegistry.counter("requests[method:delete]").inc();
+    List<String> lines = streamedFamilies(exporter, includedNames).get("requests");
+    assertEquals(3, lines.stream().filter(line -> !line.startsWith("#")).count());
+    assertEquals(0, reads.get());
+  }
+
+  @Test
+  public void testFilteredScrapesFollowReRegisteredMetrics() throws Exception {
+    final MetricRegistry metricRegistry = new MetricRegistry();
+    ApptuitDropwizardExports exporter = new ApptuitDropwizardExports(metricRegistry,
+        new TagDecodingSampleBuilder(null));
+    metricRegistry.counter("queue").inc(4);
+    metricRegistry.counter("jobs").inc(2);
+    Set<String> queue = Collections.singleton("queue");
+    Set<String> jobs = Collections.singleton("jobs");
+    assertTrue(streamedFamilies(exporter, queue).get("queue").contains("queue 4.0"));
+    assertTrue(streamedFamilies(exporter, jobs).get("jobs").contains("jobs 2.0"));
+
+    metricRegistry.remove("queue");
+    metricRegistry.meter("queue").mark(5);
+    Set<String> queueTotal = Collections.singleton("queue_total");
+    assertTrue(streamedFamilies(exporter, queueTotal).get("queue_rate").contains("queue_total 5.0"));
+    ByteArrayOutputStream queueOut = new ByteArrayOutputStream();
+    exporter.write(queueOut, queue);
+    assertEquals(0, queueOut.size());
+    assertEquals(filter(exporter.collect(), queueTotal).size(), exporter.collect(queueTotal::contains).size());
+
+    metricRegistry.remove("jobs");
+    metricRegistry.meter("jobs").mark(3);
+    streamedFamilies(exporter, Collections.emptySet());
+    Set<String> jobsTotal = Collections.singleton("jobs_total");
+    assertTrue(streamedFamilies(exporter, jobsTotal).get("jobs_rate").contains("jobs_total 3.0"));
+    ByteArrayOutputStream jobsOut = new ByteArrayOutputStream();
+    exporter.write(jobsOut, jobs);
+    assertEquals(0, jobsOut.size());
+  }
+
+  private void populateRegistry(MetricRegistry metricRegistry) {
+    metricRegistry.counter("requests[method:get]").inc(3);
+    metricRegistry.counter("requests[method:post]").inc(-2);
+    metricRegistry.register("ratio", (Gauge<Double>) () -> 0.25);
+    metricRegistry.register("nan", (Gauge<Double>) () -> Double.NaN);
+    metricRegistry.register("negative.zero", (Gauge<Double>) () -> -0.0);
+    metricRegistry.register("large", (Gauge<Long>) () -> Long.MAX_VALUE);
+    metricRegistry.register("enabled", (Gauge<Boolean>) () -> true);
+    metricRegistry.register("invalid", (Gauge<String>) () -> "value");
+    metricRegistry.register("escaped[path:C:\\tmp\"x\"]", (Gauge<Integer>) () -> 1);
+    metricRegistry.register("broken", (Gauge<Integer>) () -> {
+      throw new RuntimeException();
+    });
+    metricRegistry.meter("meter").mark(5);
+    metricRegistry.timer("latency[method:get]").update(3, TimeUnit.MILLISECONDS);
+    metricRegistry.register("bucketed[method:get]", new BucketedMetricRegistry.BucketedTimer(HistogramBuckets.DEFAULT))
+        .update(30, TimeUnit.MILLISECONDS);
+    Histogram histogram = metricRegistry.histogram("hist");
+    for (int i = 0; i < 100; i++) {
+      histogram.update(i);
+    }
+  }
+
+  private static Map<String, List<String>> textFormatFamilies(ApptuitDropwizardExports exporter,
+      Set<String> includedNames) throws IOException {
+    CollectorRegistry registry = new CollectorRegistry();
+    exporter.register(registry);
+    StringWriter writer = new StringWriter();
+    TextFormat.write004(writer, includedNames.isEmpty() ? registry.metricFamilySamples()
+        : Collections.enumeration(filter(exporter.collect(), includedNames)));
+    return parseFamilies(writer.toString());
+  }
+
+  private static List<Collector.MetricFamilySamples> filter(List<Collector.MetricFamilySamples> families,
+      Set<String> includedNames) {
+    List<Collector.MetricFamilySamples> filtered = new ArrayList<>();
+    for (Collector.MetricFamilySamples family : families) {
+      Collector.MetricFamilySamples samples = family.filter(includedNames::contains);
+      if (samples != null) {
+        filtered.add(samples);
+      }
+    }
+    return filtered;
+  }
+
+  private static Map<String, List<String>> streamedFamilies(ApptuitDropwizardExports exporter,
+      Set<String> includedNames) throws IOException {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    exporter.write(out, includedNames);
+    return parseFamilies(new String(out.toByteArray(), StandardCharsets.UTF_8));
+  }
+
+  private static Map<String, List<String>> parseFamilies(String exposition) {
+    Map<String, List<String>> families = new HashMap<>();
+    List<String> lines = null;
+    for (String line : exposition.split("\n")) {
+      if (line.startsWith("# HELP ")) {
+        lines = new ArrayList<>();
+        families.put(line.split(" ")[2], lines);
+      }
+      lines.add(line);
+    }
+    return families;
+  }
 }
@@ -0,0 +1,178 @@
+/*
+ * Copyright 2017 Agilx, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ai.apptuit.metrics.jinsight;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import com.codahale.metrics.Histogram;
+import com.codahale.metrics.Timer;
+import io.prometheus.client.Collector.MetricFamilySamples;
+import io.prometheus.client.Collector.Type;
+import io.prometheus.client.CollectorRegistry;
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import org.junit.Before;
+import org.junit.Test;
+
+public class BucketedMetricRegistryTest {
+
+  private static final HistogramBuckets JDBC_BUCKETS = new HistogramBuckets(new double[]{0.001, 0.01});
+
+  private BucketedMetricRegistry registry;
+
+  @Before
+  public void setUp() throws Exception {
+    Map<String, HistogramBuckets> buckets = new HashMap<>();
+    buckets.put("jdbc", JDBC_BUCKETS);
+    registry = new BucketedMetricRegistry(buckets);
+  }
+
+  @Test
+  public void testBucketsByPrefix() throws Exception {
+    assertSame(JDBC_BUCKETS, registry.getBuckets("jdbc"));
+    assertSame(JDBC_BUCKETS, registry.getBuckets("jdbc.ps.execute[sql:1234]"));
+    assertSame(HistogramBuckets.DEFAULT, registry.getBuckets("jdbcx.ps.execute"));
+    assertSame(HistogramBuckets.DEFAULT, registry.getBuckets("servlet.requests"));
+  }
+
+  @Test
+  public void testTimerBuckets() throws Exception {
+    Timer timer = registry.timer("jdbc.ps.execute");
+    timer.update(1, TimeUnit.MILLISECONDS);
+    timer.update(1001, TimeUnit.MICROSECONDS);
+    timer.update(10, TimeUnit.MILLISECONDS);
+    timer.update(2, TimeUnit.SECONDS);
+
+    BucketedSampling buckets = (BucketedSampling) timer;
+    assertArrayEquals(new double[]{0.001, 0.01}, buckets.getBucketBounds(), 0);
+    assertEquals(1, buckets.getBucketCount(0));
+    assertEquals(2, buckets.getBucketCount(1));
+    assertEquals(1, buckets.getBucketCount(2));
+    assertEquals(2.012001, buckets.getSum(), 1e-9);
+    assertEquals(4, timer.getCount());
+    assertEquals(TimeUnit.SECONDS.toNanos(2), timer.getSnapshot().getMax());
+  }
+
+  @Test
+  public void testWeightedTimerBuckets() throws Exception {
+    WeightedTimer timer = (WeightedTimer) registry.timer("jdbc.ps.execute");
+    timer.update(TimeUnit.MILLISECONDS.toNanos(5), 10);
+    timer.update(TimeUnit.MILLISECONDS.toNanos(20), 1);
+
+    BucketedSampling buckets = (BucketedSampling) timer;
+    assertEquals(0, buckets.getBucketCount(0));
+    assertEquals(10, buckets.getBucketCount(1));
+    assertEquals(1, buckets.getBucketCount(2));
+    assertEquals(0.07, buckets.getSum(), 1e-9);
+    assertEquals(11, timer.getCount());
+  }
+
+  @Test
+  public void testHistogramBuckets() throws Exception {
+    Histogram histogram = registry.histogram("response.size");
+    for (int i = 0; i < 20; i++) {
+      histogram.update(i);
+    }
+    BucketedSampling buckets = (BucketedSampling) histogram;
+    assertEquals(1, buckets.getBucketCount(0));
+    assertEquals(0, buckets.getBucketCount(6));
+    assertEquals(1, buckets.getBucketCount(7));
+    assertEquals(9, buckets.getBucketCount(11));
+    assertEquals(190, buckets.getSum(), 0);
+    assertEquals(20, histogram.getCount());
+  }
+
+  @Test
+  public void testExportedAsNativeHistogram() throws Exception {
+    registry.timer("jdbc.ps.execute[sql:1234]").update(5, TimeUnit.MILLISECONDS);
+    registry.histogram("response.size").update(3);
+    MetricRegistryCollection collection = new MetricRegistryCollection(false);
+    collection.register(registry);
+    ApptuitDropwizardExports exporter = new ApptuitDropwizardExports(collection.getAggregatedMetricRegistry(),
+        new TagDecodingSampleBuilder(Collections.emptyMap()));
+    CollectorRegistry collectorRegistry = new CollectorRegistry();
+    exporter.register(collectorRegistry);
+
+    List<MetricFamilySamples> families = exporter.collect();
+    MetricFamilySamples timerFamily = families.stream()
+        .filter(family -> family.name.equals("jdbc_ps_execute_duration")).findFirst().get();
+    assertEquals(Type.HISTOGRAM, timerFamily.type);
+    assertEquals(1.0, collectorRegistry.getSampleValue("jdbc_ps_execute_duration_bucket",
+        new String[]{"sql", "le"}, new String[]{"1234", "0.01"}), 0);
+    assertEquals(0.0, collectorRegistry.getSampleValue("jdbc_ps_execute_duration_bucket",
+        new String[]{"sql", "le"}, new String[]{"1234", "0.001"}), 0);
+    assertEquals(1.0, collectorRegistry.getSampleValue("jdbc_ps_execute_duration_count",
+        new String[]{"sql"}, new String[]{"1234"}), 0);
+    assertEquals(0.005, collectorRegistry.getSampleValue("jdbc_ps_execute_duration_sum",
+        new String[]{"sql"}, new String[]{"1234"}), 1e-12);
+    assertEquals(1.0, collectorRegistry.getSampleValue("response_size_bucket",
+        new String[]{"le"}, new String[]{"5.0"}), 0);
+
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    exporter.write(out, Collections.emptySet());
+    String exposition = new String(out.toByteArray(), StandardCharsets.UTF_8);
+    assertTrue(exposition.contains("# TYPE jdbc_ps_execute_duration histogram\n"));
+    assertTrue(exposition.contains("jdbc_ps_execute_duration_bucket{sql=\"1234\",le=\"+Inf\",} 1.0\n"));
+    assertTrue(exposition.contains("# TYPE response_size histogram\n"));
+    assertTrue(exposition.contains("response_size_sum 3.0\n"));
+  }
+
+  @Test
+  public void testMergedTimersKeepTheirBuckets() throws Exception {
+    Map<String, HistogramBuckets> buckets = new HashMap<>();
+    buckets.put("jdbc", JDBC_BUCKETS);
+    BucketedMetricRegistry other = new BucketedMetricRegistry(buckets);
+    registry.timer("jdbc.ps.execute").update(5, TimeUnit.MILLISECONDS);
+    other.timer("jdbc.ps.execute").update(20, TimeUnit.MILLISECONDS);
+    other.timer("jdbc.ps.execute").update(6, TimeUnit.MILLISECONDS);
+
+    Timer merged = (Timer) MergedMetrics.merge(registry.timer("jdbc.ps.execute"), other.timer("jdbc.ps.execute"));
+    BucketedSampling mergedBuckets = (BucketedSampling) merged;
+    assertArrayEquals(new double[]{0.001, 0.01}, mergedBuckets.getBucketBounds(), 0);
+    assertEquals(0, mergedBuckets.getBucketCount(0));
+    assertEquals(2, mergedBuckets.getBucketCount(1));
+    assertEquals(1, mergedBuckets.getBucketCount(2));
+    assertEquals(0.031, mergedBuckets.getSum(), 1e-9);
+    assertEquals(3, merged.getCount());
+
+    Histogram mergedHistogram = (Histogram) MergedMetrics.merge(registry.histogram("response.size"),
+        other.histogram("response.size"));
+    assertTrue(mergedHistogram instanceof BucketedSampling);
+  }
+
+  @Test
+  public void testTimersWithOtherBucketsAreMergedWithoutBuckets() throws Exception {
+    Timer jdbcTimer = registry.timer("jdbc.ps.execute");
+    Timer servletTimer = registry.timer("servlet.requests");
+    assertFalse(MergedMetrics.merge(jdbcTimer, servletTimer) instanceof BucketedSampling);
+    assertFalse(MergedMetrics.merge(jdbcTimer, new Timer()) instanceof BucketedSampling);
+  }
+
+  @Test
+  public void testSuppliedMetricsAreNotBucketed() throws Exception {
+    assertFalse(registry.timer("jdbc.ps.execute", Timer::new) instanceof BucketedSampling);
+  }
+}
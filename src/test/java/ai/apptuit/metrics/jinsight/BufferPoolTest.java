@@ -0,0 +1,107 @@
+/*
+ * Copyright 2017 Agilx, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ai.apptuit.metrics.jinsight;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import org.junit.Test;
+
+public class BufferPoolTest {
+
+  private static byte[] bytes(int length) {
+    byte[] bytes = new byte[length];
+    for (int i = 0; i < length; i++) {
+      bytes[i] = (byte) i;
+    }
+    return bytes;
+  }
+
+  @Test
+  public void testBufferGrows() throws Exception {
+    for (boolean direct : new boolean[]{false, true}) {
+      BufferPool pool = new BufferPool(2, 100, direct);
+      BufferPool.Buffer buffer = pool.acquire();
+      byte[] expected = bytes(100_000);
+      buffer.write(expected[0]);
+      buffer.write(expected, 1, expected.length - 1);
+      assertEquals(expected.length, buffer.size());
+
+      ByteBuffer contents = buffer.contents();
+      byte[] actual = new byte[contents.remaining()];
+      contents.get(actual);
+      assertArrayEquals(expected, actual);
+
+      ByteArrayOutputStream out = new ByteArrayOutputStream();
+      buffer.writeTo(out);
+      assertArrayEquals(expected, out.toByteArray());
+    }
+  }
+
+  @Test
+  public void testBuffersAreReused() throws Exception {
+    BufferPool pool = new BufferPool(1, 10_000, false);
+    BufferPool.Buffer first = pool.acquire();
+    BufferPool.Buffer second = pool.acquire();
+    first.write(bytes(5000));
+    pool.release(first);
+    pool.release(second);
+
+    BufferPool.Buffer reused = pool.acquire();
+    assertSame(first, reused);
+    assertEquals(0, reused.size());
+    assertNotSame(second, pool.acquire());
+  }
+
+  @Test
+  public void testPoolAdaptsToResponseSize() throws Exception {
+    BufferPool pool = new BufferPool(2, 10_000, false);
+    BufferPool.Buffer buffer = pool.acquire();
+    buffer.write(new byte[1_000_000]);
+    pool.release(buffer);
+    assertEquals(1_000_000, pool.getExpectedSize());
+    assertTrue(pool.acquire().capacity() >= 1_000_000);
+
+    for (int i = 0; i < 100; i++) {
+      BufferPool.Buffer small = pool.acquire();
+      small.write(new byte[10_000]);
+      pool.release(small);
+    }
+    assertTrue(pool.getExpectedSize() < 20_000);
+    BufferPool.Buffer small = pool.acquire();
+    assertTrue(small.capacity() < 100_000);
+  }
+
+  @Test
+  public void testContentsAreReadOnlyView() throws Exception {
+    BufferPool pool = new BufferPool(1, 10, false);
+    BufferPool.Buffer buffer = pool.acquire();
+    buffer.write(bytes(10));
+    ByteBuffer contents = buffer.contents();
+    assertTrue(contents.isReadOnly());
+    assertEquals(10, contents.remaining());
+    byte[] actual = new byte[10];
+    contents.get(actual);
+    assertTrue(Arrays.equals(bytes(10), actual));
+  }
+}
@@ -0,0 +1,130 @@
+/*
+ * Copyright 2017 Agilx, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ai.apptuit.metrics.jinsight;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import com.codahale.metrics.Counter;
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.MetricFilter;
+import com.codahale.metrics.MetricRegistry;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.SortedMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import org.junit.Before;
+import org.junit.Test;
+
+public class ChangedMetricsRegistryTest {
+
+  private MetricRegistry metrics;
+  private MetricRegistry jinsightRegistry;
+  private ChangedMetricsRegistry changed;
+
+  @Before
+  public void setUp() {
+    metrics = new MetricRegistry();
+    jinsightRegistry = new MetricRegistry();
+    changed = new ChangedMetricsRegistry(metrics, 3_600_000, jinsightRegistry);
+  }
+
+  private long unchanged() {
+    return jinsightRegistry.counter(ChangedMetricsRegistry.UNCHANGED_METRICS_METRIC_NAME).getCount();
+  }
+
+  @Test
+  public void testOnlyChangedCountersAreReported() {
+    Counter idle = metrics.counter("idle");
+    Counter busy = metrics.counter("busy");
+    idle.inc();
+    busy.inc();
+    assertEquals(Arrays.asList("busy", "idle"), Arrays.asList(changed.getCounters().keySet().toArray()));
+
+    busy.inc();
+    assertEquals(Collections.singleton("busy"), changed.getCounters().keySet());
+    assertEquals(1, unchanged());
+    assertTrue(changed.getCounters().isEmpty());
+    assertEquals(3, unchanged());
+  }
+
+  @Test
+  public void testOnlyChangedTimersAndMetersAreReported() {
+    metrics.timer("timer").update(1, TimeUnit.MILLISECONDS);
+    metrics.meter("meter").mark();
+    metrics.histogram("histogram").update(1);
+    assertEquals(1, changed.getTimers().size());
+    assertEquals(1, changed.getMeters().size());
+    assertEquals(1, changed.getHistograms().size());
+
+    metrics.meter("meter").mark();
+    assertTrue(changed.getTimers().isEmpty());
+    assertEquals(1, changed.getMeters().size());
+    assertTrue(changed.getHistograms(MetricFilter.ALL).isEmpty());
+  }
+
+  @Test
+  @SuppressWarnings("rawtypes")
+  public void testGaugesAreReportedWithTheComparedValue() {
+    AtomicLong value = new AtomicLong(1);
+    metrics.register("gauge", (Gauge<Long>) value::getAndIncrement);
+    metrics.register("constant", (Gauge<String>) () -> "constant");
+    metrics.register("null", (Gauge<Object>) () -> null);
+
+    SortedMap<String, Gauge> gauges = changed.getGauges();
+    assertEquals(3, gauges.size());
+    assertEquals(1L, gauges.get("gauge").getValue());
+    assertEquals(1L, gauges.get("gauge").getValue());
+
+    gauges = changed.getGauges();
+    assertEquals(Collections.singleton("gauge"), gauges.keySet());
+    assertEquals(2L, gauges.get("gauge").getValue());
+    assertEquals(2, unchanged());
+  }
+
+  @Test
+  public void testAllMetricsAreReportedOnFullRefresh() throws Exception {
+    changed = new ChangedMetricsRegistry(metrics, 50, jinsightRegistry);
+    metrics.counter("counter").inc();
+    assertEquals(1, changed.getCounters().size());
+    assertTrue(changed.getCounters().isEmpty());
+
+    Thread.sleep(60);
+    assertEquals(1, changed.getCounters().size());
+    assertTrue(changed.getCounters().isEmpty());
+  }
+
+  @Test
+  public void testRemovedMetricsAreForgotten() {
+    metrics.counter("counter").inc();
+    assertEquals(1, changed.getCounters().size());
+    metrics.remove("counter");
+    assertTrue(changed.getCounters().isEmpty());
+
+    metrics.counter("counter").inc();
+    assertEquals(1, changed.getCounters().size());
+  }
+
+  @Test
+  public void testMetricsAreNotFiltered() {
+    metrics.counter("counter").inc();
+    changed.getCounters();
+    assertEquals(Collections.singleton("counter"), changed.getNames());
+    assertEquals(1, changed.getMetrics().size());
+  }
+}
@@ -21,20 +21,57 @@ import ai.apptuit.metrics.dropwizard.ApptuitReporter.ReportingMode;
 import ai.apptuit.metrics.jinsight.ConfigService.ReporterType;
 import org.junit.Test;
 
+import java.io.File;
 import java.lang.reflect.Field;
 import java.net.URL;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.Map;
 import java.util.Properties;
 import java.util.UUID;
 
+import static ai.apptuit.metrics.jinsight.ConfigService.ASYNC_TIMERS_BUFFER_SIZE_PROPERTY_NAME;
+import static ai.apptuit.metrics.jinsight.ConfigService.ASYNC_TIMERS_OVERFLOW_POLICY_PROPERTY_NAME;
+import static ai.apptuit.metrics.jinsight.ConfigService.ASYNC_TIMERS_PROPERTY_NAME;
+import static ai.apptuit.metrics.jinsight.ConfigService.GOVERNOR_CPU_BUDGET_PROPERTY_NAME;
+import static ai.apptuit.metrics.jinsight.ConfigService.SAMPLING_PROPERTY_NAME;
+import static ai.apptuit.metrics.jinsight.ConfigService.CHANGED_ONLY_PROPERTY_NAME;
+import static ai.apptuit.metrics.jinsight.ConfigService.COALESCE_SCRAPES_PROPERTY_NAME;
+import static ai.apptuit.metrics.jinsight.ConfigService.COLLECTION_TIMEOUT_PROPERTY_NAME;
+import static ai.apptuit.metrics.jinsight.ConfigService.DIRECT_BUFFERS_PROPERTY_NAME;
+import static ai.apptuit.metrics.jinsight.ConfigService.EXPORTER_THREADS_PROPERTY_NAME;
+import static ai.apptuit.metrics.jinsight.ConfigService.FULL_REFRESH_INTERVAL_PROPERTY_NAME;
+import static ai.apptuit.metrics.jinsight.ConfigService.GZIP_LEVEL_PROPERTY_NAME;
+import static ai.apptuit.metrics.jinsight.ConfigService.HISTOGRAM_BUCKETS_PROPERTY_NAME;
+import static ai.apptuit.metrics.jinsight.ConfigService.INCREMENTAL_AGGREGATION_PROPERTY_NAME;
+import static ai.apptuit.metrics.jinsight.ConfigService.MERGE_DUPLICATE_METRICS_PROPERTY_NAME;
+import static ai.apptuit.metrics.jinsight.ConfigService.NAME_CACHE_SIZE_PROPERTY_NAME;
+import static ai.apptuit.metrics.jinsight.ConfigService.NATIVE_HISTOGRAMS_PROPERTY_NAME;
+import static ai.apptuit.metrics.jinsight.ConfigService.NIO_SERVER_PROPERTY_NAME;
+import static ai.apptuit.metrics.jinsight.ConfigService.OTLP_BATCH_SIZE_PROPERTY_NAME;
+import static ai.apptuit.metrics.jinsight.ConfigService.OTLP_ENDPOINT_PROPERTY_NAME;
+import static ai.apptuit.metrics.jinsight.ConfigService.REMOTE_WRITE_BATCH_SIZE_PROPERTY_NAME;
+import static ai.apptuit.metrics.jinsight.ConfigService.REMOTE_WRITE_MAX_IN_FLIGHT_PROPERTY_NAME;
+import static ai.apptuit.metrics.jinsight.ConfigService.REMOTE_WRITE_MAX_RETRIES_PROPERTY_NAME;
+import static ai.apptuit.metrics.jinsight.ConfigService.REMOTE_WRITE_URL_PROPERTY_NAME;
 import static ai.apptuit.metrics.jinsight.ConfigService.REPORTER_PROPERTY_NAME;
+import static ai.apptuit.metrics.jinsight.ConfigService.STATSD_DOGSTATSD_TAGS_PROPERTY_NAME;
+import static ai.apptuit.metrics.jinsight.ConfigService.STATSD_HOST_PROPERTY_NAME;
+import static ai.apptuit.metrics.jinsight.ConfigService.STATSD_MAX_PACKET_SIZE_PROPERTY_NAME;
+import static ai.apptuit.metrics.jinsight.ConfigService.STATSD_PORT_PROPERTY_NAME;
 import static ai.apptuit.metrics.jinsight.ConfigService.REPORTING_FREQ_PROPERTY_NAME;
 import static ai.apptuit.metrics.jinsight.ConfigService.REPORTING_MODE_PROPERTY_NAME;
+import static ai.apptuit.metrics.jinsight.ConfigService.SCRAPE_CACHE_TTL_PROPERTY_NAME;
+import static ai.apptuit.metrics.jinsight.ConfigService.SNAPSHOT_INTERVAL_PROPERTY_NAME;
+import static ai.apptuit.metrics.jinsight.ConfigService.SPOOL_DIR_PROPERTY_NAME;
+import static ai.apptuit.metrics.jinsight.ConfigService.SPOOL_PROPERTY_NAME;
+import static ai.apptuit.metrics.jinsight.ConfigService.SPOOL_SIZE_PROPERTY_NAME;
 import static ai.apptuit.metrics.jinsight.ConfigService.getThisJVMProcessID;
 import static ai.apptuit.metrics.jinsight.ConfigService.initialize;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
 import static org.junit.Assert.assertTrue;
 
 /**
@@ -127,6 +164,384 @@ public class ConfigServiceTest {
     assertEquals(ReportingMode.NO_OP, configService.getReportingMode());
   }
 
+  @Test
+  public void testIncrementalAggregationDefault() throws Exception {
+    Properties p = getDefaultConfigProperties();
+    ConfigService configService = new ConfigService(p);
+    assertFalse(configService.isIncrementalAggregation());
+  }
+
+  @Test
+  public void testIncrementalAggregation() throws Exception {
+    Properties p = getDefaultConfigProperties();
+    p.setProperty(INCREMENTAL_AGGREGATION_PROPERTY_NAME, "true");
+    ConfigService configService = new ConfigService(p);
+    assertTrue(configService.isIncrementalAggregation());
+  }
+
+  @Test
+  public void testMergeDuplicateMetricsDefault() throws Exception {
+    Properties p = getDefaultConfigProperties();
+    ConfigService configService = new ConfigService(p);
+    assertFalse(configService.isMergeDuplicateMetrics());
+  }
+
+  @Test
+  public void testMergeDuplicateMetrics() throws Exception {
+    Properties p = getDefaultConfigProperties();
+    p.setProperty(MERGE_DUPLICATE_METRICS_PROPERTY_NAME, "true");
+    ConfigService configService = new ConfigService(p);
+    assertTrue(configService.isMergeDuplicateMetrics());
+  }
+
+  @Test
+  public void testNativeHistogramsDefault() throws Exception {
+    Properties p = getDefaultConfigProperties();
+    ConfigService configService = new ConfigService(p);
+    assertFalse(configService.isNativeHistograms());
+    assertTrue(configService.getHistogramBuckets().isEmpty());
+  }
+
+  @Test
+  public void testHistogramBuckets() throws Exception {
+    Properties p = getDefaultConfigProperties();
+    p.setProperty(NATIVE_HISTOGRAMS_PROPERTY_NAME, "true");
+    p.setProperty(HISTOGRAM_BUCKETS_PROPERTY_NAME, "0.1, 1, 10");
+    p.setProperty(HISTOGRAM_BUCKETS_PROPERTY_NAME + ".jdbc.ps", "0.001,0.01");
+    p.setProperty(HISTOGRAM_BUCKETS_PROPERTY_NAME + ".redis", "1,junk");
+    ConfigService configService = new ConfigService(p);
+    assertTrue(configService.isNativeHistograms());
+    Map<String, HistogramBuckets> buckets = configService.getHistogramBuckets();
+    assertEquals(2, buckets.size());
+    assertEquals(new HistogramBuckets(new double[]{0.1, 1, 10}), buckets.get(""));
+    assertEquals(new HistogramBuckets(new double[]{0.001, 0.01}), buckets.get("jdbc.ps"));
+  }
+
+  @Test
+  public void testNameCacheSizeDefault() throws Exception {
+    Properties p = getDefaultConfigProperties();
+    ConfigService configService = new ConfigService(p);
+    assertEquals(TagDecodingSampleBuilder.DEFAULT_CACHE_CAPACITY, configService.getNameCacheSize());
+  }
+
+  @Test
+  public void testNameCacheSize() throws Exception {
+    Properties p = getDefaultConfigProperties();
+    p.setProperty(NAME_CACHE_SIZE_PROPERTY_NAME, " 1000 ");
+    ConfigService configService = new ConfigService(p);
+    assertEquals(1000, configService.getNameCacheSize());
+  }
+
+  @Test
+  public void testNameCacheSizeOnError() throws Exception {
+    Properties p = getDefaultConfigProperties();
+    p.setProperty(NAME_CACHE_SIZE_PROPERTY_NAME, "-1");
+    ConfigService configService = new ConfigService(p);
+    assertEquals(TagDecodingSampleBuilder.DEFAULT_CACHE_CAPACITY, configService.getNameCacheSize());
+  }
+
+  @Test
+  public void testScrapeCoalescingDefault() throws Exception {
+    Properties p = getDefaultConfigProperties();
+    ConfigService configService = new ConfigService(p);
+    assertFalse(configService.isCoalesceScrapes());
+    assertEquals(0L, configService.getScrapeCacheTtl());
+  }
+
+  @Test
+  public void testScrapeCoalescing() throws Exception {
+    Properties p = getDefaultConfigProperties();
+    p.setProperty(COALESCE_SCRAPES_PROPERTY_NAME, "true");
+    ConfigService configService = new ConfigService(p);
+    assertTrue(configService.isCoalesceScrapes());
+    assertEquals(0L, configService.getScrapeCacheTtl());
+  }
+
+  @Test
+  public void testScrapeCacheTtlEnablesCoalescing() throws Exception {
+    Properties p = getDefaultConfigProperties();
+    p.setProperty(SCRAPE_CACHE_TTL_PROPERTY_NAME, "1.5s");
+    ConfigService configService = new ConfigService(p);
+    assertTrue(configService.isCoalesceScrapes());
+    assertEquals(1500L, configService.getScrapeCacheTtl());
+  }
+
+  @Test
+  public void testScrapeCacheTtlOnError() throws Exception {
+    Properties p = getDefaultConfigProperties();
+    p.setProperty(SCRAPE_CACHE_TTL_PROPERTY_NAME, "soon");
+    ConfigService configService = new ConfigService(p);
+    assertFalse(configService.isCoalesceScrapes());
+    assertEquals(0L, configService.getScrapeCacheTtl());
+  }
+
+  @Test
+  public void testNioServerDefault() throws Exception {
+    Properties p = getDefaultConfigProperties();
+    ConfigService configService = new ConfigService(p);
+    assertFalse(configService.isNioServer());
+    assertEquals(2, configService.getExporterThreads());
+    assertFalse(configService.isDirectBuffers());
+  }
+
+  @Test
+  public void testNioServer() throws Exception {
+    Properties p = getDefaultConfigProperties();
+    p.setProperty(NIO_SERVER_PROPERTY_NAME, "true");
+    p.setProperty(EXPORTER_THREADS_PROPERTY_NAME, "4");
+    p.setProperty(DIRECT_BUFFERS_PROPERTY_NAME, "true");
+    ConfigService configService = new ConfigService(p);
+    assertTrue(configService.isNioServer());
+    assertEquals(4, configService.getExporterThreads());
+    assertTrue(configService.isDirectBuffers());
+  }
+
+  @Test
+  public void testExporterThreadsOnError() throws Exception {
+    Properties p = getDefaultConfigProperties();
+    p.setProperty(EXPORTER_THREADS_PROPERTY_NAME, "0");
+    ConfigService configService = new ConfigService(p);
+    assertEquals(2, configService.getExporterThreads());
+  }
+
+  @Test
+  public void testGzipLevel() throws Exception {
+    Properties p = getDefaultConfigProperties();
+    assertEquals(-1, new ConfigService(p).getGzipLevel());
+    p.setProperty(GZIP_LEVEL_PROPERTY_NAME, "1");
+    assertEquals(1, new ConfigService(p).getGzipLevel());
+    p.setProperty(GZIP_LEVEL_PROPERTY_NAME, "11");
+    assertEquals(-1, new ConfigService(p).getGzipLevel());
+  }
+
+  @Test
+  public void testSpool() throws Exception {
+    Properties p = getDefaultConfigProperties();
+    ConfigService configService = new ConfigService(p);
+    assertFalse(configService.isSpool());
+    assertEquals(64, configService.getSpoolSizeMb());
+    assertEquals(new File(new File(System.getProperty("user.home"), ".jinsight"), "spool"),
+        configService.getSpoolDir());
+
+    p.setProperty(SPOOL_PROPERTY_NAME, "true");
+    p.setProperty(SPOOL_SIZE_PROPERTY_NAME, "8");
+    p.setProperty(SPOOL_DIR_PROPERTY_NAME, "/tmp/jinsight-spool");
+    configService = new ConfigService(p);
+    assertTrue(configService.isSpool());
+    assertEquals(8, configService.getSpoolSizeMb());
+    assertEquals(new File("/tmp/jinsight-spool"), configService.getSpoolDir());
+
+    p.setProperty(SPOOL_SIZE_PROPERTY_NAME, "0");
+    assertEquals(64, new ConfigService(p).getSpoolSizeMb());
+  }
+
+  @Test
+  public void testMultipleReporters() throws Exception {
+    Properties p = getApptuitReporterConfigProperties(ReportingMode.API_PUT);
+    p.setProperty(REPORTER_PROPERTY_NAME, "prometheus, APPTUIT,Prometheus");
+    ConfigService configService = new ConfigService(p);
+    assertEquals(Arrays.asList(ReporterType.PROMETHEUS, ReporterType.APPTUIT), configService.getReporterTypes());
+    assertEquals(ReporterType.PROMETHEUS, configService.getReporterType());
+    assertEquals(5000, configService.getSnapshotInterval());
+
+    p.setProperty(REPORTER_PROPERTY_NAME, "APPTUIT,Invalid");
+    p.setProperty(SNAPSHOT_INTERVAL_PROPERTY_NAME, "2s");
+    configService = new ConfigService(p);
+    assertEquals(Collections.singletonList(ReporterType.APPTUIT), configService.getReporterTypes());
+    assertEquals(2000, configService.getSnapshotInterval());
+
+    p.setProperty(REPORTER_PROPERTY_NAME, "Invalid,");
+    assertEquals(Collections.singletonList(ConfigService.DEFAULT_REPORTER_TYPE),
+        new ConfigService(p).getReporterTypes());
+  }
+
+  @Test
+  public void testRemoteWrite() throws Exception {
+    Properties p = getDefaultConfigProperties();
+    p.setProperty(REPORTER_PROPERTY_NAME, "prometheus_remote_write");
+    p.setProperty(REMOTE_WRITE_URL_PROPERTY_NAME, "http://localhost:9090/api/v1/write");
+    ConfigService configService = new ConfigService(p);
+    assertEquals(ReporterType.PROMETHEUS_REMOTE_WRITE, configService.getReporterType());
+    assertEquals(new URL("http://localhost:9090/api/v1/write"), configService.getRemoteWriteUrl());
+    assertEquals(2000, configService.getRemoteWriteBatchSize());
+    assertEquals(2, configService.getRemoteWriteMaxInFlight());
+    assertEquals(3, configService.getRemoteWriteMaxRetries());
+
+    p.setProperty(REMOTE_WRITE_BATCH_SIZE_PROPERTY_NAME, "500");
+    p.setProperty(REMOTE_WRITE_MAX_IN_FLIGHT_PROPERTY_NAME, "4");
+    p.setProperty(REMOTE_WRITE_MAX_RETRIES_PROPERTY_NAME, "0");
+    configService = new ConfigService(p);
+    assertEquals(500, configService.getRemoteWriteBatchSize());
+    assertEquals(4, configService.getRemoteWriteMaxInFlight());
+    assertEquals(0, configService.getRemoteWriteMaxRetries());
+
+    p.setProperty(REMOTE_WRITE_BATCH_SIZE_PROPERTY_NAME, "0");
+    p.setProperty(REMOTE_WRITE_MAX_RETRIES_PROPERTY_NAME, "-1");
+    configService = new ConfigService(p);
+    assertEquals(2000, configService.getRemoteWriteBatchSize());
+    assertEquals(3, configService.getRemoteWriteMaxRetries());
+  }
+
+  @Test(expected = ConfigurationException.class)
+  public void testRemoteWriteNeedsUrl() throws Exception {
+    Properties p = getDefaultConfigProperties();
+    p.setProperty(REPORTER_PROPERTY_NAME, "PROMETHEUS,PROMETHEUS_REMOTE_WRITE");
+    new ConfigService(p);
+  }
+
+  @Test
+  public void testOtlp() throws Exception {
+    Properties p = getDefaultConfigProperties();
+    p.setProperty(REPORTER_PROPERTY_NAME, "OTLP");
+    p.setProperty(OTLP_ENDPOINT_PROPERTY_NAME, "http://localhost:4318/v1/metrics");
+    ConfigService configService = new ConfigService(p);
+    assertEquals(ReporterType.OTLP, configService.getReporterType());
+    assertEquals(new URL("http://localhost:4318/v1/metrics"), configService.getOtlpEndpoint());
+    assertEquals(1000, configService.getOtlpBatchSize());
+
+    p.setProperty(OTLP_BATCH_SIZE_PROPERTY_NAME, "200");
+    assertEquals(200, new ConfigService(p).getOtlpBatchSize());
+    p.setProperty(OTLP_BATCH_SIZE_PROPERTY_NAME, "none");
+    assertEquals(1000, new ConfigService(p).getOtlpBatchSize());
+  }
+
+  @Test(expected = ConfigurationException.class)
+  public void testOtlpNeedsEndpoint() throws Exception {
+    Properties p = getDefaultConfigProperties();
+    p.setProperty(REPORTER_PROPERTY_NAME, "OTLP");
+    new ConfigService(p);
+  }
+
+  @Test
+  public void testStatsd() throws Exception {
+    Properties p = getDefaultConfigProperties();
+    p.setProperty(REPORTER_PROPERTY_NAME, "STATSD");
+    ConfigService configService = new ConfigService(p);
+    assertEquals(ReporterType.STATSD, configService.getReporterType());
+    assertEquals("localhost", configService.getStatsdHost());
+    assertEquals(8125, configService.getStatsdPort());
+    assertTrue(configService.isStatsdDogstatsdTags());
+    assertEquals(1432, configService.getStatsdMaxPacketSize());
+
+    p.setProperty(STATSD_HOST_PROPERTY_NAME, "statsd.local");
+    p.setProperty(STATSD_PORT_PROPERTY_NAME, "9125");
+    p.setProperty(STATSD_DOGSTATSD_TAGS_PROPERTY_NAME, "false");
+    p.setProperty(STATSD_MAX_PACKET_SIZE_PROPERTY_NAME, "8932");
+    configService = new ConfigService(p);
+    assertEquals("statsd.local", configService.getStatsdHost());
+    assertEquals(9125, configService.getStatsdPort());
+    assertFalse(configService.isStatsdDogstatsdTags());
+    assertEquals(8932, configService.getStatsdMaxPacketSize());
+
+    p.setProperty(STATSD_PORT_PROPERTY_NAME, "70000");
+    p.setProperty(STATSD_MAX_PACKET_SIZE_PROPERTY_NAME, "0");
+    configService = new ConfigService(p);
+    assertEquals(8125, configService.getStatsdPort());
+    assertEquals(1432, configService.getStatsdMaxPacketSize());
+  }
+
+  @Test
+  public void testAsyncTimers() throws Exception {
+    Properties p = getDefaultConfigProperties();
+    ConfigService configService = new ConfigService(p);
+    assertFalse(configService.isAsyncTimers());
+    assertEquals(1024, configService.getAsyncTimersBufferSize());
+    assertEquals(TimingPipeline.OverflowPolicy.DROP, configService.getAsyncTimersOverflowPolicy());
+
+    p.setProperty(ASYNC_TIMERS_PROPERTY_NAME, "true");
+    p.setProperty(ASYNC_TIMERS_BUFFER_SIZE_PROPERTY_NAME, "256");
+    p.setProperty(ASYNC_TIMERS_OVERFLOW_POLICY_PROPERTY_NAME, "update_inline");
+    configService = new ConfigService(p);
+    assertTrue(configService.isAsyncTimers());
+    assertEquals(256, configService.getAsyncTimersBufferSize());
+    assertEquals(TimingPipeline.OverflowPolicy.UPDATE_INLINE, configService.getAsyncTimersOverflowPolicy());
+
+    p.setProperty(ASYNC_TIMERS_BUFFER_SIZE_PROPERTY_NAME, "-1");
+    p.setProperty(ASYNC_TIMERS_OVERFLOW_POLICY_PROPERTY_NAME, "block");
+    configService = new ConfigService(p);
+    assertEquals(1024, configService.getAsyncTimersBufferSize());
+    assertEquals(TimingPipeline.OverflowPolicy.DROP, configService.getAsyncTimersOverflowPolicy());
+  }
+
+  @Test
+  public void testSampling() throws Exception {
+    Properties p = getDefaultConfigProperties();
+    ConfigService configService = new ConfigService(p);
+    assertEquals("1/1", configService.getSampler("jedis").toString());
+    assertSame(configService.getSampler("jedis"), configService.getSampler("jedis"));
+
+    p.setProperty(SAMPLING_PROPERTY_NAME + ".jedis", "1/100");
+    p.setProperty(SAMPLING_PROPERTY_NAME + ".jdbc", "500/s");
+    p.setProperty(SAMPLING_PROPERTY_NAME + ".ehcache", "all");
+    configService = new ConfigService(p);
+    assertEquals("1/100", configService.getSampler("jedis").toString());
+    assertEquals("500/s", configService.getSampler("jdbc").toString());
+    assertEquals("1/1", configService.getSampler("ehcache").toString());
+    assertEquals("1/1", configService.getSampler("okhttp3").toString());
+  }
+
+  @Test
+  public void testGovernorCpuBudget() throws Exception {
+    Properties p = getDefaultConfigProperties();
+    ConfigService configService = new ConfigService(p);
+    assertEquals(0, configService.getGovernorCpuBudget(), 0);
+
+    p.setProperty(GOVERNOR_CPU_BUDGET_PROPERTY_NAME, "2");
+    p.setProperty(GOVERNOR_CPU_BUDGET_PROPERTY_NAME + ".jedis", "0.5");
+    p.setProperty(GOVERNOR_CPU_BUDGET_PROPERTY_NAME + ".jdbc", "-1");
+    configService = new ConfigService(p);
+    assertEquals(2, configService.getGovernorCpuBudget(), 0);
+    assertEquals(0.5, configService.getGovernorCpuBudget("jedis"), 0);
+    assertEquals(2, configService.getGovernorCpuBudget("jdbc"), 0);
+    assertEquals(2, configService.getGovernorCpuBudget("okhttp3"), 0);
+
+    p.setProperty(GOVERNOR_CPU_BUDGET_PROPERTY_NAME, "lots");
+    configService = new ConfigService(p);
+    assertEquals(0, configService.getGovernorCpuBudget(), 0);
+  }
+
+  @Test
+  public void testChangedOnly() throws Exception {
+    Properties p = getDefaultConfigProperties();
+    ConfigService configService = new ConfigService(p);
+    assertFalse(configService.isChangedOnly());
+    assertEquals(600_000, configService.getFullRefreshInterval());
+
+    p.setProperty(CHANGED_ONLY_PROPERTY_NAME, "true");
+    p.setProperty(FULL_REFRESH_INTERVAL_PROPERTY_NAME, "90s");
+    configService = new ConfigService(p);
+    assertTrue(configService.isChangedOnly());
+    assertEquals(90_000, configService.getFullRefreshInterval());
+
+    p.setProperty(FULL_REFRESH_INTERVAL_PROPERTY_NAME, "0s");
+    assertEquals(600_000, new ConfigService(p).getFullRefreshInterval());
+    p.setProperty(FULL_REFRESH_INTERVAL_PROPERTY_NAME, "often");
+    assertEquals(600_000, new ConfigService(p).getFullRefreshInterval());
+  }
+
+  @Test
+  public void testCollectionTimeoutDefault() throws Exception {
+    Properties p = getDefaultConfigProperties();
+    ConfigService configService = new ConfigService(p);
+    assertEquals(0L, configService.getCollectionTimeout());
+  }
+
+  @Test
+  public void testCollectionTimeout() throws Exception {
+    Properties p = getDefaultConfigProperties();
+    p.setProperty(COLLECTION_TIMEOUT_PROPERTY_NAME, "2s");
+    ConfigService configService = new ConfigService(p);
+    assertEquals(2000L, configService.getCollectionTimeout());
+  }
+
+  @Test
+  public void testCollectionTimeoutOnError() throws Exception {
+    Properties p = getDefaultConfigProperties();
+    p.setProperty(COLLECTION_TIMEOUT_PROPERTY_NAME, "-2s");
+    ConfigService configService = new ConfigService(p);
+    assertEquals(0L, configService.getCollectionTimeout());
+  }
+
   @Test
   public void testDefaultReportingFreq() throws Exception {
     Properties p = getDefaultConfigProperties();
@@ -0,0 +1,92 @@
+/*
+ * Copyright 2017 Agilx, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ai.apptuit.metrics.jinsight;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.GZIPInputStream;
+import org.junit.Test;
+
+public class GzipCompressionTest {
+
+  private static byte[] body() {
+    StringBuilder body = new StringBuilder();
+    for (int i = 0; i < 5000; i++) {
+      body.append("jvm_threads{state=\"blocked\",index=\"").append(i).append("\",} ").append(i % 7).append('\n');
+    }
+    return body.toString().getBytes(StandardCharsets.UTF_8);
+  }
+
+  private static byte[] gunzip(byte[] gzipped) throws IOException {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    try (GZIPInputStream in = new GZIPInputStream(new ByteArrayInputStream(gzipped))) {
+      byte[] buffer = new byte[4096];
+      int length;
+      while ((length = in.read(buffer)) != -1) {
+        out.write(buffer, 0, length);
+      }
+    }
+    return out.toByteArray();
+  }
+
+  @Test
+  public void testStreamsAreValidGzip() throws Exception {
+    GzipCompression compression = new GzipCompression(1);
+    byte[] body = body();
+    for (int i = 0; i < 3; i++) {
+      ByteArrayOutputStream out = new ByteArrayOutputStream();
+      GzipCompression.GzipOutputStream gzip = compression.open(out);
+      gzip.write(body, 0, 100);
+      gzip.write(body[100]);
+      gzip.write(body, 101, body.length - 101);
+      gzip.finish();
+      gzip.close();
+      assertEquals(body.length, gzip.getUncompressedBytes());
+      assertArrayEquals(body, gunzip(out.toByteArray()));
+    }
+  }
+
+  @Test
+  public void testCompressionLevels() throws Exception {
+    byte[] body = body();
+    byte[] stored = new GzipCompression(0).compress(body);
+    byte[] fastest = new GzipCompression(1).compress(body);
+    byte[] smallest = new GzipCompression(9).compress(body);
+    assertArrayEquals(body, gunzip(stored));
+    assertArrayEquals(body, gunzip(fastest));
+    assertArrayEquals(body, gunzip(smallest));
+    assertTrue(stored.length > body.length);
+    assertTrue(fastest.length < body.length / 4);
+    assertTrue(smallest.length <= fastest.length);
+  }
+
+  @Test
+  public void testEmptyBody() throws Exception {
+    assertArrayEquals(new byte[0], gunzip(GzipCompression.DEFAULT.compress(new byte[0])));
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testInvalidLevel() throws Exception {
+    new GzipCompression(10);
+  }
+}
@@ -0,0 +1,154 @@
+/*
+ * Copyright 2017 Agilx, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ai.apptuit.metrics.jinsight;
+
+import ai.apptuit.metrics.jinsight.MetricAccessors.SnapshotAccessor;
+import ai.apptuit.metrics.jinsight.MetricAccessors.TimerAccessor;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.Snapshot;
+import com.codahale.metrics.Timer;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Compares the cost of reading every value a Prometheus scrape needs from a {@link Timer} and its snapshot, using the
+ * per-read reflective lookups the registry wrappers used to do against the cached {@link MetricAccessors}. The
+ * snapshot is taken once up front, so that reservoir copying does not drown out the cost of the accessors. The
+ * {@code direct} benchmark reads the same values without any indirection and serves as the lower bound.
+ *
+ * <p>Run with {@code java -cp target/test-classes:<test classpath> ai.apptuit.metrics.jinsight.MetricAccessorsBenchmark}
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MetricAccessorsBenchmark {
+
+  private Object timer;
+  private Object snapshot;
+  private TimerAccessor timerAccessor;
+  private SnapshotAccessor snapshotAccessor;
+
+  public static void main(String[] args) throws RunnerException {
+    Options options = new OptionsBuilder()
+        .include(MetricAccessorsBenchmark.class.getSimpleName())
+        .build();
+    new Runner(options).run();
+  }
+
+  @Setup
+  public void setUp() {
+    Timer t = new MetricRegistry().timer("benchmark.timer");
+    for (int i = 0; i < 1000; i++) {
+      t.update(i, TimeUnit.MILLISECONDS);
+    }
+    timer = t;
+    snapshot = t.getSnapshot();
+    timerAccessor = MetricAccessors.forTimer(timer);
+    snapshotAccessor = MetricAccessors.forSnapshot(snapshot);
+  }
+
+  @Benchmark
+  public void direct(Blackhole bh) {
+    Timer t = (Timer) timer;
+    bh.consume(t.getCount());
+    bh.consume(t.getMeanRate());
+    bh.consume(t.getOneMinuteRate());
+    bh.consume(t.getFiveMinuteRate());
+    bh.consume(t.getFifteenMinuteRate());
+    Snapshot s = (Snapshot) snapshot;
+    bh.consume(s.getMin());
+    bh.consume(s.getMax());
+    bh.consume(s.getMean());
+    bh.consume(s.getStdDev());
+    for (double quantile : new double[]{0.5, 0.75, 0.95, 0.98, 0.99, 0.999}) {
+      bh.consume(s.getValue(quantile));
+    }
+  }
+
+  @Benchmark
+  public void reflective(Blackhole bh) {
+    bh.consume((long) invoke(timer, "getCount"));
+    bh.consume((double) invoke(timer, "getMeanRate"));
+    bh.consume((double) invoke(timer, "getOneMinuteRate"));
+    bh.consume((double) invoke(timer, "getFiveMinuteRate"));
+    bh.consume((double) invoke(timer, "getFifteenMinuteRate"));
+    bh.consume((long) invoke(snapshot, "getMin"));
+    bh.consume((long) invoke(snapshot, "getMax"));
+    bh.consume((double) invoke(snapshot, "getMean"));
+    bh.consume((double) invoke(snapshot, "getStdDev"));
+    for (double quantile : new double[]{0.5, 0.75, 0.95, 0.98, 0.99, 0.999}) {
+      bh.consume((double) invoke(snapshot, "getValue", quantile));
+    }
+  }
+
+  @Benchmark
+  public void accessors(Blackhole bh) {
+    TimerAccessor accessor = timerAccessor;
+    bh.consume(accessor.getCount(timer));
+    bh.consume(accessor.getMeanRate(timer));
+    bh.consume(accessor.getOneMinuteRate(timer));
+    bh.consume(accessor.getFiveMinuteRate(timer));
+    bh.consume(accessor.getFifteenMinuteRate(timer));
+    SnapshotAccessor snapshotAccessor = this.snapshotAccessor;
+    bh.consume(snapshotAccessor.getMin(snapshot));
+    bh.consume(snapshotAccessor.getMax(snapshot));
+    bh.consume(snapshotAccessor.getMean(snapshot));
+    bh.consume(snapshotAccessor.getStdDev(snapshot));
+    for (double quantile : new double[]{0.5, 0.75, 0.95, 0.98, 0.99, 0.999}) {
+      bh.consume(snapshotAccessor.getValue(snapshot, quantile));
+    }
+  }
+
+  private static Object invoke(Object delegate, String methodName) {
+    try {
+      Method method = delegate.getClass().getMethod(methodName);
+      method.setAccessible(true);
+      return method.invoke(delegate);
+    } catch (NoSuchMethodException | IllegalAccessException | InvocationTargetException e) {
+      throw new RuntimeException(e);
+    }
+  }
+
+  private static Object invoke(Object delegate, String methodName, double arg) {
+    try {
+      Method method = delegate.getClass().getMethod(methodName, double.class);
+      method.setAccessible(true);
+      return method.invoke(delegate, arg);
+    } catch (NoSuchMethodException | IllegalAccessException | InvocationTargetException e) {
+      throw new RuntimeException(e);
+    }
+  }
+}
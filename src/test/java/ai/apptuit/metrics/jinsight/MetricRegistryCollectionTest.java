@@ -19,6 +19,8 @@ import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
 import static org.junit.Assert.assertThat;
 import static org.junit.Assert.assertTrue;
 
@@ -29,6 +31,8 @@ import com.codahale.metrics.Gauge;
 import com.codahale.metrics.Histogram;
 import com.codahale.metrics.Meter;
 import com.codahale.metrics.Metered;
+import com.codahale.metrics.Metric;
+import com.codahale.metrics.MetricFilter;
 import com.codahale.metrics.MetricRegistry;
 import com.codahale.metrics.SlidingTimeWindowArrayReservoir;
 import com.codahale.metrics.SlidingTimeWindowReservoir;
@@ -36,7 +40,18 @@ import com.codahale.metrics.Snapshot;
 import com.codahale.metrics.Timer;
 import com.codahale.metrics.UniformReservoir;
 import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicLong;
 import org.hamcrest.CoreMatchers;
 import org.junit.Before;
@@ -266,6 +281,362 @@ public class MetricRegistryCollectionTest {
     assertSnapshotEquals(timer.getSnapshot(), wrappedTimer.getSnapshot());
   }
 
+  @Test
+  public void testTrackedMetricsAreAddedAndRemoved() throws Exception {
+    MetricRegistryCollection collection = new MetricRegistryCollection(true);
+    MetricRegistry trackedAggregate = collection.getAggregatedMetricRegistry();
+    MetricRegistry registry = new MetricRegistry();
+    Counter counter = registry.counter("test.tracked.counter");
+    assertTrue(collection.register(registry));
+
+    Counter wrappedCounter = trackedAggregate.getCounters().get("test.tracked.counter");
+    counter.inc(3);
+    assertEquals(3, wrappedCounter.getCount());
+    assertTrue(trackedAggregate.getTimers().isEmpty());
+
+    Timer timer = registry.timer("test.tracked.timer");
+    timer.update(5, TimeUnit.MILLISECONDS);
+    assertEquals(1, trackedAggregate.getTimers().get("test.tracked.timer").getCount());
+    assertEquals(2, trackedAggregate.getMetrics().size());
+
+    registry.remove("test.tracked.counter");
+    assertTrue(trackedAggregate.getCounters().isEmpty());
+    assertEquals(1, trackedAggregate.getMetrics().size());
+
+    assertTrue(collection.deRegister(registry));
+    assertTrue(trackedAggregate.getMetrics().isEmpty());
+    registry.counter("test.tracked.counter.after");
+    assertTrue(trackedAggregate.getCounters().isEmpty());
+  }
+
+  @Test
+  public void testTrackedViewIsReusedUntilChanged() throws Exception {
+    MetricRegistryCollection collection = new MetricRegistryCollection(true);
+    MetricRegistry trackedAggregate = collection.getAggregatedMetricRegistry();
+    MetricRegistry registry = new MetricRegistry();
+    registry.counter("test.tracked.counter");
+    collection.register(registry);
+
+    Map<String, Metric> metrics = trackedAggregate.getMetrics();
+    assertSame(metrics, trackedAggregate.getMetrics());
+    assertSame(trackedAggregate.getCounters(), trackedAggregate.getCounters());
+
+    registry.meter("test.tracked.meter");
+    assertNotSame(metrics, trackedAggregate.getMetrics());
+    assertEquals(2, trackedAggregate.getMetrics().size());
+  }
+
+  @Test
+  public void testTrackedFilter() throws Exception {
+    MetricRegistryCollection collection = new MetricRegistryCollection(true);
+    MetricRegistry trackedAggregate = collection.getAggregatedMetricRegistry();
+    MetricRegistry registry = new MetricRegistry();
+    registry.counter("test.tracked.a");
+    registry.counter("test.tracked.b");
+    collection.register(registry);
+
+    Map<String, Counter> counters = trackedAggregate.getCounters((name, metric) -> name.endsWith(".b"));
+    assertEquals(1, counters.size());
+    assertTrue(counters.containsKey("test.tracked.b"));
+  }
+
+  @Test
+  public void testRegisterAndDeRegisterWhileScraping() throws Exception {
+    testRegisterAndDeRegisterWhileScraping(false);
+    testRegisterAndDeRegisterWhileScraping(true);
+  }
+
+  private void testRegisterAndDeRegisterWhileScraping(boolean trackChanges) throws Exception {
+    final String permanentCounter = "test.permanent.counter";
+    final int writers = 4;
+    final int scrapers = 4;
+    final int iterations = 500;
+
+    MetricRegistryCollection collection = new MetricRegistryCollection(trackChanges);
+    MetricRegistry aggregate = collection.getAggregatedMetricRegistry();
+    MetricRegistry permanent = new MetricRegistry();
+    permanent.counter(permanentCounter).inc();
+    collection.register(permanent);
+
+    ExecutorService executor = Executors.newFixedThreadPool(writers + scrapers);
+    CountDownLatch start = new CountDownLatch(1);
+    AtomicInteger activeWriters = new AtomicInteger(writers);
+    List<Future<?>> futures = new ArrayList<>();
+    for (int w = 0; w < writers; w++) {
+      final int writer = w;
+      futures.add(executor.submit(() -> {
+        start.await();
+        try {
+          for (int i = 0; i < iterations; i++) {
+            MetricRegistry registry = new MetricRegistry();
+            registry.counter("test.transient." + writer + "." + i).inc();
+            assertTrue(collection.register(registry));
+            registry.timer("test.transient.timer." + writer + "." + i).update(1, TimeUnit.MILLISECONDS);
+            assertTrue(collection.deRegister(registry));
+          }
+        } finally {
+          activeWriters.decrementAndGet();
+        }
+        return null;
+      }));
+    }
+    for (int s = 0; s < scrapers; s++) {
+      futures.add(executor.submit(() -> {
+        start.await();
+        while (activeWriters.get() > 0) {
+          Map<String, Metric> metrics = aggregate.getMetrics();
+          assertTrue(metrics.containsKey(permanentCounter));
+          assertEquals(1, aggregate.getCounters().get(permanentCounter).getCount());
+          for (Timer timer : aggregate.getTimers().values()) {
+            timer.getSnapshot().getMax();
+          }
+        }
+        return null;
+      }));
+    }
+    start.countDown();
+    try {
+      for (Future<?> future : futures) {
+        future.get(1, TimeUnit.MINUTES);
+      }
+    } finally {
+      executor.shutdownNow();
+    }
+    assertEquals(Collections.singleton(permanentCounter), aggregate.getMetrics().keySet());
+  }
+
+  @Test
+  public void testSlowRegistryReportsLastKnownValues() throws Exception {
+    testSlowRegistryReportsLastKnownValues(false);
+    testSlowRegistryReportsLastKnownValues(true);
+  }
+
+  private void testSlowRegistryReportsLastKnownValues(boolean trackChanges) throws Exception {
+    MetricRegistryCollection collection = new MetricRegistryCollection(trackChanges);
+    MetricRegistry jinsightRegistry = new MetricRegistry();
+    collection.initialize(jinsightRegistry, trackChanges, false, 200);
+    MetricRegistry aggregate = collection.getAggregatedMetricRegistry();
+
+    AtomicLong value = new AtomicLong(1);
+    CountDownLatch blocked = new CountDownLatch(1);
+    CountDownLatch release = new CountDownLatch(1);
+    AtomicBoolean block = new AtomicBoolean(false);
+    MetricRegistry slowRegistry = new MetricRegistry();
+    slowRegistry.gauge("test.slow.gauge", () -> () -> {
+      if (block.get()) {
+        blocked.countDown();
+        try {
+          release.await();
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+        }
+      }
+      return value.get();
+    });
+    MetricRegistry fastRegistry = new MetricRegistry();
+    Counter fastCounter = fastRegistry.counter("test.fast.counter");
+    collection.register(slowRegistry);
+    collection.register(fastRegistry);
+
+    assertEquals(1L, aggregate.getGauges().get("test.slow.gauge").getValue());
+    Counter timeouts = jinsightRegistry.counter(MetricRegistryCollection.COLLECTION_TIMEOUTS_METRIC_NAME);
+    assertEquals(0, timeouts.getCount());
+
+    block.set(true);
+    value.set(2);
+    fastCounter.inc();
+    long start = System.nanoTime();
+    Map<String, Metric> metrics = aggregate.getMetrics();
+    assertTrue(blocked.await(1, TimeUnit.SECONDS));
+    assertTrue(System.nanoTime() - start < TimeUnit.SECONDS.toNanos(1));
+    assertEquals(1L, ((Gauge) metrics.get("test.slow.gauge")).getValue());
+    assertEquals(1, ((Counter) metrics.get("test.fast.counter")).getCount());
+    assertEquals(1, timeouts.getCount());
+
+    block.set(false);
+    release.countDown();
+    assertEquals(2L, aggregate.getGauges().get("test.slow.gauge").getValue());
+    assertEquals(1, timeouts.getCount());
+  }
+
+  @Test
+  public void testReportWaitsForSlowRegistryOnce() throws Exception {
+    MetricRegistryCollection collection = new MetricRegistryCollection(false);
+    MetricRegistry jinsightRegistry = new MetricRegistry();
+    collection.initialize(jinsightRegistry, false, false, 200);
+    MetricRegistry aggregate = collection.getAggregatedMetricRegistry();
+    SlowRegistry slowRegistry = new SlowRegistry();
+    slowRegistry.counter("test.slow.counter");
+    collection.register(slowRegistry);
+
+    try {
+      long start = System.nanoTime();
+      aggregate.getGauges();
+      aggregate.getCounters();
+      aggregate.getHistograms();
+      aggregate.getMeters();
+      aggregate.getTimers();
+      assertTrue(System.nanoTime() - start < TimeUnit.MILLISECONDS.toNanos(400));
+      Counter timeouts = jinsightRegistry.counter(MetricRegistryCollection.COLLECTION_TIMEOUTS_METRIC_NAME);
+      assertEquals(1, timeouts.getCount());
+    } finally {
+      slowRegistry.release.countDown();
+    }
+  }
+
+  /**
+   * A registry that does not list its metrics until released.
+   */
+  public static class SlowRegistry extends MetricRegistry {
+
+    private final CountDownLatch release = new CountDownLatch(1);
+
+    private void await() {
+      try {
+        release.await();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+    }
+
+    @Override
+    public SortedMap<String, Gauge> getGauges(MetricFilter filter) {
+      await();
+      return super.getGauges(filter);
+    }
+
+    @Override
+    public SortedMap<String, Counter> getCounters(MetricFilter filter) {
+      await();
+      return super.getCounters(filter);
+    }
+
+    @Override
+    public SortedMap<String, Histogram> getHistograms(MetricFilter filter) {
+      await();
+      return super.getHistograms(filter);
+    }
+
+    @Override
+    public SortedMap<String, Meter> getMeters(MetricFilter filter) {
+      await();
+      return super.getMeters(filter);
+    }
+
+    @Override
+    public SortedMap<String, Timer> getTimers(MetricFilter filter) {
+      await();
+      return super.getTimers(filter);
+    }
+  }
+
+  @Test
+  public void testRegistryReadTimeIsPublished() throws Exception {
+    MetricRegistryCollection collection = new MetricRegistryCollection(false);
+    MetricRegistry jinsightRegistry = new MetricRegistry();
+    collection.initialize(jinsightRegistry, false, false, 0);
+    MetricRegistry otherRegistry = new MetricRegistry();
+    otherRegistry.counter("test.read_time.counter");
+    collection.register(otherRegistry);
+
+    String jinsightReadTime = MetricRegistryCollection.REGISTRY_READ_TIME_METRIC_NAME + "[registry:MetricRegistry-0]";
+    String otherReadTime = MetricRegistryCollection.REGISTRY_READ_TIME_METRIC_NAME + "[registry:MetricRegistry-1]";
+    assertEquals(0, jinsightRegistry.getTimers().get(otherReadTime).getCount());
+
+    collection.getAggregatedMetricRegistry().getMetrics();
+    assertEquals(1, jinsightRegistry.getTimers().get(jinsightReadTime).getCount());
+    assertEquals(1, jinsightRegistry.getTimers().get(otherReadTime).getCount());
+    collection.getAggregatedMetricRegistry().getCounters();
+    collection.getAggregatedMetricRegistry().getCounters();
+    assertEquals(2, jinsightRegistry.getTimers().get(otherReadTime).getCount());
+
+    collection.deRegister(otherRegistry);
+    assertFalse(jinsightRegistry.getTimers().containsKey(otherReadTime));
+    assertTrue(jinsightRegistry.getTimers().containsKey(jinsightReadTime));
+  }
+
+  @Test
+  public void testDuplicateMetricsAreReplaced() throws Exception {
+    MetricRegistryCollection collection = new MetricRegistryCollection(false);
+    MetricRegistry aggregate = collection.getAggregatedMetricRegistry();
+    MetricRegistry first = new MetricRegistry();
+    first.counter("test.counter").inc(2);
+    MetricRegistry second = new MetricRegistry();
+    second.counter("test.counter").inc(3);
+    collection.register(first);
+    collection.register(second);
+
+    assertEquals(3, aggregate.getCounters().get("test.counter").getCount());
+  }
+
+  @Test
+  public void testDuplicateMetricsAreMerged() throws Exception {
+    testDuplicateMetricsAreMerged(false, 0);
+    testDuplicateMetricsAreMerged(true, 0);
+    testDuplicateMetricsAreMerged(false, 1000);
+  }
+
+  private void testDuplicateMetricsAreMerged(boolean trackChanges, long collectionTimeout) throws Exception {
+    MetricRegistryCollection collection = new MetricRegistryCollection(trackChanges);
+    collection.initialize(new MetricRegistry(), trackChanges, true, collectionTimeout);
+    MetricRegistry aggregate = collection.getAggregatedMetricRegistry();
+
+    for (int i = 1; i <= 3; i++) {
+      MetricRegistry shard = new MetricRegistry();
+      shard.counter("test.counter").inc(i);
+      shard.meter("test.meter").mark(i);
+      long value = i;
+      shard.gauge("test.gauge", () -> () -> value);
+      for (int j = 0; j < i; j++) {
+        shard.histogram("test.histogram").update(i * 100);
+        shard.timer("test.timer").update(i, TimeUnit.SECONDS);
+      }
+      collection.register(shard);
+    }
+
+    assertEquals(6, aggregate.getCounters().get("test.counter").getCount());
+    assertEquals(6, aggregate.getMeters().get("test.meter").getCount());
+    assertEquals(3L, aggregate.getGauges().get("test.gauge").getValue());
+
+    Histogram histogram = aggregate.getHistograms().get("test.histogram");
+    assertEquals(6, histogram.getCount());
+    Snapshot snapshot = histogram.getSnapshot();
+    assertEquals(100, snapshot.getMin());
+    assertEquals(300, snapshot.getMax());
+    assertEquals(1400.0 / 6, snapshot.getMean(), 0.001);
+
+    Timer timer = aggregate.getTimers().get("test.timer");
+    assertEquals(6, timer.getCount());
+    assertEquals(TimeUnit.SECONDS.toNanos(3), timer.getSnapshot().getMax());
+    assertEquals(TimeUnit.SECONDS.toNanos(1), timer.getSnapshot().getMin());
+  }
+
+  @Test
+  public void testMergedQuantilesAreWeightedByCount() throws Exception {
+    MetricRegistryCollection collection = new MetricRegistryCollection(false);
+    collection.initialize(new MetricRegistry(), false, true, 0);
+    MetricRegistry aggregate = collection.getAggregatedMetricRegistry();
+
+    MetricRegistry idle = new MetricRegistry();
+    Histogram idleHistogram = new Histogram(new UniformReservoir(10));
+    idle.register("test.histogram", idleHistogram);
+    MetricRegistry busy = new MetricRegistry();
+    Histogram busyHistogram = new Histogram(new UniformReservoir(10));
+    busy.register("test.histogram", busyHistogram);
+    for (int i = 0; i < 10; i++) {
+      idleHistogram.update(1);
+    }
+    for (int i = 0; i < 1000; i++) {
+      busyHistogram.update(100);
+    }
+    collection.register(idle);
+    collection.register(busy);
+
+    Histogram histogram = aggregate.getHistograms().get("test.histogram");
+    assertEquals(1010, histogram.getCount());
+    assertEquals(100.0, histogram.getSnapshot().getMedian(), 0.001);
+    assertEquals(100.0, histogram.getSnapshot().get95thPercentile(), 0.001);
+  }
 
   private static class AdjustableClock extends Clock {
 
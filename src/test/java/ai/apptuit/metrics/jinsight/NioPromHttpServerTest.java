@@ -0,0 +1,279 @@
+/*
+ * Copyright 2017 Agilx, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ai.apptuit.metrics.jinsight;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import com.codahale.metrics.MetricRegistry;
+import io.prometheus.client.CollectorRegistry;
+import io.prometheus.client.exporter.common.TextFormat;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.zip.GZIPInputStream;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class NioPromHttpServerTest {
+
+  private MetricRegistry metricRegistry;
+  private MetricRegistry exporterRegistry;
+  private NioPromHttpServer server;
+
+  @Before
+  public void setUp() throws Exception {
+    metricRegistry = new MetricRegistry();
+    metricRegistry.counter("nio.requests").inc(3);
+    metricRegistry.counter("nio.errors").inc();
+    for (int i = 0; i < 2000; i++) {
+      metricRegistry.counter("nio.padding[index:" + i + "]").inc(i);
+    }
+    server = createServer(PromHttpServer.NO_COALESCING);
+  }
+
+  @After
+  public void tearDown() throws Exception {
+    server.close();
+  }
+
+  private NioPromHttpServer createServer(long scrapeCacheTtl) throws IOException {
+    exporterRegistry = new MetricRegistry();
+    ExporterMetrics exporterMetrics = new ExporterMetrics(exporterRegistry);
+    ApptuitDropwizardExports exports = new ApptuitDropwizardExports(metricRegistry,
+        new TagDecodingSampleBuilder(null), exporterMetrics);
+    NioPromHttpServer nioServer = new NioPromHttpServer(new InetSocketAddress("localhost", 0),
+        new CollectorRegistry(), exports, true, 2, true, scrapeCacheTtl, new GzipCompression(1), exporterMetrics);
+    nioServer.setContext("/metrics");
+    return nioServer;
+  }
+
+  private URL url(String path) throws IOException {
+    return new URL("http://localhost:" + server.getPort() + path);
+  }
+
+  private static String read(InputStream in) throws IOException {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    byte[] buffer = new byte[4096];
+    int length;
+    while ((length = in.read(buffer)) != -1) {
+      out.write(buffer, 0, length);
+    }
+    return out.toString("UTF-8");
+  }
+
+  @Test
+  public void testScrape() throws Exception {
+    HttpURLConnection connection = (HttpURLConnection) url("/metrics").openConnection();
+    assertEquals(200, connection.getResponseCode());
+    assertEquals(TextFormat.CONTENT_TYPE_004, connection.getContentType());
+    assertNull(connection.getContentEncoding());
+    String body = read(connection.getInputStream());
+    assertEquals(body.getBytes(StandardCharsets.UTF_8).length, connection.getContentLength());
+    assertTrue(body.contains("nio_requests 3.0"));
+    assertTrue(body.contains("nio_padding{index=\"1999\",} 1999.0"));
+  }
+
+  @Test
+  public void testRegisteredExportsAreWrittenOnce() throws Exception {
+    server.close();
+    ExporterMetrics exporterMetrics = new ExporterMetrics(new MetricRegistry());
+    ApptuitDropwizardExports exports = new ApptuitDropwizardExports(metricRegistry,
+        new TagDecodingSampleBuilder(null), exporterMetrics);
+    CollectorRegistry collectorRegistry = new CollectorRegistry();
+    collectorRegistry.register(exports);
+    server = new NioPromHttpServer(new InetSocketAddress("localhost", 0), collectorRegistry, exports, true, 2, true,
+        PromHttpServer.NO_COALESCING, new GzipCompression(1), exporterMetrics);
+    server.setContext("/metrics");
+
+    for (String path : new String[]{"/metrics", "/metrics?name[]=nio_requests"}) {
+      String body = read(url(path).openStream());
+      assertEquals(path, body.indexOf("nio_requests 3.0"), body.lastIndexOf("nio_requests 3.0"));
+      assertTrue(path, body.contains("nio_requests 3.0"));
+    }
+    assertEquals(3.0, collectorRegistry.getSampleValue("nio_requests"), 0.0);
+  }
+
+  @Test
+  public void testGzipScrape() throws Exception {
+    HttpURLConnection connection = (HttpURLConnection) url("/metrics").openConnection();
+    connection.setRequestProperty("Accept-Encoding", "gzip");
+    assertEquals(200, connection.getResponseCode());
+    assertEquals("gzip", connection.getContentEncoding());
+    String body = read(new GZIPInputStream(connection.getInputStream()));
+    assertTrue(body.contains("nio_requests 3.0"));
+
+    long serializedBytes = exporterRegistry.counter("jinsight.exporter.serialized_bytes").getCount();
+    long compressedBytes = exporterRegistry.counter("jinsight.exporter.compressed_bytes").getCount();
+    assertEquals(body.getBytes(StandardCharsets.UTF_8).length, serializedBytes);
+    assertEquals(connection.getContentLength(), compressedBytes);
+    assertTrue(compressedBytes < serializedBytes / 4);
+    assertEquals(1, exporterRegistry.timer("jinsight.exporter.serialization_time").getCount());
+    assertEquals(1, exporterRegistry.timer("jinsight.exporter.collection_time").getCount());
+    assertEquals(compressedBytes, exporterRegistry.histogram("jinsight.exporter.response_bytes").getSnapshot().getMax());
+  }
+
+  @Test
+  public void testSeriesCountsAndConcurrentScrapes() throws Exception {
+    HttpURLConnection connection = (HttpURLConnection) url("/metrics").openConnection();
+    assertEquals(200, connection.getResponseCode());
+    read(connection.getInputStream());
+    assertEquals(2002, exporterRegistry.getGauges().get("jinsight.exporter.series[prefix:nio]").getValue());
+    assertEquals(0, exporterRegistry.getGauges().get("jinsight.exporter.concurrent_scrapes").getValue());
+
+    metricRegistry.removeMatching((name, metric) -> name.startsWith("nio.padding"));
+    metricRegistry.counter("other.requests").inc();
+    connection = (HttpURLConnection) url("/metrics?name[]=other_requests").openConnection();
+    read(connection.getInputStream());
+    assertEquals(2002, exporterRegistry.getGauges().get("jinsight.exporter.series[prefix:nio]").getValue());
+
+    connection = (HttpURLConnection) url("/metrics").openConnection();
+    read(connection.getInputStream());
+    assertEquals(2, exporterRegistry.getGauges().get("jinsight.exporter.series[prefix:nio]").getValue());
+    assertEquals(1, exporterRegistry.getGauges().get("jinsight.exporter.series[prefix:other]").getValue());
+  }
+
+  @Test
+  public void testFilteredScrape() throws Exception {
+    HttpURLConnection connection = (HttpURLConnection) url("/metrics?name[]=nio_errors").openConnection();
+    assertEquals(200, connection.getResponseCode());
+    String body = read(connection.getInputStream());
+    assertTrue(body.contains("nio_errors 1.0"));
+    assertFalse(body.contains("nio_requests"));
+  }
+
+  @Test
+  public void testCoalescedScrape() throws Exception {
+    server.close();
+    server = createServer(60_000);
+    HttpURLConnection connection = (HttpURLConnection) url("/metrics").openConnection();
+    assertTrue(read(connection.getInputStream()).contains("nio_requests 3.0"));
+
+    metricRegistry.counter("nio.requests").inc();
+    connection = (HttpURLConnection) url("/metrics").openConnection();
+    connection.setRequestProperty("Accept-Encoding", "gzip");
+    assertEquals("gzip", connection.getContentEncoding());
+    assertTrue(read(new GZIPInputStream(connection.getInputStream())).contains("nio_requests 3.0"));
+  }
+
+  @Test
+  public void testUnknownPathAndMethod() throws Exception {
+    HttpURLConnection connection = (HttpURLConnection) url("/other").openConnection();
+    assertEquals(404, connection.getResponseCode());
+
+    connection = (HttpURLConnection) url("/metrics").openConnection();
+    connection.setRequestMethod("DELETE");
+    assertEquals(405, connection.getResponseCode());
+  }
+
+  @Test
+  public void testKeepAliveAndPipelining() throws Exception {
+    try (Socket socket = new Socket("localhost", server.getPort())) {
+      socket.setSoTimeout(10_000);
+      OutputStream out = socket.getOutputStream();
+      String request = "GET /metrics?name[]=nio_requests HTTP/1.1\r\nHost: localhost\r\n\r\n";
+      out.write((request + "HEAD /metrics HTTP/1.1\r\nHost: localhost\r\n\r\n").getBytes(StandardCharsets.US_ASCII));
+      out.flush();
+
+      InputStream in = socket.getInputStream();
+      Map<String, String> headers = new HashMap<>();
+      assertEquals("HTTP/1.1 200 OK", readHeaders(in, headers));
+      String body = readBody(in, Integer.parseInt(headers.get("content-length")));
+      assertTrue(body.contains("nio_requests 3.0"));
+      assertFalse(headers.containsKey("connection"));
+
+      headers.clear();
+      assertEquals("HTTP/1.1 200 OK", readHeaders(in, headers));
+      assertTrue(Integer.parseInt(headers.get("content-length")) > 0);
+
+      out.write(("GET /metrics HTTP/1.1\r\nConnection: close\r\n\r\n").getBytes(StandardCharsets.US_ASCII));
+      out.flush();
+      headers.clear();
+      assertEquals("HTTP/1.1 200 OK", readHeaders(in, headers));
+      assertEquals("close", headers.get("connection"));
+      body = readBody(in, Integer.parseInt(headers.get("content-length")));
+      assertTrue(body.contains("nio_errors 1.0"));
+      assertEquals(-1, in.read());
+    }
+  }
+
+  @Test
+  public void testSlowClientDoesNotBlockScrapes() throws Exception {
+    try (Socket slowClient = new Socket("localhost", server.getPort())) {
+      slowClient.setReceiveBufferSize(1024);
+      for (int i = 0; i < 10; i++) {
+        slowClient.getOutputStream().write("GET /metrics HTTP/1.1\r\n\r\n".getBytes(StandardCharsets.US_ASCII));
+      }
+      slowClient.getOutputStream().flush();
+
+      for (int i = 0; i < 5; i++) {
+        HttpURLConnection connection = (HttpURLConnection) url("/metrics").openConnection();
+        connection.setReadTimeout(10_000);
+        assertEquals(200, connection.getResponseCode());
+        assertTrue(read(connection.getInputStream()).contains("nio_requests 3.0"));
+      }
+    }
+  }
+
+  private static String readHeaders(InputStream in, Map<String, String> headers) throws IOException {
+    String statusLine = readLine(in);
+    String line;
+    while (!(line = readLine(in)).isEmpty()) {
+      int colon = line.indexOf(':');
+      headers.put(line.substring(0, colon).trim().toLowerCase(), line.substring(colon + 1).trim());
+    }
+    return statusLine;
+  }
+
+  private static String readLine(InputStream in) throws IOException {
+    StringBuilder line = new StringBuilder();
+    int c;
+    while ((c = in.read()) != '\n') {
+      if (c == -1) {
+        throw new IOException("Unexpected end of stream");
+      }
+      if (c != '\r') {
+        line.append((char) c);
+      }
+    }
+    return line.toString();
+  }
+
+  private static String readBody(InputStream in, int length) throws IOException {
+    byte[] body = new byte[length];
+    int read = 0;
+    while (read < length) {
+      int count = in.read(body, read, length - read);
+      if (count < 0) {
+        throw new IOException("Unexpected end of stream");
+      }
+      read += count;
+    }
+    return new String(body, StandardCharsets.UTF_8);
+  }
+}
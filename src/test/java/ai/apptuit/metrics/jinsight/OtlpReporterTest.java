@@ -0,0 +1,342 @@
+/*
+ * Copyright 2017 Agilx, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ai.apptuit.metrics.jinsight;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.awaitility.Awaitility.await;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.Timer;
+import com.sun.net.httpserver.HttpServer;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPInputStream;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class OtlpReporterTest {
+
+  private HttpServer collector;
+  private final List<Message> received = Collections.synchronizedList(new ArrayList<>());
+  private volatile String contentEncoding;
+  private MetricRegistry metrics;
+  private MetricRegistry jinsightRegistry;
+  private URL url;
+  private OtlpReporter reporter;
+
+  /**
+   * A stand-in for the OTLP/HTTP receiver of an OpenTelemetry collector, that keeps the requests it accepts.
+   */
+  @Before
+  public void setUp() throws Exception {
+    collector = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+    collector.setExecutor(Executors.newCachedThreadPool());
+    collector.createContext("/v1/metrics", exchange -> {
+      try {
+        contentEncoding = exchange.getRequestHeaders().getFirst("Content-Encoding");
+        byte[] body = readFully(new GZIPInputStream(exchange.getRequestBody()));
+        received.add(new Message(ByteBuffer.wrap(body)));
+        exchange.sendResponseHeaders(200, -1);
+      } finally {
+        exchange.close();
+      }
+    });
+    collector.start();
+    url = new URL("http://localhost:" + collector.getAddress().getPort() + "/v1/metrics");
+    metrics = new MetricRegistry();
+    jinsightRegistry = new MetricRegistry();
+  }
+
+  @After
+  public void tearDown() {
+    if (reporter != null) {
+      reporter.close();
+    }
+    collector.stop(0);
+  }
+
+  private OtlpReporter createReporter(int batchSize) {
+    Map<String, String> globalTags = new LinkedHashMap<>();
+    globalTags.put("host", "web-1");
+    globalTags.put("env", "test");
+    return new OtlpReporter(url, metrics, globalTags, "1.0", batchSize, 1, 0, jinsightRegistry, 10);
+  }
+
+  private long count(String name) {
+    return jinsightRegistry.counter(OtlpReporter.PREFIX + "." + name).getCount();
+  }
+
+  @Test
+  public void testResourceAndScope() throws Exception {
+    metrics.counter("counter").inc();
+    reporter = createReporter(100);
+    reporter.report();
+    await().atMost(5, TimeUnit.SECONDS).until(() -> count("sent_requests") == 1);
+    assertEquals("gzip", contentEncoding);
+
+    Message resourceMetrics = received.get(0).message(1);
+    Map<String, String> resourceAttributes = attributes(resourceMetrics.message(1), 1);
+    assertEquals("web-1", resourceAttributes.get("host"));
+    assertEquals("test", resourceAttributes.get("env"));
+    Message scope = resourceMetrics.message(2).message(1);
+    assertEquals("jinsight", scope.string(1));
+    assertEquals("1.0", scope.string(2));
+  }
+
+  @Test
+  public void testTimersAreCumulativeHistograms() throws Exception {
+    BucketedMetricRegistry bucketed = new BucketedMetricRegistry(Collections.emptyMap());
+    metrics = bucketed;
+    Timer timer = bucketed.timer("jdbc.query.time[db:orders]");
+    timer.update(3, TimeUnit.MILLISECONDS);
+    timer.update(20, TimeUnit.MILLISECONDS);
+    timer.update(20, TimeUnit.SECONDS);
+    reporter = createReporter(100);
+    reporter.report();
+    await().atMost(5, TimeUnit.SECONDS).until(() -> count("sent_requests") == 1);
+
+    Message metric = metrics().get("jdbc.query.time");
+    assertEquals("s", metric.string(3));
+    Message histogram = metric.message(9);
+    assertEquals(2, histogram.varint(2));
+    Message point = histogram.message(1);
+    assertEquals(3, point.fixed64(4));
+    assertEquals(20.023, Double.longBitsToDouble(point.fixed64(5)), 1e-9);
+    double[] bounds = HistogramBuckets.DEFAULT.getUpperBounds();
+    assertArrayEquals(bounds, point.packedDoubles(7), 0);
+    long[] counts = point.packedFixed64(6);
+    assertEquals(bounds.length + 1, counts.length);
+    assertEquals(1, counts[0]);
+    assertEquals(1, counts[2]);
+    assertEquals(1, counts[bounds.length]);
+    assertTrue(point.fixed64(2) < point.fixed64(3));
+    assertEquals(Collections.singletonMap("db", "orders"), attributes(point, 9));
+  }
+
+  @Test
+  public void testCountersMetersAndGauges() throws Exception {
+    metrics.counter("http.requests[method:GET]").inc(3);
+    metrics.counter("http.requests[method:POST]").inc(2);
+    metrics.meter("errors").mark(4);
+    metrics.gauge("queue.size", () -> () -> 1.5);
+    metrics.gauge("name", () -> () -> "not a number");
+    reporter = createReporter(100);
+    reporter.report();
+    await().atMost(5, TimeUnit.SECONDS).until(() -> count("sent_requests") == 1);
+    Map<String, Message> byName = metrics();
+    assertEquals(3, byName.size());
+
+    Message requests = byName.get("http.requests").message(7);
+    assertEquals(2, requests.varint(2));
+    assertEquals(0, requests.varint(3));
+    Map<String, Long> values = new HashMap<>();
+    for (Message point : requests.messages(1)) {
+      values.put(attributes(point, 7).get("method"), point.fixed64(6));
+    }
+    assertEquals(3L, (long) values.get("GET"));
+    assertEquals(2L, (long) values.get("POST"));
+
+    Message errors = byName.get("errors").message(7);
+    assertEquals(1, errors.varint(3));
+    assertEquals(4, errors.message(1).fixed64(6));
+
+    Message queueSize = byName.get("queue.size").message(5).message(1);
+    assertEquals(1.5, Double.longBitsToDouble(queueSize.fixed64(4)), 0);
+    assertFalse(queueSize.has(2));
+    assertEquals(4, count("sent_samples"));
+  }
+
+  @Test
+  public void testReservoirTimersAreSummaries() throws Exception {
+    metrics.timer("timer").update(2, TimeUnit.SECONDS);
+    reporter = createReporter(100);
+    reporter.report();
+    await().atMost(5, TimeUnit.SECONDS).until(() -> count("sent_requests") == 1);
+
+    Message point = metrics().get("timer").message(11).message(1);
+    assertEquals(1, point.fixed64(4));
+    assertEquals(2.0, Double.longBitsToDouble(point.fixed64(5)), 1e-9);
+    Message median = point.messages(6).get(0);
+    assertEquals(0.5, Double.longBitsToDouble(median.fixed64(1)), 0);
+    assertEquals(2.0, Double.longBitsToDouble(median.fixed64(2)), 1e-9);
+  }
+
+  @Test
+  public void testDataPointsAreBatched() throws Exception {
+    for (int i = 0; i < 25; i++) {
+      metrics.counter("counter" + i).inc(i);
+    }
+    reporter = createReporter(10);
+    reporter.report();
+    await().atMost(5, TimeUnit.SECONDS).until(() -> count("sent_requests") == 3);
+    assertEquals(3, received.size());
+    assertEquals(25, metrics().size());
+    assertEquals(25, count("sent_samples"));
+  }
+
+  /**
+   * @return the metrics received, by name
+   */
+  private Map<String, Message> metrics() {
+    Map<String, Message> byName = new HashMap<>();
+    synchronized (received) {
+      for (Message request : received) {
+        for (Message metric : request.message(1).message(2).messages(2)) {
+          assertNull(byName.put(metric.string(1), metric));
+        }
+      }
+    }
+    return byName;
+  }
+
+  private static Map<String, String> attributes(Message message, int field) {
+    Map<String, String> attributes = new LinkedHashMap<>();
+    for (Message keyValue : message.messages(field)) {
+      attributes.put(keyValue.string(1), keyValue.message(2).string(1));
+    }
+    return attributes;
+  }
+
+  private static byte[] readFully(InputStream in) throws IOException {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    byte[] buffer = new byte[8192];
+    int length;
+    while ((length = in.read(buffer)) != -1) {
+      out.write(buffer, 0, length);
+    }
+    return out.toByteArray();
+  }
+
+  /**
+   * A protobuf message decoded without its schema: the values of its fields, by field number, as a {@link Long} for
+   * varint and fixed64 fields, and a {@link ByteBuffer} for length-delimited ones.
+   */
+  private static final class Message {
+
+    private final Map<Integer, List<Object>> fields = new HashMap<>();
+
+    Message(ByteBuffer in) {
+      in.order(ByteOrder.LITTLE_ENDIAN);
+      while (in.hasRemaining()) {
+        long tag = readVarint(in);
+        Object value;
+        switch ((int) (tag & 0x7)) {
+          case 0:
+            value = readVarint(in);
+            break;
+          case 1:
+            value = in.getLong();
+            break;
+          case 2:
+            int length = (int) readVarint(in);
+            ByteBuffer slice = in.slice().order(ByteOrder.LITTLE_ENDIAN);
+            slice.limit(length);
+            in.position(in.position() + length);
+            value = slice;
+            break;
+          default:
+            throw new AssertionError("Unexpected wire type in tag " + tag);
+        }
+        fields.computeIfAbsent((int) (tag >>> 3), field -> new ArrayList<>()).add(value);
+      }
+    }
+
+    boolean has(int field) {
+      return fields.containsKey(field);
+    }
+
+    long varint(int field) {
+      return (Long) single(field);
+    }
+
+    long fixed64(int field) {
+      return (Long) single(field);
+    }
+
+    String string(int field) {
+      return UTF_8.decode(((ByteBuffer) single(field)).duplicate()).toString();
+    }
+
+    Message message(int field) {
+      return new Message(((ByteBuffer) single(field)).duplicate());
+    }
+
+    List<Message> messages(int field) {
+      List<Message> messages = new ArrayList<>();
+      for (Object value : fields.getOrDefault(field, Collections.emptyList())) {
+        messages.add(new Message(((ByteBuffer) value).duplicate()));
+      }
+      return messages;
+    }
+
+    long[] packedFixed64(int field) {
+      ByteBuffer in = ((ByteBuffer) single(field)).duplicate().order(ByteOrder.LITTLE_ENDIAN);
+      long[] values = new long[in.remaining() / 8];
+      for (int i = 0; i < values.length; i++) {
+        values[i] = in.getLong();
+      }
+      return values;
+    }
+
+    double[] packedDoubles(int field) {
+      long[] bits = packedFixed64(field);
+      double[] values = new double[bits.length];
+      for (int i = 0; i < bits.length; i++) {
+        values[i] = Double.longBitsToDouble(bits[i]);
+      }
+      return values;
+    }
+
+    private Object single(int field) {
+      List<Object> values = fields.get(field);
+      assertNotNull("Missing field " + field, values);
+      assertEquals("Repeated field " + field, 1, values.size());
+      return values.get(0);
+    }
+
+    private static long readVarint(ByteBuffer in) {
+      long value = 0;
+      for (int shift = 0; ; shift += 7) {
+        byte b = in.get();
+        value |= (long) (b & 0x7F) << shift;
+        if (b >= 0) {
+          return value;
+        }
+      }
+    }
+  }
+}
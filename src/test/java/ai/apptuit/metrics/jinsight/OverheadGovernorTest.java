@@ -0,0 +1,157 @@
+/*
+ * Copyright 2017 Agilx, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package ai.apptuit.metrics.jinsight;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import com.codahale.metrics.MetricRegistry;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import org.junit.Before;
+import org.junit.Test;
+
+public class OverheadGovernorTest {
+
+  private static final long SECOND = TimeUnit.SECONDS.toNanos(1);
+
+  private Map<String, Sampler> samplers;
+  private Map<String, Double> moduleBudgets;
+  private MetricRegistry jinsightRegistry;
+  private OverheadGovernor governor;
+  private long now;
+
+  @Before
+  public void setUp() {
+    samplers = new HashMap<>();
+    moduleBudgets = new HashMap<>();
+    jinsightRegistry = new MetricRegistry();
+    //a single processor: one percent of the CPU is 10ms a second
+    governor = new OverheadGovernor(samplers, 1, module -> moduleBudgets.getOrDefault(module, 1.0), 1,
+        jinsightRegistry);
+    now = System.nanoTime();
+    governor.govern(now);
+  }
+
+  /**
+   * Makes calls to the module, for a second, each timed call taking the given time to time.
+   */
+  private void call(Sampler sampler, int calls, long overheadNanos) {
+    for (int i = 0; i < calls; i++) {
+      if (sampler.sample() > 0) {
+        sampler.recordOverhead(overheadNanos);
+      }
+    }
+    now += SECOND;
+  }
+
+  private Sampler module(String name) {
+    Sampler sampler = Sampler.everyCall();
+    samplers.put(name, sampler);
+    governor.govern(now);
+    return sampler;
+  }
+
+  private long metric(String name, String module) {
+    return jinsightRegistry.counter(OverheadGovernor.PREFIX + "." + name + "[module:" + module + "]").getCount();
+  }
+
+  @Test
+  public void testModulesAreGoverned() {
+    Sampler sampler = module("jedis");
+    assertTrue(sampler.isGoverned());
+    call(sampler, 1000, 5000);
+    governor.govern(now);
+    assertEquals(1, sampler.getThrottle());
+    assertEquals(0.5, governor.getTotalOverhead(), 1e-9);
+    assertEquals(1, jinsightRegistry.getGauges().get(OverheadGovernor.PREFIX + ".throttle[module:jedis]").getValue());
+  }
+
+  @Test
+  public void testModuleOverBudgetIsSteppedDownAndBackUp() {
+    Sampler sampler = module("jedis");
+    //20ms a second, 2% of the CPU
+    call(sampler, 4000, 5000);
+    governor.govern(now);
+    assertEquals(2, sampler.getThrottle());
+    assertEquals(1, metric("step_downs", "jedis"));
+
+    //still twice the budget, at half the calls timed
+    call(sampler, 8000, 5000);
+    governor.govern(now);
+    assertEquals(4, sampler.getThrottle());
+
+    //a tenth of the load: timing all the calls would be under half the budget
+    call(sampler, 800, 5000);
+    governor.govern(now);
+    assertEquals(2, sampler.getThrottle());
+    call(sampler, 800, 5000);
+    governor.govern(now);
+    assertEquals(1, sampler.getThrottle());
+    assertEquals(2, metric("step_ups", "jedis"));
+  }
+
+  @Test
+  public void testModuleIsSuspendedAndRestored() {
+    Sampler sampler = module("jedis");
+    sampler.setThrottle(OverheadGovernor.MAX_THROTTLE);
+    //a tenth of a second a second
+    sampler.sample();
+    sampler.recordOverhead(SECOND / 10);
+    now += SECOND;
+    governor.govern(now);
+    assertEquals(Sampler.SUSPENDED, sampler.getThrottle());
+
+    //the calls are no longer timed, but still counted, and timing the calls would be over the budget
+    call(sampler, 1000, SECOND / 10);
+    assertEquals(1, sampler.getTimedCalls());
+    governor.govern(now);
+    assertEquals(Sampler.SUSPENDED, sampler.getThrottle());
+
+    call(sampler, 1, SECOND / 10);
+    governor.govern(now);
+    assertEquals(OverheadGovernor.MAX_THROTTLE, sampler.getThrottle());
+  }
+
+  @Test
+  public void testCostliestModuleIsSteppedDownOverGlobalBudget() {
+    moduleBudgets.put("jedis", 10.0);
+    moduleBudgets.put("jdbc", 10.0);
+    Sampler jedis = module("jedis");
+    Sampler jdbc = module("jdbc");
+    //0.9% and 0.4% of the CPU, over the global budget together
+    call(jedis, 900, 10_000);
+    now -= SECOND;
+    call(jdbc, 400, 10_000);
+    governor.govern(now);
+    assertEquals(2, jedis.getThrottle());
+    assertEquals(1, jdbc.getThrottle());
+  }
+
+  @Test
+  public void testStopRestoresTheModules() {
+    Sampler sampler = module("jedis");
+    governor.start();
+    sampler.setThrottle(Sampler.SUSPENDED);
+    governor.stop();
+    assertEquals(1, sampler.getThrottle());
+    assertFalse(sampler.isGoverned());
+  }
+}
@@ -43,6 +43,7 @@ import com.codahale.metrics.MetricRegistry;
 import com.codahale.metrics.ScheduledReporter;
 import com.codahale.metrics.Timer;
 import io.prometheus.client.Collector;
+import io.prometheus.client.CollectorRegistry;
 import io.prometheus.client.dropwizard.DropwizardExports;
 
 import java.io.ByteArrayOutputStream;
@@ -51,10 +52,12 @@ import java.io.InputStream;
 import java.net.DatagramPacket;
 import java.net.DatagramSocket;
 import java.net.HttpURLConnection;
+import java.net.InetSocketAddress;
 import java.net.SocketException;
 import java.net.URL;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
@@ -107,6 +110,8 @@ public class PrometheusTest {
     mockServer = mock(PromHttpServer.class);
     when(mockConfigService.getGlobalTags()).thenReturn(ConfigService.getInstance().getGlobalTags());
     when(mockConfigService.getReporterType()).thenReturn(ReporterType.PROMETHEUS);
+    when(mockConfigService.getReporterTypes()).thenReturn(Collections.singletonList(ReporterType.PROMETHEUS));
+    CollectorRegistry.defaultRegistry.clear();
   }
 
   @Test
@@ -216,6 +221,33 @@ public class PrometheusTest {
   }
 
 
+  @Test
+  public void testPrometheusServerCachedScrapes() throws Exception {
+    MetricRegistry metricRegistry = new MetricRegistry();
+    Counter counter = metricRegistry.counter("coalesced.requests");
+    counter.inc();
+    ApptuitDropwizardExports exports = new ApptuitDropwizardExports(metricRegistry,
+        new TagDecodingSampleBuilder(null));
+    PromHttpServer server = new PromHttpServer(new InetSocketAddress(0), new CollectorRegistry(), exports, true,
+        TimeUnit.MINUTES.toMillis(1));
+    try {
+      server.setContext("/metrics");
+      URL url = new URL("http://localhost:" + server.getPort() + "/metrics");
+      HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+      assertEquals(200, connection.getResponseCode());
+      assertNotEquals(-1, readInputStream(connection.getInputStream()).indexOf("coalesced_requests 1"));
+
+      counter.inc();
+      connection = (HttpURLConnection) url.openConnection();
+      connection.setRequestProperty("Accept-Encoding", "gzip");
+      assertEquals(200, connection.getResponseCode());
+      assertEquals("gzip", connection.getHeaderField("Content-Encoding"));
+      assertNotEquals(-1, readGzipInputStream(connection.getInputStream()).indexOf("coalesced_requests 1"));
+    } finally {
+      server.close();
+    }
+  }
+
   @Test
   public void testCustomSampleBuilderNullGlobalTag() throws Exception {
     ArrayList<String> e = new ArrayList<>();
@@ -285,6 +317,7 @@ public class PrometheusTest {
   @Test(expected = IllegalStateException.class)
   public void testPrometheusWrongReporterType() throws Exception {
     when(mockConfigService.getReporterType()).thenReturn(null);
+    when(mockConfigService.getReporterTypes()).thenReturn(Collections.singletonList(null));
     String actualMessage = Agent.getStartupMessage(mockConfigService, false);
   }
 
@@ -0,0 +1,124 @@
+/*
+ * Copyright 2017 Agilx, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ai.apptuit.metrics.jinsight;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.Metric;
+import com.codahale.metrics.MetricRegistry;
+import io.micrometer.core.instrument.Tags;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import io.prometheus.client.Collector.MetricFamilySamples;
+import io.prometheus.client.CollectorRegistry;
+import io.prometheus.client.Counter;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.Before;
+import org.junit.Test;
+
+public class RegistryAdapterTest {
+
+  private MetricRegistryCollection collection;
+  private MetricRegistry aggregate;
+
+  @Before
+  public void setUp() throws Exception {
+    collection = new MetricRegistryCollection(false);
+    aggregate = collection.getAggregatedMetricRegistry();
+  }
+
+  @Test
+  public void testAdapterSelection() throws Exception {
+    assertNotNull(RegistryAdapter.forRegistry(new SimpleMeterRegistry()));
+    assertNotNull(RegistryAdapter.forRegistry(new CollectorRegistry()));
+    assertNull(RegistryAdapter.forRegistry(new MetricRegistry()));
+  }
+
+  @Test
+  public void testMicrometerCounter() throws Exception {
+    SimpleMeterRegistry registry = new SimpleMeterRegistry();
+    io.micrometer.core.instrument.Counter counter = registry.counter("test.requests", "method", "get");
+    collection.register(registry);
+
+    counter.increment(3);
+    assertEquals(3, aggregate.getCounters().get("test.requests[method:get]").getCount());
+    counter.increment();
+    assertEquals(4, aggregate.getCounters().get("test.requests[method:get]").getCount());
+  }
+
+  @Test
+  public void testMicrometerGauge() throws Exception {
+    SimpleMeterRegistry registry = new SimpleMeterRegistry();
+    AtomicInteger value = registry.gauge("test.pool.size", Tags.of("pool", "main"), new AtomicInteger(7));
+    collection.register(registry);
+
+    Gauge gauge = aggregate.getGauges().get("test.pool.size[pool:main]");
+    assertEquals(7.0, gauge.getValue());
+    value.set(9);
+    assertEquals(9.0, gauge.getValue());
+  }
+
+  @Test
+  public void testMicrometerTimer() throws Exception {
+    SimpleMeterRegistry registry = new SimpleMeterRegistry();
+    registry.timer("test.latency").record(500, TimeUnit.MILLISECONDS);
+    collection.register(registry);
+
+    Map<String, Metric> metrics = aggregate.getMetrics();
+    assertEquals(1, aggregate.getCounters().get("test.latency.count").getCount());
+    assertEquals(0.5, ((Gauge) metrics.get("test.latency.total_time")).getValue());
+    assertEquals(0.5, ((Gauge) metrics.get("test.latency.max")).getValue());
+    assertNull(metrics.get("test.latency"));
+  }
+
+  @Test
+  public void testPrometheusRegistry() throws Exception {
+    CollectorRegistry registry = new CollectorRegistry();
+    Counter counter = Counter.build().name("test_requests").help("Requests").labelNames("method")
+        .register(registry);
+    collection.register(registry);
+
+    counter.labels("get").inc(2);
+    assertEquals(2.0, aggregate.getGauges().get("test_requests_total[method:get]").getValue());
+    counter.labels("get").inc();
+    assertEquals(3.0, aggregate.getGauges().get("test_requests_total[method:get]").getValue());
+    assertTrue(aggregate.getCounters().isEmpty());
+  }
+
+  @Test
+  public void testExporterRegisteredWithAdaptedRegistry() throws Exception {
+    CollectorRegistry registry = new CollectorRegistry();
+    Counter.build().name("test_requests").help("Requests").register(registry).inc();
+    new ApptuitDropwizardExports(aggregate, new TagDecodingSampleBuilder(Collections.emptyMap()))
+        .register(registry);
+    collection.register(registry);
+
+    List<MetricFamilySamples> families = Collections.list(registry.metricFamilySamples());
+    boolean exported = families.stream().filter(family -> family.help.startsWith("Generated from Dropwizard"))
+        .flatMap(family -> family.samples.stream())
+        .anyMatch(sample -> sample.name.equals("test_requests_total") && sample.labelNames.isEmpty()
+            && sample.value == 1.0);
+    assertTrue(exported);
+  }
+}
@@ -16,9 +16,11 @@
 
 package ai.apptuit.metrics.jinsight;
 
+import static org.junit.Assert.assertTrue;
 import static org.mockito.ArgumentMatchers.any;
 import static org.mockito.ArgumentMatchers.anyString;
 import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.ArgumentMatchers.isA;
 import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
@@ -28,8 +30,11 @@ import ai.apptuit.metrics.dropwizard.ApptuitReporter.ReportingMode;
 import ai.apptuit.metrics.dropwizard.ApptuitReporterFactory;
 import com.codahale.metrics.MetricRegistry;
 import com.codahale.metrics.ScheduledReporter;
+import io.prometheus.client.CollectorRegistry;
 
 import java.net.URL;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.Properties;
@@ -53,10 +58,13 @@ public class RegistryServiceTest {
   public void setUp() throws Exception {
     mockFactory = mock(ApptuitReporterFactory.class);
     mockReporter = mock(ScheduledReporter.class);
+    CollectorRegistry.defaultRegistry.clear();
     when(mockFactory.build(any(MetricRegistry.class))).thenReturn(mockReporter);
     mockConfigService = mock(ConfigService.class);
     when(mockConfigService.getGlobalTags()).thenReturn(ConfigService.getInstance().getGlobalTags());
     when(mockConfigService.getReporterType()).thenReturn(ConfigService.ReporterType.APPTUIT);
+    when(mockConfigService.getReporterTypes())
+        .thenReturn(Collections.singletonList(ConfigService.ReporterType.APPTUIT));
     when(mockConfigService.getAgentVersion()).thenReturn("mock.version");
   }
 
@@ -143,4 +151,19 @@ public class RegistryServiceTest {
     new RegistryService(mockConfigService, mockFactory);
     verify(mockReporter).start(freq, TimeUnit.MILLISECONDS);
   }
+
+  @Test
+  public void testReportersShareSnapshots() throws Exception {
+    when(mockConfigService.getReporterTypes()).thenReturn(
+        Arrays.asList(ConfigService.ReporterType.PROMETHEUS, ConfigService.ReporterType.APPTUIT));
+    when(mockConfigService.getPrometheusPort()).thenReturn(0);
+    when(mockConfigService.getPrometheusMetricsPath()).thenReturn("/metrics");
+    when(mockConfigService.getNameCacheSize()).thenReturn(100);
+
+    RegistryService registryService = new RegistryService(mockConfigService, mockFactory);
+
+    verify(mockFactory).build(isA(SnapshotRegistry.class));
+    verify(mockReporter).start(0, TimeUnit.MILLISECONDS);
+    assertTrue(registryService.isInitialized());
+  }
 }
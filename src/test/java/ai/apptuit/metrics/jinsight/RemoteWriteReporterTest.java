@@ -0,0 +1,273 @@
+/*
+ * Copyright 2017 Agilx, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ai.apptuit.metrics.jinsight;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.awaitility.Awaitility.await;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import com.codahale.metrics.MetricRegistry;
+import com.sun.net.httpserver.HttpServer;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class RemoteWriteReporterTest {
+
+  private HttpServer receiver;
+  private final List<Series> received = Collections.synchronizedList(new ArrayList<>());
+  private final ConcurrentLinkedQueue<Integer> statuses = new ConcurrentLinkedQueue<>();
+  private final AtomicInteger requests = new AtomicInteger();
+  private final AtomicInteger concurrentRequests = new AtomicInteger();
+  private final AtomicInteger maxConcurrentRequests = new AtomicInteger();
+  private volatile long responseDelayMillis = 0;
+  private volatile String contentEncoding;
+  private MetricRegistry metrics;
+  private MetricRegistry jinsightRegistry;
+  private URL url;
+  private RemoteWriteReporter reporter;
+
+  /**
+   * A stand-in for a remote write receiver, that decodes the series it accepts and responds with the statuses queued
+   * by the test, then with 204.
+   */
+  @Before
+  public void setUp() throws Exception {
+    receiver = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+    receiver.setExecutor(Executors.newCachedThreadPool());
+    receiver.createContext("/api/v1/write", exchange -> {
+      int concurrent = concurrentRequests.incrementAndGet();
+      maxConcurrentRequests.accumulateAndGet(concurrent, Math::max);
+      try {
+        requests.incrementAndGet();
+        contentEncoding = exchange.getRequestHeaders().getFirst("Content-Encoding");
+        byte[] body = readFully(exchange.getRequestBody());
+        Thread.sleep(responseDelayMillis);
+        Integer status = statuses.poll();
+        if (status == null) {
+          status = 204;
+          received.addAll(decode(SnappyCompressionTest.uncompress(body)));
+        }
+        exchange.sendResponseHeaders(status, -1);
+      } catch (InterruptedException e) {
+        exchange.sendResponseHeaders(500, -1);
+      } finally {
+        concurrentRequests.decrementAndGet();
+        exchange.close();
+      }
+    });
+    receiver.start();
+    url = new URL("http://localhost:" + receiver.getAddress().getPort() + "/api/v1/write");
+    metrics = new MetricRegistry();
+    jinsightRegistry = new MetricRegistry();
+  }
+
+  @After
+  public void tearDown() {
+    if (reporter != null) {
+      reporter.close();
+    }
+    receiver.stop(0);
+  }
+
+  private RemoteWriteReporter createReporter(int batchSize, int maxInFlight, int maxRetries) {
+    ApptuitDropwizardExports exports = new ApptuitDropwizardExports(metrics,
+        new TagDecodingSampleBuilder(Collections.singletonMap("env", "test")));
+    return new RemoteWriteReporter(url, exports, batchSize, maxInFlight, maxRetries, jinsightRegistry, 10);
+  }
+
+  private long count(String name) {
+    return jinsightRegistry.counter(RemoteWriteReporter.PREFIX + "." + name).getCount();
+  }
+
+  @Test
+  public void testSamplesArePushed() throws Exception {
+    metrics.counter("http.requests[method:GET]").inc(3);
+    metrics.gauge("queue.size", () -> () -> 1.5);
+    reporter = createReporter(100, 2, 0);
+    reporter.report();
+    await().atMost(5, TimeUnit.SECONDS).until(() -> count("sent_requests") == 1);
+    assertEquals("snappy", contentEncoding);
+    assertEquals(2, received.size());
+    Map<String, Series> byName = new LinkedHashMap<>();
+    received.forEach(series -> byName.put(series.labels.get(RemoteWriteRequest.NAME_LABEL), series));
+
+    Series requestsSeries = byName.get("http_requests");
+    assertEquals(3.0, requestsSeries.value, 0);
+    assertEquals("GET", requestsSeries.labels.get("method"));
+    assertEquals("test", requestsSeries.labels.get("env"));
+    assertEquals(Arrays.asList(RemoteWriteRequest.NAME_LABEL, "env", "method"),
+        new ArrayList<>(requestsSeries.labels.keySet()));
+    assertTrue(Math.abs(System.currentTimeMillis() - requestsSeries.timestamp) < 60_000);
+    assertEquals(1.5, byName.get("queue_size").value, 0);
+    assertEquals(2, count("sent_samples"));
+  }
+
+  @Test
+  public void testSamplesAreBatched() throws Exception {
+    for (int i = 0; i < 25; i++) {
+      metrics.counter("counter" + i).inc(i);
+    }
+    reporter = createReporter(10, 2, 0);
+    reporter.report();
+    await().atMost(5, TimeUnit.SECONDS).until(() -> count("sent_requests") == 3);
+    assertEquals(3, requests.get());
+    assertEquals(25, received.size());
+    assertEquals(25, count("sent_samples"));
+  }
+
+  @Test
+  public void testRequestsInFlightAreBounded() throws Exception {
+    for (int i = 0; i < 8; i++) {
+      metrics.counter("counter" + i).inc();
+    }
+    responseDelayMillis = 50;
+    reporter = createReporter(1, 2, 0);
+    reporter.report();
+    await().atMost(5, TimeUnit.SECONDS).until(() -> count("sent_requests") == 8);
+    assertTrue(maxConcurrentRequests.get() <= 2);
+    assertEquals(8, received.size());
+  }
+
+  @Test
+  public void testFailedRequestsAreRetried() throws Exception {
+    metrics.counter("counter").inc();
+    statuses.add(503);
+    statuses.add(429);
+    reporter = createReporter(100, 1, 3);
+    reporter.report();
+    await().atMost(5, TimeUnit.SECONDS).until(() -> count("sent_requests") == 1);
+    assertEquals(3, requests.get());
+    assertEquals(2, count("retried_requests"));
+    assertEquals(1, received.size());
+  }
+
+  @Test
+  public void testRequestsAreDroppedAfterRetries() throws Exception {
+    metrics.counter("counter").inc();
+    for (int i = 0; i < 3; i++) {
+      statuses.add(500);
+    }
+    reporter = createReporter(100, 1, 1);
+    reporter.report();
+    await().atMost(5, TimeUnit.SECONDS).until(() -> count("failed_requests") == 1);
+    assertEquals(2, requests.get() - received.size());
+    assertEquals(1, count("retried_requests"));
+  }
+
+  @Test
+  public void testRejectedRequestsAreNotRetried() throws Exception {
+    metrics.counter("counter").inc();
+    statuses.add(400);
+    reporter = createReporter(100, 1, 3);
+    reporter.report();
+    await().atMost(5, TimeUnit.SECONDS).until(() -> count("failed_requests") == 1);
+    assertEquals(1, requests.get());
+    assertEquals(0, count("retried_requests"));
+  }
+
+  @Test
+  public void testLastReportIsSentOnClose() throws Exception {
+    metrics.counter("counter").inc();
+    reporter = createReporter(100, 1, 0);
+    reporter.start(TimeUnit.HOURS.toMillis(1));
+    reporter.close();
+    assertEquals(1, received.size());
+  }
+
+  private static byte[] readFully(InputStream in) throws IOException {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    byte[] buffer = new byte[8192];
+    int length;
+    while ((length = in.read(buffer)) != -1) {
+      out.write(buffer, 0, length);
+    }
+    return out.toByteArray();
+  }
+
+  private static List<Series> decode(byte[] writeRequest) {
+    List<Series> series = new ArrayList<>();
+    ByteBuffer in = ByteBuffer.wrap(writeRequest).order(ByteOrder.LITTLE_ENDIAN);
+    while (in.hasRemaining()) {
+      assertEquals(0x0A, readVarint(in));
+      ByteBuffer timeSeries = slice(in);
+      Series current = new Series();
+      while (timeSeries.hasRemaining()) {
+        long tag = readVarint(timeSeries);
+        ByteBuffer message = slice(timeSeries);
+        if (tag == 0x0A) {
+          assertEquals(0x0A, readVarint(message));
+          String name = UTF_8.decode(slice(message)).toString();
+          assertEquals(0x12, readVarint(message));
+          current.labels.put(name, UTF_8.decode(slice(message)).toString());
+        } else {
+          assertEquals(0x12, tag);
+          assertEquals(0x09, readVarint(message));
+          current.value = message.getDouble();
+          assertEquals(0x10, readVarint(message));
+          current.timestamp = readVarint(message);
+        }
+      }
+      series.add(current);
+    }
+    return series;
+  }
+
+  private static ByteBuffer slice(ByteBuffer in) {
+    int length = (int) readVarint(in);
+    ByteBuffer slice = in.slice().order(ByteOrder.LITTLE_ENDIAN);
+    slice.limit(length);
+    in.position(in.position() + length);
+    return slice;
+  }
+
+  private static long readVarint(ByteBuffer in) {
+    long value = 0;
+    for (int shift = 0; ; shift += 7) {
+      byte b = in.get();
+      value |= (long) (b & 0x7F) << shift;
+      if (b >= 0) {
+        return value;
+      }
+    }
+  }
+
+  private static final class Series {
+
+    private final Map<String, String> labels = new LinkedHashMap<>();
+    private double value;
+    private long timestamp;
+  }
+}
@@ -0,0 +1,142 @@
+/*
+ * Copyright 2017 Agilx, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ai.apptuit.metrics.jinsight;
+
+import static org.awaitility.Awaitility.await;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import com.codahale.metrics.Timer;
+import java.util.concurrent.TimeUnit;
+import org.junit.Test;
+
+public class SamplerTest {
+
+  @Test
+  public void testParse() throws Exception {
+    assertEquals("1/100", Sampler.parse("1/100").toString());
+    assertEquals("500/s", Sampler.parse(" 500 / s ").toString());
+    assertEquals("1/1", Sampler.parse("1/1").toString());
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testParseRatioOfManyCalls() throws Exception {
+    Sampler.parse("2/100");
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testParseZeroRate() throws Exception {
+    Sampler.parse("0/s");
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testParseNumber() throws Exception {
+    Sampler.parse("100");
+  }
+
+  @Test
+  public void testAllCallsAreTimed() throws Exception {
+    for (int i = 0; i < 100; i++) {
+      assertEquals(1, Sampler.ALL.sample());
+    }
+  }
+
+  @Test
+  public void testSampledCountsAreScaled() throws Exception {
+    Sampler sampler = Sampler.oneIn(10);
+    WeightedTimer getTimer = new WeightedTimer();
+    WeightedTimer setTimer = new WeightedTimer();
+    int calls = 100_000;
+    for (int i = 0; i < calls; i++) {
+      //the calls alternate between the timers, and each gets its share
+      WeightedTimer timer = i % 2 == 0 ? getTimer : setTimer;
+      long weight = sampler.sample();
+      assertTrue(weight == 0 || weight == 10);
+      if (weight > 0) {
+        timer.update(1000, weight);
+      }
+    }
+    assertEquals(calls / 2, getTimer.getCount(), calls * 0.05);
+    assertEquals(calls / 2, setTimer.getCount(), calls * 0.05);
+    assertEquals(1000, getTimer.getSnapshot().getMax());
+  }
+
+  @Test
+  public void testThrottle() throws Exception {
+    Sampler sampler = Sampler.everyCall();
+    sampler.setGoverned(true);
+    assertEquals(1, sampler.sample());
+    sampler.setThrottle(4);
+    long weights = 0;
+    for (int i = 0; i < 1000; i++) {
+      long weight = sampler.sample();
+      assertTrue(weight == 0 || weight == 4);
+      weights += weight;
+    }
+    assertEquals(1000, weights, 200);
+    sampler.setThrottle(Sampler.SUSPENDED);
+    for (int i = 0; i < 1000; i++) {
+      assertEquals(0, sampler.sample());
+    }
+    assertEquals(2001, sampler.getCalls());
+  }
+
+  @Test
+  public void testUngovernedCallsAreNotCounted() throws Exception {
+    Sampler sampler = Sampler.everyCall();
+    for (int i = 0; i < 1000; i++) {
+      assertEquals(1, sampler.sample());
+    }
+    assertEquals(0, sampler.getCalls());
+    Sampler rateSampler = Sampler.perSecond(1000000);
+    for (int i = 0; i < 1000; i++) {
+      rateSampler.sample();
+    }
+    assertEquals(1000, rateSampler.getCalls());
+  }
+
+  @Test
+  public void testOtherTimersCountOnce() throws Exception {
+    Timer timer = new Timer();
+    WeightedTimer.update(timer, 1000, 10);
+    assertEquals(1, timer.getCount());
+    WeightedTimer weightedTimer = new WeightedTimer();
+    WeightedTimer.update(weightedTimer, 1000, 10);
+    WeightedTimer.update(weightedTimer, 1000, 1);
+    assertEquals(11, weightedTimer.getCount());
+  }
+
+  @Test
+  public void testRateAdjustsTheRatio() throws Exception {
+    Sampler sampler = Sampler.perSecond(100);
+    assertEquals(1, sampler.getRatio());
+    long end = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(2100);
+    long calls = 0;
+    long sampled = 0;
+    while (System.nanoTime() < end) {
+      calls++;
+      if (sampler.sample() > 0) {
+        sampled++;
+      }
+    }
+    assertTrue("ratio " + sampler.getRatio(), sampler.getRatio() > 1);
+    assertTrue(sampled + " of " + calls, sampled < calls / 2);
+
+    //with no calls at all, none of them sampled, the ratio still follows the rate down
+    await().atMost(3, TimeUnit.SECONDS).until(() -> sampler.getRatio() == 1);
+  }
+}
@@ -0,0 +1,169 @@
+/*
+ * Copyright 2017 Agilx, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ai.apptuit.metrics.jinsight;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.fail;
+
+import ai.apptuit.metrics.jinsight.ScrapeCoalescer.Response;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.GZIPInputStream;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class ScrapeCoalescerTest {
+
+  private final AtomicInteger scrapes = new AtomicInteger();
+  private ExecutorService executor;
+
+  @Before
+  public void setUp() throws Exception {
+    executor = Executors.newCachedThreadPool();
+  }
+
+  @After
+  public void tearDown() throws Exception {
+    executor.shutdownNow();
+  }
+
+  private void scrape(OutputStream out, Set<String> includedNames) throws IOException {
+    out.write(("scrape " + scrapes.incrementAndGet() + " " + includedNames).getBytes(StandardCharsets.UTF_8));
+  }
+
+  private static void await(CountDownLatch latch) throws IOException {
+    try {
+      latch.await();
+    } catch (InterruptedException e) {
+      throw new IOException(e);
+    }
+  }
+
+  @Test
+  public void testConcurrentScrapesAreShared() throws Exception {
+    ScrapeCoalescer coalescer = new ScrapeCoalescer(0);
+    CountDownLatch started = new CountDownLatch(1);
+    CountDownLatch release = new CountDownLatch(1);
+    Future<Response> first = executor.submit(() -> coalescer.scrape(Collections.emptySet(), (out, names) -> {
+      started.countDown();
+      await(release);
+      scrape(out, names);
+    }));
+    started.await();
+
+    List<Future<Response>> others = new ArrayList<>();
+    for (int i = 0; i < 4; i++) {
+      others.add(executor.submit(() -> coalescer.scrape(Collections.emptySet(), this::scrape)));
+    }
+    Thread.sleep(100);
+    release.countDown();
+
+    Response response = first.get(10, TimeUnit.SECONDS);
+    for (Future<Response> other : others) {
+      assertSame(response, other.get(10, TimeUnit.SECONDS));
+    }
+    assertEquals(1, scrapes.get());
+    assertNotSame(response, coalescer.scrape(Collections.emptySet(), this::scrape));
+    assertEquals(2, scrapes.get());
+  }
+
+  @Test
+  public void testResponsesAreCachedForTtl() throws Exception {
+    ScrapeCoalescer coalescer = new ScrapeCoalescer(TimeUnit.MINUTES.toMillis(1));
+    Response response = coalescer.scrape(Collections.emptySet(), this::scrape);
+    assertSame(response, coalescer.scrape(Collections.emptySet(), this::scrape));
+    assertEquals(1, scrapes.get());
+
+    Response filtered = coalescer.scrape(Collections.singleton("jvm_uptime_seconds"), this::scrape);
+    assertEquals("scrape 2 [jvm_uptime_seconds]", new String(filtered.getBody(), StandardCharsets.UTF_8));
+    assertSame(filtered, coalescer.scrape(Collections.singleton("jvm_uptime_seconds"), this::scrape));
+    assertEquals(2, scrapes.get());
+  }
+
+  @Test
+  public void testResponsesExpire() throws Exception {
+    ScrapeCoalescer coalescer = new ScrapeCoalescer(1);
+    Response response = coalescer.scrape(Collections.emptySet(), this::scrape);
+    Thread.sleep(5);
+    assertNotSame(response, coalescer.scrape(Collections.emptySet(), this::scrape));
+    assertEquals(2, scrapes.get());
+  }
+
+  @Test
+  public void testFailureIsSharedAndNotCached() throws Exception {
+    ScrapeCoalescer coalescer = new ScrapeCoalescer(TimeUnit.MINUTES.toMillis(1));
+    CountDownLatch started = new CountDownLatch(1);
+    CountDownLatch release = new CountDownLatch(1);
+    Future<Response> first = executor.submit(() -> coalescer.scrape(Collections.emptySet(), (out, names) -> {
+      started.countDown();
+      await(release);
+      throw new IOException("collection failed");
+    }));
+    started.await();
+    Future<Response> second = executor.submit(() -> coalescer.scrape(Collections.emptySet(), this::scrape));
+    Thread.sleep(100);
+    release.countDown();
+
+    for (Future<Response> scrape : new Future[]{first, second}) {
+      try {
+        scrape.get(10, TimeUnit.SECONDS);
+        fail("Scrape should have failed");
+      } catch (ExecutionException e) {
+        assertEquals(IOException.class, e.getCause().getClass());
+      }
+    }
+    assertEquals(0, scrapes.get());
+    coalescer.scrape(Collections.emptySet(), this::scrape);
+    assertEquals(1, scrapes.get());
+  }
+
+  @Test
+  public void testGzippedBodyIsComputedOnce() throws Exception {
+    ScrapeCoalescer coalescer = new ScrapeCoalescer(0);
+    Response response = coalescer.scrape(Collections.emptySet(), this::scrape);
+    byte[] gzipped = response.getGzippedBody();
+    assertSame(gzipped, response.getGzippedBody());
+
+    ByteArrayOutputStream body = new ByteArrayOutputStream();
+    try (GZIPInputStream in = new GZIPInputStream(new ByteArrayInputStream(gzipped))) {
+      byte[] buffer = new byte[1024];
+      int length;
+      while ((length = in.read(buffer)) != -1) {
+        body.write(buffer, 0, length);
+      }
+    }
+    assertArrayEquals(response.getBody(), body.toByteArray());
+  }
+}
@@ -0,0 +1,146 @@
+/*
+ * Copyright 2017 Agilx, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ai.apptuit.metrics.jinsight;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Random;
+import org.junit.Test;
+
+public class SnappyCompressionTest {
+
+  private final SnappyCompression compression = new SnappyCompression();
+
+  /**
+   * A Snappy block format decoder, as a reference for the output of the compression.
+   */
+  static byte[] uncompress(byte[] input) {
+    int ip = 0;
+    int length = 0;
+    for (int shift = 0; ; shift += 7) {
+      int b = input[ip++] & 0xFF;
+      length |= (b & 0x7F) << shift;
+      if (b < 0x80) {
+        break;
+      }
+    }
+    byte[] output = new byte[length];
+    int op = 0;
+    while (ip < input.length) {
+      int tag = input[ip++] & 0xFF;
+      switch (tag & 0x03) {
+        case 0: {
+          int literalLength = tag >>> 2;
+          if (literalLength >= 60) {
+            int bytes = literalLength - 59;
+            literalLength = 0;
+            for (int i = 0; i < bytes; i++) {
+              literalLength |= (input[ip++] & 0xFF) << (8 * i);
+            }
+          }
+          literalLength++;
+          System.arraycopy(input, ip, output, op, literalLength);
+          ip += literalLength;
+          op += literalLength;
+          break;
+        }
+        case 1: {
+          int copyLength = ((tag >>> 2) & 0x07) + 4;
+          int offset = (tag >>> 5) << 8 | (input[ip++] & 0xFF);
+          op = copy(output, op, offset, copyLength);
+          break;
+        }
+        case 2: {
+          int offset = (input[ip] & 0xFF) | (input[ip + 1] & 0xFF) << 8;
+          ip += 2;
+          op = copy(output, op, offset, (tag >>> 2) + 1);
+          break;
+        }
+        default: {
+          int offset = (input[ip] & 0xFF) | (input[ip + 1] & 0xFF) << 8 | (input[ip + 2] & 0xFF) << 16
+              | (input[ip + 3] & 0xFF) << 24;
+          ip += 4;
+          op = copy(output, op, offset, (tag >>> 2) + 1);
+        }
+      }
+    }
+    assertEquals(length, op);
+    return output;
+  }
+
+  private static int copy(byte[] output, int op, int offset, int length) {
+    assertTrue(offset > 0 && offset <= op);
+    for (int i = 0; i < length; i++) {
+      output[op + i] = output[op - offset + i];
+    }
+    return op + length;
+  }
+
+  private byte[] roundTrip(byte[] input) {
+    byte[] compressed = new byte[SnappyCompression.maxCompressedLength(input.length)];
+    int length = compression.compress(input, input.length, compressed);
+    byte[] output = uncompress(Arrays.copyOf(compressed, length));
+    assertArrayEquals(input, output);
+    return Arrays.copyOf(compressed, length);
+  }
+
+  @Test
+  public void testEmpty() {
+    assertEquals(1, roundTrip(new byte[0]).length);
+  }
+
+  @Test
+  public void testRepetitiveInputIsCompressed() {
+    StringBuilder text = new StringBuilder();
+    for (int i = 0; i < 10000; i++) {
+      text.append("jvm_memory_pool_bytes_used{pool=\"Metaspace\",host=\"host-").append(i % 7).append("\"}\n");
+    }
+    byte[] input = text.toString().getBytes(StandardCharsets.UTF_8);
+    assertTrue(roundTrip(input).length < input.length / 10);
+  }
+
+  @Test
+  public void testLongRuns() {
+    byte[] input = new byte[200_000];
+    Arrays.fill(input, 0, 100_000, (byte) 'a');
+    assertTrue(roundTrip(input).length < 10_000);
+  }
+
+  @Test
+  public void testRandomInput() {
+    Random random = new Random(42);
+    for (int length : new int[]{1, 3, 4, 5, 59, 60, 61, 255, 256, 257, 65535, 65536, 65537, 150_000}) {
+      byte[] input = new byte[length];
+      random.nextBytes(input);
+      assertTrue(roundTrip(input).length <= SnappyCompression.maxCompressedLength(length));
+    }
+  }
+
+  @Test
+  public void testMixedInput() {
+    Random random = new Random(7);
+    byte[] input = new byte[300_000];
+    for (int i = 0; i < input.length; i++) {
+      input[i] = (byte) (random.nextInt(100) < 80 ? 'x' + (i / 1000) % 3 : random.nextInt());
+    }
+    roundTrip(input);
+  }
+}
@@ -0,0 +1,124 @@
+/*
+ * Copyright 2017 Agilx, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ai.apptuit.metrics.jinsight;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.MetricFilter;
+import com.codahale.metrics.MetricRegistry;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.Before;
+import org.junit.Test;
+
+public class SnapshotRegistryTest {
+
+  private MetricRegistry metrics;
+  private MetricRegistry jinsightRegistry;
+  private AtomicInteger gaugeReads;
+
+  @Before
+  public void setUp() {
+    metrics = new MetricRegistry();
+    jinsightRegistry = new MetricRegistry();
+    gaugeReads = new AtomicInteger();
+    metrics.register("gauge", (Gauge<Integer>) gaugeReads::incrementAndGet);
+    metrics.counter("counter").inc();
+    metrics.timer("timer");
+    metrics.meter("meter");
+    metrics.histogram("histogram");
+  }
+
+  private long count(String name) {
+    return jinsightRegistry.counter(name).getCount();
+  }
+
+  @Test
+  public void testReadersShareTheSnapshot() {
+    SnapshotRegistry snapshots = new SnapshotRegistry(metrics, 60_000, jinsightRegistry);
+    assertEquals(1, snapshots.getGauges().get("gauge").getValue());
+    assertEquals(5, snapshots.getMetrics().size());
+    assertEquals(1, snapshots.getCounters().get("counter").getCount());
+    assertEquals(1, snapshots.getTimers().size());
+    assertEquals(1, snapshots.getMeters().size());
+    assertEquals(1, snapshots.getHistograms().size());
+    assertEquals(1, ((Gauge<?>) snapshots.getMetrics().get("gauge")).getValue());
+
+    assertEquals(1, gaugeReads.get());
+    assertEquals(1, count(SnapshotRegistry.SNAPSHOTS_METRIC_NAME));
+    assertEquals(3, count(SnapshotRegistry.SNAPSHOT_READS_METRIC_NAME));
+  }
+
+  @Test
+  public void testReportIsServedFromOneSnapshot() throws Exception {
+    SnapshotRegistry snapshots = new SnapshotRegistry(metrics, 50, jinsightRegistry);
+    assertEquals(1, snapshots.getGauges().get("gauge").getValue());
+    metrics.counter("new");
+    Thread.sleep(60);
+    assertFalse(snapshots.getCounters().containsKey("new"));
+    snapshots.getHistograms();
+    snapshots.getMeters();
+    snapshots.getTimers();
+    assertEquals(1, gaugeReads.get());
+    assertEquals(1, count(SnapshotRegistry.SNAPSHOTS_METRIC_NAME));
+
+    assertEquals(2, snapshots.getGauges().get("gauge").getValue());
+    assertTrue(snapshots.getCounters().containsKey("new"));
+    assertEquals(2, count(SnapshotRegistry.SNAPSHOTS_METRIC_NAME));
+  }
+
+  @Test
+  public void testRepeatedReadStartsANewReport() throws Exception {
+    SnapshotRegistry snapshots = new SnapshotRegistry(metrics, 50, jinsightRegistry);
+    assertEquals(1, snapshots.getGauges().get("gauge").getValue());
+    Thread.sleep(60);
+    assertEquals(2, snapshots.getGauges().get("gauge").getValue());
+  }
+
+  @Test
+  public void testSnapshotExpires() throws Exception {
+    SnapshotRegistry snapshots = new SnapshotRegistry(metrics, 50, jinsightRegistry);
+    assertEquals(1, snapshots.getGauges().get("gauge").getValue());
+    metrics.counter("new");
+    assertFalse(snapshots.getNames().contains("new"));
+
+    Thread.sleep(60);
+    assertEquals(2, snapshots.getGauges().get("gauge").getValue());
+    assertTrue(snapshots.getNames().contains("new"));
+    assertEquals(2, count(SnapshotRegistry.SNAPSHOTS_METRIC_NAME));
+  }
+
+  @Test
+  public void testSnapshotIsFiltered() {
+    SnapshotRegistry snapshots = new SnapshotRegistry(metrics, 60_000, jinsightRegistry);
+    MetricFilter filter = (name, metric) -> name.startsWith("c");
+    assertEquals(1, snapshots.getCounters(filter).size());
+    assertTrue(snapshots.getGauges(filter).isEmpty());
+  }
+
+  @Test
+  public void testFailingGaugesAreSkipped() {
+    metrics.register("failing", (Gauge<Integer>) () -> {
+      throw new IllegalStateException();
+    });
+    SnapshotRegistry snapshots = new SnapshotRegistry(metrics, 60_000, jinsightRegistry);
+    assertEquals(1, snapshots.getGauges().size());
+    assertFalse(snapshots.getMetrics().containsKey("failing"));
+  }
+}
@@ -0,0 +1,134 @@
+/*
+ * Copyright 2017 Agilx, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ai.apptuit.metrics.jinsight;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class SpoolFileTest {
+
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+
+  private static byte[] record(String value) {
+    return value.getBytes(StandardCharsets.UTF_8);
+  }
+
+  private static String read(SpoolFile spool) {
+    byte[] record = spool.peek();
+    spool.remove();
+    return record == null ? null : new String(record, StandardCharsets.UTF_8);
+  }
+
+  @Test
+  public void testRecordsAreReadInOrder() throws Exception {
+    try (SpoolFile spool = new SpoolFile(folder.newFile("test.spool"), 1024)) {
+      assertTrue(spool.isEmpty());
+      assertNull(spool.peek());
+      spool.append(record("first"));
+      spool.append(record("second"));
+      spool.append(new byte[0]);
+      assertEquals(3, spool.size());
+      assertEquals(3 * 4 + 11, spool.getUsedBytes());
+
+      assertEquals("first", read(spool));
+      assertEquals("second", read(spool));
+      assertEquals("", read(spool));
+      assertTrue(spool.isEmpty());
+      assertEquals(0, spool.getUsedBytes());
+    }
+  }
+
+  @Test
+  public void testRecordsWrapAround() throws Exception {
+    try (SpoolFile spool = new SpoolFile(folder.newFile("test.spool"), 100)) {
+      for (int i = 0; i < 100; i++) {
+        assertTrue(spool.append(record("record-" + i)));
+        assertTrue(spool.append(record("other-" + i)));
+        assertEquals("record-" + i, read(spool));
+        assertEquals("other-" + i, read(spool));
+      }
+      assertEquals(0, spool.getDroppedRecords());
+    }
+  }
+
+  @Test
+  public void testOldestRecordsAreDroppedWhenFull() throws Exception {
+    try (SpoolFile spool = new SpoolFile(folder.newFile("test.spool"), 100)) {
+      for (int i = 0; i < 20; i++) {
+        spool.append(record("record-" + (char) ('a' + i)));
+      }
+      assertTrue(spool.getDroppedRecords() > 0);
+      assertEquals(20, spool.size() + spool.getDroppedRecords());
+      String last = null;
+      while (!spool.isEmpty()) {
+        last = read(spool);
+      }
+      assertEquals("record-t", last);
+
+      assertFalse(spool.append(new byte[100]));
+    }
+  }
+
+  @Test
+  public void testRecordsSurviveReopen() throws Exception {
+    File file = folder.newFile("test.spool");
+    try (SpoolFile spool = new SpoolFile(file, 100)) {
+      for (int i = 0; i < 10; i++) {
+        spool.append(record("record-" + i));
+      }
+      while (spool.size() > 3) {
+        spool.remove();
+      }
+    }
+    try (SpoolFile spool = new SpoolFile(file, 100)) {
+      assertEquals(3, spool.size());
+      assertEquals("record-7", read(spool));
+      spool.append(record("new"));
+      assertEquals("record-8", read(spool));
+      assertEquals("record-9", read(spool));
+      assertEquals("new", read(spool));
+    }
+    try (SpoolFile spool = new SpoolFile(file, 200)) {
+      assertTrue(spool.isEmpty());
+    }
+  }
+
+  @Test
+  public void testSpoolInUseIsNotShared() throws Exception {
+    File dir = folder.newFolder();
+    try (SpoolFile first = SpoolFile.open(dir, "test", 100);
+        SpoolFile second = SpoolFile.open(dir, "test", 100)) {
+      first.append(record("first"));
+      assertTrue(second.isEmpty());
+      assertArrayEquals(record("first"), first.peek());
+      assertNotEquals(first.size(), second.size());
+    }
+    assertTrue(new File(dir, "test.spool").exists());
+    assertTrue(new File(dir, "test-1.spool").exists());
+  }
+}
@@ -0,0 +1,215 @@
+/*
+ * Copyright 2017 Agilx, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ai.apptuit.metrics.jinsight;
+
+import static org.awaitility.Awaitility.await;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import ai.apptuit.metrics.jinsight.testing.TestWebServer;
+import com.codahale.metrics.MetricRegistry;
+import com.sun.net.httpserver.HttpServer;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class SpoolingForwarderTest {
+
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+
+  private HttpServer api;
+  private final List<String> received = Collections.synchronizedList(new ArrayList<>());
+  private final List<String> authorizations = Collections.synchronizedList(new ArrayList<>());
+  private final AtomicInteger status = new AtomicInteger(HttpURLConnection.HTTP_NO_CONTENT);
+  private final AtomicLong delayMillis = new AtomicLong();
+  private MetricRegistry registry;
+  private URL upstream;
+  private SpoolingForwarder forwarder;
+
+  /**
+   * A stand-in for the Apptuit API, that records the batches it accepts and fails with the status set by the test.
+   */
+  @Before
+  public void setUp() throws Exception {
+    api = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+    api.createContext("/api/put", exchange -> {
+      String body = TestWebServer.streamToString(exchange.getRequestBody());
+      try {
+        Thread.sleep(delayMillis.get());
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+      int responseStatus = status.get();
+      if (exchange.getRequestHeaders().getFirst("Authorization") == null) {
+        responseStatus = HttpURLConnection.HTTP_UNAUTHORIZED;
+      }
+      if (responseStatus < 300) {
+        received.add(body);
+        authorizations.add(exchange.getRequestHeaders().getFirst("Authorization"));
+      }
+      exchange.sendResponseHeaders(responseStatus, -1);
+      exchange.close();
+    });
+    api.start();
+    registry = new MetricRegistry();
+    upstream = new URL("http://localhost:" + api.getAddress().getPort() + "/api/put?sync=false");
+    forwarder = new SpoolingForwarder(upstream, new SpoolFile(folder.newFile("apptuit.spool"), 4096), registry, 10);
+  }
+
+  @After
+  public void tearDown() throws Exception {
+    forwarder.close();
+    api.stop(0);
+  }
+
+  private int report(String body) throws IOException {
+    HttpURLConnection connection = (HttpURLConnection) forwarder.getLocalUrl().openConnection();
+    connection.setRequestMethod("POST");
+    connection.setRequestProperty("Authorization", "Bearer token");
+    connection.setRequestProperty("Content-Type", "application/json");
+    connection.setDoOutput(true);
+    try (OutputStream out = connection.getOutputStream()) {
+      out.write(body.getBytes(StandardCharsets.UTF_8));
+    }
+    return connection.getResponseCode();
+  }
+
+  private long count(String name) {
+    return registry.counter(SpoolingForwarder.PREFIX + "." + name).getCount();
+  }
+
+  @Test
+  public void testBatchesAreForwarded() throws Exception {
+    assertEquals(HttpURLConnection.HTTP_NO_CONTENT, report("batch-1"));
+    assertEquals(Collections.singletonList("batch-1"), received);
+    assertEquals("Bearer token", authorizations.get(0));
+    assertEquals(0, count("spooled_batches"));
+    assertTrue(forwarder.getLocalUrl().toString().endsWith("/api/put?sync=false"));
+  }
+
+  @Test
+  public void testBatchesAreReplayedInOrderAfterOutage() throws Exception {
+    report("batch-1");
+    status.set(HttpURLConnection.HTTP_UNAVAILABLE);
+    assertEquals(HttpURLConnection.HTTP_NO_CONTENT, report("batch-2"));
+    assertEquals(HttpURLConnection.HTTP_NO_CONTENT, report("batch-3"));
+    api.stop(0);
+    assertEquals(HttpURLConnection.HTTP_NO_CONTENT, report("batch-4"));
+    assertEquals(Collections.singletonList("batch-1"), received);
+    assertEquals(3, count("spooled_batches"));
+
+    HttpServer recovered = HttpServer.create(api.getAddress(), 0);
+    recovered.createContext("/api/put", exchange -> {
+      received.add(TestWebServer.streamToString(exchange.getRequestBody()));
+      authorizations.add(exchange.getRequestHeaders().getFirst("Authorization"));
+      exchange.sendResponseHeaders(HttpURLConnection.HTTP_NO_CONTENT, -1);
+      exchange.close();
+    });
+    api = recovered;
+    api.start();
+    report("batch-5");
+
+    await().atMost(10, TimeUnit.SECONDS).until(() -> count("replayed_batches") == count("spooled_batches")
+        && received.size() == 5);
+    assertEquals(Arrays.asList("batch-1", "batch-2", "batch-3", "batch-4", "batch-5"), received);
+    assertTrue(authorizations.stream().allMatch("Bearer token"::equals));
+    assertEquals(0, registry.getGauges().get(SpoolingForwarder.PREFIX + ".pending_batches").getValue());
+  }
+
+  @Test
+  public void testRejectedBatchesAreNotSpooled() throws Exception {
+    status.set(HttpURLConnection.HTTP_BAD_REQUEST);
+    assertEquals(HttpURLConnection.HTTP_BAD_REQUEST, report("invalid"));
+    assertEquals(0, count("spooled_batches"));
+    assertEquals(1, count("rejected_batches"));
+  }
+
+  @Test
+  public void testBatchesTooLargeToSpoolAreNotAccepted() throws Exception {
+    status.set(HttpURLConnection.HTTP_UNAVAILABLE);
+    char[] large = new char[8192];
+    Arrays.fill(large, 'x');
+    assertEquals(HttpURLConnection.HTTP_UNAVAILABLE, report(new String(large)));
+    assertEquals(0, count("spooled_batches"));
+    assertEquals(0, count("rejected_batches"));
+    assertEquals(1L, registry.getGauges().get(SpoolingForwarder.PREFIX + ".dropped_batches").getValue());
+  }
+
+  @Test
+  public void testSlowReplayDoesNotHoldUpTheReporter() throws Exception {
+    status.set(HttpURLConnection.HTTP_UNAVAILABLE);
+    report("batch-1");
+    delayMillis.set(TimeUnit.SECONDS.toMillis(3));
+    //let the replay get stuck on the API
+    Thread.sleep(200);
+
+    long start = System.nanoTime();
+    assertEquals(HttpURLConnection.HTTP_NO_CONTENT, report("batch-2"));
+    assertTrue(System.nanoTime() - start < TimeUnit.SECONDS.toNanos(1));
+    assertEquals(2, count("spooled_batches"));
+  }
+
+  @Test
+  public void testSpoolIsKeptUntilTheReporterAuthorizesIt() throws Exception {
+    status.set(HttpURLConnection.HTTP_UNAVAILABLE);
+    report("batch-1");
+    forwarder.close();
+
+    //restarted: the replay has no Authorization header to send until the reporter sends one
+    status.set(HttpURLConnection.HTTP_NO_CONTENT);
+    registry = new MetricRegistry();
+    forwarder = new SpoolingForwarder(upstream, new SpoolFile(new File(folder.getRoot(), "apptuit.spool"), 4096),
+        registry, 10);
+    Thread.sleep(300);
+    assertEquals(0, count("rejected_batches"));
+    assertEquals(1, registry.getGauges().get(SpoolingForwarder.PREFIX + ".pending_batches").getValue());
+
+    report("batch-2");
+    await().atMost(10, TimeUnit.SECONDS).until(() -> received.size() == 2);
+    assertEquals(Arrays.asList("batch-1", "batch-2"), received);
+    assertEquals(0, count("rejected_batches"));
+  }
+
+  @Test
+  public void testUnauthorizedBatchesAreRetried() throws Exception {
+    status.set(HttpURLConnection.HTTP_UNAUTHORIZED);
+    assertEquals(HttpURLConnection.HTTP_NO_CONTENT, report("batch-1"));
+    Thread.sleep(100);
+    assertEquals(0, count("rejected_batches"));
+
+    status.set(HttpURLConnection.HTTP_NO_CONTENT);
+    await().atMost(10, TimeUnit.SECONDS).until(() -> count("replayed_batches") == 1);
+    assertEquals(Collections.singletonList("batch-1"), received);
+  }
+}
@@ -0,0 +1,215 @@
+/*
+ * Copyright 2017 Agilx, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ai.apptuit.metrics.jinsight;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import com.codahale.metrics.Counter;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.Timer;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class StatsdReporterTest {
+
+  private DatagramSocket agent;
+  private MetricRegistry metrics;
+  private MetricRegistry jinsightRegistry;
+  private StatsdReporter reporter;
+
+  /**
+   * A stand-in for a StatsD agent, a socket the datagrams of a report are read from.
+   */
+  @Before
+  public void setUp() throws Exception {
+    agent = new DatagramSocket(0, InetAddress.getLoopbackAddress());
+    agent.setSoTimeout(200);
+    metrics = new MetricRegistry();
+    jinsightRegistry = new MetricRegistry();
+  }
+
+  @After
+  public void tearDown() {
+    if (reporter != null) {
+      reporter.close();
+    }
+    agent.close();
+  }
+
+  private StatsdReporter createReporter(boolean dogstatsdTags, int maxPacketSize) throws Exception {
+    return new StatsdReporter(new InetSocketAddress(InetAddress.getLoopbackAddress(), agent.getLocalPort()),
+        metrics, Collections.singletonMap("host", "web-1"), dogstatsdTags, maxPacketSize, jinsightRegistry);
+  }
+
+  private List<String> receivePackets() throws Exception {
+    List<String> packets = new ArrayList<>();
+    byte[] buffer = new byte[65536];
+    while (true) {
+      DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
+      try {
+        agent.receive(packet);
+      } catch (SocketTimeoutException e) {
+        return packets;
+      }
+      packets.add(new String(packet.getData(), 0, packet.getLength(), UTF_8));
+    }
+  }
+
+  private List<String> receiveLines() throws Exception {
+    List<String> lines = new ArrayList<>();
+    for (String packet : receivePackets()) {
+      lines.addAll(Arrays.asList(packet.split("\n")));
+    }
+    return lines;
+  }
+
+  private long count(String name) {
+    return jinsightRegistry.counter(StatsdReporter.PREFIX + "." + name).getCount();
+  }
+
+  @Test
+  public void testCountersSendTheirChanges() throws Exception {
+    Counter counter = metrics.counter("http.requests[method:GET]");
+    counter.inc(3);
+    reporter = createReporter(true, 1432);
+    reporter.report();
+    assertEquals(Collections.singletonList("http.requests:3|c|#host:web-1,method:GET"), receiveLines());
+
+    reporter.report();
+    assertEquals(Collections.emptyList(), receiveLines());
+
+    counter.inc(2);
+    metrics.meter("errors").mark();
+    reporter.report();
+    List<String> lines = receiveLines();
+    assertEquals(2, lines.size());
+    assertTrue(lines.contains("http.requests:2|c|#host:web-1,method:GET"));
+    assertTrue(lines.contains("errors:1|c|#host:web-1"));
+  }
+
+  @Test
+  public void testGaugesAreSentOnEachReport() throws Exception {
+    metrics.gauge("queue.size", () -> () -> 1.5);
+    metrics.gauge("connected", () -> () -> true);
+    metrics.gauge("name", () -> () -> "not a number");
+    reporter = createReporter(true, 1432);
+    for (int i = 0; i < 2; i++) {
+      reporter.report();
+      List<String> lines = receiveLines();
+      assertEquals(2, lines.size());
+      assertTrue(lines.contains("queue.size:1.5|g|#host:web-1"));
+      assertTrue(lines.contains("connected:1|g|#host:web-1"));
+    }
+  }
+
+  @Test
+  public void testTimers() throws Exception {
+    Timer timer = metrics.timer("jdbc.query.time[db:orders]");
+    timer.update(20, TimeUnit.MILLISECONDS);
+    timer.update(20, TimeUnit.MILLISECONDS);
+    reporter = createReporter(true, 1432);
+    reporter.report();
+    List<String> lines = receiveLines();
+    assertEquals(Arrays.asList(
+        "jdbc.query.time.count:2|c|#db:orders,host:web-1",
+        "jdbc.query.time.mean:20|g|#db:orders,host:web-1",
+        "jdbc.query.time.p50:20|g|#db:orders,host:web-1",
+        "jdbc.query.time.p95:20|g|#db:orders,host:web-1",
+        "jdbc.query.time.p99:20|g|#db:orders,host:web-1",
+        "jdbc.query.time.max:20|g|#db:orders,host:web-1"), lines);
+
+    reporter.report();
+    assertEquals(Collections.emptyList(), receiveLines());
+  }
+
+  @Test
+  public void testTagsInNamesForPlainStatsd() throws Exception {
+    metrics.counter("http.requests[method:GET,status:200]").inc();
+    metrics.gauge("temperature", () -> () -> -5);
+    reporter = createReporter(false, 1432);
+    reporter.report();
+    List<String> lines = receiveLines();
+    assertEquals(3, lines.size());
+    assertTrue(lines.contains("http.requests.method.GET.status.200:1|c"));
+    assertEquals(Arrays.asList("temperature:0|g", "temperature:-5|g"),
+        lines.subList(lines.indexOf("temperature:0|g"), lines.indexOf("temperature:0|g") + 2));
+  }
+
+  @Test
+  public void testLinesArePackedUpToThePacketSize() throws Exception {
+    for (int i = 0; i < 100; i++) {
+      metrics.counter("counter" + String.format("%02d", i)).inc();
+    }
+    reporter = createReporter(false, 100);
+    reporter.report();
+    List<String> packets = receivePackets();
+    int lines = 0;
+    for (String packet : packets) {
+      assertTrue(packet.length() <= 100);
+      lines += packet.split("\n").length;
+    }
+    assertEquals(100, lines);
+    // "counterNN:1|c" is 13 bytes, 7 of them fit in 100 bytes with the separators
+    assertEquals(15, packets.size());
+    assertEquals(15, count("sent_packets"));
+    assertEquals(100, count("sent_lines"));
+    assertEquals(0, count("dropped_packets"));
+  }
+
+  @Test
+  public void testLinesLargerThanAPacketAreDropped() throws Exception {
+    metrics.counter("counter").inc();
+    StringBuilder name = new StringBuilder("large[tag:");
+    for (int i = 0; i < 100; i++) {
+      name.append('x');
+    }
+    metrics.counter(name.append(']').toString()).inc();
+    reporter = createReporter(true, 100);
+    reporter.report();
+    List<String> packets = receivePackets();
+    assertEquals(Collections.singletonList("counter:1|c|#host:web-1"), packets);
+    assertEquals(1, count("sent_lines"));
+    assertEquals(1, count("dropped_lines"));
+    assertEquals(0, count("dropped_packets"));
+  }
+
+  @Test
+  public void testRemovedMetricsAreForgotten() throws Exception {
+    metrics.counter("counter").inc();
+    reporter = createReporter(true, 1432);
+    reporter.report();
+    receiveLines();
+    metrics.remove("counter");
+    reporter.report();
+    metrics.counter("counter").inc();
+    reporter.report();
+    assertEquals(Collections.singletonList("counter:1|c|#host:web-1"), receiveLines());
+  }
+}
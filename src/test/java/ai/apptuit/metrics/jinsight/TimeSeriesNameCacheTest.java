@@ -0,0 +1,140 @@
+/*
+ * Copyright 2017 Agilx, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ai.apptuit.metrics.jinsight;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.Metric;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.Test;
+
+public class TimeSeriesNameCacheTest {
+
+  private final AtomicInteger loads = new AtomicInteger();
+
+  private String load(String name, String suffix, String labelName, String labelValue) {
+    loads.incrementAndGet();
+    return name + "|" + suffix + "|" + labelName + "|" + labelValue;
+  }
+
+  @Test
+  public void testHitsAndMisses() throws Exception {
+    TimeSeriesNameCache<String> cache = new TimeSeriesNameCache<>(100, this::load);
+    String value = cache.get("jvm.threads", "_count", null, null);
+    assertEquals("jvm.threads|_count|null|null", value);
+    assertSame(value, cache.get("jvm.threads", "_count", null, null));
+    assertEquals("jvm.threads|null|null|null", cache.get("jvm.threads", null, null, null));
+    assertEquals("jvm.threads|null|quantile|0.5", cache.get("jvm.threads", null, "quantile", "0.5"));
+    assertEquals("jvm.threads|null|quantile|0.99", cache.get("jvm.threads", null, "quantile", "0.99"));
+    cache.get("jvm.threads", null, "quantile", "0.5");
+
+    assertEquals(4, loads.get());
+    assertEquals(2, cache.getHits());
+    assertEquals(4, cache.getMisses());
+    assertEquals(4, cache.size());
+    assertEquals(0, cache.getEvictions());
+  }
+
+  @Test
+  public void testCapacityIsBounded() throws Exception {
+    TimeSeriesNameCache<String> cache = new TimeSeriesNameCache<>(100, this::load);
+    for (int round = 0; round < 5; round++) {
+      for (int i = 0; i < 1000; i++) {
+        cache.get("metric" + i, null, null, null);
+      }
+    }
+    assertTrue(cache.size() <= 100);
+    assertTrue(cache.getEvictions() > 0);
+    assertEquals(5000, cache.getHits() + cache.getMisses());
+  }
+
+  @Test
+  public void testFrequentNamesSurviveScan() throws Exception {
+    TimeSeriesNameCache<String> cache = new TimeSeriesNameCache<>(100, this::load);
+    int oneOff = 0;
+    for (int scrape = 0; scrape < 50; scrape++) {
+      if (scrape == 10) {
+        loads.set(0);
+      }
+      for (int i = 0; i < 50; i++) {
+        cache.get("frequent" + i, null, null, null);
+      }
+      for (int i = 0; i < 200; i++) {
+        cache.get("once" + oneOff++, null, null, null);
+      }
+    }
+    assertEquals(40 * 200, loads.get());
+  }
+
+  @Test
+  public void testConcurrentLookups() throws Exception {
+    TimeSeriesNameCache<String> cache = new TimeSeriesNameCache<>(5000, this::load);
+    ExecutorService executor = Executors.newFixedThreadPool(8);
+    try {
+      List<Future<Boolean>> results = new ArrayList<>();
+      for (int t = 0; t < 8; t++) {
+        int seed = t;
+        results.add(executor.submit(() -> {
+          for (int i = 0; i < 20000; i++) {
+            int n = (i * 31 + seed) % 10000;
+            String suffix = (i & 1) == 0 ? "_count" : null;
+            if (!cache.get("metric" + n, suffix, null, null).equals("metric" + n + "|" + suffix + "|null|null")) {
+              return false;
+            }
+          }
+          return true;
+        }));
+      }
+      for (Future<Boolean> result : results) {
+        assertTrue(result.get());
+      }
+    } finally {
+      executor.shutdownNow();
+    }
+    assertTrue(cache.size() <= 5000);
+    assertEquals(8 * 20000, cache.getHits() + cache.getMisses());
+  }
+
+  @Test
+  public void testSampleBuilderCacheMetrics() throws Exception {
+    TagDecodingSampleBuilder builder = new TagDecodingSampleBuilder(null, 10);
+    builder.createSample("jvm.threads[state:blocked]", "_count", null, null, 1);
+    builder.createSample("jvm.threads[state:blocked]", "_count", null, null, 2);
+    Map<String, Metric> metrics = builder.getCacheMetrics().getMetrics();
+    assertEquals(1L, ((Gauge) metrics.get("hits")).getValue());
+    assertEquals(1L, ((Gauge) metrics.get("misses")).getValue());
+    assertEquals(0L, ((Gauge) metrics.get("evictions")).getValue());
+    assertEquals(1, ((Gauge) metrics.get("size")).getValue());
+  }
+
+  @Test
+  public void testSampleBuilderWithoutCache() throws Exception {
+    TagDecodingSampleBuilder builder = new TagDecodingSampleBuilder(null, 0);
+    assertEquals("jvm_threads_count",
+        builder.createSample("jvm.threads[state:blocked]", "_count", null, null, 1).name);
+    assertTrue(builder.getCacheMetrics().getMetrics().isEmpty());
+  }
+}
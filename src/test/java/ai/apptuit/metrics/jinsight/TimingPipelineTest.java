@@ -0,0 +1,161 @@
+/*
+ * Copyright 2017 Agilx, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ai.apptuit.metrics.jinsight;
+
+import static org.awaitility.Awaitility.await;
+import static org.junit.Assert.assertEquals;
+
+import ai.apptuit.metrics.jinsight.TimingPipeline.OverflowPolicy;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.Timer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class TimingPipelineTest {
+
+  private static final long NEVER = TimeUnit.HOURS.toMillis(1);
+
+  private TimingPipeline pipeline;
+  private MetricRegistry jinsightRegistry;
+  private Timer timer;
+
+  @Before
+  public void setUp() {
+    pipeline = new TimingPipeline();
+    jinsightRegistry = new MetricRegistry();
+    timer = new Timer();
+  }
+
+  @After
+  public void tearDown() {
+    pipeline.stop();
+  }
+
+  private long count(String name) {
+    return jinsightRegistry.counter(TimingPipeline.PREFIX + "." + name).getCount();
+  }
+
+  @Test
+  public void testTimersAreUpdatedInlineUntilStarted() {
+    pipeline.update(timer, 1000);
+    assertEquals(1, timer.getCount());
+  }
+
+  @Test
+  public void testTimingsAreDrainedIntoTheTimers() {
+    pipeline.start(16, OverflowPolicy.DROP, jinsightRegistry, NEVER);
+    pipeline.update(timer, 1000);
+    pipeline.update(timer, 3000);
+    assertEquals(0, timer.getCount());
+    pipeline.drain();
+    assertEquals(2, timer.getCount());
+    assertEquals(1000, timer.getSnapshot().getMin());
+    assertEquals(3000, timer.getSnapshot().getMax());
+    assertEquals(2, count("drained"));
+  }
+
+  @Test
+  public void testOverflowingTimingsAreDropped() {
+    pipeline.start(4, OverflowPolicy.DROP, jinsightRegistry, NEVER);
+    for (int i = 0; i < 10; i++) {
+      pipeline.update(timer, i);
+    }
+    pipeline.drain();
+    assertEquals(4, timer.getCount());
+    assertEquals(6, count("dropped"));
+
+    //the buffer is reused once drained
+    for (int i = 0; i < 4; i++) {
+      pipeline.update(timer, i);
+    }
+    pipeline.drain();
+    assertEquals(8, timer.getCount());
+    assertEquals(6, count("dropped"));
+  }
+
+  @Test
+  public void testOverflowingTimingsAreUpdatedInline() {
+    pipeline.start(3, OverflowPolicy.UPDATE_INLINE, jinsightRegistry, NEVER);
+    for (int i = 0; i < 10; i++) {
+      pipeline.update(timer, i);
+    }
+    assertEquals(6, timer.getCount());
+    assertEquals(6, count("inline"));
+    pipeline.drain();
+    assertEquals(10, timer.getCount());
+  }
+
+  @Test
+  public void testTimingsOfManyThreads() throws Exception {
+    pipeline.start(64, OverflowPolicy.UPDATE_INLINE, jinsightRegistry, 1);
+    List<Thread> threads = new ArrayList<>();
+    for (int t = 0; t < 8; t++) {
+      threads.add(new Thread(() -> {
+        for (int i = 0; i < 10_000; i++) {
+          pipeline.update(timer, i);
+        }
+      }));
+    }
+    threads.forEach(Thread::start);
+    for (Thread thread : threads) {
+      thread.join();
+    }
+    await().atMost(5, TimeUnit.SECONDS).until(() -> timer.getCount() == 80_000);
+    assertEquals(80_000, count("drained") + count("inline"));
+    await().atMost(5, TimeUnit.SECONDS)
+        .until(() -> ((Number) jinsightRegistry.getGauges().get(TimingPipeline.PREFIX + ".buffers").getValue())
+            .intValue() == 0);
+  }
+
+  @Test
+  public void testStopDrainsTheBuffers() {
+    pipeline.start(16, OverflowPolicy.DROP, jinsightRegistry, NEVER);
+    pipeline.update(timer, 1000);
+    pipeline.stop();
+    assertEquals(1, timer.getCount());
+    pipeline.update(timer, 1000);
+    assertEquals(2, timer.getCount());
+  }
+
+  @Test
+  public void testTimingsRecordedWhileStoppingAreKept() throws Exception {
+    pipeline.start(1 << 16, OverflowPolicy.DROP, jinsightRegistry, NEVER);
+    CountDownLatch running = new CountDownLatch(8);
+    List<Thread> threads = new ArrayList<>();
+    for (int t = 0; t < 8; t++) {
+      threads.add(new Thread(() -> {
+        running.countDown();
+        for (int i = 0; i < 20_000; i++) {
+          pipeline.update(timer, i);
+        }
+      }));
+    }
+    threads.forEach(Thread::start);
+    running.await();
+    pipeline.stop();
+    for (Thread thread : threads) {
+      thread.join();
+    }
+    assertEquals(160_000, timer.getCount());
+    assertEquals(0, count("dropped"));
+  }
+}
@@ -0,0 +1,84 @@
+/*
+ * Copyright 2017 Agilx, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ai.apptuit.metrics.jinsight.modules.common;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Measures 64 threads attaching a start time to a new object and taking it back, as the asynchronous HTTP, Jedis and
+ * memcached helpers do for each request, with a {@link LongObjectProperty} against the synchronized
+ * {@link WeakHashMap} of per-object {@link HashMap}s that {@link RuleHelper} used to keep all the properties in.
+ *
+ * <p>Run with {@code java -cp target/test-classes:<test classpath>
+ * ai.apptuit.metrics.jinsight.modules.common.ObjectPropertyBenchmark}
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Threads(64)
+@Fork(1)
+public class ObjectPropertyBenchmark {
+
+  private static final String START_TIME_PROPERTY_NAME = "start_time";
+
+  private final LongObjectProperty startTime = new LongObjectProperty();
+  private final Map<Object, Map<String, Object>> synchronizedProperties = Collections
+      .synchronizedMap(new WeakHashMap<>());
+
+  public static void main(String[] args) throws RunnerException {
+    Options options = new OptionsBuilder()
+        .include(ObjectPropertyBenchmark.class.getSimpleName())
+        .build();
+    new Runner(options).run();
+  }
+
+  @Benchmark
+  public long longObjectProperty() {
+    Object request = new Object();
+    startTime.set(request, System.nanoTime());
+    return startTime.remove(request);
+  }
+
+  @Benchmark
+  public Object synchronizedWeakHashMap() {
+    Object request = new Object();
+    synchronizedProperties.computeIfAbsent(request, k -> Collections.synchronizedMap(new HashMap<>()))
+        .put(START_TIME_PROPERTY_NAME, System.nanoTime());
+    Map<String, Object> properties = synchronizedProperties.get(request);
+    return properties.remove(START_TIME_PROPERTY_NAME);
+  }
+}
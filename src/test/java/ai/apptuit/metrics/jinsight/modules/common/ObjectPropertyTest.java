@@ -0,0 +1,115 @@
+/*
+ * Copyright 2017 Agilx, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ai.apptuit.metrics.jinsight.modules.common;
+
+import static org.awaitility.Awaitility.await;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import org.junit.Test;
+
+public class ObjectPropertyTest {
+
+  @Test
+  public void testSetGetRemove() {
+    ObjectProperty<String> property = new ObjectProperty<>();
+    Object object = new Object();
+    assertNull(property.get(object));
+    assertNull(property.set(object, "select 1"));
+    assertEquals("select 1", property.get(object));
+    assertEquals("select 1", property.set(object, "select 2"));
+    assertEquals("select 2", property.get(object));
+    assertEquals("select 2", property.remove(object));
+    assertNull(property.get(object));
+    assertNull(property.remove(object));
+  }
+
+  @Test
+  public void testObjectsAreComparedByIdentity() {
+    LongObjectProperty property = new LongObjectProperty();
+    String first = new String("request");
+    String second = new String("request");
+    property.set(first, 10);
+    assertEquals(LongObjectProperty.ABSENT, property.get(second));
+    property.set(second, 20);
+    assertEquals(10, property.remove(first));
+    assertEquals(20, property.remove(second));
+    assertEquals(LongObjectProperty.ABSENT, property.remove(first));
+  }
+
+  @Test
+  public void testNullObjects() {
+    ObjectProperty<String> property = new ObjectProperty<>();
+    assertNull(property.set(null, "value"));
+    assertNull(property.get(null));
+    LongObjectProperty longProperty = new LongObjectProperty();
+    longProperty.set(null, 1);
+    assertEquals(LongObjectProperty.ABSENT, longProperty.get(null));
+    assertEquals(0, longProperty.size());
+  }
+
+  @Test
+  public void testCollectedObjectsAreDropped() {
+    LongObjectProperty property = new LongObjectProperty();
+    for (int i = 0; i < 1000; i++) {
+      property.set(new Object(), i);
+    }
+    Object retained = new Object();
+    property.set(retained, 42);
+    await().atMost(10, TimeUnit.SECONDS).until(() -> {
+      System.gc();
+      return property.size() == 1;
+    });
+    assertEquals(42, property.get(retained));
+  }
+
+  @Test
+  public void testConcurrentUpdates() throws Exception {
+    LongObjectProperty property = new LongObjectProperty();
+    int threads = 8;
+    ExecutorService executor = Executors.newFixedThreadPool(threads);
+    CountDownLatch start = new CountDownLatch(1);
+    List<Future<Long>> mismatches = new ArrayList<>();
+    for (int t = 0; t < threads; t++) {
+      mismatches.add(executor.submit(() -> {
+        start.await();
+        long count = 0;
+        for (int i = 0; i < 10_000; i++) {
+          Object object = new Object();
+          property.set(object, i);
+          if (property.get(object) != i || property.remove(object) != i) {
+            count++;
+          }
+        }
+        return count;
+      }));
+    }
+    start.countDown();
+    for (Future<Long> future : mismatches) {
+      assertEquals(0L, (long) future.get(30, TimeUnit.SECONDS));
+    }
+    executor.shutdown();
+    assertEquals(0, property.size());
+  }
+}
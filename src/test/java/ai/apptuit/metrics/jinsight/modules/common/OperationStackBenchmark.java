@@ -0,0 +1,98 @@
+/*
+ * Copyright 2017 Agilx, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ai.apptuit.metrics.jinsight.modules.common;
+
+import ai.apptuit.metrics.jinsight.modules.common.RuleHelper.OperationId;
+import com.codahale.metrics.Timer;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Measures the begin/end pairs of timed operations of {@link RuleHelper}, nested as deep as the {@code depth}
+ * parameter, with distinct operation ids in the {@code nested} benchmark and the same id in the {@code reentrant} one.
+ * The timer is null, so that only the bookkeeping of the operations is measured, and not the recording of their
+ * durations. Run with {@code -prof gc} to check that the pairs do not allocate.
+ *
+ * <p>Run with {@code java -cp target/test-classes:<test classpath>
+ * ai.apptuit.metrics.jinsight.modules.common.OperationStackBenchmark}
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class OperationStackBenchmark {
+
+  @Param({"1", "2", "3", "4", "5", "6", "7", "8"})
+  private int depth;
+
+  private final RuleHelper helper = new RuleHelper(null);
+  private final Timer timer = null;
+  private OperationId[] ids;
+  private OperationId sameId;
+
+  public static void main(String[] args) throws RunnerException {
+    Options options = new OptionsBuilder()
+        .include(OperationStackBenchmark.class.getSimpleName())
+        .build();
+    new Runner(options).run();
+  }
+
+  @Setup
+  public void setUp() {
+    ids = new OperationId[depth];
+    for (int i = 0; i < depth; i++) {
+      ids[i] = new OperationId("operation" + i);
+    }
+    sameId = new OperationId("operation");
+  }
+
+  @Benchmark
+  public void nested() {
+    for (int i = 0; i < depth; i++) {
+      helper.beginTimedOperation(ids[i]);
+    }
+    for (int i = depth - 1; i >= 0; i--) {
+      helper.endTimedOperation(ids[i], timer);
+    }
+  }
+
+  @Benchmark
+  public void reentrant() {
+    for (int i = 0; i < depth; i++) {
+      helper.beginTimedOperation(sameId);
+    }
+    for (int i = 0; i < depth; i++) {
+      helper.endTimedOperation(sameId, timer);
+    }
+  }
+}
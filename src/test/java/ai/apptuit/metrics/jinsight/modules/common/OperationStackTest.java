@@ -0,0 +1,136 @@
+/*
+ * Copyright 2017 Agilx, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ai.apptuit.metrics.jinsight.modules.common;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import ai.apptuit.metrics.jinsight.Sampler;
+import ai.apptuit.metrics.jinsight.modules.common.RuleHelper.OperationId;
+import com.codahale.metrics.Clock;
+import org.junit.Before;
+import org.junit.Test;
+
+public class OperationStackTest {
+
+  private static final OperationId HTTP = new OperationId("http");
+  private static final OperationId JDBC = new OperationId("jdbc");
+
+  private OperationStack stack;
+  private ManualClock clock;
+
+  @Before
+  public void setUp() {
+    stack = new OperationStack();
+    clock = new ManualClock();
+  }
+
+  @Test
+  public void testNestedOperations() {
+    stack.push(HTTP, clock);
+    clock.tick = 10;
+    stack.push(JDBC, clock);
+    assertSame(JDBC, stack.peek());
+    clock.tick = 25;
+    assertEquals(15, stack.pop(JDBC, clock));
+    assertSame(HTTP, stack.peek());
+    clock.tick = 40;
+    assertEquals(40, stack.pop(HTTP, clock));
+    assertNull(stack.peek());
+    assertEquals(0, stack.depth());
+  }
+
+  @Test
+  public void testReentrantOperationsAreTimedOnce() {
+    stack.push(JDBC, clock);
+    clock.tick = 5;
+    stack.push(JDBC, clock);
+    stack.push(JDBC, clock);
+    assertEquals(OperationStack.NOT_TIMED, stack.pop(JDBC, clock));
+    assertEquals(OperationStack.NOT_TIMED, stack.pop(JDBC, clock));
+    clock.tick = 30;
+    assertEquals(30, stack.pop(JDBC, clock));
+    assertEquals(2, clock.reads);
+  }
+
+  @Test
+  public void testSampledOperations() {
+    Sampler sampler = Sampler.oneIn(4);
+    int timed = 0;
+    for (int i = 0; i < 1000; i++) {
+      stack.push(JDBC, clock, sampler);
+      long weight = stack.peekWeight();
+      long elapsed = stack.pop(JDBC, clock);
+      if (weight == 0) {
+        assertEquals(OperationStack.NOT_TIMED, elapsed);
+      } else {
+        assertEquals(4, weight);
+        assertEquals(0, elapsed);
+        timed++;
+      }
+    }
+    assertEquals(2 * timed, clock.reads);
+    assertTrue("timed " + timed, timed > 150 && timed < 350);
+  }
+
+  @Test
+  public void testReentrantOperationsAreNotSampled() {
+    stack.push(JDBC, clock);
+    stack.push(JDBC, clock, Sampler.oneIn(1000));
+    assertEquals(0, stack.peekWeight());
+    assertEquals(OperationStack.NOT_TIMED, stack.pop(JDBC, clock));
+    assertEquals(1, stack.peekWeight());
+  }
+
+  @Test
+  public void testMismatchedEndIsIgnored() {
+    stack.push(HTTP, clock);
+    assertEquals(OperationStack.NOT_TIMED, stack.pop(JDBC, clock));
+    assertEquals(1, stack.depth());
+    assertEquals(OperationStack.NOT_TIMED, new OperationStack().pop(JDBC, clock));
+  }
+
+  @Test
+  public void testStackGrows() {
+    OperationId[] ids = new OperationId[50];
+    for (int i = 0; i < ids.length; i++) {
+      ids[i] = new OperationId("op" + i);
+      clock.tick = i;
+      stack.push(ids[i], clock);
+    }
+    assertEquals(50, stack.depth());
+    clock.tick = 100;
+    for (int i = ids.length - 1; i >= 0; i--) {
+      assertEquals(100 - i, stack.pop(ids[i], clock));
+    }
+    assertEquals(0, stack.depth());
+  }
+
+  private static class ManualClock extends Clock {
+
+    private long tick;
+    private int reads;
+
+    @Override
+    public long getTick() {
+      reads++;
+      return tick;
+    }
+  }
+}